@@ -0,0 +1,231 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.slytechs.jnet.protocol.Frame.FrameNumber;
+
+/**
+ * Factory methods for frame number assignment strategies, selectable with
+ * {@link NetPcap#setFrameNumber(FrameNumber)}. All of the strategies are
+ * allocation free per packet. None of them synchronize the threads which call
+ * an assigner, so which of them may be shared, and how, differs:
+ * 
+ * <ul>
+ * <li>a {@link #perPort()} assigner may be shared by several handles, each with
+ * its own capture thread and a unique port number</li>
+ * <li>a {@link GlobalSequence} may be shared by several handles, but each
+ * handle must use its own assigner, from {@link GlobalSequence#newAssigner()},
+ * on a single thread</li>
+ * <li>a {@link #timestamp()} assigner must be used by a single handle, on a
+ * single thread</li>
+ * </ul>
+ * 
+ * <dl>
+ * <dt>{@link #perPort()}</dt>
+ * <dd>an independent, sequential counter for each port number</dd>
+ * <dt>{@link GlobalSequence}</dt>
+ * <dd>a single, global sequence shared by several handles. Each handle reserves
+ * a batch of frame numbers at a time, with a single atomic operation, and
+ * assigns them locally. Frame numbers are globally unique, but only sequential
+ * within each handle.</dd>
+ * <dt>{@link #timestamp()}</dt>
+ * <dd>frame number derived from the packet timestamp, made strictly increasing
+ * for packets with equal timestamps</dd>
+ * </dl>
+ * 
+ * <pre>
+ * FrameNumbers.GlobalSequence seq = FrameNumbers.globalSequence();
+ * 
+ * pcap1.setFrameNumber(seq.newAssigner());
+ * pcap2.setFrameNumber(seq.newAssigner());
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class FrameNumbers {
+
+	/**
+	 * A global frame number sequence, shared between several handles or threads.
+	 * Each assigner, which must be used by a single thread, reserves a batch of
+	 * frame numbers from the sequence at a time.
+	 */
+	public static final class GlobalSequence {
+
+		/** The next unreserved frame number. */
+		private final AtomicLong next;
+
+		/** The batch size. */
+		private final int batchSize;
+
+		/**
+		 * Instantiates a new global sequence.
+		 *
+		 * @param startingNo the starting no
+		 * @param batchSize  the batch size
+		 */
+		private GlobalSequence(long startingNo, int batchSize) {
+			if (batchSize < 1)
+				throw new IllegalArgumentException("batch size must be 1 or greater [%d]".formatted(batchSize));
+
+			this.next = new AtomicLong(startingNo);
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * Gets the batch size.
+		 *
+		 * @return the batch size
+		 */
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/**
+		 * Gets the next unreserved frame number. Frame numbers below it have either
+		 * been assigned, or are reserved by an assigner.
+		 *
+		 * @return the next unreserved frame number
+		 */
+		public long getReservedLimit() {
+			return next.get();
+		}
+
+		/**
+		 * Creates a new assigner, to be used by a single handle or thread.
+		 *
+		 * @return the frame number assigner
+		 */
+		public FrameNumber newAssigner() {
+			return new FrameNumber() {
+
+				/** The next frame number in the reserved batch. */
+				private long current;
+
+				/** The end of the reserved batch. */
+				private long end;
+
+				@Override
+				public long getUsing(long timestamp, int portNo) {
+					if (current == end) {
+						current = next.getAndAdd(batchSize);
+						end = current + batchSize;
+					}
+
+					return current++;
+				}
+			};
+		}
+	}
+
+	/** Default number of frame numbers reserved at a time. */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	/** Default maximum number of ports, for per port numbering. */
+	public static final int DEFAULT_MAX_PORTS = 256;
+
+	/** Counters are spaced out by a cache line, to avoid false sharing. */
+	private static final int COUNTER_STRIDE = 8;
+
+	/**
+	 * A global frame number sequence, starting at 0, which reserves
+	 * {@value #DEFAULT_BATCH_SIZE} frame numbers at a time.
+	 *
+	 * @return the global sequence
+	 */
+	public static GlobalSequence globalSequence() {
+		return new GlobalSequence(0, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * A global frame number sequence.
+	 *
+	 * @param startingNo the starting frame number
+	 * @param batchSize  the number of frame numbers reserved at a time
+	 * @return the global sequence
+	 */
+	public static GlobalSequence globalSequence(long startingNo, int batchSize) {
+		return new GlobalSequence(startingNo, batchSize);
+	}
+
+	/**
+	 * Independent frame number counters for each port, starting at 0, for port
+	 * numbers up to {@value #DEFAULT_MAX_PORTS}.
+	 *
+	 * @return the frame number assigner
+	 */
+	public static FrameNumber perPort() {
+		return perPort(DEFAULT_MAX_PORTS, 0);
+	}
+
+	/**
+	 * Independent frame number counters for each port. The same assigner can be
+	 * shared by several handles, each with a unique port number, without any
+	 * synchronization, since each port's counter is only updated by its own
+	 * capture thread. Port numbers must be from 0 up to, but not including, the
+	 * maximum number of ports, the assigner throws an
+	 * {@link IndexOutOfBoundsException} for any other port number, instead of
+	 * sharing a counter between two ports.
+	 *
+	 * @param maxPorts   the maximum number of ports
+	 * @param startingNo the starting frame number of each port
+	 * @return the frame number assigner
+	 */
+	public static FrameNumber perPort(int maxPorts, long startingNo) {
+		if (maxPorts < 1)
+			throw new IllegalArgumentException("max ports must be 1 or greater [%d]".formatted(maxPorts));
+
+		long[] counters = new long[maxPorts * COUNTER_STRIDE];
+		for (int i = 0; i < maxPorts; i++)
+			counters[i * COUNTER_STRIDE] = startingNo;
+
+		return (timestamp, portNo) -> counters[Objects.checkIndex(portNo, maxPorts) * COUNTER_STRIDE]++;
+	}
+
+	/**
+	 * Frame numbers derived from the packet timestamp, in the handle's timestamp
+	 * unit. Packets with a timestamp equal to or older than the previous packet's
+	 * frame number are assigned the previous frame number plus one, so the frame
+	 * numbers are unique and strictly increasing within a handle.
+	 *
+	 * @return the frame number assigner, to be used by a single handle
+	 */
+	public static FrameNumber timestamp() {
+		return new FrameNumber() {
+
+			/** The last assigned frame number. */
+			private long last = Long.MIN_VALUE;
+
+			@Override
+			public long getUsing(long timestamp, int portNo) {
+				last = (timestamp > last) ? timestamp : last + 1;
+
+				return last;
+			}
+		};
+	}
+
+	/**
+	 * Instantiates a new frame numbers.
+	 */
+	private FrameNumbers() {
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import com.slytechs.jnet.jnetpcap.internal.LogHistogram;
+
+/**
+ * An immutable snapshot of a log-linear histogram. Values are recorded with a
+ * relative precision of about 3% over their entire range. Percentile values
+ * returned are the highest value which is equivalent, within the histogram
+ * precision, to the actual recorded value.
+ * 
+ * <p>
+ * The getters of this class follow the java bean convention so that snapshots
+ * can be exposed as JMX open data.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class HistogramSnapshot {
+
+	/** An empty snapshot. */
+	public static final HistogramSnapshot EMPTY = new HistogramSnapshot(new LogHistogram());
+
+	/** The bucket counts. */
+	private final long[] counts;
+
+	/** The total count. */
+	private final long count;
+
+	/** The min. */
+	private final long min;
+
+	/** The max. */
+	private final long max;
+
+	/** The sum. */
+	private final long sum;
+
+	/**
+	 * Instantiates a new histogram snapshot.
+	 *
+	 * @param histogram the histogram to take a snapshot of
+	 */
+	HistogramSnapshot(LogHistogram histogram) {
+		this.counts = histogram.copyCounts();
+		this.min = histogram.min();
+		this.max = histogram.max();
+		this.sum = histogram.sum();
+
+		long total = 0;
+		for (long c : counts)
+			total += c;
+
+		this.count = total; // Consistent with the copied buckets
+	}
+
+	/**
+	 * Number of recorded values.
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Largest recorded value.
+	 *
+	 * @return the max
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Mean of all the recorded values.
+	 *
+	 * @return the mean or 0 if empty
+	 */
+	public double getMean() {
+		return (count == 0) ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Smallest recorded value.
+	 *
+	 * @return the min
+	 */
+	public long getMin() {
+		return min;
+	}
+
+	/**
+	 * The 50th percentile (median).
+	 *
+	 * @return the value at 50th percentile
+	 */
+	public long getP50() {
+		return valueAtPercentile(50.0);
+	}
+
+	/**
+	 * The 90th percentile.
+	 *
+	 * @return the value at 90th percentile
+	 */
+	public long getP90() {
+		return valueAtPercentile(90.0);
+	}
+
+	/**
+	 * The 99th percentile.
+	 *
+	 * @return the value at 99th percentile
+	 */
+	public long getP99() {
+		return valueAtPercentile(99.0);
+	}
+
+	/**
+	 * The 99.9th percentile.
+	 *
+	 * @return the value at 99.9th percentile
+	 */
+	public long getP999() {
+		return valueAtPercentile(99.9);
+	}
+
+	/**
+	 * Value at a percentile.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the value at percentile or 0 if empty
+	 */
+	public long valueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+
+		double p = Math.min(Math.max(percentile, 0.0), 100.0);
+		long target = Math.max(1, (long) Math.ceil((p / 100.0) * count));
+
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += counts[i];
+
+			if (total >= target)
+				return Math.min(LogHistogram.highestEquivalentValue(i), max);
+		}
+
+		return max;
+	}
+
+	/**
+	 * Number of recorded values which fall into a value range, within the
+	 * precision of the histogram.
+	 *
+	 * @param lowValue  the low value, inclusive
+	 * @param highValue the high value, inclusive
+	 * @return the count
+	 */
+	public long countBetween(long lowValue, long highValue) {
+		int low = LogHistogram.bucketIndex(lowValue);
+		int high = LogHistogram.bucketIndex(highValue);
+
+		long total = 0;
+		for (int i = low; i <= high; i++)
+			total += counts[i];
+
+		return total;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "HistogramSnapshot [count=%d, min=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, p999=%d, max=%d]"
+				.formatted(count, min, getMean(), getP50(), getP90(), getP99(), getP999(), max);
+	}
+}
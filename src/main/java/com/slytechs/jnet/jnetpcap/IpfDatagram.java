@@ -0,0 +1,134 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A reassembled IP datagram, in scatter-gather form. The datagram consists of
+ * the encapsulating L2 and L3 headers, taken from the first fragment, followed
+ * by the IP payload segments, in datagram offset order. Segments do not
+ * overlap, where fragments overlapped the earlier offset wins, and holes in an
+ * incomplete datagram read as zeros.
+ * 
+ * <p>
+ * A datagram is only valid for the duration of the
+ * {@link PcapProHandler.IpfDatagramHandler} call, after which its memory is
+ * released for the reassembly of another datagram.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see IpfReassembler#enableScatterGather(boolean)
+ */
+public interface IpfDatagram {
+
+	/**
+	 * Copy a range of the datagram, headers and payload as if they were
+	 * contiguous, to another memory segment.
+	 *
+	 * @param offset    the datagram offset
+	 * @param dst       the destination segment
+	 * @param dstOffset the destination offset
+	 * @param length    the number of bytes to copy
+	 */
+	void copyTo(long offset, MemorySegment dst, long dstOffset, long length);
+
+	/**
+	 * Gets a byte of the datagram, headers and payload as if they were contiguous.
+	 *
+	 * @param offset the datagram offset
+	 * @return the byte
+	 */
+	byte getByte(long offset);
+
+	/**
+	 * The encapsulating L2 and L3 headers, with the IP fragmentation fields
+	 * cleared.
+	 *
+	 * @return the headers
+	 */
+	MemorySegment headers();
+
+	/**
+	 * Checks if all fragments of the datagram were received.
+	 *
+	 * @return true, if complete
+	 */
+	boolean isComplete();
+
+	/**
+	 * The total length of the datagram, headers plus payload.
+	 *
+	 * @return the length
+	 */
+	default long length() {
+		return headers().byteSize() + payloadLength();
+	}
+
+	/**
+	 * Copy the datagram into a new, contiguous, memory segment.
+	 *
+	 * @param arena the arena to allocate from
+	 * @return the linearized datagram
+	 */
+	default MemorySegment linearize(Arena arena) {
+		MemorySegment dst = arena.allocate(length());
+		copyTo(0, dst, 0, length());
+
+		return dst;
+	}
+
+	/**
+	 * The IP payload length, up to the end of the last received fragment.
+	 *
+	 * @return the payload length
+	 */
+	int payloadLength();
+
+	/**
+	 * A payload segment.
+	 *
+	 * @param index the segment index
+	 * @return the payload segment
+	 */
+	MemorySegment segment(int index);
+
+	/**
+	 * The number of payload segments.
+	 *
+	 * @return the segment count
+	 */
+	int segmentCount();
+
+	/**
+	 * The offset of a payload segment, within the IP payload.
+	 *
+	 * @param index the segment index
+	 * @return the payload offset
+	 */
+	int segmentOffset(int index);
+
+	/**
+	 * The timestamp of the datagram, in the IPF timestamp unit.
+	 *
+	 * @return the timestamp
+	 */
+	long timestamp();
+}
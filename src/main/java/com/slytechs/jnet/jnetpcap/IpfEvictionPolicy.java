@@ -0,0 +1,42 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * What the IPF reassembler does when a fragment of a new IP datagram arrives
+ * and the IPF table is full.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see IpfReassembler#setEvictionPolicy(IpfEvictionPolicy)
+ */
+public enum IpfEvictionPolicy {
+
+	/** Reject the new fragment, counted as a table insertion failure. */
+	REJECT,
+
+	/** Evict the incomplete datagram which started reassembly the earliest. */
+	OLDEST,
+
+	/**
+	 * Evict the incomplete datagram with the most buffered bytes, among the 16
+	 * oldest incomplete datagrams. Falls back to {@link #OLDEST} when reassembly
+	 * is disabled, since no bytes are buffered.
+	 */
+	LARGEST,
+}
@@ -0,0 +1,38 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * The hash function used to index IP datagram keys, the source and destination
+ * addresses, identification and protocol, in the IPF table.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see IpfReassembler#setKeyHash(IpfKeyHash)
+ */
+public enum IpfKeyHash {
+
+	/** CRC32 over the key bytes, a 32-bit hash. */
+	CRC32,
+
+	/**
+	 * Multiply-xorshift over the key fields, read as primitive longs directly
+	 * from the packet, a 64-bit hash.
+	 */
+	FAST,
+}
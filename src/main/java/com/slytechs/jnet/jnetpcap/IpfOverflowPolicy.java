@@ -0,0 +1,44 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * What the IPF dispatcher does when a reassembled datagram is ready to be
+ * dispatched, but its queue of pending datagrams is full.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see IpfReassembler#setOverflowPolicy(IpfOverflowPolicy)
+ */
+public enum IpfOverflowPolicy {
+
+	/** Drop the new datagram. */
+	DROP_NEWEST,
+
+	/** Drop the oldest pending datagram, to make room for the new one. */
+	DROP_OLDEST,
+
+	/**
+	 * Dispatch all of the pending datagrams as soon as the packet being processed
+	 * has been dispatched, holding the new datagram in a preallocated reserve, as
+	 * large as the queue, until then. If the reserve is exhausted as well, the
+	 * oldest pending datagram is dropped and counted by
+	 * {@link IpfStatistics#getDatagramFlushDropCount()}.
+	 */
+	FLUSH,
+}
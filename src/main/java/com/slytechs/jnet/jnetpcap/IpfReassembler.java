@@ -19,9 +19,13 @@ package com.slytechs.jnet.jnetpcap;
 
 import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
 
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PostRxProcessor;
+import com.slytechs.jnet.jnetpcap.PcapProHandler.IpfDatagramHandler;
+import com.slytechs.jnet.jnetpcap.PcapProHandler.IpfTrackingHandler;
 import com.slytechs.jnet.jnetpcap.internal.ipf.IpfDispatcher;
 import com.slytechs.jnet.jnetruntime.time.TimestampSource;
 import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
@@ -84,6 +88,9 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 	/** System property which enables attachment of partially reassembled IP dgram to the last IP fragment (default is true). */
 	public static final String PROPERTY_IPF_ATTACH_INCOMPLETE           = "ipf.attach.incomplete";
 	
+	/** System property which enables attachment of the IPF fragment descriptor to passed through fragments (default is true). */
+	public static final String PROPERTY_IPF_ATTACH_FRAGMENT             = "ipf.attach.fragment";
+	
 	/** System property which enables IPF fragment tracking and reassembly (default is false). */
 	public static final String PROPERTY_IPF_ENABLE                      = "ipf.enable";
 	
@@ -92,6 +99,27 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 	
 	/** System property which enables IPF fragment tracking (default false). */
 	public static final String PROPERTY_IPF_ENABLE_TRACKING             = "ipf.enable.tracking";
+	
+	/** System property which limits the number of concurrent datagrams per source address (default 0, no limit). */
+	public static final String PROPERTY_IPF_SOURCE_MAX_DGRAMS           = "ipf.source.maxDgrams";
+	
+	/** System property which limits the number of buffered bytes per source address (default 0, no limit). */
+	public static final String PROPERTY_IPF_SOURCE_MAX_BYTES            = "ipf.source.maxBytes";
+	
+	/** System property which defines the number of per source address budget counters (default 4K). */
+	public static final String PROPERTY_IPF_SOURCE_TABLE_SIZE           = "ipf.source.tableSize";
+	
+	/** System property which defines the eviction policy when the IPF table is full (default OLDEST). */
+	public static final String PROPERTY_IPF_EVICTION_POLICY             = "ipf.evictionPolicy";
+	
+	/** System property which enables scatter-gather datagram delivery (default false). */
+	public static final String PROPERTY_IPF_SCATTER_GATHER              = "ipf.scatterGather";
+	
+	/** System property which defines the IPF table key hash function (default FAST). */
+	public static final String PROPERTY_IPF_KEY_HASH                    = "ipf.keyHash";
+	
+	/** System property which defines the policy when the queue of datagrams pending dispatch is full (default DROP_NEWEST). */
+	public static final String PROPERTY_IPF_OVERFLOW_POLICY             = "ipf.dgrams.overflowPolicy";
 	// @formatter:on
 
 	// @formatter:off
@@ -136,6 +164,9 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 	/** The attach complete. */
 	private boolean attachComplete        = boolValue(PROPERTY_IPF_ATTACH_COMPLETE,    false);
 	
+	/** The attach fragment. */
+	private boolean attachFragment        = boolValue(PROPERTY_IPF_ATTACH_FRAGMENT,    true);
+	
 	/** The send. */
 	/* Datagram dispatcher send properties - dgrams are inserted into dispatcher stream */
 	private boolean send                  = boolValue(PROPERTY_IPF_DGRAMS_SEND,            true);
@@ -145,11 +176,52 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 	
 	/** The send complete. */
 	private boolean sendComplete          = boolValue(PROPERTY_IPF_DGRAMS_SEND_COMPLETE,   true);
+
+	/** The source max dgrams. */
+	/* Per source address budgets and table eviction */
+	private int     sourceMaxDgrams       = intValue (PROPERTY_IPF_SOURCE_MAX_DGRAMS,      0,   CountUnit.COUNT);
+	
+	/** The source max bytes. */
+	private int     sourceMaxBytes        = intValue (PROPERTY_IPF_SOURCE_MAX_BYTES,       0,   MemoryUnit.BYTES);
+	
+	/** The source table size. */
+	private int     sourceTableSize       = intValue (PROPERTY_IPF_SOURCE_TABLE_SIZE,      4096, CountUnit.COUNT);
+	
+	/** The eviction policy. */
+	private IpfEvictionPolicy evictionPolicy = IpfEvictionPolicy.valueOf(
+			System.getProperty(PROPERTY_IPF_EVICTION_POLICY, IpfEvictionPolicy.OLDEST.name()));
+
+	/** The scatter gather. */
+	/* Scatter-gather datagram delivery */
+	private boolean scatterGather         = boolValue(PROPERTY_IPF_SCATTER_GATHER,         false);
+	
+	/** The key hash. */
+	private IpfKeyHash keyHash = IpfKeyHash.valueOf(
+			System.getProperty(PROPERTY_IPF_KEY_HASH, IpfKeyHash.FAST.name()));
+	
+	/** The overflow policy. */
+	private IpfOverflowPolicy overflowPolicy = IpfOverflowPolicy.valueOf(
+			System.getProperty(PROPERTY_IPF_OVERFLOW_POLICY, IpfOverflowPolicy.DROP_NEWEST.name()));
 	// @formatter:on
 
+	/** The datagram handler, for scatter-gather datagrams. */
+	private IpfDatagramHandler datagramHandler;
+
+	/** The tracking handler, for tracking-only mode. */
+	private IpfTrackingHandler trackingHandler;
+
+	/** The initial state, imported by the IPF engine when created. */
+	private byte[] initialState;
+
+	/** The state exporter, bound by the active IPF engine. */
+	private Supplier<byte[]> stateExporter;
+
 	/** The time source. */
 	private AssignableTimestampSource timeSource;
 
+	/** The ipf statistics, shared by the IPF dispatcher. */
+	private final IpfStatistics ipfStatistics = new IpfStatistics();
+
 	/**
 	 * Effective or the result of combining of all the main properties and modes.
 	 */
@@ -167,12 +239,18 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		/** The tracking. */
 		public final boolean tracking;
 		
+		/** Tracking without reassembly, no reassembly buffers are allocated. */
+		public final boolean trackingOnly;
+		
 		/** The pass complete. */
 		public final boolean passComplete;
 		
 		/** The pass incomplete. */
 		public final boolean passIncomplete; // On timeout-last
 		
+		/** The attach fragment descriptor to passed through fragments. */
+		public final boolean attachFragment;
+		
 		/** The time source. */
 		public final AssignableTimestampSource timeSource;
 
@@ -184,11 +262,13 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 			this.pass = passthrough;
 			this.passComplete = reassemblyEnabled && attachComplete;
 			this.passIncomplete = reassemblyEnabled && attachIncomplete && timeoutOnLast;
+			this.attachFragment = passthrough && attachFragment;
 
 			this.dgramsComplete = send && reassemblyEnabled && sendComplete;
 			this.dgramsIncomplete = send && reassemblyEnabled && sendIncomplete;
 
 			this.tracking = trackingEnabled && passthrough;
+			this.trackingOnly = trackingEnabled && !reassemblyEnabled;
 			this.timeSource = IpfReassembler.this.timeSource;
 		}
 
@@ -251,6 +331,21 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return this;
 	}
 
+	/**
+	 * Enable attachment of the IPF fragment descriptor to fragments which are
+	 * passed through. The IPF engine extracts the fragment information it needs
+	 * from the raw packet bytes, the descriptor requires an additional IPF
+	 * dissection of each fragment. When disabled, reassembly and tracking
+	 * descriptors are attached directly to the fragment's packet descriptor.
+	 *
+	 * @param attachFragment the attach fragment
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler enableAttachFragment(boolean attachFragment) {
+		this.attachFragment = attachFragment;
+		return this;
+	}
+
 	/**
 	 * Enable passthrough.
 	 *
@@ -306,6 +401,24 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return this;
 	}
 
+	/**
+	 * Enable scatter-gather datagram delivery. Fragment payloads are retained in
+	 * arrival order, without being placed at their datagram offsets, and a
+	 * reassembled datagram is delivered to the datagram handler as an
+	 * {@link IpfDatagram}, a list of payload segments. The datagram is only
+	 * linearized into a contiguous packet if datagram packets are also sent (see
+	 * {@link #enableSend(boolean)}), so for consumers which only read, hash or
+	 * checksum the payload, sending should be disabled.
+	 *
+	 * @param scatterGather enable scatter-gather delivery
+	 * @return the ipf reassembler
+	 * @see #setDatagramHandler(IpfDatagramHandler)
+	 */
+	public IpfReassembler enableScatterGather(boolean scatterGather) {
+		this.scatterGather = scatterGather;
+		return this;
+	}
+
 	/**
 	 * Enable tracking.
 	 *
@@ -326,6 +439,43 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return bufferSize;
 	}
 
+	/**
+	 * Gets the datagram handler, which receives scatter-gather datagrams.
+	 *
+	 * @return the datagram handler, or null if not set
+	 */
+	public IpfDatagramHandler getDatagramHandler() {
+		return datagramHandler;
+	}
+
+	/**
+	 * Gets the eviction policy, used when the IPF table is full.
+	 *
+	 * @return the eviction policy
+	 */
+	public IpfEvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Gets the IPF statistics, updated by the IPF dispatcher once the pcap handle
+	 * is active.
+	 *
+	 * @return the ipf statistics
+	 */
+	public IpfStatistics getIpfStatistics() {
+		return ipfStatistics;
+	}
+
+	/**
+	 * Gets the IPF table key hash function.
+	 *
+	 * @return the key hash
+	 */
+	public IpfKeyHash getKeyHash() {
+		return keyHash;
+	}
+
 	/**
 	 * Gets the max dgram bytes.
 	 *
@@ -335,6 +485,15 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return maxDgramBytes;
 	}
 
+	/**
+	 * Gets the policy used when the queue of datagrams pending dispatch is full.
+	 *
+	 * @return the overflow policy
+	 */
+	public IpfOverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
 	/**
 	 * Gets the max fragment count.
 	 *
@@ -344,6 +503,35 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return maxFragmentCount;
 	}
 
+	/**
+	 * Gets the maximum number of bytes buffered for datagrams from a single source
+	 * address.
+	 *
+	 * @return the maximum number of bytes, 0 for no limit
+	 */
+	public int getSourceMaxBytes() {
+		return sourceMaxBytes;
+	}
+
+	/**
+	 * Gets the maximum number of concurrent datagrams from a single source
+	 * address.
+	 *
+	 * @return the maximum number of datagrams, 0 for no limit
+	 */
+	public int getSourceMaxDgrams() {
+		return sourceMaxDgrams;
+	}
+
+	/**
+	 * Gets the number of per source address budget counters.
+	 *
+	 * @return the source table size
+	 */
+	public int getSourceTableSize() {
+		return sourceTableSize;
+	}
+
 	/**
 	 * Gets the table size.
 	 *
@@ -353,6 +541,54 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return tableSize;
 	}
 
+	/**
+	 * Gets the initial state, imported by the next IPF engine created.
+	 *
+	 * @return the initial state, or null if not set or already imported
+	 */
+	public byte[] getInitialState() {
+		return initialState;
+	}
+
+	/**
+	 * Export the state of all incomplete datagrams held by the active IPF engine.
+	 * When processing a large offline capture in chunks, the exported state can
+	 * be handed to the engine of the next chunk using
+	 * {@link #setInitialState(byte[])}, so that datagrams whose fragments
+	 * straddle chunk boundaries are still reassembled. The capture must not be
+	 * actively dispatching while the state is exported.
+	 *
+	 * @return the exported state
+	 * @throws IllegalStateException if no IPF engine is active, or it is in
+	 *                               tracking-only mode
+	 */
+	public byte[] exportState() throws IllegalStateException {
+		if (stateExporter == null)
+			throw new IllegalStateException("no active IPF engine");
+
+		return stateExporter.get();
+	}
+
+	/**
+	 * Binds the state exporter of the active IPF engine. Used internally by the
+	 * IPF engine.
+	 *
+	 * @param stateExporter the state exporter
+	 */
+	public void bindStateExporter(Supplier<byte[]> stateExporter) {
+		this.stateExporter = stateExporter;
+	}
+
+	/**
+	 * Gets the tracking handler, which receives tracking results in tracking-only
+	 * mode.
+	 *
+	 * @return the tracking handler, or null if not set
+	 */
+	public IpfTrackingHandler getTrackingHandler() {
+		return trackingHandler;
+	}
+
 	/**
 	 * Gets the timeout milli.
 	 *
@@ -398,6 +634,16 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return attachIncomplete;
 	}
 
+	/**
+	 * Checks if the IPF fragment descriptor is attached to passed through
+	 * fragments.
+	 *
+	 * @return true, if is attach fragment
+	 */
+	public boolean isAttachFragment() {
+		return attachFragment;
+	}
+
 	/**
 	 * Checks if is passthrough.
 	 *
@@ -416,6 +662,15 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return reassemblyEnabled;
 	}
 
+	/**
+	 * Checks if scatter-gather datagram delivery is enabled.
+	 *
+	 * @return true, if scatter-gather is enabled
+	 */
+	public boolean isScatterGather() {
+		return scatterGather;
+	}
+
 	/**
 	 * Checks if is send.
 	 *
@@ -505,6 +760,124 @@ public class IpfReassembler extends PcapProConfigurator<IpfReassembler> implemen
 		return this;
 	}
 
+	/**
+	 * Sets the initial state, previously exported by {@link #exportState()} from
+	 * another IPF engine, for example one that processed the previous chunk of a
+	 * large offline capture. The state is imported once, by the next IPF engine
+	 * created, and then cleared. The key hash and reassembly mode must be the same as the engine
+	 * which exported it, and per source budgets are not carried over.
+	 *
+	 * @param initialState the initial state, or null for none
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler setInitialState(byte[] initialState) {
+		this.initialState = initialState;
+		return this;
+	}
+
+	/**
+	 * Sets the tracking handler. When tracking is enabled and reassembly is
+	 * disabled, the IPF engine runs in tracking-only mode: no reassembly buffers
+	 * are allocated and only compact per-datagram metadata is kept in an off-heap
+	 * table, sized by the table size. When a datagram completes or times out,
+	 * its tracking descriptor is delivered to this handler.
+	 *
+	 * @param trackingHandler the tracking handler
+	 * @return the ipf reassembler
+	 * @see #enableTracking(boolean)
+	 * @see #enableReassembly(boolean)
+	 */
+	public IpfReassembler setTrackingHandler(IpfTrackingHandler trackingHandler) {
+		this.trackingHandler = trackingHandler;
+		return this;
+	}
+
+	/**
+	 * Sets the datagram handler, which receives reassembled datagrams in
+	 * scatter-gather mode. The datagram is only valid for the duration of the
+	 * call.
+	 *
+	 * @param datagramHandler the datagram handler
+	 * @return the ipf reassembler
+	 * @see #enableScatterGather(boolean)
+	 */
+	public IpfReassembler setDatagramHandler(IpfDatagramHandler datagramHandler) {
+		this.datagramHandler = datagramHandler;
+		return this;
+	}
+
+	/**
+	 * Sets the eviction policy, used when a fragment of a new datagram arrives and
+	 * the IPF table is full. The {@link IpfEvictionPolicy#LARGEST} policy falls
+	 * back to {@link IpfEvictionPolicy#OLDEST} when reassembly is disabled.
+	 *
+	 * @param evictionPolicy the eviction policy
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler setEvictionPolicy(IpfEvictionPolicy evictionPolicy) {
+		this.evictionPolicy = Objects.requireNonNull(evictionPolicy, "evictionPolicy");
+		return this;
+	}
+
+	/**
+	 * Sets the hash function used to index datagram keys in the IPF table.
+	 *
+	 * @param keyHash the key hash
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler setKeyHash(IpfKeyHash keyHash) {
+		this.keyHash = Objects.requireNonNull(keyHash, "keyHash");
+		return this;
+	}
+
+	/**
+	 * Sets the policy used when a reassembled datagram is ready, but the queue of
+	 * datagrams pending dispatch is full. The queue size is the timeout queue
+	 * size. Overflows are counted in the IPF statistics.
+	 *
+	 * @param overflowPolicy the overflow policy
+	 * @return the ipf reassembler
+	 * @see #setTimeoutQueueSize(int)
+	 */
+	public IpfReassembler setOverflowPolicy(IpfOverflowPolicy overflowPolicy) {
+		this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "overflowPolicy");
+		return this;
+	}
+
+	/**
+	 * Sets per source address budgets, which protect the IPF table against a
+	 * single host flooding it with fragments. New datagrams from a source at its
+	 * datagram limit are rejected, and a datagram whose source exceeds its byte
+	 * limit is evicted. Sources are tracked in a compact table of counters, indexed
+	 * by a hash of the source address.
+	 *
+	 * @param maxDgrams the maximum number of concurrent datagrams per source, 0
+	 *                  for no limit
+	 * @param maxBytes  the maximum number of buffered bytes per source, 0 for no
+	 *                  limit
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler setSourceBudget(int maxDgrams, int maxBytes) {
+		if (maxDgrams < 0 || maxBytes < 0)
+			throw new IllegalArgumentException("negative source budget");
+
+		this.sourceMaxDgrams = maxDgrams;
+		this.sourceMaxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Sets the number of per source address budget counters. Sources whose
+	 * address hashes to the same counter share a budget.
+	 *
+	 * @param sourceTableSize the source table size
+	 * @return the ipf reassembler
+	 */
+	public IpfReassembler setSourceTableSize(int sourceTableSize) {
+		this.sourceTableSize = sourceTableSize;
+		return this;
+	}
+
 	/**
 	 * Sets the table max fragment count.
 	 *
@@ -17,33 +17,418 @@
  */
 package com.slytechs.jnet.jnetpcap;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import com.slytechs.jnet.jnetpcap.internal.LogHistogram;
+
 /**
- * The Class IpfStatistics.
+ * IP fragment tracking and reassembly statistics. The counters are updated by
+ * a single capture thread without any locking, using opaque writes, and may
+ * be read from any thread. Values read from other threads are never torn, but
+ * may be slightly stale and are not necessarily consistent with each other.
+ * Use {@link #snapshot()} to take a copy of all of the counters and histograms
+ * at once, for reporting.
  *
  * @author Sly Technologies Inc
  * @author repos@slytechs.com
  */
 public final class IpfStatistics {
 
+	/**
+	 * Reasons for evicting an incomplete IP datagram, or rejecting a new one.
+	 */
+	public enum EvictionReason {
+
+		/** The oldest incomplete datagram was evicted to make room in a full table. */
+		TABLE_FULL_OLDEST,
+
+		/** The largest incomplete datagram was evicted to make room in a full table. */
+		TABLE_FULL_LARGEST,
+
+		/** A new datagram was rejected, its source is at its concurrent datagram limit. */
+		SOURCE_DGRAM_LIMIT,
+
+		/** A datagram was evicted, its source exceeded its buffered byte limit. */
+		SOURCE_BYTE_LIMIT,
+	}
+
+	/** Opaque access to the eviction counts. */
+	private static final VarHandle EVICTIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	/** Opaque access to the counters. */
+	private static final VarHandle TABLE_INSERTION_FAILURE,
+			IPFPROCESSING_FAILURE,
+			TIMEOUTS,
+			DATAGRAM_OVERFLOWS,
+			DATAGRAM_FLUSH_DROPS,
+			TABLE_ENTRIES_OPENED,
+			TABLE_ENTRIES_CLOSED,
+			TABLE_OCCUPANCY_MAX,
+			TABLE_INSERTION_RETRIES,
+			FRAGMENTS,
+			DATAGRAMS_COMPLETED,
+			BYTES_REASSEMBLED,
+			OVERLAPS,
+			HOLES;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			TABLE_INSERTION_FAILURE = lookup.findVarHandle(IpfStatistics.class, "tableInsertionFailure", long.class);
+			IPFPROCESSING_FAILURE = lookup.findVarHandle(IpfStatistics.class, "ipfprocessingFailure", long.class);
+			TIMEOUTS = lookup.findVarHandle(IpfStatistics.class, "timeouts", long.class);
+			DATAGRAM_OVERFLOWS = lookup.findVarHandle(IpfStatistics.class, "datagramOverflows", long.class);
+			DATAGRAM_FLUSH_DROPS = lookup.findVarHandle(IpfStatistics.class, "datagramFlushDrops", long.class);
+			TABLE_ENTRIES_OPENED = lookup.findVarHandle(IpfStatistics.class, "tableEntriesOpened", long.class);
+			TABLE_ENTRIES_CLOSED = lookup.findVarHandle(IpfStatistics.class, "tableEntriesClosed", long.class);
+			TABLE_OCCUPANCY_MAX = lookup.findVarHandle(IpfStatistics.class, "tableOccupancyMax", long.class);
+			TABLE_INSERTION_RETRIES = lookup.findVarHandle(IpfStatistics.class, "tableInsertionRetries", long.class);
+			FRAGMENTS = lookup.findVarHandle(IpfStatistics.class, "fragments", long.class);
+			DATAGRAMS_COMPLETED = lookup.findVarHandle(IpfStatistics.class, "datagramsCompleted", long.class);
+			BYTES_REASSEMBLED = lookup.findVarHandle(IpfStatistics.class, "bytesReassembled", long.class);
+			OVERLAPS = lookup.findVarHandle(IpfStatistics.class, "overlaps", long.class);
+			HOLES = lookup.findVarHandle(IpfStatistics.class, "holes", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The eviction counts, indexed by reason. */
+	private final long[] evictions = new long[EvictionReason.values().length];
+
 	/** The table insertion failure. */
 	private long tableInsertionFailure;
 	
 	/** The ipfprocessing failure. */
 	private long ipfprocessingFailure;
 
+	/** The timeouts. */
+	private long timeouts;
+
+	/** The datagram queue overflows. */
+	private long datagramOverflows;
+
+	/** The datagrams dropped by the flush overflow policy. */
+	private long datagramFlushDrops;
+
+	/** The table entries opened. */
+	private long tableEntriesOpened;
+
+	/** The table entries closed. */
+	private long tableEntriesClosed;
+
+	/** The table size. */
+	private volatile int tableSize;
+
+	/** The table occupancy high-water mark. */
+	private long tableOccupancyMax;
+
+	/** The table insertion retries. */
+	private long tableInsertionRetries;
+
+	/** The fragments seen. */
+	private long fragments;
+
+	/** The datagrams completed. */
+	private long datagramsCompleted;
+
+	/** The bytes reassembled. */
+	private long bytesReassembled;
+
+	/** The overlapping fragments. */
+	private long overlaps;
+
+	/** The datagrams closed with holes. */
+	private long holes;
+
+	/** The fragments per completed datagram. */
+	private final LogHistogram fragmentsPerDatagram = new LogHistogram();
+
+	/** The reassembly latency of completed datagrams. */
+	private final LogHistogram reassemblyLatency = new LogHistogram();
+
 	/**
 	 * Instantiates a new ipf statistics.
 	 */
 	public IpfStatistics() {
 	}
 
+	/**
+	 * Number of IP datagrams fully reassembled, or tracked, with all of their
+	 * fragments.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDatagramCompletedCount() {
+		return (long) DATAGRAMS_COMPLETED.getOpaque(this);
+	}
+
+	/**
+	 * Number of IP datagrams which left the IPF table incomplete, for any reason,
+	 * such as a timeout or an eviction.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDatagramIncompleteCount() {
+		return Math.max(0, (long) TABLE_ENTRIES_CLOSED.getOpaque(this) - (long) DATAGRAMS_COMPLETED.getOpaque(this));
+	}
+
+	/**
+	 * Number of bytes of IP payload in fully reassembled datagrams.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getBytesReassembledCount() {
+		return (long) BYTES_REASSEMBLED.getOpaque(this);
+	}
+
+	/**
+	 * Number of IP fragments seen by the IPF engine.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getFragmentCount() {
+		return (long) FRAGMENTS.getOpaque(this);
+	}
+
+	/**
+	 * Histogram of the number of fragments per fully reassembled datagram.
+	 *
+	 * @return the histogram snapshot
+	 */
+	public HistogramSnapshot getFragmentsPerDatagram() {
+		return new HistogramSnapshot(fragmentsPerDatagram);
+	}
+
+	/**
+	 * Number of IP datagrams which left the IPF table with holes, with some of
+	 * their payload never received.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getHoleCount() {
+		return (long) HOLES.getOpaque(this);
+	}
+
+	/**
+	 * Number of IP fragments which overlapped payload already received from other
+	 * fragments of the same datagram.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getOverlapCount() {
+		return (long) OVERLAPS.getOpaque(this);
+	}
+
+	/**
+	 * Histogram of the time, in milliseconds, from the first fragment to the
+	 * completion of a datagram.
+	 *
+	 * @return the histogram snapshot
+	 */
+	public HistogramSnapshot getReassemblyLatency() {
+		return new HistogramSnapshot(reassemblyLatency);
+	}
+
+	/**
+	 * Number of reassembled IP datagrams which did not fit in the queue of
+	 * datagrams pending dispatch, and were dropped or flushed according to the
+	 * overflow policy.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDatagramOverflowCount() {
+		return (long) DATAGRAM_OVERFLOWS.getOpaque(this);
+	}
+
+	/**
+	 * Number of reassembled IP datagrams dropped under the
+	 * {@link IpfOverflowPolicy#FLUSH} policy, because more datagrams were
+	 * produced while processing a single packet than the queue and its flush
+	 * reserve can hold.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDatagramFlushDropCount() {
+		return (long) DATAGRAM_FLUSH_DROPS.getOpaque(this);
+	}
+
+	/**
+	 * Number of IP datagrams evicted or rejected for a specific reason.
+	 *
+	 * @param reason the eviction reason
+	 * @return 64-bit counter
+	 */
+	public long getEvictionCount(EvictionReason reason) {
+		return (long) EVICTIONS.getOpaque(evictions, reason.ordinal());
+	}
+
+	/**
+	 * Total number of IP datagrams evicted or rejected, for any reason.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getEvictionCount() {
+		long total = 0;
+		for (int i = 0; i < evictions.length; i++)
+			total += (long) EVICTIONS.getOpaque(evictions, i);
+
+		return total;
+	}
+
+	/**
+	 * Number of IP fragments which could not be processed due to a reassembly
+	 * error.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getIpfProcessingFailureCount() {
+		return (long) IPFPROCESSING_FAILURE.getOpaque(this);
+	}
+
+	/**
+	 * Number of IP fragments which could not be inserted into the IPF table,
+	 * because the table was full.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getTableInsertionFailureCount() {
+		return (long) TABLE_INSERTION_FAILURE.getOpaque(this);
+	}
+
+	/**
+	 * Number of IPF table entries currently in use, reassembling an IP datagram.
+	 *
+	 * @return the table occupancy
+	 */
+	public long getTableOccupancy() {
+		return Math.max(0, (long) TABLE_ENTRIES_OPENED.getOpaque(this) - (long) TABLE_ENTRIES_CLOSED.getOpaque(this));
+	}
+
+	/**
+	 * Highest number of IPF table entries in use at the same time.
+	 *
+	 * @return the table occupancy high-water mark
+	 */
+	public long getTableOccupancyMax() {
+		return (long) TABLE_OCCUPANCY_MAX.getOpaque(this);
+	}
+
+	/**
+	 * Number of IPF table insertions which were retried after an eviction,
+	 * because the new datagram's key could not be placed in the table.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getTableInsertionRetryCount() {
+		return (long) TABLE_INSERTION_RETRIES.getOpaque(this);
+	}
+
+	/**
+	 * Gets the IPF table size.
+	 *
+	 * @return the table size
+	 */
+	public int getTableSize() {
+		return tableSize;
+	}
+
+	/**
+	 * Number of IP datagram reassemblies which timed out before all of the
+	 * fragments were seen.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getTimeoutCount() {
+		return (long) TIMEOUTS.getOpaque(this);
+	}
+
+	/**
+	 * Inc datagram overflow.
+	 *
+	 * @param delta the delta
+	 */
+	public void incDatagramOverflow(int delta) {
+		DATAGRAM_OVERFLOWS.setOpaque(this, datagramOverflows + delta);
+	}
+
+	/**
+	 * Inc datagram flush drop.
+	 *
+	 * @param delta the delta
+	 */
+	public void incDatagramFlushDrop(int delta) {
+		DATAGRAM_FLUSH_DROPS.setOpaque(this, datagramFlushDrops + delta);
+	}
+
+	/**
+	 * Inc eviction.
+	 *
+	 * @param reason the reason
+	 */
+	public void incEviction(EvictionReason reason) {
+		int i = reason.ordinal();
+		EVICTIONS.setOpaque(evictions, i, evictions[i] + 1);
+	}
+
+	/**
+	 * Inc fragment.
+	 *
+	 * @param delta the delta
+	 */
+	public void incFragment(int delta) {
+		FRAGMENTS.setOpaque(this, fragments + delta);
+	}
+
+	/**
+	 * Inc hole.
+	 *
+	 * @param delta the delta
+	 */
+	public void incHole(int delta) {
+		HOLES.setOpaque(this, holes + delta);
+	}
+
+	/**
+	 * Inc overlap.
+	 *
+	 * @param delta the delta
+	 */
+	public void incOverlap(int delta) {
+		OVERLAPS.setOpaque(this, overlaps + delta);
+	}
+
+	/**
+	 * Inc table insertion retry.
+	 *
+	 * @param delta the delta
+	 */
+	public void incTableInsertionRetry(int delta) {
+		TABLE_INSERTION_RETRIES.setOpaque(this, tableInsertionRetries + delta);
+	}
+
+	/**
+	 * Record a completed datagram.
+	 *
+	 * @param fragmentCount the number of fragments
+	 * @param bytes         the reassembled payload bytes
+	 * @param latencyMilli  the time from the first fragment, in milliseconds
+	 */
+	public void recordDatagramCompleted(int fragmentCount, int bytes, long latencyMilli) {
+		DATAGRAMS_COMPLETED.setOpaque(this, datagramsCompleted + 1);
+		BYTES_REASSEMBLED.setOpaque(this, bytesReassembled + bytes);
+		fragmentsPerDatagram.record(fragmentCount);
+		reassemblyLatency.record(latencyMilli);
+	}
+
 	/**
 	 * Inc table insertion failure.
 	 *
 	 * @param delta the delta
 	 */
 	public void incTableInsertionFailure(int delta) {
-		tableInsertionFailure += delta;
+		TABLE_INSERTION_FAILURE.setOpaque(this, tableInsertionFailure + delta);
 	}
 
 	/**
@@ -52,6 +437,101 @@ public final class IpfStatistics {
 	 * @param delta the delta
 	 */
 	public void incIpfProcessingFailure(int delta) {
-		ipfprocessingFailure += delta;
+		IPFPROCESSING_FAILURE.setOpaque(this, ipfprocessingFailure + delta);
+	}
+
+	/**
+	 * Inc table entry closed.
+	 *
+	 * @param delta the delta
+	 */
+	public void incTableEntryClosed(int delta) {
+		TABLE_ENTRIES_CLOSED.setOpaque(this, tableEntriesClosed + delta);
+	}
+
+	/**
+	 * Inc table entry opened.
+	 *
+	 * @param delta the delta
+	 */
+	public void incTableEntryOpened(int delta) {
+		TABLE_ENTRIES_OPENED.setOpaque(this, tableEntriesOpened + delta);
+
+		long occupancy = tableEntriesOpened - tableEntriesClosed;
+		if (occupancy > tableOccupancyMax)
+			TABLE_OCCUPANCY_MAX.setOpaque(this, occupancy);
+	}
+
+	/**
+	 * Inc timeout.
+	 *
+	 * @param delta the delta
+	 */
+	public void incTimeout(int delta) {
+		TIMEOUTS.setOpaque(this, timeouts + delta);
+	}
+
+	/**
+	 * Sets the table size.
+	 *
+	 * @param tableSize the table size
+	 */
+	public void setTableSize(int tableSize) {
+		this.tableSize = tableSize;
+	}
+
+	/**
+	 * Take a snapshot of all of the counters and histograms. The snapshot is not
+	 * updated by the capture thread and its values are consistent with each
+	 * other, as long as it is taken while the capture is not actively
+	 * dispatching, or within the capture thread itself.
+	 *
+	 * @return a new statistics instance with a copy of the current values
+	 */
+	public IpfStatistics snapshot() {
+		var copy = new IpfStatistics();
+
+		for (int i = 0; i < evictions.length; i++)
+			copy.evictions[i] = (long) EVICTIONS.getOpaque(evictions, i);
+		copy.tableInsertionFailure = (long) TABLE_INSERTION_FAILURE.getOpaque(this);
+		copy.ipfprocessingFailure = (long) IPFPROCESSING_FAILURE.getOpaque(this);
+		copy.timeouts = (long) TIMEOUTS.getOpaque(this);
+		copy.datagramOverflows = (long) DATAGRAM_OVERFLOWS.getOpaque(this);
+		copy.datagramFlushDrops = (long) DATAGRAM_FLUSH_DROPS.getOpaque(this);
+		copy.tableEntriesOpened = (long) TABLE_ENTRIES_OPENED.getOpaque(this);
+		copy.tableEntriesClosed = (long) TABLE_ENTRIES_CLOSED.getOpaque(this);
+		copy.tableSize = tableSize;
+		copy.tableOccupancyMax = (long) TABLE_OCCUPANCY_MAX.getOpaque(this);
+		copy.tableInsertionRetries = (long) TABLE_INSERTION_RETRIES.getOpaque(this);
+		copy.fragments = (long) FRAGMENTS.getOpaque(this);
+		copy.datagramsCompleted = (long) DATAGRAMS_COMPLETED.getOpaque(this);
+		copy.bytesReassembled = (long) BYTES_REASSEMBLED.getOpaque(this);
+		copy.overlaps = (long) OVERLAPS.getOpaque(this);
+		copy.holes = (long) HOLES.getOpaque(this);
+		copy.fragmentsPerDatagram.add(fragmentsPerDatagram);
+		copy.reassemblyLatency.add(reassemblyLatency);
+
+		return copy;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return ("IpfStatistics [occupancy=%d/%d, occupancyMax=%d, fragments=%d, completed=%d, incomplete=%d, "
+				+ "bytes=%d, overlaps=%d, holes=%d, insertionFailures=%d, insertionRetries=%d, "
+				+ "processingFailures=%d, timeouts=%d, evictions=%d, overflows=%d, flushDrops=%d, "
+				+ "fragmentsPerDatagram=%s, reassemblyLatency=%s]")
+				.formatted(getTableOccupancy(), tableSize, getTableOccupancyMax(), getFragmentCount(),
+						getDatagramCompletedCount(), getDatagramIncompleteCount(), getBytesReassembledCount(),
+						getOverlapCount(), getHoleCount(), getTableInsertionFailureCount(),
+						getTableInsertionRetryCount(), getIpfProcessingFailureCount(), getTimeoutCount(),
+						getEvictionCount(), getDatagramOverflowCount(), getDatagramFlushDropCount(),
+						getFragmentsPerDatagram(),
+						getReassemblyLatency());
 	}
 }
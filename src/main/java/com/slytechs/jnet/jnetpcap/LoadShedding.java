@@ -0,0 +1,466 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
+
+/**
+ * Load shedding policy and statistics for a pcap-pro handle. When enabled, the
+ * capture thread periodically samples the libpcap kernel drop counter and the
+ * capture backlog. When either crosses its threshold, the amount of work done
+ * per packet is reduced by one level, and restored one level at a time, after
+ * the load subsides.
+ * 
+ * <p>
+ * Load shedding only applies to live captures. Offline captures are read as
+ * fast as they are processed and can not fall behind, so the controller is
+ * not installed on offline handles.
+ * </p>
+ * 
+ * <p>
+ * The levels, in order of increasing degradation, are:
+ * </p>
+ * <ol>
+ * <li>{@link Level#NORMAL} - full dissection, using the handle's descriptor
+ * type</li>
+ * <li>{@link Level#DEGRADE_DESCRIPTOR} - packets are dissected using a cheaper
+ * descriptor type (default {@code TYPE1})</li>
+ * <li>{@link Level#DISABLE_IPF} - in addition, IP fragment tracking and
+ * reassembly are bypassed</li>
+ * <li>{@link Level#SAMPLE} - in addition, only 1 out of every N packets is
+ * dissected and delivered, all others are shed</li>
+ * </ol>
+ * 
+ * <pre>
+ * pcap.enableLoadShedding(new LoadShedding()
+ * 		.setCheckInterval(100, TimeUnit.MILLISECONDS)
+ * 		.setSampleRate(16));
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see NetPcap#enableLoadShedding(LoadShedding)
+ */
+public final class LoadShedding {
+
+	/**
+	 * Load shedding levels, in order of increasing degradation.
+	 */
+	public enum Level {
+
+		/** No degradation. */
+		NORMAL,
+
+		/** Cheaper descriptor type. */
+		DEGRADE_DESCRIPTOR,
+
+		/** Cheaper descriptor type and IPF bypassed. */
+		DISABLE_IPF,
+
+		/** Cheaper descriptor type, IPF bypassed and packets sampled. */
+		SAMPLE,
+
+		;
+
+		/**
+		 * Checks if the packet descriptor type is degraded at this level.
+		 *
+		 * @return true, if degraded
+		 */
+		public boolean isDescriptorDegraded() {
+			return ordinal() >= DEGRADE_DESCRIPTOR.ordinal();
+		}
+
+		/**
+		 * Checks if IPF is bypassed at this level.
+		 *
+		 * @return true, if bypassed
+		 */
+		public boolean isIpfBypassed() {
+			return ordinal() >= DISABLE_IPF.ordinal();
+		}
+
+		/**
+		 * Checks if packets are sampled at this level.
+		 *
+		 * @return true, if sampled
+		 */
+		public boolean isSampling() {
+			return this == SAMPLE;
+		}
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "load.shedding";
+
+	/** System property which defines the load check interval in millis (default 250). */
+	public static final String PROPERTY_LOAD_SHEDDING_CHECK_INTERVAL = PREFIX + ".checkInterval";
+
+	/** System property which defines the kernel drops per interval threshold (default 1). */
+	public static final String PROPERTY_LOAD_SHEDDING_DROP_THRESHOLD = PREFIX + ".dropThreshold";
+
+	/** System property which defines the capture backlog threshold in millis (default 0, disabled). */
+	public static final String PROPERTY_LOAD_SHEDDING_BACKLOG_THRESHOLD = PREFIX + ".backlogThreshold";
+
+	/** System property which defines number of quiet intervals before restoring a level (default 8). */
+	public static final String PROPERTY_LOAD_SHEDDING_RESTORE_INTERVALS = PREFIX + ".restoreIntervals";
+
+	/** System property which defines the sample rate at the SAMPLE level (default 8). */
+	public static final String PROPERTY_LOAD_SHEDDING_SAMPLE_RATE = PREFIX + ".sampleRate";
+
+	/** Opaque access to the level entered counts. */
+	private static final VarHandle LEVEL_ENTERED = MethodHandles.arrayElementVarHandle(long[].class);
+
+	/** Opaque access to the scalar counters. */
+	private static final VarHandle DEGRADE_COUNT, RESTORE_COUNT, SHED_COUNT, LAST_TRANSITION_MILLI;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			DEGRADE_COUNT = lookup.findVarHandle(LoadShedding.class, "degradeCount", long.class);
+			RESTORE_COUNT = lookup.findVarHandle(LoadShedding.class, "restoreCount", long.class);
+			SHED_COUNT = lookup.findVarHandle(LoadShedding.class, "shedCount", long.class);
+			LAST_TRANSITION_MILLI = lookup.findVarHandle(LoadShedding.class, "lastTransitionMilli", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The check interval nano. */
+	private long checkIntervalNano = TimeUnit.MILLISECONDS.toNanos(
+			longValue(PROPERTY_LOAD_SHEDDING_CHECK_INTERVAL, 250));
+
+	/** The drop threshold. */
+	private long dropThreshold = longValue(PROPERTY_LOAD_SHEDDING_DROP_THRESHOLD, 1);
+
+	/** The backlog threshold milli. */
+	private long backlogThresholdMilli = longValue(PROPERTY_LOAD_SHEDDING_BACKLOG_THRESHOLD, 0);
+
+	/** The restore intervals. */
+	private int restoreIntervals = intValue(PROPERTY_LOAD_SHEDDING_RESTORE_INTERVALS, 8, CountUnit.COUNT);
+
+	/** The sample rate. */
+	private int sampleRate = intValue(PROPERTY_LOAD_SHEDDING_SAMPLE_RATE, 8, CountUnit.COUNT);
+
+	/** The degraded descriptor type. */
+	private PacketDescriptorType degradedDescriptorType = PacketDescriptorType.TYPE1;
+
+	/** The max level. */
+	private Level maxLevel = Level.SAMPLE;
+
+	/** The current level, written by the capture thread. */
+	private volatile Level level = Level.NORMAL;
+
+	/** Number of times each level was entered, written by the capture thread. */
+	private final long[] levelEntered = new long[Level.values().length];
+
+	/** The degrade transitions, written by the capture thread. */
+	private long degradeCount;
+
+	/** The restore transitions, written by the capture thread. */
+	private long restoreCount;
+
+	/** The shed packets, written by the capture thread. */
+	private long shedCount;
+
+	/** The last transition time in epoch millis, written by the capture thread. */
+	private long lastTransitionMilli;
+
+	/**
+	 * Instantiates a new load shedding policy with default values.
+	 */
+	public LoadShedding() {
+	}
+
+	/**
+	 * Gets the backlog threshold.
+	 *
+	 * @param unit the unit
+	 * @return the backlog threshold, 0 if disabled
+	 */
+	public long getBacklogThreshold(TimeUnit unit) {
+		return unit.convert(backlogThresholdMilli, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the check interval.
+	 *
+	 * @param unit the unit
+	 * @return the check interval
+	 */
+	public long getCheckInterval(TimeUnit unit) {
+		return unit.convert(checkIntervalNano, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the current level.
+	 *
+	 * @return the level
+	 */
+	public Level getCurrentLevel() {
+		return level;
+	}
+
+	/**
+	 * Gets the degraded descriptor type.
+	 *
+	 * @return the degraded descriptor type
+	 */
+	public PacketDescriptorType getDegradedDescriptorType() {
+		return degradedDescriptorType;
+	}
+
+	/**
+	 * Number of transitions to a more degraded level.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDegradeCount() {
+		return (long) DEGRADE_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the kernel drops per check interval threshold.
+	 *
+	 * @return the drop threshold
+	 */
+	public long getDropThreshold() {
+		return dropThreshold;
+	}
+
+	/**
+	 * Time of the last level transition.
+	 *
+	 * @return epoch time in millis, 0 if there were no transitions
+	 */
+	public long getLastTransitionMilli() {
+		return (long) LAST_TRANSITION_MILLI.getOpaque(this);
+	}
+
+	/**
+	 * Number of times a level was entered.
+	 *
+	 * @param level the level
+	 * @return 64-bit counter
+	 */
+	public long getLevelEnteredCount(Level level) {
+		return (long) LEVEL_ENTERED.getOpaque(levelEntered, level.ordinal());
+	}
+
+	/**
+	 * Gets the maximum level of degradation allowed.
+	 *
+	 * @return the max level
+	 */
+	public Level getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * Gets the number of consecutive quiet check intervals, required before a
+	 * level is restored.
+	 *
+	 * @return the restore intervals
+	 */
+	public int getRestoreIntervals() {
+		return restoreIntervals;
+	}
+
+	/**
+	 * Number of transitions to a less degraded level.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getRestoreCount() {
+		return (long) RESTORE_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the sample rate used at the {@link Level#SAMPLE} level.
+	 *
+	 * @return the sample rate
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Number of packets shed at the {@link Level#SAMPLE} level.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getShedCount() {
+		return (long) SHED_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Inc shed.
+	 *
+	 * @param delta the delta
+	 */
+	public void incShed(int delta) {
+		SHED_COUNT.setOpaque(this, shedCount + delta);
+	}
+
+	/**
+	 * Record a level transition. Called by the capture thread.
+	 *
+	 * @param newLevel the new level
+	 */
+	public void onTransition(Level newLevel) {
+		Level old = this.level;
+		if (old == newLevel)
+			return;
+
+		if (newLevel.ordinal() > old.ordinal())
+			DEGRADE_COUNT.setOpaque(this, degradeCount + 1);
+		else
+			RESTORE_COUNT.setOpaque(this, restoreCount + 1);
+
+		int i = newLevel.ordinal();
+		LEVEL_ENTERED.setOpaque(levelEntered, i, levelEntered[i] + 1);
+		LAST_TRANSITION_MILLI.setOpaque(this, System.currentTimeMillis());
+
+		this.level = newLevel;
+	}
+
+	/**
+	 * Sets the capture backlog threshold. The backlog is the age of the packet
+	 * being processed, relative to the system clock, computed from the full
+	 * pcap header timestamp, seconds and fraction, in the handle's timestamp
+	 * unit.
+	 * Only applies to live captures.
+	 *
+	 * @param duration the duration, 0 to disable
+	 * @param unit     the unit
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setBacklogThreshold(long duration, TimeUnit unit) {
+		this.backlogThresholdMilli = unit.toMillis(duration);
+
+		return this;
+	}
+
+	/**
+	 * Sets the interval at which kernel drops and backlog are checked.
+	 *
+	 * @param duration the duration
+	 * @param unit     the unit
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setCheckInterval(long duration, TimeUnit unit) {
+		if (duration <= 0)
+			throw new IllegalArgumentException("check interval must be positive");
+
+		this.checkIntervalNano = unit.toNanos(duration);
+
+		return this;
+	}
+
+	/**
+	 * Sets the cheaper descriptor type used when degraded.
+	 *
+	 * @param type the type
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setDegradedDescriptorType(PacketDescriptorType type) {
+		this.degradedDescriptorType = Objects.requireNonNull(type, "type");
+
+		return this;
+	}
+
+	/**
+	 * Sets the kernel drops per check interval threshold, at or above which the
+	 * handle is considered overloaded.
+	 *
+	 * @param threshold the threshold
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setDropThreshold(long threshold) {
+		if (threshold <= 0)
+			throw new IllegalArgumentException("drop threshold must be positive");
+
+		this.dropThreshold = threshold;
+
+		return this;
+	}
+
+	/**
+	 * Sets the maximum level of degradation allowed.
+	 *
+	 * @param level the level
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setMaxLevel(Level level) {
+		this.maxLevel = Objects.requireNonNull(level, "level");
+
+		return this;
+	}
+
+	/**
+	 * Sets the number of consecutive quiet check intervals required before a
+	 * level is restored.
+	 *
+	 * @param intervals the intervals
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setRestoreIntervals(int intervals) {
+		if (intervals <= 0)
+			throw new IllegalArgumentException("restore intervals must be positive");
+
+		this.restoreIntervals = intervals;
+
+		return this;
+	}
+
+	/**
+	 * Sets the sample rate used at the {@link Level#SAMPLE} level, 1 out of every
+	 * N packets is dissected and delivered.
+	 *
+	 * @param rate the rate
+	 * @return this load shedding policy
+	 */
+	public LoadShedding setSampleRate(int rate) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("sample rate must be positive");
+
+		this.sampleRate = rate;
+
+		return this;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "LoadShedding [level=%s, degrades=%d, restores=%d, shed=%d]"
+				.formatted(level, getDegradeCount(), getRestoreCount(), getShedCount());
+	}
+}
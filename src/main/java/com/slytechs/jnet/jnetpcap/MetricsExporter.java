@@ -0,0 +1,71 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import com.slytechs.jnet.jnetpcap.internal.JmxMetricsExporter;
+import com.slytechs.jnet.jnetpcap.internal.PrometheusMetricsExporter;
+import com.slytechs.jnet.protocol.Registration;
+
+/**
+ * A service provider interface for exporting pcap-pro handle metrics to a
+ * monitoring system. Exporters only read the metrics, on their own threads,
+ * from counters maintained by the capture thread. No synchronization is added
+ * to the packet processing path.
+ * 
+ * <pre>
+ * pcap.exportMetrics(MetricsExporter.jmx());
+ * pcap.exportMetrics(MetricsExporter.prometheus(9464));
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see NetPcap#exportMetrics(MetricsExporter)
+ */
+public interface MetricsExporter {
+
+	/**
+	 * An exporter which registers an MXBean with the platform MBean server, under
+	 * the name {@code com.slytechs.jnet.jnetpcap:type=NetPcap,name=<pcap name>}.
+	 *
+	 * @return the JMX exporter
+	 */
+	static MetricsExporter jmx() {
+		return new JmxMetricsExporter();
+	}
+
+	/**
+	 * An exporter which serves metrics in Prometheus text exposition format, at
+	 * {@code http://localhost:<port>/metrics}. The same exporter instance can be
+	 * shared by multiple pcap handles. The HTTP server is started when the first
+	 * handle is exported and stopped when the last export is unregistered.
+	 *
+	 * @param port the local TCP port
+	 * @return the Prometheus exporter
+	 */
+	static MetricsExporter prometheus(int port) {
+		return new PrometheusMetricsExporter(port);
+	}
+
+	/**
+	 * Export metrics of a pcap handle.
+	 *
+	 * @param metrics the metrics of a pcap handle
+	 * @return the registration which stops the export
+	 */
+	Registration export(NetPcapMXBean metrics);
+}
@@ -20,6 +20,7 @@ package com.slytechs.jnet.jnetpcap;
 import java.io.File;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -27,8 +28,10 @@ import java.util.Optional;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 import org.jnetpcap.Pcap0_4;
 import org.jnetpcap.Pcap0_6;
@@ -53,10 +56,21 @@ import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PostRxProcessorFactory;
 import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PreRxProcessor;
 import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PreRxProcessorFactory;
 import com.slytechs.jnet.jnetpcap.PcapProHandler.OfPacketConsumer;
+import com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher;
 import com.slytechs.jnet.jnetpcap.internal.CaptureStatisticsImpl;
+import com.slytechs.jnet.jnetpcap.internal.FusedPreProcessor;
+import com.slytechs.jnet.jnetpcap.internal.KernelStatsPreProcessor;
+import com.slytechs.jnet.jnetpcap.internal.KernelStatsSampler;
+import com.slytechs.jnet.jnetpcap.internal.LatencyMarkPreProcessor;
+import com.slytechs.jnet.jnetpcap.internal.LatencyRecorder;
+import com.slytechs.jnet.jnetpcap.internal.LoadSheddingPreProcessor;
+import com.slytechs.jnet.jnetpcap.internal.NetPcapMetrics;
 import com.slytechs.jnet.jnetpcap.internal.PacketDissectorReceiver;
 import com.slytechs.jnet.jnetpcap.internal.PacketReceiver;
 import com.slytechs.jnet.jnetpcap.internal.PacketReceiverConfig;
+import com.slytechs.jnet.jnetpcap.internal.PreProcessorStage;
+import com.slytechs.jnet.jnetpcap.internal.RawPacketScanner;
+import com.slytechs.jnet.jnetpcap.internal.ipf.JavaIpfDispatcher;
 import com.slytechs.jnet.jnetruntime.time.TimeSource;
 import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
 import com.slytechs.jnet.jnetruntime.util.MemoryUnit;
@@ -100,6 +114,119 @@ import com.slytechs.jnet.protocol.meta.PacketFormat;
  */
 public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 
+	/**
+	 * A chain of installed pre and post processors, built when the handle is
+	 * activated and rebuilt when it is reconfigured. All chains of a handle share
+	 * the same pcap dispatcher and packet dissector roots. A chain rebuilt by
+	 * {@link NetPcap#reconfigure(Consumer)} is built against private copies of
+	 * the context and packet receiver config, which are installed along with the
+	 * chain by the capture thread.
+	 */
+	private static final class ProcessorChain {
+
+		/** The context the chain was built against. */
+		private final PcapProContext context;
+
+		/** The packet receiver config the chain was built against. */
+		private final PacketReceiverConfig config;
+
+		/** The last pre processor. */
+		private PcapDispatcher preProcessor;
+
+		/** The last post processor. */
+		private PacketReceiver postProcessor;
+
+		/** The IPF post processor, null if not installed. */
+		private JavaIpfDispatcher ipf;
+
+		/** The close actions of the chain's processors. */
+		private final List<Runnable> closeActions = new ArrayList<>();
+
+		/** The release actions of the chain's processors, not including the roots. */
+		private final List<Runnable> releaseActions = new ArrayList<>();
+
+		/**
+		 * Instantiates a new processor chain.
+		 *
+		 * @param preProcessorRoot  the pre processor root
+		 * @param postProcessorRoot the post processor root
+		 * @param context           the context to build the chain against
+		 * @param config            the packet receiver config to build the chain
+		 *                          against
+		 */
+		ProcessorChain(PcapDispatcher preProcessorRoot, PacketReceiver postProcessorRoot,
+				PcapProContext context, PacketReceiverConfig config) {
+			this.preProcessor = preProcessorRoot;
+			this.postProcessor = postProcessorRoot;
+			this.context = context;
+			this.config = config;
+		}
+
+		/**
+		 * Add a pre processor to the chain, making it the last pre processor.
+		 *
+		 * @param processor the pre processor
+		 */
+		void addPreProcessor(PcapDispatcher processor) {
+			this.preProcessor = processor;
+
+			closeActions.add(processor::close);
+			if (processor instanceof AbstractPcapDispatcher dispatcher)
+				releaseActions.add(dispatcher::release);
+		}
+
+		/**
+		 * Add a post processor to the chain, making it the last post processor.
+		 *
+		 * @param processor the post processor
+		 */
+		void addPostProcessor(PacketReceiver processor) {
+			this.postProcessor = processor;
+
+			if (processor instanceof JavaIpfDispatcher javaIpf)
+				this.ipf = javaIpf;
+
+			closeActions.add(processor::close);
+			releaseActions.add(processor::release);
+		}
+
+		/**
+		 * Close all of the chain's processors, including the shared roots.
+		 */
+		void close() {
+			closeActions.forEach(Runnable::run);
+		}
+
+		/**
+		 * Retire this chain, after it has been replaced by another or was never
+		 * installed. Resources owned by all of the chain's processors are released,
+		 * but the shared roots remain open.
+		 */
+		void retire() {
+			releaseActions.forEach(Runnable::run);
+		}
+
+		/**
+		 * Transfer the incomplete IP datagrams held by this chain's IPF post
+		 * processor, into the IPF post processor of the chain replacing it. Nothing
+		 * is transferred if either chain has no IPF reassembly table, or the
+		 * tables are incompatible, in which case the datagrams are discarded when
+		 * this chain is retired.
+		 *
+		 * @param next the chain replacing this one
+		 */
+		void transferIpfState(ProcessorChain next) {
+			if (ipf == null || next.ipf == null)
+				return;
+
+			try {
+				next.ipf.importState(ipf.exportState());
+			} catch (UnsupportedOperationException | IllegalArgumentException e) {
+				/* Tracking-only, or a different key hash or reassembly mode */
+			}
+		}
+	}
+
 	/**
 	 * Context structure for the PcapPro class and its numerous processors.
 	 */
@@ -109,21 +236,171 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		private TimeSource timeSource = TimeSource.ofRebased();
 
 		/** The pre processors. */
-		public final Stack<PcapProConfigurator<?>> preProcessors = new Stack<>();
+		public final Stack<PcapProConfigurator<?>> preProcessors;
 
 		/** The post processors. */
-		public final Stack<PcapProConfigurator<?>> postProcessors = new Stack<>();
+		public final Stack<PcapProConfigurator<?>> postProcessors;
 
 		/** The pcap type. */
 		public final PcapType pcapType;
 
+		/** The packet receiver config of the handle. */
+		private final PacketReceiverConfig config;
+
+		/** The latency recorder. */
+		private LatencyRecorder latencyRecorder;
+
+		/** The load shedding controller. */
+		private LoadSheddingPreProcessor loadShedding;
+
+		/** The kernel stats sampler, null if the handle is not live. */
+		private KernelStatsSampler kernelStats;
+
+		/** The combined sampling rate of all installed samplers. */
+		private double samplingRate = 1;
+
+		/** The data link type of the handle, when the processor chain was built. */
+		private int datalink = RawPacketScanner.DLT_EN10MB;
+
+		/** The IPF statistics of the active chain, null if IPF is not installed. */
+		private volatile IpfStatistics ipfStatistics;
+
 		/**
 		 * Instantiates a new pcap pro context.
 		 *
 		 * @param pcapType the pcap type.
+		 * @param config   the packet receiver config of the handle
 		 */
-		PcapProContext(PcapType pcapType) {
+		PcapProContext(PcapType pcapType, PacketReceiverConfig config) {
 			this.pcapType = pcapType;
+			this.config = config;
+			this.preProcessors = new Stack<>();
+			this.postProcessors = new Stack<>();
+		}
+
+		/**
+		 * Instantiates a private copy of another context, used to stage processor
+		 * changes and build a processor chain off the capture thread. The installed
+		 * processor stacks are copied, so that processors installed or uninstalled
+		 * on the copy do not affect the other context.
+		 *
+		 * @param other  the context to copy
+		 * @param config the packet receiver config of the copy
+		 */
+		PcapProContext(PcapProContext other, PacketReceiverConfig config) {
+			this.pcapType = other.pcapType;
+			this.config = config;
+			this.preProcessors = new Stack<>();
+			this.postProcessors = new Stack<>();
+			this.preProcessors.addAll(other.preProcessors);
+			this.postProcessors.addAll(other.postProcessors);
+			this.timeSource = other.timeSource;
+			this.kernelStats = other.kernelStats;
+			this.datalink = other.datalink;
+			copyFrom(other);
+		}
+
+		/**
+		 * Copy the fields set while building a processor chain from another context.
+		 *
+		 * @param other the context to copy from
+		 */
+		private void copyFrom(PcapProContext other) {
+			this.latencyRecorder = other.latencyRecorder;
+			this.loadShedding = other.loadShedding;
+			this.samplingRate = other.samplingRate;
+			this.datalink = other.datalink;
+			this.ipfStatistics = other.ipfStatistics;
+		}
+
+		/**
+		 * Replace the installed processors with those of a staged context, once a
+		 * processor chain has been built from them.
+		 *
+		 * @param other the staged context
+		 */
+		private void copyProcessorsFrom(PcapProContext other) {
+			preProcessors.clear();
+			preProcessors.addAll(other.preProcessors);
+			postProcessors.clear();
+			postProcessors.addAll(other.postProcessors);
+		}
+
+		/**
+		 * Gets the IPF statistics of the active processor chain. Safe to call from
+		 * any thread, the reference is published when a chain is installed.
+		 *
+		 * @return the IPF statistics or null if IPF is not installed
+		 */
+		public IpfStatistics getIpfStatistics() {
+			return ipfStatistics;
+		}
+
+		/**
+		 * Gets the data link type of the handle, which selects the link-layer header
+		 * skipped by the raw packet scanners of the processors.
+		 *
+		 * @return the DLT value, -1 if it is not known
+		 */
+		public int getDatalink() {
+			return datalink;
+		}
+
+		/**
+		 * Gets the latency recorder.
+		 *
+		 * @return the latency recorder or null if latency tracking is disabled
+		 */
+		public LatencyRecorder getLatencyRecorder() {
+			return latencyRecorder;
+		}
+
+		/**
+		 * Gets the kernel stats sampler.
+		 *
+		 * @return the kernel stats sampler or null if the handle is not live
+		 */
+		public KernelStatsSampler getKernelStats() {
+			return kernelStats;
+		}
+
+		/**
+		 * Gets the load shedding controller.
+		 *
+		 * @return the load shedding controller or null if load shedding is disabled
+		 */
+		public LoadSheddingPreProcessor getLoadShedding() {
+			return loadShedding;
+		}
+
+		/**
+		 * Gets the combined sampling rate N of all installed samplers, where 1 out of
+		 * N packets is delivered. N is fractional when probability samplers are
+		 * installed.
+		 *
+		 * @return the sampling rate, 1 if packets are not sampled
+		 */
+		public double getSamplingRate() {
+			return samplingRate;
+		}
+
+		/**
+		 * Scale the combined sampling rate by another sampler's rate. Called by
+		 * sampling pre-processors when installed.
+		 *
+		 * @param rate the sampler's rate, 1/p for probability samplers
+		 */
+		public void scaleSamplingRate(double rate) {
+			this.samplingRate *= rate;
+		}
+
+		/**
+		 * Gets the timestamp unit of the handle's pcap header timestamps.
+		 *
+		 * @return the timestamp unit
+		 */
+		public TimestampUnit getTimestampUnit() {
+			return config.timestampUnit;
 		}
 
 		/**
@@ -148,6 +425,28 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		}
 	}
 
+	/**
+	 * Merges packets from several pcap handles, live or offline, into a single
+	 * timestamp ordered stream. Each handle is assigned a port number, which is
+	 * its index in the list of handles, and keeps its handle name as the port
+	 * name. The handles must already be activated and are closed when the merger
+	 * is closed.
+	 *
+	 * @param pcaps the pcap handles to merge
+	 * @return the packet merger
+	 * @see PacketMerger
+	 */
+	public static PacketMerger merge(NetPcap... pcaps) {
+		PacketReceiverConfig[] configs = new PacketReceiverConfig[pcaps.length];
+
+		for (int i = 0; i < pcaps.length; i++) {
+			pcaps[i].setPortNumber(i);
+			configs[i] = pcaps[i].config;
+		}
+
+		return new PacketMerger(pcaps.clone(), configs);
+	}
+
 	/**
 	 * Create a live capture handle.
 	 * 
@@ -429,9 +728,48 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	/** The is active. */
 	private boolean isActive;
 
+	/** The is reconfiguring, installs are allowed while active. */
+	private boolean isReconfiguring;
+
+	/** The config changes staged while reconfiguring, null otherwise. */
+	private PacketReceiverConfig stagedConfig;
+
+	/** The processor changes staged while reconfiguring, null otherwise. */
+	private PcapProContext stagedContext;
+
+	/** The active processor chain. */
+	private ProcessorChain chain;
+
+	/** The active processor chain's close registration. */
+	private Registration chainRegistration;
+
+	/** The processor chain pending installation, by the capture thread. */
+	private final AtomicReference<ProcessorChain> pendingChain = new AtomicReference<>();
+
 	/** The close actions. */
 	private final List<Runnable> closeActions = new LinkedList<>();
 
+	/** The packet pool used to detach packets. */
+	private PacketPool packetPool;
+
+	/** The latency tracking enabled. */
+	private boolean latencyTracking;
+
+	/** The latency sample rate. */
+	private int latencySampleRate = ProcessingLatency.DEFAULT_SAMPLE_RATE;
+
+	/** The processing latency, only when enabled and active. */
+	private ProcessingLatency processingLatency;
+
+	/** The metrics view, created on first export. */
+	private NetPcapMetrics metrics;
+
+	/** The load shedding policy, null if disabled. */
+	private LoadShedding loadShedding;
+
+	/** The pre-processor fusion enabled. */
+	private boolean processorFusion = true;
+
 	/**
 	 * Instantiates a new pcap-pro native handle.
 	 *
@@ -452,7 +790,10 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		this.preProcessor = this.preProcessorRoot;
 		this.postProcessorRoot = new PacketDissectorReceiver(config);
 		this.postProcessor = postProcessorRoot;
-		this.context = new PcapProContext(Objects.requireNonNull(pcapType, "pcapType"));
+		this.context = new PcapProContext(Objects.requireNonNull(pcapType, "pcapType"), config);
+
+		if (pcapType.isLive())
+			context.kernelStats = new KernelStatsSampler(this);
 
 		postProcessorRoot.setPcapDispatcher(preProcessor);
 
@@ -492,15 +833,111 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		} catch (PcapActivatedException e) {} // Offline/dead handles are active already
 		
 		try {
-			
-			installAllPreProcessors();
-			installMainPacketProcessor();
-			installAllPostProcessors();
+			installChain(buildChain(context, config));
 		} finally {
 			this.isActive = true;
 		}
 	}
 
+	/**
+	 * Gets the raw DLT value of the handle's link-layer header type.
+	 *
+	 * @return the DLT value, -1 if it is not known
+	 */
+	private int datalinkValue() {
+		try {
+			return datalink().getAsInt();
+		} catch (PcapException | IllegalArgumentException e) {
+			return -1; // Unmapped link type, scanners fall back to a full dissection
+		}
+	}
+
+	/**
+	 * Build a new processor chain from all of the enabled processors.
+	 *
+	 * @param context the context to build the chain against
+	 * @param config  the packet receiver config to build the chain against
+	 * @return the processor chain
+	 */
+	private ProcessorChain buildChain(PcapProContext context, PacketReceiverConfig config) {
+		var chain = new ProcessorChain(preProcessorRoot, postProcessorRoot, context, config);
+
+		context.samplingRate = 1; // Rescaled by the chain's samplers
+		context.datalink = datalinkValue();
+
+		installKernelStats(chain);
+		installLatencyRecorder(chain);
+		installAllPreProcessors(chain);
+		installLoadShedding(chain);
+		installAllPostProcessors(chain);
+
+		context.ipfStatistics = (chain.ipf == null) ? null : chain.ipf.getIpfStatistics();
+
+		return chain;
+	}
+
+	/**
+	 * Install a processor chain, making it the active chain. The context and
+	 * config copies the chain was built against, if any, are installed as well.
+	 * The previously active chain, if any, is no longer closed with this handle.
+	 *
+	 * @param chain the processor chain
+	 */
+	private void installChain(ProcessorChain chain) {
+		if (chain.context != context)
+			context.copyFrom(chain.context);
+
+		if (chain.config != config)
+			config.copyFrom(chain.config);
+
+		if (processingLatency == null && context.latencyRecorder != null)
+			this.processingLatency = new ProcessingLatency(getName(), context.latencyRecorder);
+
+		/*
+		 * Main processor already created, we just need to connect it up the pcap
+		 * dispatchers (ie. PreProcessors) of the chain.
+		 */
+		postProcessorRoot.setPcapDispatcher(chain.preProcessor);
+
+		this.preProcessor = chain.preProcessor;
+		this.postProcessor = chain.postProcessor;
+
+		if (chainRegistration != null)
+			chainRegistration.unregister();
+
+		this.chain = chain;
+		this.chainRegistration = onClose(chain::close);
+	}
+
+	/**
+	 * Swap in a processor chain published by {@link #reconfigure(Consumer)}, if
+	 * one is pending. Called by the capture thread between dispatch batches, when
+	 * no packets are in flight through the active chain.
+	 */
+	private void swapChainIfPending() {
+		ProcessorChain next = pendingChain.getAndSet(null);
+		if (next == null)
+			return;
+
+		ProcessorChain old = this.chain;
+		installChain(next);
+
+		if (old != null) {
+			old.transferIpfState(next);
+			old.retire();
+		}
+	}
+
+	/**
+	 * Sample the kernel statistics, if due. Called by the capture thread between
+	 * dispatch batches, so libpcap stats are never read concurrently with a
+	 * dispatch.
+	 */
+	private void sampleKernelStats() {
+		if (context.kernelStats != null)
+			context.kernelStats.sampleIfDue();
+	}
+
 	/**
 	 * Check if already active.
 	 *
@@ -512,16 +949,50 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 			throw new IllegalStateException("inactive - must use Pcap.activate()");
 	}
 
+	/**
+	 * Gets the packet receiver config which setters write to, the changes staged
+	 * by {@link #reconfigure(Consumer)} while reconfiguring, otherwise the live
+	 * config.
+	 *
+	 * @return the writable config
+	 */
+	private PacketReceiverConfig writableConfig() {
+		return (stagedConfig != null) ? stagedConfig : config;
+	}
+
+	/**
+	 * Gets the context which processors are installed into and uninstalled from,
+	 * the private copy staged by {@link #reconfigure(Consumer)} while
+	 * reconfiguring, otherwise the live context.
+	 *
+	 * @return the writable context
+	 */
+	private PcapProContext writableContext() {
+		return (stagedContext != null) ? stagedContext : context;
+	}
+
 	/**
 	 * Check if inactive.
 	 *
 	 * @throws IllegalStateException the illegal state exception
 	 */
 	private void checkIfInactiveOrElseThrow() throws IllegalStateException {
-		if (isActive)
+		if (isActive && !isReconfiguring)
 			throw new IllegalStateException("handle already active");
 	}
 
+	/**
+	 * Check if inactive, for settings which can not be changed by
+	 * {@link #reconfigure(Consumer)} either.
+	 *
+	 * @throws IllegalStateException if the handle is active or being reconfigured
+	 */
+	private void checkIfNeverActivatedOrElseThrow() throws IllegalStateException {
+		if (isActive)
+			throw new IllegalStateException("handle already active%s"
+					.formatted(isReconfiguring ? ", setting can not be reconfigured" : ""));
+	}
+
 	/**
 	 * Check if processor not installed or else throw.
 	 *
@@ -542,6 +1013,18 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 					.formatted(classToCheck.getSimpleName()));
 	}
 
+	/**
+	 * Creates a new broadcaster, which captures and dissects packets once and
+	 * broadcasts them to several independent consumers, each running on its own
+	 * thread.
+	 *
+	 * @return a new packet broadcaster
+	 * @see PacketBroadcaster
+	 */
+	public PacketBroadcaster broadcaster() {
+		return new PacketBroadcaster(this, config);
+	}
+
 	/**
 	 * Close.
 	 *
@@ -551,6 +1034,10 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	public void close() {
 		super.close();
 
+		ProcessorChain pending = pendingChain.getAndSet(null);
+		if (pending != null)
+			pending.retire(); // Never installed
+
 		var exceptions = new LinkedList<RuntimeException>();
 		for (Runnable closeAction : closeActions) {
 			try {
@@ -566,6 +1053,31 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 
 	}
 
+	/**
+	 * Detach a packet from the capture callback, by copying it into the packet
+	 * pool set on this handle. The detached packet remains valid after the
+	 * callback returns, until it is released.
+	 *
+	 * @param packet the packet received by a handler
+	 * @return the pooled packet or null if the pool is exhausted or the packet is
+	 *         larger than the pool's packet size
+	 * @throws IllegalStateException if no packet pool has been set or the pool's
+	 *                               descriptor type no longer matches the
+	 *                               handle's descriptor type
+	 * @see #setPacketPool(PacketPool)
+	 */
+	public PacketPool.PooledPacket detach(Packet packet) throws IllegalStateException {
+		if (packetPool == null)
+			throw new IllegalStateException("no packet pool set on pcap-pro handle '%s'"
+					.formatted(getName()));
+
+		if (packetPool.getDescriptorType() != config.descriptorType)
+			throw new IllegalStateException("packet pool descriptor type %s does not match %s on pcap-pro handle '%s'"
+					.formatted(packetPool.getDescriptorType(), config.descriptorType, getName()));
+
+		return packetPool.detach(packet, config.packetDescriptorType, config.timestampUnit, config.formatter);
+	}
+
 	/**
 	 * Dispatch which uses a simple packet consumer.
 	 *
@@ -645,8 +1157,10 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 */
 	public <U> int dispatch(int count, PcapProHandler.OfPacket<U> handler, U user) {
 		checkIfActiveOrElseThrow();
+		swapChainIfPending();
+		sampleKernelStats();
 
-		return postProcessor.receivePacketWithDispatch(count, handler, user);
+		return postProcessor.receivePacketWithDispatch(count, wrapWithLatency(handler), user);
 	}
 
 	/**
@@ -690,6 +1204,46 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		return enableIpf(b.getAsBoolean());
 	}
 
+	/**
+	 * Enable per stage processing latency tracking. Must be enabled before the
+	 * handle is activated. When disabled, which is the default, no latency
+	 * instrumentation is installed in the processing chain.
+	 *
+	 * @param enable if true, latency tracking is enabled
+	 * @return this pcap handle
+	 * @throws IllegalStateException if the handle is already active, including
+	 *                               while it is being reconfigured
+	 * @see #getProcessingLatency()
+	 */
+	public NetPcap enableLatencyTracking(boolean enable) throws IllegalStateException {
+		checkIfNeverActivatedOrElseThrow();
+
+		this.latencyTracking = enable;
+
+		return this;
+	}
+
+	/**
+	 * Enable load shedding using the supplied policy. When the capture falls
+	 * behind, the amount of work done per packet is automatically reduced and
+	 * later restored. Must be enabled before the handle is activated, or changed
+	 * by {@link #reconfigure(Consumer)}, which installs the new policy in the new
+	 * processor chain. Load shedding only applies to live captures, the
+	 * controller is not installed on offline handles.
+	 *
+	 * @param policy the load shedding policy, or null to disable load shedding
+	 * @return this pcap handle
+	 * @throws IllegalStateException if the handle is already active
+	 * @see LoadShedding
+	 */
+	public NetPcap enableLoadShedding(LoadShedding policy) throws IllegalStateException {
+		checkIfInactiveOrElseThrow();
+
+		this.loadShedding = policy;
+
+		return this;
+	}
+
 	/**
 	 * Enable "pretty print" packet formatter.
 	 *
@@ -707,6 +1261,49 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		return this;
 	}
 
+	/**
+	 * Enable fusion of consecutive per-packet pre-processors, such as samplers,
+	 * truncators and deduplicators, into a single callback when the handle is
+	 * activated. Fusion lets the JIT inline across all of the fused
+	 * pre-processors. Must be set before the handle is activated, or changed by
+	 * {@link #reconfigure(Consumer)}, which applies it to the new processor
+	 * chain. Enabled by default.
+	 *
+	 * @param enable if true, pre-processors are fused
+	 * @return this pcap handle
+	 * @throws IllegalStateException if the handle is already active
+	 */
+	public NetPcap enableProcessorFusion(boolean enable) throws IllegalStateException {
+		checkIfInactiveOrElseThrow();
+
+		this.processorFusion = enable;
+
+		return this;
+	}
+
+	/**
+	 * Export this handle's metrics, receive and drop counters, libpcap kernel
+	 * statistics and IPF statistics, using a metrics exporter. The export is
+	 * automatically unregistered when this handle is closed.
+	 *
+	 * @param exporter the exporter
+	 * @return the registration which stops the export
+	 * @see MetricsExporter#jmx()
+	 * @see MetricsExporter#prometheus(int)
+	 */
+	public Registration exportMetrics(MetricsExporter exporter) {
+		if (metrics == null)
+			metrics = new NetPcapMetrics(this, context);
+
+		Registration export = exporter.export(metrics);
+		Registration close = onClose(export::unregister);
+
+		return () -> {
+			close.unregister();
+			export.unregister();
+		};
+	}
+
 	/**
 	 * Gets the context.
 	 *
@@ -749,6 +1346,38 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		return stats.getDroppedWirelenCount();
 	}
 
+	/**
+	 * Gets the load shedding policy and its statistics.
+	 *
+	 * @return the load shedding policy, if enabled
+	 */
+	public Optional<LoadShedding> getLoadShedding() {
+		return Optional.ofNullable(loadShedding);
+	}
+
+	/**
+	 * Gets the effective sampling rate N of this handle, where 1 out of N captured
+	 * packets is delivered. The rate is the product of the rates of all installed
+	 * {@link PacketSampler} pre-processors and is known once the handle is
+	 * activated. Packet and byte counters collected downstream of the samplers
+	 * can be multiplied by this rate to estimate the totals. Probability samplers
+	 * contribute 1/p, so the rate may be fractional.
+	 *
+	 * @return the sampling rate, 1 if packets are not sampled
+	 */
+	public double getSamplingRate() {
+		return context.getSamplingRate();
+	}
+
+	/**
+	 * Gets the packet pool.
+	 *
+	 * @return the packet pool or null if not set
+	 */
+	public PacketPool getPacketPool() {
+		return packetPool;
+	}
+
 	/**
 	 * Gets the pcap type.
 	 *
@@ -758,6 +1387,17 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		return context.pcapType;
 	}
 
+	/**
+	 * Gets the per stage processing latencies.
+	 *
+	 * @return the processing latency, present only if latency tracking was enabled
+	 *         when the handle was activated
+	 * @see #enableLatencyTracking(boolean)
+	 */
+	public Optional<ProcessingLatency> getProcessingLatency() {
+		return Optional.ofNullable(processingLatency);
+	}
+
 	/**
 	 * Gets the received caplen count.
 	 *
@@ -835,13 +1475,13 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 */
 	public <T extends PostRxProcessor> T install(T postProcessor) {
 		checkIfInactiveOrElseThrow();
-		checkIfProcessorNotInstalledOrElseThrow(context.postProcessors, postProcessor.getClass());
+		checkIfProcessorNotInstalledOrElseThrow(writableContext().postProcessors, postProcessor.getClass());
 
 		if (!(postProcessor instanceof PcapProConfigurator<?> processor))
 			throw new IllegalArgumentException("invalid post-processor [%s]"
 					.formatted(postProcessor.getClass()));
 
-		context.postProcessors.push(processor);
+		writableContext().postProcessors.push(processor);
 
 		return postProcessor;
 	}
@@ -855,64 +1495,193 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 */
 	public <T extends PreRxProcessor> T install(T preProcessor) {
 		checkIfInactiveOrElseThrow();
-		checkIfProcessorNotInstalledOrElseThrow(context.preProcessors, preProcessor.getClass());
+		checkIfProcessorNotInstalledOrElseThrow(writableContext().preProcessors, preProcessor.getClass());
 
 		if (!(preProcessor instanceof PcapProConfigurator<?> processor))
 			throw new IllegalArgumentException("invalid pre-processor [%s]"
 					.formatted(preProcessor.getClass()));
 
-		context.preProcessors.push(processor);
+		writableContext().preProcessors.push(processor);
 
 		return preProcessor;
 	}
 
+	/**
+	 * Install the latency recorder and its start of chain marker, if latency
+	 * tracking is enabled.
+	 *
+	 * @param chain the processor chain
+	 */
+	private void installLatencyRecorder(ProcessorChain chain) {
+		if (!latencyTracking)
+			return;
+
+		if (chain.context.latencyRecorder == null) {
+			LatencyRecorder recorder = new LatencyRecorder(latencySampleRate);
+
+			chain.config.latency = recorder;
+			chain.context.latencyRecorder = recorder;
+		}
+
+		chain.addPreProcessor(new LatencyMarkPreProcessor(chain.preProcessor, chain.context.latencyRecorder));
+	}
+
+	/**
+	 * Install the kernel stats sampling pre-processor closest to libpcap, on live
+	 * handles, so that kernel statistics are also sampled during long running
+	 * loops.
+	 *
+	 * @param chain the processor chain
+	 */
+	private void installKernelStats(ProcessorChain chain) {
+		if (chain.context.kernelStats == null)
+			return;
+
+		chain.addPreProcessor(new KernelStatsPreProcessor(chain.preProcessor, chain.context.kernelStats));
+	}
+
 	/**
 	 * Install all post processors.
+	 *
+	 * @param chain the processor chain
 	 */
-	private void installAllPostProcessors() {
-		context.postProcessors.stream()
+	private void installAllPostProcessors(ProcessorChain chain) {
+		chain.context.postProcessors.stream()
 				.filter(c -> c.isEnabled())
-				.forEach(this::installPostProcessor);
+				.forEach(c -> installPostProcessor(chain, c));
 	}
 
 	/**
 	 * Install all pre processors.
+	 *
+	 * @param chain the processor chain
 	 */
-	private void installAllPreProcessors() {
-		context.preProcessors.stream()
+	private void installAllPreProcessors(ProcessorChain chain) {
+		chain.context.preProcessors.stream()
 				.filter(c -> c.isEnabled())
-				.forEach(this::installPreProcessor);
+				.forEach(c -> installPreProcessor(chain, c));
 	}
 
 	/**
-	 * Install main packet processor.
+	 * Install the load shedding controller after all of the pre-processors, right
+	 * in front of the main packet processor, if load shedding is enabled.
+	 *
+	 * @param chain the processor chain
 	 */
-	private void installMainPacketProcessor() {
-		/*
-		 * Main processor already created, we just need to connect it up the pcap
-		 * dispatchers (ie. PreProcessors) that are already installed and configured.
-		 */
-		postProcessorRoot.setPcapDispatcher(preProcessor);
+	private void installLoadShedding(ProcessorChain chain) {
+		if (loadShedding == null || chain.context.pcapType.isNotLive()) {
+			chain.context.loadShedding = null; // Offline captures can not fall behind
+			chain.config.loadShedding = null;
+			return;
+		}
+
+		KernelStatsSampler sampler = chain.context.kernelStats;
+		LongSupplier kernelDrops = (sampler == null)
+				? () -> -1
+				: sampler::droppedCount;
+
+		var controller = new LoadSheddingPreProcessor(chain.preProcessor, loadShedding, kernelDrops,
+				chain.config.timestampUnit);
+
+		chain.addPreProcessor(controller);
+		chain.context.loadShedding = controller;
+		chain.config.loadShedding = controller;
 	}
 
 	/**
 	 * Install post processor.
 	 *
+	 * @param chain     the processor chain
 	 * @param processor the processor
 	 */
-	private void installPostProcessor(PcapProConfigurator<?> processor) {
-		this.postProcessor = processor.newDispatcherInstance(preProcessor, postProcessor, context);
-		onClose(this.postProcessor::close);
+	private void installPostProcessor(ProcessorChain chain, PcapProConfigurator<?> processor) {
+		chain.addPostProcessor(processor.newDispatcherInstance(chain.preProcessor, chain.postProcessor,
+				chain.context));
 	}
 
 	/**
 	 * Install pre processor.
 	 *
+	 * @param chain     the processor chain
 	 * @param processor the processor
 	 */
-	private void installPreProcessor(PcapProConfigurator<?> processor) {
-		this.preProcessor = processor.newDispatcherInstance(this.preProcessor, context);
-		onClose(this.preProcessor::close);
+	private void installPreProcessor(ProcessorChain chain, PcapProConfigurator<?> processor) {
+		PcapDispatcher dispatcher = processor.newDispatcherInstance(chain.preProcessor, chain.context);
+
+		/*
+		 * Per-packet stages are fused with any immediately preceding stages, into a
+		 * single callback. The stage's own dispatcher methods are not used, the
+		 * fused pre-processor owns the stage and releases it when closed.
+		 */
+		if (processorFusion && dispatcher instanceof PreProcessorStage stage) {
+			if (!(chain.preProcessor instanceof FusedPreProcessor))
+				chain.addPreProcessor(new FusedPreProcessor(chain.preProcessor));
+
+			((FusedPreProcessor) chain.preProcessor).add(stage);
+
+			return;
+		}
+
+		chain.addPreProcessor(dispatcher);
+	}
+
+	/**
+	 * Reconfigure the processors of an active handle, without interrupting the
+	 * capture. The changes, such as installing, uninstalling or changing the
+	 * settings of processors, are applied by the supplied action, after which a
+	 * new processor chain is built from the resulting configuration on the
+	 * calling thread. The new chain is published and swapped in by the capture
+	 * thread at the start of its next {@code dispatch}, {@code loop} or
+	 * {@code next} call, between batches, when no packets are in flight through
+	 * the old chain. Packet receiver settings changed by the action, such as
+	 * the descriptor type, timestamp unit or packet formatter, are staged and
+	 * take effect along with the new chain. Incomplete IP datagrams held by the
+	 * old chain's IPF reassembler are transferred to the new chain's, if both use
+	 * the same key hash and reassembly mode, otherwise they are discarded. The
+	 * old chain is then retired and its resources released. Processors installed
+	 * or uninstalled by the action are staged on a private copy of the installed
+	 * processors, which replaces them once the new chain is built. Latency
+	 * tracking settings can not be reconfigured and are rejected.
+	 * 
+	 * <p>
+	 * An infinite {@code loop} only picks up the new chain after it returns, so
+	 * captures which need to be reconfigured should use bounded dispatch calls.
+	 * If the handle is not active yet, the changes are simply applied and take
+	 * effect at activation.
+	 * </p>
+	 *
+	 * @param changes the action which applies the changes to this handle
+	 * @return this pcap handle
+	 */
+	public synchronized NetPcap reconfigure(Consumer<NetPcap> changes) {
+		if (!isActive) {
+			changes.accept(this);
+
+			return this;
+		}
+
+		PacketReceiverConfig staged = config.copy();
+		PcapProContext stagedCtx = new PcapProContext(context, staged);
+
+		this.stagedConfig = staged;
+		this.stagedContext = stagedCtx;
+		this.isReconfiguring = true;
+		try {
+			changes.accept(this);
+		} finally {
+			this.isReconfiguring = false;
+			this.stagedConfig = null;
+			this.stagedContext = null;
+		}
+
+		ProcessorChain next = buildChain(stagedCtx, staged);
+		context.copyProcessorsFrom(stagedCtx); // Installed processors now describe the new chain
+
+		ProcessorChain replaced = pendingChain.getAndSet(next);
+		if (replaced != null)
+			replaced.retire(); // Never installed
+
+		return this;
 	}
 
 	/**
@@ -995,7 +1764,10 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @since libpcap 0.4
 	 */
 	public <U> int loop(int count, PcapProHandler.OfPacket<U> handler, U user) {
-		return postProcessor.receivePacketWithLoop(count, handler, user);
+		swapChainIfPending();
+		sampleKernelStats();
+
+		return postProcessor.receivePacketWithLoop(count, wrapWithLatency(handler), user);
 	}
 
 	/**
@@ -1022,6 +1794,9 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 */
 	@Override
 	public PcapPacketRef next() throws PcapException {
+		swapChainIfPending();
+		sampleKernelStats();
+
 		return preProcessor.next();
 	}
 
@@ -1035,6 +1810,9 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 */
 	@Override
 	public PcapPacketRef nextEx() throws PcapException, TimeoutException {
+		swapChainIfPending();
+		sampleKernelStats();
+
 		return preProcessor.nextEx();
 	}
 
@@ -1080,6 +1858,9 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @since Pcap 0.8
 	 */
 	public Packet nextExPacket() throws PcapException, TimeoutException {
+		swapChainIfPending();
+		sampleKernelStats();
+
 		return postProcessor.getPacketWithNextExtended();
 	}
 
@@ -1132,6 +1913,9 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @since libpcap 0.4
 	 */
 	public Packet nextPacket() throws PcapException {
+		swapChainIfPending();
+		sampleKernelStats();
+
 		return postProcessor.getPacketWithNext();
 	}
 
@@ -1148,6 +1932,18 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 
 	}
 
+	/**
+	 * Creates a new reactive streams publisher of packets captured by this handle.
+	 * Packets are dispatched from the handle only as the subscriber requests
+	 * them.
+	 *
+	 * @return a new unicast packet publisher
+	 * @see PacketPublisher
+	 */
+	public PacketPublisher publisher() {
+		return new PacketPublisher(this, config);
+	}
+
 	/**
 	 * Sets the descriptor type.
 	 *
@@ -1155,6 +1951,7 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return the pcap pro
 	 */
 	public NetPcap setDescriptorType(PacketDescriptorType type) {
+		PacketReceiverConfig config = writableConfig();
 		config.descriptorType = type;
 		config.dissector = PacketDissector.dissector(type);
 
@@ -1164,13 +1961,15 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	}
 
 	/**
-	 * Sets the frame number.
+	 * Sets the frame number assigner. Assigners for per port, global and
+	 * timestamp derived frame numbering are provided by {@link FrameNumbers}.
 	 *
 	 * @param frameNumberAssigner the frame number assigner
 	 * @return the pcap pro
+	 * @see FrameNumbers
 	 */
 	public NetPcap setFrameNumber(FrameNumber frameNumberAssigner) {
-		config.frameNo = frameNumberAssigner;
+		writableConfig().frameNo = frameNumberAssigner;
 
 		return this;
 	}
@@ -1185,6 +1984,26 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		return setFrameNumber(FrameNumber.starting(startingNo));
 	}
 
+	/**
+	 * Sets the latency tracking sample rate, 1 out of every {@code rate} packets
+	 * is timed. Must be set before the handle is activated.
+	 *
+	 * @param rate the sample rate
+	 * @return this pcap handle
+	 * @throws IllegalStateException if the handle is already active, including
+	 *                               while it is being reconfigured
+	 */
+	public NetPcap setLatencySampleRate(int rate) throws IllegalStateException {
+		checkIfNeverActivatedOrElseThrow();
+
+		if (rate <= 0)
+			throw new IllegalArgumentException("latency sample rate must be positive [%d]".formatted(rate));
+
+		this.latencySampleRate = rate;
+
+		return this;
+	}
+
 	/**
 	 * Sets the packet formatter.
 	 *
@@ -1192,7 +2011,33 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return the pcap pro
 	 */
 	public NetPcap setPacketFormatter(PacketFormat formatter) {
-		config.formatter = formatter;
+		writableConfig().formatter = formatter;
+
+		return this;
+	}
+
+	/**
+	 * Sets the packet pool used to detach packets from the capture callback. The
+	 * pool's timestamp unit and packet formatter are set to those of the handle.
+	 *
+	 * @param pool the pool, or null to remove the current pool
+	 * @return the pcap pro
+	 * @throws IllegalArgumentException if the pool's descriptor type does not
+	 *                                  match the handle's descriptor type
+	 * @see #detach(Packet)
+	 */
+	public NetPcap setPacketPool(PacketPool pool) throws IllegalArgumentException {
+		PacketReceiverConfig cfg = writableConfig();
+		PacketDescriptorType descriptorType = cfg.descriptorType;
+		if (pool != null && pool.getDescriptorType() != descriptorType)
+			throw new IllegalArgumentException("packet pool descriptor type %s does not match %s on pcap-pro handle '%s'"
+					.formatted(pool.getDescriptorType(), descriptorType, getName()));
+
+		if (pool != null)
+			pool.setTimestampUnit(cfg.timestampUnit)
+					.setPacketFormatter(cfg.formatter);
+
+		this.packetPool = pool;
 
 		return this;
 	}
@@ -1204,7 +2049,19 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return the pcap pro
 	 */
 	public NetPcap setPortNumber(int portNo) {
-		config.portNo = portNo;
+		writableConfig().portNo = portNo;
+
+		return this;
+	}
+
+	/**
+	 * Sets the port name, which defaults to the handle name.
+	 *
+	 * @param portName the port name
+	 * @return the pcap pro
+	 */
+	public NetPcap setPortName(String portName) {
+		writableConfig().portName = Objects.requireNonNull(portName, "portName");
 
 		return this;
 	}
@@ -1217,7 +2074,7 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return this pcap
 	 */
 	public NetPcap setTimestampUnit(TimestampUnit unit) {
-		config.timestampUnit = unit;
+		writableConfig().timestampUnit = unit;
 
 		return this;
 	}
@@ -1255,16 +2112,17 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return this pcap pro handle
 	 */
 	public <T extends PcapProConfigurator<?>> NetPcap uninstall(Class<T> processorClass) {
+		PcapProContext ctx = writableContext();
 
-		context.preProcessors.stream()
+		ctx.preProcessors.stream()
 				.filter(p -> p.getClass().equals(processorClass))
 				.findAny()
-				.ifPresent(context.preProcessors::remove);
+				.ifPresent(ctx.preProcessors::remove);
 
-		context.postProcessors.stream()
+		ctx.postProcessors.stream()
 				.filter(p -> p.getClass().equals(processorClass))
 				.findAny()
-				.ifPresent(context.postProcessors::remove);
+				.ifPresent(ctx.postProcessors::remove);
 
 		return this;
 	}
@@ -1277,16 +2135,17 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 	 * @return this pcap pro handle
 	 */
 	public <T extends PcapProConfigurator<T>> NetPcap uninstall(PcapProConfigurator<T> processor) {
+		PcapProContext ctx = writableContext();
 
-		context.preProcessors.stream()
+		ctx.preProcessors.stream()
 				.filter(p -> p.equals(processor))
 				.findAny()
-				.ifPresent(context.preProcessors::remove);
+				.ifPresent(ctx.preProcessors::remove);
 
-		context.postProcessors.stream()
+		ctx.postProcessors.stream()
 				.filter(p -> p.equals(processor))
 				.findAny()
-				.ifPresent(context.postProcessors::remove);
+				.ifPresent(ctx.postProcessors::remove);
 
 		return this;
 	}
@@ -1304,10 +2163,10 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 		checkIfInactiveOrElseThrow();
 
 		if (preProcessors)
-			context.preProcessors.clear();
+			writableContext().preProcessors.clear();
 
 		if (postProcessors)
-			context.postProcessors.clear();
+			writableContext().postProcessors.clear();
 
 		return this;
 	}
@@ -1345,4 +2204,24 @@ public final class NetPcap extends NonSealedPcap implements CaptureStatistics {
 
 		return this;
 	}
+
+	/**
+	 * Wraps the user handler with latency tracking, if enabled.
+	 *
+	 * @param <U>     the generic type
+	 * @param handler the user handler
+	 * @return the same handler if latency tracking is disabled, otherwise a
+	 *         wrapper which times the handler
+	 */
+	private <U> PcapProHandler.OfPacket<U> wrapWithLatency(PcapProHandler.OfPacket<U> handler) {
+		LatencyRecorder recorder = config.latency;
+		if (recorder == null)
+			return handler;
+
+		return (u, packet) -> {
+			long start = recorder.start();
+			handler.handlePacket(u, packet);
+			recorder.record(ProcessingStage.USER_HANDLER, start);
+		};
+	}
 }
@@ -0,0 +1,165 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * JMX management interface of a pcap-pro handle. Exposes the packet receive
+ * and drop counters, libpcap kernel statistics and IP fragment reassembly
+ * statistics.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see NetPcap#exportMetrics(MetricsExporter)
+ */
+public interface NetPcapMXBean {
+
+	/**
+	 * Number of bytes dropped by pcap-pro due to errors.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getDroppedCaplenCount();
+
+	/**
+	 * Number of packets dropped by pcap-pro due to errors.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getDroppedPacketCount();
+
+	/**
+	 * Number of wire bytes dropped by pcap-pro due to errors.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getDroppedWirelenCount();
+
+	/**
+	 * Number of packets dropped by the network interface or its driver, as
+	 * reported by libpcap {@code stats()}, sampled periodically by the capture
+	 * thread.
+	 *
+	 * @return 64-bit counter extended from the 32-bit kernel counter, or null if
+	 *         not available
+	 */
+	Long getInterfaceDroppedCount();
+
+	/**
+	 * Number of IP datagrams fully reassembled, or tracked.
+	 *
+	 * @return 64-bit counter, or null if IPF is not installed
+	 */
+	Long getIpfDatagramCompletedCount();
+
+	/**
+	 * Number of IP fragments seen by the IPF engine.
+	 *
+	 * @return 64-bit counter, or null if IPF is not installed
+	 */
+	Long getIpfFragmentCount();
+
+	/**
+	 * Number of IP fragments which could not be processed due to reassembly
+	 * errors.
+	 *
+	 * @return 64-bit counter, or null if IPF is not installed
+	 */
+	Long getIpfProcessingFailureCount();
+
+	/**
+	 * Number of IP fragments which could not be inserted into a full IPF table.
+	 *
+	 * @return 64-bit counter, or null if IPF is not installed
+	 */
+	Long getIpfTableInsertionFailureCount();
+
+	/**
+	 * Number of IPF table entries in use.
+	 *
+	 * @return the occupancy, or null if IPF is not installed
+	 */
+	Long getIpfTableOccupancy();
+
+	/**
+	 * Highest number of IPF table entries in use at the same time.
+	 *
+	 * @return the occupancy high-water mark, or null if IPF is not installed
+	 */
+	Long getIpfTableOccupancyMax();
+
+	/**
+	 * IPF table size.
+	 *
+	 * @return the table size, or null if IPF is not installed
+	 */
+	Integer getIpfTableSize();
+
+	/**
+	 * Number of IP datagram reassembly timeouts.
+	 *
+	 * @return 64-bit counter, or null if IPF is not installed
+	 */
+	Long getIpfTimeoutCount();
+
+	/**
+	 * Number of packets dropped by the kernel because there was no room in the
+	 * capture buffer, as reported by libpcap {@code stats()}, sampled periodically
+	 * by the capture thread.
+	 *
+	 * @return 64-bit counter extended from the 32-bit kernel counter, or null if
+	 *         not available
+	 */
+	Long getKernelDroppedCount();
+
+	/**
+	 * Number of packets received by the kernel capture filter, as reported by
+	 * libpcap {@code stats()}, sampled periodically by the capture thread.
+	 *
+	 * @return 64-bit counter extended from the 32-bit kernel counter, or null if
+	 *         not available
+	 */
+	Long getKernelReceivedCount();
+
+	/**
+	 * Name of the pcap handle.
+	 *
+	 * @return the name
+	 */
+	String getName();
+
+	/**
+	 * Number of bytes received.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getReceivedCaplenCount();
+
+	/**
+	 * Number of packets received.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getReceivedPacketCount();
+
+	/**
+	 * Number of wire bytes received.
+	 *
+	 * @return 64-bit counter
+	 */
+	long getReceivedWirelenCount();
+}
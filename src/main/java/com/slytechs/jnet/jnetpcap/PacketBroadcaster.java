@@ -0,0 +1,726 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jnetpcap.constant.PcapCode;
+
+import com.slytechs.jnet.jnetpcap.PcapProHandler.OfPacketConsumer;
+import com.slytechs.jnet.jnetpcap.internal.PacketReceiverConfig;
+import com.slytechs.jnet.jnetpcap.internal.PacketSlot;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.MemoryUnit;
+import com.slytechs.jnet.protocol.Packet;
+
+/**
+ * Broadcasts the packets captured by a single pcap handle to several
+ * independent consumers. Every packet is captured and dissected once, then
+ * copied into a shared ring of preallocated, off-heap packet slots. Each
+ * consumer runs on its own thread, at its own pace, and tracks its own sequence
+ * in the ring. The capture thread's published sequence acts as the shared
+ * barrier, past which no consumer can read.
+ * 
+ * <p>
+ * A slot is only reused once every consumer has moved past it. A consumer
+ * which falls a full ring behind the capture, either holds back the capture
+ * with {@link OverflowPolicy#BLOCK}, which in turn holds back all of the other
+ * consumers, or with {@link OverflowPolicy#DROP} has its oldest unprocessed
+ * packets skipped, so that it never holds back the capture or the other
+ * consumers.
+ * </p>
+ * 
+ * <p>
+ * Packets received by a consumer are only valid for the duration of the
+ * consumer's handler call. Each consumer receives its own packet instance, so
+ * consumers do not interfere with each other.
+ * </p>
+ * 
+ * <pre>
+ * try (PacketBroadcaster broadcaster = pcap.broadcaster()) {
+ * 	var stats = broadcaster.addConsumer("stats", p -> collect(p), OverflowPolicy.BLOCK);
+ * 	var ids = broadcaster.addConsumer("ids", p -> inspect(p), OverflowPolicy.DROP);
+ * 
+ * 	broadcaster.loop(0);
+ * }
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see NetPcap#broadcaster()
+ */
+public final class PacketBroadcaster implements AutoCloseable {
+
+	/**
+	 * What to do when a consumer falls a full ring behind the capture.
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * Hold back the capture until the consumer catches up. For live captures,
+		 * the kernel will buffer and possibly drop packets.
+		 */
+		BLOCK,
+
+		/**
+		 * Skip the consumer's oldest unprocessed packets, so that the consumer never
+		 * holds back the capture or the other consumers.
+		 */
+		DROP,
+	}
+
+	/**
+	 * A broadcast consumer, with its own thread and ring sequence.
+	 */
+	public final class BroadcastConsumer {
+
+		/** The name. */
+		private final String name;
+
+		/** The handler. */
+		private final OfPacketConsumer handler;
+
+		/** The policy. */
+		private final OverflowPolicy policy;
+
+		/** The consumer's sequence, next slot to be consumed. */
+		private final AtomicLong sequence = new AtomicLong();
+
+		/** The sequence being read, or NOT_READING. */
+		private final AtomicLong reading = new AtomicLong(NOT_READING);
+
+		/** The consumer's views of every slot. */
+		private final PacketSlot.View[] views;
+
+		/** The processed count, updated by the consumer thread, read opaque. */
+		private long processedCount;
+
+		/** The dropped count, updated by the capture thread, read opaque. */
+		private long droppedCount;
+
+		/** The max lag, updated by the consumer thread, read opaque. */
+		private long maxLag;
+
+		/** The consumer is done, no more packets will be consumed. */
+		private volatile boolean done;
+
+		/** The handler error, if any. */
+		private volatile Throwable error;
+
+		/** The consumer thread. */
+		private Thread thread;
+
+		/**
+		 * Instantiates a new broadcast consumer.
+		 *
+		 * @param name    the name
+		 * @param handler the handler
+		 * @param policy  the policy
+		 */
+		private BroadcastConsumer(String name, OfPacketConsumer handler, OverflowPolicy policy) {
+			this.name = name;
+			this.handler = handler;
+			this.policy = policy;
+			this.views = new PacketSlot.View[ring.length];
+
+			for (int i = 0; i < ring.length; i++)
+				views[i] = ring[i].newView();
+		}
+
+		/**
+		 * Consume loop, run on the consumer's own thread.
+		 */
+		private void consume() {
+			try {
+				for (;;) {
+					long seq = sequence.get();
+					long available = cursor.getAcquire();
+
+					if (seq >= available) {
+						if (closed && seq >= cursor.getAcquire())
+							break; // Drained
+
+						LockSupport.parkNanos(IDLE_PARK_NANO);
+						continue;
+					}
+
+					/*
+					 * Announce the slot we are about to read, then make sure the capture
+					 * thread has not skipped past it in the meantime. The capture thread
+					 * does the reverse, so one of us always sees the other.
+					 */
+					reading.set(seq);
+					if (sequence.get() != seq) {
+						reading.set(NOT_READING);
+						continue; // Skipped by the capture thread
+					}
+
+					long lag = available - seq;
+					if (lag > maxLag)
+						MAX_LAG.setOpaque(this, lag);
+
+					try {
+						handler.accept(views[(int) (seq & mask)].bind());
+					} finally {
+						reading.set(NOT_READING);
+					}
+
+					PROCESSED_COUNT.setOpaque(this, processedCount + 1);
+					sequence.compareAndSet(seq, seq + 1);
+				}
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				done = true;
+			}
+		}
+
+		/**
+		 * Number of packets dropped for this consumer, by its overflow policy.
+		 *
+		 * @return 64-bit counter
+		 */
+		public long getDroppedCount() {
+			return (long) DROPPED_COUNT.getOpaque(this);
+		}
+
+		/**
+		 * Gets the handler error which stopped this consumer, if any.
+		 *
+		 * @return the error
+		 */
+		public Optional<Throwable> getError() {
+			return Optional.ofNullable(error);
+		}
+
+		/**
+		 * Number of packets this consumer is currently behind the capture.
+		 *
+		 * @return the lag in packets
+		 */
+		public long getLag() {
+			return Math.max(0, cursor.getAcquire() - sequence.get());
+		}
+
+		/**
+		 * Highest number of packets this consumer has been behind the capture.
+		 *
+		 * @return the max lag in packets
+		 */
+		public long getMaxLag() {
+			return (long) MAX_LAG.getOpaque(this);
+		}
+
+		/**
+		 * Gets the consumer name.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the overflow policy.
+		 *
+		 * @return the overflow policy
+		 */
+		public OverflowPolicy getOverflowPolicy() {
+			return policy;
+		}
+
+		/**
+		 * Number of packets processed by this consumer.
+		 *
+		 * @return 64-bit counter
+		 */
+		public long getProcessedCount() {
+			return (long) PROCESSED_COUNT.getOpaque(this);
+		}
+
+		/**
+		 * Checks if this consumer is done, either drained after the broadcaster was
+		 * closed, or stopped by a handler error.
+		 *
+		 * @return true, if done
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Position of this consumer in the ring, which is the oldest slot it may
+		 * still read.
+		 *
+		 * @return the position
+		 */
+		private long position() {
+			long seq = sequence.get();
+			long r = reading.get();
+
+			return (r != NOT_READING && r < seq) ? r : seq;
+		}
+
+		/**
+		 * To string.
+		 *
+		 * @return the string
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "BroadcastConsumer [name=%s, policy=%s, processed=%d, dropped=%d, lag=%d, maxLag=%d]"
+					.formatted(name, policy, getProcessedCount(), getDroppedCount(), getLag(), getMaxLag());
+		}
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.broadcaster";
+
+	/** System property which defines the number of packet buffers (default 1024). */
+	public static final String PROPERTY_PACKET_BROADCASTER_BUFFER_COUNT = PREFIX + ".bufferCount";
+
+	/** System property which defines the size of each packet buffer (default 16KB). */
+	public static final String PROPERTY_PACKET_BROADCASTER_BUFFER_SIZE = PREFIX + ".bufferSize";
+
+	/** System property which defines the maximum dispatch batch size (default 64). */
+	public static final String PROPERTY_PACKET_BROADCASTER_BATCH_SIZE = PREFIX + ".batchSize";
+
+	/** Time to park an idle capture or consumer thread. */
+	private static final long IDLE_PARK_NANO = 10_000;
+
+	/** Reading sequence of a consumer which is not reading any slot. */
+	private static final long NOT_READING = -1;
+
+	/** Opaque access to the consumer counters. */
+	private static final VarHandle PROCESSED_COUNT, DROPPED_COUNT, MAX_LAG;
+
+	/** Opaque access to the broadcaster counters. */
+	private static final VarHandle BROADCAST_COUNT, OVERSIZED_COUNT;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			PROCESSED_COUNT = lookup.findVarHandle(BroadcastConsumer.class, "processedCount", long.class);
+			DROPPED_COUNT = lookup.findVarHandle(BroadcastConsumer.class, "droppedCount", long.class);
+			MAX_LAG = lookup.findVarHandle(BroadcastConsumer.class, "maxLag", long.class);
+			BROADCAST_COUNT = lookup.findVarHandle(PacketBroadcaster.class, "broadcastCount", long.class);
+			OVERSIZED_COUNT = lookup.findVarHandle(PacketBroadcaster.class, "oversizedCount", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The pcap handle. */
+	private final NetPcap pcap;
+
+	/** The packet receiver config of the pcap handle. */
+	private final PacketReceiverConfig config;
+
+	/** The arena. */
+	private final Arena arena = Arena.ofShared();
+
+	/** The slot ring. */
+	private final PacketSlot[] ring;
+
+	/** The ring mask. */
+	private final int mask;
+
+	/** The consumers. */
+	private final List<BroadcastConsumer> consumers = new ArrayList<>();
+
+	/** The capture's published sequence, the shared consumer barrier. */
+	private final AtomicLong cursor = new AtomicLong();
+
+	/** The capture's unpublished sequence. */
+	private long pendingTail;
+
+	/** Cached lowest consumer position, on the capture side. */
+	private long cachedGate;
+
+	/** The batch size. */
+	private int batchSize = intValue(PROPERTY_PACKET_BROADCASTER_BATCH_SIZE, 64, CountUnit.COUNT);
+
+	/** The broadcast count. */
+	private long broadcastCount;
+
+	/** The oversized count, packets which did not fit into a buffer. */
+	private long oversizedCount;
+
+	/** The started flag. */
+	private boolean started;
+
+	/** The break loop flag. */
+	private volatile boolean breakLoop;
+
+	/** A loop is in progress on the capture thread. */
+	private volatile boolean looping;
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/** Held by the capture thread while in {@link #loop(long)}. */
+	private final Object loopLock = new Object();
+
+	/**
+	 * Instantiates a new packet broadcaster.
+	 *
+	 * @param pcap   the pcap handle
+	 * @param config the packet receiver config of the pcap handle
+	 */
+	PacketBroadcaster(NetPcap pcap, PacketReceiverConfig config) {
+		this.pcap = Objects.requireNonNull(pcap, "pcap");
+		this.config = config;
+
+		int bufferCount = intValue(PROPERTY_PACKET_BROADCASTER_BUFFER_COUNT, 1024, CountUnit.COUNT);
+		int bufferSize = intValue(PROPERTY_PACKET_BROADCASTER_BUFFER_SIZE, 16, MemoryUnit.KILOBYTES);
+
+		int count = (bufferCount <= 1) ? 1 : Integer.highestOneBit(bufferCount - 1) << 1;
+		long slotSize = (long) bufferSize + PacketSlot.DESC_BUFFER_SIZE;
+		var storage = arena.allocate(slotSize * count);
+
+		this.ring = new PacketSlot[count];
+		this.mask = count - 1;
+		for (int i = 0; i < count; i++)
+			ring[i] = new PacketSlot(storage.asSlice(slotSize * i, slotSize), config.descriptorType);
+	}
+
+	/**
+	 * Adds a consumer. Consumers must be added before the first packet is
+	 * broadcast.
+	 *
+	 * @param name    the consumer name, also used to name its thread
+	 * @param handler the packet handler, called on the consumer's thread
+	 * @param policy  the overflow policy
+	 * @return the broadcast consumer
+	 * @throws IllegalStateException if the broadcast has already started
+	 */
+	public BroadcastConsumer addConsumer(String name, OfPacketConsumer handler, OverflowPolicy policy)
+			throws IllegalStateException {
+		if (started)
+			throw new IllegalStateException("broadcast already started");
+
+		var consumer = new BroadcastConsumer(
+				Objects.requireNonNull(name, "name"),
+				Objects.requireNonNull(handler, "handler"),
+				Objects.requireNonNull(policy, "policy"));
+
+		consumers.add(consumer);
+
+		return consumer;
+	}
+
+	/**
+	 * Break out of the broadcast loop. Packets already broadcast are still
+	 * delivered to the consumers. Has no effect if no loop is in progress, so
+	 * that the pcap handle's own break flag is not left set for its next
+	 * dispatch.
+	 */
+	public void breakloop() {
+		if (!looping)
+			return;
+
+		this.breakLoop = true;
+
+		pcap.breakloop();
+	}
+
+	/**
+	 * Close the broadcaster. Breaks out of and waits for a {@link #loop(long)} in
+	 * progress on another thread, then waits for all of the consumers to process
+	 * every packet already broadcast, and stops their threads. The pcap handle is
+	 * not closed.
+	 *
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		breakloop();
+
+		synchronized (loopLock) {
+			// The capture thread has left the loop and no longer writes to the ring
+		}
+
+		boolean allDone = true;
+		for (BroadcastConsumer c : consumers) {
+			if (c.thread == null)
+				continue;
+
+			try {
+				c.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				allDone = false;
+				break;
+			}
+		}
+
+		if (allDone)
+			arena.close();
+	}
+
+	/**
+	 * Capture packets from the pcap handle on the calling thread, and broadcast
+	 * them to all of the consumers. Returns when count packets have been
+	 * captured, the end of an offline file is reached or {@link #breakloop()} is
+	 * called.
+	 *
+	 * @param count maximum number of packets, -1 or 0 for infinity
+	 * @return the number of packets captured
+	 * @throws IllegalStateException if closed or on a pcap dispatch error
+	 */
+	public long loop(long count) throws IllegalStateException {
+		synchronized (loopLock) {
+			if (closed)
+				throw new IllegalStateException("broadcaster closed");
+
+			return loopLocked(count);
+		}
+	}
+
+	/**
+	 * Broadcast loop, run while holding the loop lock so that the ring's arena
+	 * is not closed underneath it.
+	 *
+	 * @param count maximum number of packets, -1 or 0 for infinity
+	 * @return the number of packets captured
+	 * @throws IllegalStateException on a pcap dispatch error
+	 */
+	private long loopLocked(long count) throws IllegalStateException {
+		start();
+
+		long captured = 0;
+		long limit = (count <= 0) ? Long.MAX_VALUE : count;
+
+		breakLoop = false;
+		looping = true;
+
+		try {
+			while (captured < limit) {
+				if (breakLoop || closed) // Closed before we started looping
+					break;
+
+				int rc = pcap.dispatch((int) Math.min(batchSize, limit - captured), this::onPacket);
+				cursor.setRelease(pendingTail);
+
+				if (rc == 0 && pcap.getPcapType().isNotLive())
+					break; // End of savefile
+
+				if (rc == PcapCode.PCAP_ERROR_BREAK)
+					break;
+
+				if (rc < 0)
+					throw new IllegalStateException("pcap dispatch error [%d]: %s"
+							.formatted(rc, pcap.geterr()));
+
+				captured += rc;
+			}
+		} finally {
+			looping = false;
+			cursor.setRelease(pendingTail);
+		}
+
+		return captured;
+	}
+
+	/**
+	 * Gets the number of packets broadcast to the consumers.
+	 *
+	 * @return the broadcast count
+	 */
+	public long getBroadcastCount() {
+		return (long) BROADCAST_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the dispatch batch size.
+	 *
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Gets the number of packet buffers in the ring.
+	 *
+	 * @return the buffer count
+	 */
+	public int getBufferCount() {
+		return ring.length;
+	}
+
+	/**
+	 * Gets the consumers.
+	 *
+	 * @return an unmodifiable list of the consumers
+	 */
+	public List<BroadcastConsumer> getConsumers() {
+		return List.copyOf(consumers);
+	}
+
+	/**
+	 * Gets the number of packets dropped because they did not fit into a packet
+	 * buffer.
+	 *
+	 * @return the oversized count
+	 */
+	public long getOversizedCount() {
+		return (long) OVERSIZED_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Packet handler, called on the capture thread for every dispatched packet.
+	 *
+	 * @param packet the packet
+	 */
+	private void onPacket(Packet packet) {
+		long wrap = pendingTail - ring.length;
+		if (wrap >= cachedGate && !awaitSlot(wrap))
+			return; // Closed while waiting
+
+		if (!ring[(int) (pendingTail & mask)].copyFrom(packet, config.packetDescriptorType, config.timestampUnit,
+				config.formatter)) {
+			OVERSIZED_COUNT.setOpaque(this, oversizedCount + 1);
+			return;
+		}
+
+		pendingTail++;
+		BROADCAST_COUNT.setOpaque(this, broadcastCount + 1);
+	}
+
+	/**
+	 * Wait until every consumer has moved past a ring sequence, so that its slot
+	 * can be reused. Consumers with the {@link OverflowPolicy#DROP} policy are
+	 * skipped ahead instead of waited for.
+	 *
+	 * @param wrap the ring sequence whose slot is about to be reused
+	 * @return true, if the slot can be reused, false if closed while waiting
+	 */
+	private boolean awaitSlot(long wrap) {
+		for (;;) {
+			long gate = Long.MAX_VALUE;
+			boolean blocked = false;
+
+			for (BroadcastConsumer c : consumers) {
+				if (c.done)
+					continue;
+
+				if (c.policy == OverflowPolicy.DROP)
+					skip(c, wrap + 1);
+
+				long position = c.position();
+				if (position <= wrap)
+					blocked = true;
+
+				gate = Math.min(gate, position);
+			}
+
+			if (!blocked) {
+				cachedGate = gate;
+				return true;
+			}
+
+			cursor.setRelease(pendingTail); // Publish what we have before waiting
+
+			if (closed)
+				return false;
+
+			LockSupport.parkNanos(IDLE_PARK_NANO);
+		}
+	}
+
+	/**
+	 * Skip a consumer ahead to a ring sequence, dropping its unprocessed packets
+	 * before it. If the consumer is still reading one of the dropped slots, the
+	 * slot is not reused until it is done, see {@link BroadcastConsumer#position()}.
+	 *
+	 * @param c      the consumer
+	 * @param target the target sequence
+	 */
+	private void skip(BroadcastConsumer c, long target) {
+		long seq = c.sequence.get();
+
+		while (seq < target) {
+			if (c.sequence.compareAndSet(seq, target)) {
+				DROPPED_COUNT.setOpaque(c, c.droppedCount + (target - seq));
+				return;
+			}
+
+			seq = c.sequence.get();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of packets dispatched at a time. Packets are
+	 * published to the consumers after each dispatched batch.
+	 *
+	 * @param batchSize the batch size
+	 * @return this broadcaster
+	 */
+	public PacketBroadcaster setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batch size must be positive");
+
+		this.batchSize = batchSize;
+
+		return this;
+	}
+
+	/**
+	 * Start the consumer threads, if not already started.
+	 */
+	private void start() {
+		if (started)
+			return;
+
+		started = true;
+
+		for (BroadcastConsumer c : consumers) {
+			c.thread = new Thread(c::consume, "%s-broadcast-%s".formatted(pcap.getName(), c.name));
+			c.thread.setDaemon(true);
+			c.thread.start();
+		}
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PacketBroadcaster [broadcast=%d, oversized=%d, consumers=%s]"
+				.formatted(getBroadcastCount(), getOversizedCount(), consumers);
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import java.util.concurrent.TimeUnit;
+
+import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PreRxProcessor;
+import com.slytechs.jnet.jnetpcap.internal.PacketDeduplicatorPreProcessor;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.SystemProperties;
+
+/**
+ * A packet deduplicating pre-processor. When packets are aggregated from
+ * several mirror (SPAN) ports, the same packet may be captured more than once,
+ * within a short time of each other. The deduplicator computes a hash of an
+ * invariant region of each packet and drops any packet whose hash was already
+ * seen within the deduplication window.
+ * <p>
+ * The invariant region starts at the IP header, since L2 headers and VLAN tags
+ * commonly differ between mirror ports, and excludes fields which are modified
+ * by routers: the IPv4 TTL and header checksum, and the IPv6 hop limit. Non-IP
+ * packets are hashed starting at the first byte. The wire length is always
+ * part of the hash.
+ * </p>
+ * <p>
+ * Recently seen hashes are kept in a fixed size, off-heap hash table. Entries
+ * are evicted once they are older than the window, or when their bucket is
+ * full, the oldest entry is replaced. There is no per packet allocation.
+ * </p>
+ * 
+ * <pre>
+ * pcap.install(new PacketDeduplicator()
+ * 		.setWindow(500, TimeUnit.MICROSECONDS)
+ * 		.setInvariantLength(96));
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketDeduplicator extends PcapProConfigurator<PacketDeduplicator> implements PreRxProcessor {
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.dedup";
+
+	/** The Constant PROPERTY_PACKET_DEDUP_ENABLE. */
+	public static final String PROPERTY_PACKET_DEDUP_ENABLE = PREFIX + ".enable";
+
+	/** The Constant PROPERTY_PACKET_DEDUP_WINDOW_NANO. */
+	public static final String PROPERTY_PACKET_DEDUP_WINDOW_NANO = PREFIX + ".windowNano";
+
+	/** The Constant PROPERTY_PACKET_DEDUP_TABLE_SIZE. */
+	public static final String PROPERTY_PACKET_DEDUP_TABLE_SIZE = PREFIX + ".tableSize";
+
+	/** The Constant PROPERTY_PACKET_DEDUP_INVARIANT_LENGTH. */
+	public static final String PROPERTY_PACKET_DEDUP_INVARIANT_LENGTH = PREFIX + ".invariantLength";
+
+	/** The Constant PROPERTY_PACKET_DEDUP_INCLUDE_L2. */
+	public static final String PROPERTY_PACKET_DEDUP_INCLUDE_L2 = PREFIX + ".includeL2";
+
+	/** The window nano. */
+	private long windowNano = SystemProperties.longValue(PROPERTY_PACKET_DEDUP_WINDOW_NANO, 1_000_000);
+
+	/** The table size. */
+	private int tableSize = SystemProperties.intValue(PROPERTY_PACKET_DEDUP_TABLE_SIZE, 65536, CountUnit.COUNT);
+
+	/** The invariant length, 0 for the entire packet. */
+	private int invariantLength = SystemProperties.intValue(PROPERTY_PACKET_DEDUP_INVARIANT_LENGTH, 0,
+			CountUnit.COUNT);
+
+	/** The include L2. */
+	private boolean includeL2 = SystemProperties.boolValue(PROPERTY_PACKET_DEDUP_INCLUDE_L2, false);
+
+	/** The timestamp unit, null to use the handle's timestamp unit. */
+	private TimestampUnit timestampUnit;
+
+	/** The duplicate count. */
+	private long duplicateCount;
+
+	/** The duplicate bytes. */
+	private long duplicateBytes;
+
+	/** The unique count. */
+	private long uniqueCount;
+
+	/**
+	 * Instantiates a new packet deduplicator.
+	 */
+	public PacketDeduplicator() {
+		super(PREFIX, PacketDeduplicatorPreProcessor::new);
+	}
+
+	/**
+	 * Gets the total wire length of dropped duplicate packets.
+	 *
+	 * @return the duplicate bytes
+	 */
+	public long getDuplicateBytes() {
+		return duplicateBytes;
+	}
+
+	/**
+	 * Gets the number of duplicate packets dropped. Duplicates are counted
+	 * separately from packets dropped by filters.
+	 *
+	 * @return the duplicate count
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	/**
+	 * Gets the maximum number of bytes hashed, starting at the IP header.
+	 *
+	 * @return the invariant length, 0 for the entire packet
+	 */
+	public int getInvariantLength() {
+		return invariantLength;
+	}
+
+	/**
+	 * Gets the hash table size.
+	 *
+	 * @return the number of entries
+	 */
+	public int getTableSize() {
+		return tableSize;
+	}
+
+	/**
+	 * Gets the timestamp unit of the pcap header timestamps.
+	 *
+	 * @return the timestamp unit, or null if the pcap handle's timestamp unit is
+	 *         used
+	 */
+	public TimestampUnit getTimestampUnit() {
+		return timestampUnit;
+	}
+
+	/**
+	 * Gets the number of unique packets passed through.
+	 *
+	 * @return the unique count
+	 */
+	public long getUniqueCount() {
+		return uniqueCount;
+	}
+
+	/**
+	 * Gets the deduplication window.
+	 *
+	 * @param unit the unit
+	 * @return the window
+	 */
+	public long getWindow(TimeUnit unit) {
+		return unit.convert(windowNano, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Inc duplicate.
+	 *
+	 * @param wirelen the wirelen of the duplicate packet
+	 */
+	public void incDuplicate(int wirelen) {
+		duplicateCount++;
+		duplicateBytes += wirelen;
+	}
+
+	/**
+	 * Inc unique.
+	 */
+	public void incUnique() {
+		uniqueCount++;
+	}
+
+	/**
+	 * Checks if the L2 headers are included in the hash.
+	 *
+	 * @return true, if included
+	 */
+	public boolean isIncludeL2() {
+		return includeL2;
+	}
+
+	/**
+	 * Include the L2 headers, including any VLAN tags, in the hash.
+	 *
+	 * @param includeL2 if true, L2 headers are hashed
+	 * @return the packet deduplicator
+	 */
+	public PacketDeduplicator setIncludeL2(boolean includeL2) {
+		this.includeL2 = includeL2;
+
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of bytes hashed, starting at the IP header.
+	 *
+	 * @param invariantLength the invariant length, 0 for the entire packet
+	 * @return the packet deduplicator
+	 */
+	public PacketDeduplicator setInvariantLength(int invariantLength) {
+		if (invariantLength < 0)
+			throw new IllegalArgumentException("negative invariant length [%d]".formatted(invariantLength));
+
+		this.invariantLength = invariantLength;
+
+		return this;
+	}
+
+	/**
+	 * Sets the hash table size. The size is rounded up to a power of 2.
+	 *
+	 * @param tableSize the number of entries
+	 * @return the packet deduplicator
+	 */
+	public PacketDeduplicator setTableSize(int tableSize) {
+		if (tableSize < 1)
+			throw new IllegalArgumentException("table size must be 1 or greater [%d]".formatted(tableSize));
+
+		this.tableSize = tableSize;
+
+		return this;
+	}
+
+	/**
+	 * Sets the timestamp unit of the pcap header timestamps. By default, the
+	 * timestamp unit of the pcap handle the deduplicator is installed on is used,
+	 * as configured when the handle is activated.
+	 *
+	 * @param timestampUnit the timestamp unit, or null to use the pcap handle's
+	 *                      timestamp unit
+	 * @return the packet deduplicator
+	 */
+	public PacketDeduplicator setTimestampUnit(TimestampUnit timestampUnit) {
+		this.timestampUnit = timestampUnit;
+
+		return this;
+	}
+
+	/**
+	 * Sets the deduplication window. A packet is a duplicate if the same packet
+	 * was seen within this amount of time before it.
+	 *
+	 * @param duration the duration
+	 * @param unit     the unit
+	 * @return the packet deduplicator
+	 */
+	public PacketDeduplicator setWindow(long duration, TimeUnit unit) {
+		this.windowNano = unit.toNanos(duration);
+
+		return this;
+	}
+}
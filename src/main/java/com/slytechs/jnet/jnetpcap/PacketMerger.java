@@ -0,0 +1,874 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.jnetpcap.constant.PcapCode;
+
+import com.slytechs.jnet.jnetpcap.PcapProHandler.OfPacketConsumer;
+import com.slytechs.jnet.jnetpcap.internal.PacketReceiverConfig;
+import com.slytechs.jnet.jnetpcap.internal.PacketSlot;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.MemoryUnit;
+import com.slytechs.jnet.protocol.Packet;
+
+/**
+ * Merges packets captured by several pcap handles into a single, timestamp
+ * ordered stream of packets. Each source handle is captured on its own thread,
+ * into a bounded, single-producer single-consumer ring of preallocated packet
+ * slots. The merger then interleaves the packets at the head of each ring,
+ * using a k-way min-heap on packet timestamp.
+ * 
+ * <p>
+ * When all of the sources are offline files, the merged stream is fully
+ * ordered, since the merger always waits for every unfinished source to have a
+ * packet ready. When any source is a live capture, a source may be idle for a
+ * long time, so the packet with the lowest timestamp is released once it has
+ * waited for the reorder window, or once a packet newer by at least the
+ * reorder window has been seen on another source.
+ * </p>
+ * 
+ * <p>
+ * Each source handle is assigned a port number, its index in the source list,
+ * which along with its handle name as the port name, is recorded in every
+ * packet's descriptor.
+ * </p>
+ * 
+ * <p>
+ * A source whose capture fails stops producing packets, while the remaining
+ * sources keep on being merged. Failures are reported to the uncaught
+ * exception handler, if one is set, and by {@link #getSourceError(int)}.
+ * </p>
+ * 
+ * <pre>
+ * try (PacketMerger merger = NetPcap.merge(
+ * 		NetPcap.openOffline("eth0.pcap"),
+ * 		NetPcap.openOffline("eth1.pcap"))) {
+ * 
+ * 	merger.loop(packet -> System.out.println(packet.descriptor()));
+ * }
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see NetPcap#merge(NetPcap...)
+ */
+public final class PacketMerger implements AutoCloseable {
+
+	/**
+	 * A single merge source, which owns a ring of packet slots filled by its own
+	 * capture thread.
+	 */
+	private final class Source {
+
+		/** The pcap handle. */
+		private final NetPcap pcap;
+
+		/** The packet receiver config of the pcap handle. */
+		private final PacketReceiverConfig config;
+
+		/** The slot ring. */
+		private final PacketSlot[] ring;
+
+		/** Epoch nano timestamp of each slot's packet. */
+		private final long[] timestamps;
+
+		/** Arrival time, in System.nanoTime(), of each slot's packet. */
+		private final long[] arrivals;
+
+		/** The ring mask. */
+		private final int mask;
+
+		/** The consumer's sequence, next slot to be merged. */
+		private final AtomicLong head = new AtomicLong();
+
+		/** The producer's sequence, published once per dispatched batch. */
+		private final AtomicLong tail = new AtomicLong();
+
+		/** The producer's unpublished sequence. */
+		private long pendingTail;
+
+		/** Cached consumer sequence, on the producer side. */
+		private long cachedHead;
+
+		/** The source is done, no more packets will be produced. */
+		private volatile boolean done;
+
+		/** The capture error, if any. */
+		private volatile Throwable error;
+
+		/** The capture thread. */
+		private Thread thread;
+
+		/** The oversized count, only written by the capture thread. */
+		private long oversizedCount;
+
+		/**
+		 * Instantiates a new source.
+		 *
+		 * @param pcap   the pcap
+		 * @param config the config
+		 * @param arena  the arena
+		 */
+		Source(NetPcap pcap, PacketReceiverConfig config, Arena arena) {
+			this.pcap = pcap;
+			this.config = config;
+
+			int count = (bufferCount <= 1) ? 1 : Integer.highestOneBit(bufferCount - 1) << 1;
+			long slotSize = (long) bufferSize + PacketSlot.DESC_BUFFER_SIZE;
+			var storage = arena.allocate(slotSize * count);
+
+			this.ring = new PacketSlot[count];
+			this.timestamps = new long[count];
+			this.arrivals = new long[count];
+			this.mask = count - 1;
+			for (int i = 0; i < count; i++)
+				ring[i] = new PacketSlot(storage.asSlice(slotSize * i, slotSize), config.descriptorType);
+		}
+
+		/**
+		 * Capture loop, run on the source's own thread.
+		 */
+		void capture() {
+			try {
+				for (;;) {
+					if (closed)
+						break;
+
+					int rc = pcap.dispatch(batchSize, this::onPacket);
+					tail.setRelease(pendingTail);
+
+					if (rc == 0 && pcap.getPcapType().isNotLive())
+						break; // End of savefile
+
+					if (rc == PcapCode.PCAP_ERROR_BREAK)
+						break;
+
+					if (rc < 0) {
+						fail(new IllegalStateException("pcap dispatch error [%d]: %s"
+								.formatted(rc, pcap.geterr())));
+						break;
+					}
+				}
+			} catch (Throwable e) {
+				fail(e);
+			} finally {
+				tail.setRelease(pendingTail);
+				done = true;
+			}
+		}
+
+		/**
+		 * Record the capture failure of this source, and report it to the
+		 * uncaught exception handler, if one is set. The other sources keep on
+		 * being merged.
+		 *
+		 * @param e the failure
+		 */
+		private void fail(Throwable e) {
+			error = e;
+
+			UncaughtExceptionHandler handler = exceptionHandler;
+			if (handler != null)
+				handler.uncaughtException(Thread.currentThread(), e);
+		}
+
+		/**
+		 * Packet handler, called on the source's capture thread.
+		 *
+		 * @param packet the packet
+		 */
+		private void onPacket(Packet packet) {
+			while (pendingTail - cachedHead == ring.length) {
+				tail.setRelease(pendingTail); // Publish what we have before waiting
+				cachedHead = head.getAcquire();
+
+				if (pendingTail - cachedHead == ring.length) {
+					if (closed)
+						return;
+
+					LockSupport.parkNanos(IDLE_PARK_NANO);
+				}
+			}
+
+			int index = (int) (pendingTail & mask);
+			if (!ring[index].copyFrom(packet, config.packetDescriptorType, config.timestampUnit,
+					config.formatter)) {
+				OVERSIZED_COUNT.setOpaque(this, oversizedCount + 1);
+				return;
+			}
+
+			timestamps[index] = TimestampUnit.EPOCH_NANO.convert(packet.timestamp(), config.timestampUnit);
+			arrivals[index] = System.nanoTime();
+			pendingTail++;
+		}
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.merger";
+
+	/** System property which defines the number of packet buffers per source (default 1024). */
+	public static final String PROPERTY_PACKET_MERGER_BUFFER_COUNT = PREFIX + ".bufferCount";
+
+	/** System property which defines the size of each packet buffer (default 16KB). */
+	public static final String PROPERTY_PACKET_MERGER_BUFFER_SIZE = PREFIX + ".bufferSize";
+
+	/** System property which defines the maximum dispatch batch size (default 64). */
+	public static final String PROPERTY_PACKET_MERGER_BATCH_SIZE = PREFIX + ".batchSize";
+
+	/** System property which defines the live reorder window (default 1ms). */
+	public static final String PROPERTY_PACKET_MERGER_REORDER_WINDOW_NANO = PREFIX + ".reorderWindowNano";
+
+	/** Time to park an idle producer or consumer thread. */
+	private static final long IDLE_PARK_NANO = 10_000;
+
+	/** Opaque access to the counters. */
+	private static final VarHandle MERGED_COUNT, OUT_OF_ORDER_COUNT, OVERSIZED_COUNT;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			MERGED_COUNT = lookup.findVarHandle(PacketMerger.class, "mergedCount", long.class);
+			OUT_OF_ORDER_COUNT = lookup.findVarHandle(PacketMerger.class, "outOfOrderCount", long.class);
+			OVERSIZED_COUNT = lookup.findVarHandle(Source.class, "oversizedCount", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The source handles. */
+	private final NetPcap[] pcaps;
+
+	/** The packet receiver configs of the source handles. */
+	private final PacketReceiverConfig[] configs;
+
+	/** The merge sources, allocated on first use. */
+	private final Source[] sources;
+
+	/** The min-heap of source indexes, ordered by their head packet timestamp. */
+	private final int[] heap;
+
+	/** The sources currently in the heap. */
+	private final boolean[] inHeap;
+
+	/** The heap size. */
+	private int heapSize;
+
+	/** The arena. */
+	private final Arena arena = Arena.ofShared();
+
+	/** True if any of the sources is a live capture. */
+	private final boolean live;
+
+	/** The buffer count. */
+	private int bufferCount = intValue(PROPERTY_PACKET_MERGER_BUFFER_COUNT, 1024, CountUnit.COUNT);
+
+	/** The buffer size. */
+	private int bufferSize = intValue(PROPERTY_PACKET_MERGER_BUFFER_SIZE, 16, MemoryUnit.KILOBYTES);
+
+	/** The batch size. */
+	private int batchSize = intValue(PROPERTY_PACKET_MERGER_BATCH_SIZE, 64, CountUnit.COUNT);
+
+	/** The reorder window nano. */
+	private long reorderWindowNano = longValue(PROPERTY_PACKET_MERGER_REORDER_WINDOW_NANO, 1_000_000);
+
+	/** The newest timestamp seen on any source. */
+	private long newestTimestamp = Long.MIN_VALUE;
+
+	/** The started flag. */
+	private boolean started;
+
+	/** The break loop flag. */
+	private volatile boolean breakLoop;
+
+	/** The closed flag. */
+	private volatile boolean closed;
+
+	/** The thread inside of a dispatch call, null if none. */
+	private volatile Thread dispatchThread;
+
+	/** Close was called by the handler, resources are freed when dispatch returns. */
+	private boolean closeDeferred;
+
+	/** The uncaught exception handler, notified of source capture failures. */
+	private volatile UncaughtExceptionHandler exceptionHandler;
+
+	/** The merged count, written by the dispatching thread only. */
+	private long mergedCount;
+
+	/** The out of order count, written by the dispatching thread only. */
+	private long outOfOrderCount;
+
+	/** The last merged timestamp. */
+	private long lastTimestamp = Long.MIN_VALUE;
+
+	/**
+	 * Instantiates a new packet merger.
+	 *
+	 * @param pcaps   the source pcap handles
+	 * @param configs the packet receiver configs of the source handles
+	 */
+	PacketMerger(NetPcap[] pcaps, PacketReceiverConfig[] configs) {
+		if (pcaps.length == 0)
+			throw new IllegalArgumentException("no merge sources");
+
+		boolean anyLive = false;
+		this.sources = new Source[pcaps.length];
+		for (int i = 0; i < pcaps.length; i++) {
+			Objects.requireNonNull(pcaps[i], "pcap");
+			anyLive |= pcaps[i].getPcapType().isLive();
+		}
+
+		this.live = anyLive;
+		this.heap = new int[pcaps.length];
+		this.inHeap = new boolean[pcaps.length];
+		this.pcaps = pcaps;
+		this.configs = configs;
+	}
+
+	/**
+	 * Break out of the merge loop. Any packets buffered, remain buffered.
+	 */
+	public void breakloop() {
+		this.breakLoop = true;
+	}
+
+	/**
+	 * Stop all source capture threads and close all of the source handles. Waits
+	 * until every capture thread has exited, and until any active dispatch call
+	 * has returned, before the handles and the packet buffers are freed. When
+	 * called from within a dispatch call, for example by the packet handler, they
+	 * are freed when that dispatch call returns.
+	 *
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		breakLoop = true;
+
+		for (NetPcap pcap : pcaps)
+			pcap.breakloop();
+
+		boolean interrupted = false;
+		if (started)
+			for (Source src : sources) {
+				while (src.thread.isAlive()) {
+					try {
+						src.thread.join();
+					} catch (InterruptedException e) {
+						interrupted = true; // Keep waiting, buffers are still in use
+					}
+				}
+			}
+
+		if (dispatchThread == Thread.currentThread()) {
+			closeDeferred = true; // The handler's packet is still in use
+
+		} else {
+			while (dispatchThread != null)
+				LockSupport.parkNanos(IDLE_PARK_NANO);
+
+			release();
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Close the source handles and free the packet buffers.
+	 */
+	private void release() {
+		for (NetPcap pcap : pcaps)
+			pcap.close();
+
+		arena.close();
+	}
+
+	/**
+	 * Merge and dispatch up to count packets. Returns when count packets have been
+	 * dispatched, all sources are exhausted or {@link #breakloop()} is called.
+	 *
+	 * @param <U>     the generic type
+	 * @param count   maximum number of packets, -1 or 0 for infinity
+	 * @param handler the packet handler
+	 * @param user    the user opaque value
+	 * @return the number of packets dispatched, 0 if all sources are exhausted,
+	 *         or PCAP_ERROR_BREAK if broken out of before any packets were
+	 *         dispatched
+	 */
+	public <U> int dispatch(int count, PcapProHandler.OfPacket<U> handler, U user) {
+		dispatchThread = Thread.currentThread();
+
+		try {
+			if (closed) // Checked after publishing the dispatch thread, close waits for it
+				throw new IllegalStateException("merger closed");
+
+			return dispatch0(count, handler, user);
+
+		} finally {
+			dispatchThread = null;
+
+			if (closeDeferred)
+				release();
+		}
+	}
+
+	/**
+	 * Merge and dispatch up to count packets, on the dispatching thread.
+	 *
+	 * @param <U>     the generic type
+	 * @param count   maximum number of packets, -1 or 0 for infinity
+	 * @param handler the packet handler
+	 * @param user    the user opaque value
+	 * @return the number of packets dispatched
+	 */
+	private <U> int dispatch0(int count, PcapProHandler.OfPacket<U> handler, U user) {
+		start();
+
+		int dispatched = 0;
+		long limit = (count <= 0) ? Long.MAX_VALUE : count;
+
+		while (dispatched < limit) {
+			if (breakLoop) {
+				breakLoop = false;
+
+				return (dispatched == 0) ? PcapCode.PCAP_ERROR_BREAK : dispatched;
+			}
+
+			int next = selectNext();
+			if (next == -1) {
+				if (heapSize == 0 && allDone())
+					break;
+
+				LockSupport.parkNanos(IDLE_PARK_NANO);
+				continue;
+			}
+
+			emit(next, handler, user);
+			dispatched++;
+		}
+
+		Throwable error = firstError();
+		if (error != null && dispatched == 0)
+			throw new IllegalStateException("merge source capture failed", error);
+
+		return dispatched;
+	}
+
+	/**
+	 * Merge and dispatch packets using a simple packet consumer, until all
+	 * sources are exhausted or {@link #breakloop()} is called.
+	 *
+	 * @param packetConsumer the packet consumer
+	 * @return the number of packets dispatched
+	 */
+	public int loop(OfPacketConsumer packetConsumer) {
+		return dispatch(0, (u, p) -> packetConsumer.accept(p), 0);
+	}
+
+	/**
+	 * Check if all sources are done and fully drained.
+	 *
+	 * @return true, if all done
+	 */
+	private boolean allDone() {
+		for (Source src : sources)
+			if (!src.done || src.head.get() != src.tail.getAcquire())
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Emit the head packet of a source and advance the source.
+	 *
+	 * @param <U>     the generic type
+	 * @param index   the source index
+	 * @param handler the handler
+	 * @param user    the user
+	 */
+	private <U> void emit(int index, PcapProHandler.OfPacket<U> handler, U user) {
+		Source src = sources[index];
+		long seq = src.head.get();
+		int slot = (int) (seq & src.mask);
+
+		long ts = src.timestamps[slot];
+		if (ts < lastTimestamp)
+			OUT_OF_ORDER_COUNT.setOpaque(this, outOfOrderCount + 1);
+		else
+			lastTimestamp = ts;
+
+		MERGED_COUNT.setOpaque(this, mergedCount + 1);
+
+		try {
+			handler.handlePacket(user, src.ring[slot].packet());
+		} finally {
+			src.head.setRelease(seq + 1); // Slot recycled only after the handler returns
+			inHeap[index] = false;
+		}
+	}
+
+	/**
+	 * Gets the first source capture error, if any.
+	 *
+	 * @return the error or null
+	 */
+	private Throwable firstError() {
+		for (Source src : sources)
+			if (src.error != null)
+				return src.error;
+
+		return null;
+	}
+
+	/**
+	 * Gets the number of packets merged.
+	 *
+	 * @return the merged count
+	 */
+	public long getMergedCount() {
+		return (long) MERGED_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the number of packets merged with a timestamp older than a previously
+	 * merged packet, which can only happen with live sources when a packet
+	 * arrives later than the reorder window.
+	 *
+	 * @return the out of order count
+	 */
+	public long getOutOfOrderCount() {
+		return (long) OUT_OF_ORDER_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the number of sources whose capture failed. The packets already
+	 * captured by a failed source are still merged, and the other sources keep
+	 * on being merged.
+	 *
+	 * @return the failed source count
+	 */
+	public int getFailedSourceCount() {
+		int count = 0;
+		for (Source src : sources)
+			if (src != null && src.error != null) // Sources are allocated on first use
+				count++;
+
+		return count;
+	}
+
+	/**
+	 * Gets the capture failure of a source.
+	 *
+	 * @param index the source index, its port number
+	 * @return the failure, or null if the source has not failed
+	 * @throws IndexOutOfBoundsException if the index is not a source index
+	 */
+	public Throwable getSourceError(int index) throws IndexOutOfBoundsException {
+		Source src = sources[Objects.checkIndex(index, sources.length)];
+
+		return (src == null) ? null : src.error;
+	}
+
+	/**
+	 * Gets the number of packets dropped because they did not fit into a packet
+	 * buffer.
+	 *
+	 * @return the oversized count
+	 */
+	public long getOversizedCount() {
+		long count = 0;
+		for (Source src : sources)
+			if (src != null) // Sources are allocated on first use
+				count += (long) OVERSIZED_COUNT.getOpaque(src);
+
+		return count;
+	}
+
+	/**
+	 * Gets the live reorder window.
+	 *
+	 * @param unit the unit
+	 * @return the reorder window
+	 */
+	public long getReorderWindow(TimeUnit unit) {
+		return unit.convert(reorderWindowNano, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the number of merge sources.
+	 *
+	 * @return the source count
+	 */
+	public int getSourceCount() {
+		return pcaps.length;
+	}
+
+	/**
+	 * Checks if the merged stream contains live captures.
+	 *
+	 * @return true, if any source is a live capture
+	 */
+	public boolean isLive() {
+		return live;
+	}
+
+	/**
+	 * Sift a heap entry down.
+	 *
+	 * @param pos the pos
+	 */
+	private void heapDown(int pos) {
+		int e = heap[pos];
+		long key = headTimestamp(e);
+
+		for (;;) {
+			int child = (pos << 1) + 1;
+			if (child >= heapSize)
+				break;
+
+			if (child + 1 < heapSize && headTimestamp(heap[child + 1]) < headTimestamp(heap[child]))
+				child++;
+
+			if (headTimestamp(heap[child]) >= key)
+				break;
+
+			heap[pos] = heap[child];
+			pos = child;
+		}
+
+		heap[pos] = e;
+	}
+
+	/**
+	 * Push a source on to the heap.
+	 *
+	 * @param index the source index
+	 */
+	private void heapPush(int index) {
+		int pos = heapSize++;
+		long key = headTimestamp(index);
+
+		while (pos > 0) {
+			int parent = (pos - 1) >> 1;
+			if (headTimestamp(heap[parent]) <= key)
+				break;
+
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+
+		heap[pos] = index;
+		inHeap[index] = true;
+	}
+
+	/**
+	 * Timestamp of the head packet of a source.
+	 *
+	 * @param index the source index
+	 * @return the epoch nano timestamp
+	 */
+	private long headTimestamp(int index) {
+		Source src = sources[index];
+
+		return src.timestamps[(int) (src.head.get() & src.mask)];
+	}
+
+	/**
+	 * Select the next source to merge from, if any is ready.
+	 *
+	 * @return the source index or -1 if no packet can be released yet
+	 */
+	private int selectNext() {
+		boolean waiting = false; // An unfinished source has no packet ready
+
+		for (int i = 0; i < sources.length; i++) {
+			if (inHeap[i])
+				continue;
+
+			Source src = sources[i];
+			boolean done = src.done; // Read before tail, a done source has a final tail
+
+			if (src.head.get() != src.tail.getAcquire()) {
+				heapPush(i);
+				newestTimestamp = Math.max(newestTimestamp, headTimestamp(i));
+
+			} else if (!done)
+				waiting = true;
+		}
+
+		if (heapSize == 0)
+			return -1;
+
+		int top = heap[0];
+
+		if (waiting) {
+			if (!live)
+				return -1; // Offline sources are merged in strict order
+
+			Source src = sources[top];
+			int slot = (int) (src.head.get() & src.mask);
+			boolean aged = System.nanoTime() - src.arrivals[slot] >= reorderWindowNano;
+			boolean overtaken = newestTimestamp - src.timestamps[slot] >= reorderWindowNano;
+
+			if (!aged && !overtaken)
+				return -1;
+		}
+
+		heap[0] = heap[--heapSize];
+		if (heapSize > 0)
+			heapDown(0);
+
+		return top;
+	}
+
+	/**
+	 * Sets the maximum number of packets dispatched by a source at a time.
+	 *
+	 * @param batchSize the batch size
+	 * @return this merger
+	 */
+	public PacketMerger setBatchSize(int batchSize) {
+		checkNotStarted();
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batch size must be 1 or greater [%d]".formatted(batchSize));
+
+		this.batchSize = batchSize;
+
+		return this;
+	}
+
+	/**
+	 * Sets the number of packet buffers per source, rounded up to a power of 2.
+	 *
+	 * @param count the buffer count
+	 * @return this merger
+	 */
+	public PacketMerger setBufferCount(int count) {
+		checkNotStarted();
+		if (count < 1)
+			throw new IllegalArgumentException("buffer count must be 1 or greater [%d]".formatted(count));
+
+		this.bufferCount = count;
+
+		return this;
+	}
+
+	/**
+	 * Sets the size of each packet buffer, which is the maximum caplen of a
+	 * merged packet.
+	 *
+	 * @param size the size
+	 * @param unit the unit
+	 * @return this merger
+	 */
+	public PacketMerger setBufferSize(int size, MemoryUnit unit) {
+		checkNotStarted();
+		this.bufferSize = unit.toBytesAsInt(size);
+
+		return this;
+	}
+
+	/**
+	 * Sets the live reorder window. Ignored when all of the sources are offline.
+	 *
+	 * @param duration the duration
+	 * @param unit     the unit
+	 * @return this merger
+	 */
+	public PacketMerger setReorderWindow(long duration, TimeUnit unit) {
+		this.reorderWindowNano = unit.toNanos(duration);
+
+		return this;
+	}
+
+	/**
+	 * Sets the handler notified of source capture failures. The handler is called
+	 * on the failed source's capture thread. Failures are also reported by
+	 * {@link #getSourceError(int)}, and the first one is rethrown by a dispatch
+	 * call which merged no packets.
+	 *
+	 * @param exceptionHandler the exception handler, or null for none
+	 * @return this merger
+	 */
+	public PacketMerger setUncaughtExceptionHandler(UncaughtExceptionHandler exceptionHandler) {
+		this.exceptionHandler = exceptionHandler;
+
+		return this;
+	}
+
+	/**
+	 * Sets the handler notified of source capture failures.
+	 *
+	 * @param exceptionHandler the exception handler
+	 * @return this merger
+	 * @see #setUncaughtExceptionHandler(UncaughtExceptionHandler)
+	 */
+	public PacketMerger setUncaughtExceptionHandler(Consumer<? super Throwable> exceptionHandler) {
+		Objects.requireNonNull(exceptionHandler, "exceptionHandler");
+
+		return setUncaughtExceptionHandler((t, e) -> exceptionHandler.accept(e));
+	}
+
+	/**
+	 * Check merging has not started.
+	 *
+	 * @throws IllegalStateException if started
+	 */
+	private void checkNotStarted() throws IllegalStateException {
+		if (started)
+			throw new IllegalStateException("merger already started");
+	}
+
+	/**
+	 * Allocate the source rings and start the source capture threads, on first
+	 * use.
+	 */
+	private void start() {
+		if (started)
+			return;
+
+		started = true;
+
+		for (int i = 0; i < pcaps.length; i++)
+			sources[i] = new Source(pcaps[i], configs[i], arena);
+
+		for (Source src : sources) {
+			src.thread = new Thread(src::capture, "%s-merge".formatted(src.pcap.getName()));
+			src.thread.setDaemon(true);
+			src.thread.start();
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.slytechs.jnet.jnetpcap.internal.PacketSlot;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.MemoryUnit;
+import com.slytechs.jnet.protocol.Packet;
+import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
+import com.slytechs.jnet.protocol.meta.PacketFormat;
+
+/**
+ * A pool of preallocated, off-heap packet slots used to detach packets from
+ * the capture callback. Packets delivered to a handler are only valid for the
+ * duration of the callback. Detaching a packet copies its data and descriptor
+ * into a recycled pool slot, which can then be handed off to another thread
+ * without any heap allocation.
+ * 
+ * <p>
+ * Detached packets are reference counted. A freshly detached packet has a
+ * reference count of 1. Each additional consumer should {@code retain} the
+ * packet and every consumer must {@code release} it when done. When the count
+ * reaches 0, the slot is returned to the pool and the packet must no longer be
+ * accessed.
+ * </p>
+ * 
+ * <p>
+ * Packets are detached by a single thread at a time, normally the capture
+ * thread of the pcap handle the pool is set on, and may be released from any
+ * thread. The free list is lock free: released packets are pushed onto a
+ * shared stack, which the detaching thread takes over in its entirety whenever
+ * its own free list runs empty.
+ * </p>
+ * 
+ * <pre>
+ * try (var pool = new PacketPool()) {
+ * 	pcap.setPacketPool(pool);
+ * 	pcap.dispatch(0, packet -> {
+ * 		var pooled = pcap.detach(packet);
+ * 		if (pooled != null)
+ * 			queue.offer(pooled);
+ * 	});
+ * }
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketPool implements AutoCloseable {
+
+	/**
+	 * A packet detached into a pool slot.
+	 */
+	public final class PooledPacket implements AutoCloseable {
+
+		/** The slot. */
+		private final PacketSlot slot;
+
+		/** The reference count. */
+		private final AtomicInteger refCount = new AtomicInteger();
+
+		/** The next free packet, while this packet is on a free list. */
+		private PooledPacket next;
+
+		/**
+		 * Instantiates a new pooled packet.
+		 *
+		 * @param slot the slot
+		 */
+		private PooledPacket(PacketSlot slot) {
+			this.slot = slot;
+		}
+
+		/**
+		 * Releases one reference to this packet.
+		 *
+		 * @see java.lang.AutoCloseable#close()
+		 */
+		@Override
+		public void close() {
+			release();
+		}
+
+		/**
+		 * Gets the detached packet.
+		 *
+		 * @return the packet
+		 * @throws IllegalStateException if the packet has already been released
+		 */
+		public Packet packet() throws IllegalStateException {
+			if (refCount.get() <= 0)
+				throw new IllegalStateException("pooled packet already released");
+
+			return slot.packet();
+		}
+
+		/**
+		 * Gets the current reference count.
+		 *
+		 * @return the reference count
+		 */
+		public int refCount() {
+			return refCount.get();
+		}
+
+		/**
+		 * Releases one reference to this packet. When the last reference is released,
+		 * the packet is returned to its pool.
+		 *
+		 * @throws IllegalStateException if the packet has already been released
+		 */
+		public void release() throws IllegalStateException {
+			int count = refCount.decrementAndGet();
+			if (count == 0)
+				recycle(this);
+
+			else if (count < 0) {
+				refCount.incrementAndGet();
+				throw new IllegalStateException("pooled packet already released");
+			}
+		}
+
+		/**
+		 * Acquires an additional reference to this packet.
+		 *
+		 * @return this pooled packet
+		 * @throws IllegalStateException if the packet has already been released
+		 */
+		public PooledPacket retain() throws IllegalStateException {
+			refCount.getAndUpdate(c -> {
+				if (c <= 0)
+					throw new IllegalStateException("pooled packet already released");
+
+				return c + 1;
+			});
+
+			return this;
+		}
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.pool";
+
+	/** System property which defines the number of packets in a pool (default 1024). */
+	public static final String PROPERTY_PACKET_POOL_COUNT = PREFIX + ".count";
+
+	/** System property which defines the maximum packet size in a pool (default 10KB). */
+	public static final String PROPERTY_PACKET_POOL_PACKET_SIZE = PREFIX + ".packetSize";
+
+	/** The Constant DEFAULT_COUNT. */
+	private static final int DEFAULT_COUNT = intValue(PROPERTY_PACKET_POOL_COUNT, 1024, CountUnit.COUNT);
+
+	/** The Constant DEFAULT_PACKET_SIZE. */
+	private static final int DEFAULT_PACKET_SIZE = intValue(PROPERTY_PACKET_POOL_PACKET_SIZE, 10,
+			MemoryUnit.KILOBYTES);
+
+	/** Atomic access to the released stack and the counters. */
+	private static final VarHandle RELEASED, RELEASED_COUNT, DETACHED_COUNT;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			RELEASED = lookup.findVarHandle(PacketPool.class, "released", PooledPacket.class);
+			RELEASED_COUNT = lookup.findVarHandle(PacketPool.class, "releasedCount", long.class);
+			DETACHED_COUNT = lookup.findVarHandle(PacketPool.class, "detachedCount", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The off-heap memory of all the slots. */
+	private final Arena arena;
+
+	/** The free packets, owned by the detaching thread. */
+	private PooledPacket free;
+
+	/** The packets released by any thread, a stack pushed with compare-and-set. */
+	private volatile PooledPacket released;
+
+	/** Number of packets detached, written by the detaching thread only. */
+	private long detachedCount;
+
+	/** Number of packets released back to the pool, by any thread. */
+	private volatile long releasedCount;
+
+	/** The pool capacity. */
+	private final int capacity;
+
+	/** The packet size. */
+	private final int packetSize;
+
+	/** The descriptor type of the detached packets. */
+	private final PacketDescriptorType descriptorType;
+
+	/** Counts packets not detached because the pool was empty. */
+	private final AtomicLong exhaustedCount = new AtomicLong();
+
+	/** Counts packets not detached because they did not fit into a slot. */
+	private final AtomicLong oversizedCount = new AtomicLong();
+
+	/** The timestamp unit, assigned by the pcap handle when the pool is set on it. */
+	private volatile TimestampUnit timestampUnit = TimestampUnit.PCAP_MICRO;
+
+	/** The formatter, assigned by the pcap handle when the pool is set on it. */
+	private volatile PacketFormat formatter;
+
+	/**
+	 * Instantiates a new packet pool with default number of packets and packet
+	 * size, for type 2 descriptors.
+	 */
+	public PacketPool() {
+		this(PacketDescriptorType.TYPE2, DEFAULT_COUNT, DEFAULT_PACKET_SIZE);
+	}
+
+	/**
+	 * Instantiates a new packet pool.
+	 *
+	 * @param descriptorType the descriptor type of the detached packets
+	 * @param count          number of packets in the pool
+	 * @param packetSize     maximum packet size in bytes
+	 */
+	public PacketPool(PacketDescriptorType descriptorType, int count, int packetSize) {
+		Objects.requireNonNull(descriptorType, "descriptorType");
+		if (count <= 0)
+			throw new IllegalArgumentException("packet pool count must be positive");
+		if (packetSize <= 0)
+			throw new IllegalArgumentException("packet pool packet size must be positive");
+
+		this.capacity = count;
+		this.packetSize = packetSize;
+		this.descriptorType = descriptorType;
+		this.arena = Arena.ofShared();
+
+		long slotSize = (long) packetSize + PacketSlot.DESC_BUFFER_SIZE;
+		var storage = arena.allocate(slotSize * count);
+
+		for (int i = count - 1; i >= 0; i--) {
+			var pooled = new PooledPacket(new PacketSlot(storage.asSlice(slotSize * i, slotSize), descriptorType));
+			pooled.next = free;
+			free = pooled;
+		}
+	}
+
+	/**
+	 * Number of packets currently available for detaching.
+	 *
+	 * @return the available count
+	 */
+	public int available() {
+		long outstanding = (long) DETACHED_COUNT.getOpaque(this) - (long) RELEASED_COUNT.getOpaque(this);
+
+		return (int) Math.max(0, Math.min(capacity, capacity - outstanding));
+	}
+
+	/**
+	 * Closes the pool and frees all of its off-heap memory. All outstanding
+	 * pooled packets become invalid.
+	 *
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public void close() {
+		free = null;
+		RELEASED.setVolatile(this, (PooledPacket) null);
+		arena.close();
+	}
+
+	/**
+	 * Take a free packet. Called by the detaching thread only, which is the only
+	 * thread to ever pop packets, so the released stack can not suffer from ABA.
+	 *
+	 * @return the pooled packet or null if the pool is exhausted
+	 */
+	private PooledPacket poll() {
+		PooledPacket pooled = free;
+		if (pooled == null) {
+			pooled = (PooledPacket) RELEASED.getAndSet(this, (PooledPacket) null);
+			if (pooled == null)
+				return null;
+		}
+
+		free = pooled.next;
+		pooled.next = null;
+		DETACHED_COUNT.setOpaque(this, detachedCount + 1);
+
+		return pooled;
+	}
+
+	/**
+	 * Return a packet to the pool, from any thread.
+	 *
+	 * @param pooled the pooled packet, no longer referenced
+	 */
+	private void recycle(PooledPacket pooled) {
+		PooledPacket head;
+		do {
+			head = released;
+			pooled.next = head;
+		} while (!RELEASED.compareAndSet(this, head, pooled));
+
+		RELEASED_COUNT.getAndAdd(this, 1L);
+	}
+
+	/**
+	 * Detach a packet, by copying its data and descriptor into a pool slot.
+	 *
+	 * @param packet the packet to detach
+	 * @return the pooled packet with a reference count of 1, or null if the pool
+	 *         is exhausted or the packet is larger than the pool's packet size
+	 */
+	public PooledPacket detach(Packet packet) {
+		return detach(packet, descriptorType, timestampUnit, formatter);
+	}
+
+	/**
+	 * Detach a packet using specific handle attributes. The descriptor type is
+	 * that of the packet being detached, which differs from the pool's descriptor
+	 * type while the handle's load shedding degrades descriptors.
+	 *
+	 * @param packet         the packet to detach
+	 * @param descriptorType the descriptor type of the packet
+	 * @param timestampUnit  the timestamp unit
+	 * @param formatter      the formatter
+	 * @return the pooled packet or null
+	 */
+	PooledPacket detach(Packet packet, PacketDescriptorType descriptorType, TimestampUnit timestampUnit,
+			PacketFormat formatter) {
+		if (packet.captureLength() > packetSize) {
+			oversizedCount.incrementAndGet();
+			return null;
+		}
+
+		PooledPacket pooled = poll();
+		if (pooled == null) {
+			exhaustedCount.incrementAndGet();
+			return null;
+		}
+
+		pooled.slot.copyFrom(packet, descriptorType, timestampUnit, formatter);
+		pooled.refCount.set(1);
+
+		return pooled;
+	}
+
+	/**
+	 * Total number of packets in this pool.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the descriptor type of the detached packets.
+	 *
+	 * @return the descriptor type
+	 */
+	public PacketDescriptorType getDescriptorType() {
+		return descriptorType;
+	}
+
+	/**
+	 * Number of packets which could not be detached because the pool was
+	 * exhausted.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
+	/**
+	 * Number of packets which could not be detached because they were larger than
+	 * the pool's packet size.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getOversizedCount() {
+		return oversizedCount.get();
+	}
+
+	/**
+	 * Gets the maximum packet size.
+	 *
+	 * @return the packet size in bytes
+	 */
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	/**
+	 * Sets the packet formatter assigned to detached packets. Assigned by a pcap
+	 * handle when the pool is set on it.
+	 *
+	 * @param formatter the formatter, may be null
+	 * @return this packet pool
+	 */
+	public PacketPool setPacketFormatter(PacketFormat formatter) {
+		this.formatter = formatter;
+
+		return this;
+	}
+
+	/**
+	 * Sets the timestamp unit assigned to detached packets. Assigned by a pcap
+	 * handle when the pool is set on it.
+	 *
+	 * @param unit the unit
+	 * @return this packet pool
+	 */
+	public PacketPool setTimestampUnit(TimestampUnit unit) {
+		this.timestampUnit = Objects.requireNonNull(unit, "unit");
+
+		return this;
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PacketPool [capacity=%d, available=%d, packetSize=%d, exhausted=%d, oversized=%d]"
+				.formatted(capacity, available(), packetSize, getExhaustedCount(), getOversizedCount());
+	}
+}
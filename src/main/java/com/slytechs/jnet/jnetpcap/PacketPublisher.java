@@ -0,0 +1,652 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.foreign.Arena;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jnetpcap.constant.PcapCode;
+
+import com.slytechs.jnet.jnetpcap.internal.PacketReceiverConfig;
+import com.slytechs.jnet.jnetpcap.internal.PacketSlot;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.MemoryUnit;
+import com.slytechs.jnet.protocol.Packet;
+
+/**
+ * A reactive streams publisher of dissected packets. The publisher is built on
+ * top of the pcap handle's {@code dispatch} call and honours subscriber demand.
+ * A {@code request(n)} from the subscriber, results in at most {@code n}
+ * packets being dispatched from the pcap handle.
+ * 
+ * <p>
+ * Packets are copied before they are emitted into a ring of preallocated,
+ * off-heap packet slots. Slots are recycled in ring order and a packet which
+ * has not been emitted yet is never overwritten, it is either emitted or
+ * dropped according to the {@link OverflowPolicy}. An emitted packet remains
+ * valid until {@link #getBufferCount()} more packets have been copied into the
+ * ring after it, after which its slot is recycled. While packets are buffered
+ * awaiting demand, that may happen before the subscriber has received as many
+ * more packets. Subscribers which need to retain packets longer, must copy
+ * them.
+ * Copy-on-emit can be disabled, in which case packets are emitted directly from
+ * the native callback and are only valid during the {@code onNext} call.
+ * </p>
+ * 
+ * <p>
+ * Offline and dead handles are paused when there is no outstanding demand.
+ * Live captures can not be paused without the kernel dropping packets, so for
+ * live captures, an {@link OverflowPolicy} determines what happens to packets
+ * which arrive while the subscriber has no outstanding demand.
+ * </p>
+ * 
+ * <p>
+ * The publisher is a unicast publisher, it supports a single subscriber. All
+ * subscriber signals are delivered by the capture loop, which runs on the
+ * publisher's executor and never runs concurrently with itself. Without an
+ * explicit executor, the subscription starts a single daemon capture thread,
+ * which is reused by every run of the capture loop and stopped when the
+ * subscription terminates.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketPublisher implements Flow.Publisher<Packet> {
+
+	/**
+	 * What to do with packets which arrive while there is no outstanding demand
+	 * and the packet buffer ring is full.
+	 */
+	public enum OverflowPolicy {
+
+		/**
+		 * Stop dispatching packets until there is demand. For live captures, the
+		 * kernel will buffer and possibly drop packets.
+		 */
+		BLOCK,
+
+		/** Drop the newest packet, the one which just arrived. */
+		DROP_NEWEST,
+
+		/**
+		 * Drop the oldest buffered packet, which has not been emitted yet, to make
+		 * room for the new packet.
+		 */
+		DROP_OLDEST,
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.publisher";
+
+	/** System property which defines the number of packet buffers (default 256). */
+	public static final String PROPERTY_PACKET_PUBLISHER_BUFFER_COUNT = PREFIX + ".bufferCount";
+
+	/** System property which defines the size of each packet buffer (default 64KB). */
+	public static final String PROPERTY_PACKET_PUBLISHER_BUFFER_SIZE = PREFIX + ".bufferSize";
+
+	/** System property which defines the maximum dispatch batch size (default 64). */
+	public static final String PROPERTY_PACKET_PUBLISHER_BATCH_SIZE = PREFIX + ".batchSize";
+
+	/** Opaque access to the counters. */
+	private static final VarHandle EMITTED_COUNT, DROPPED_COUNT;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			EMITTED_COUNT = lookup.findVarHandle(PacketPublisher.class, "emittedCount", long.class);
+			DROPPED_COUNT = lookup.findVarHandle(PacketPublisher.class, "droppedCount", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The pcap handle. */
+	private final NetPcap pcap;
+
+	/** The packet receiver config of the pcap handle. */
+	private final PacketReceiverConfig config;
+
+	/** The buffer count. */
+	private int bufferCount = intValue(PROPERTY_PACKET_PUBLISHER_BUFFER_COUNT, 256, CountUnit.COUNT);
+
+	/** The buffer size. */
+	private int bufferSize = intValue(PROPERTY_PACKET_PUBLISHER_BUFFER_SIZE, 64, MemoryUnit.KILOBYTES);
+
+	/** The batch size. */
+	private int batchSize = intValue(PROPERTY_PACKET_PUBLISHER_BATCH_SIZE, 64, CountUnit.COUNT);
+
+	/** The overflow policy. */
+	private OverflowPolicy overflowPolicy;
+
+	/** The copy on emit. */
+	private boolean copyOnEmit = true;
+
+	/** The executor which runs the capture loop, null for a capture thread per subscription. */
+	private Executor executor;
+
+	/** The subscribed flag, we only allow a single subscriber. */
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	/** The emitted count, written by the capture loop only. */
+	private long emittedCount;
+
+	/** The dropped count, written by the capture loop only. */
+	private long droppedCount;
+
+	/**
+	 * Instantiates a new packet publisher.
+	 *
+	 * @param pcap   the pcap handle
+	 * @param config the packet receiver config of the pcap handle
+	 */
+	PacketPublisher(NetPcap pcap, PacketReceiverConfig config) {
+		this.pcap = Objects.requireNonNull(pcap, "pcap");
+		this.config = config;
+		this.overflowPolicy = pcap.getPcapType().isLive()
+				? OverflowPolicy.DROP_NEWEST
+				: OverflowPolicy.BLOCK;
+	}
+
+	/**
+	 * Enable or disable copy-on-emit. When disabled, packets are emitted directly
+	 * from the native callback, without a copy, when there is outstanding demand.
+	 * Such packets are only valid for the duration of the {@code onNext} call.
+	 *
+	 * @param enable if true, copy every packet before it is emitted
+	 * @return this publisher
+	 */
+	public PacketPublisher enableCopyOnEmit(boolean enable) {
+		this.copyOnEmit = enable;
+
+		return this;
+	}
+
+	/**
+	 * Gets the dispatch batch size.
+	 *
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Gets the number of packet buffers in the ring, the configured count rounded
+	 * up to the next power of 2.
+	 *
+	 * @return the buffer count
+	 */
+	public int getBufferCount() {
+		return ringLength(bufferCount);
+	}
+
+	/**
+	 * Ring length for a buffer count, rounded up to the next power of 2.
+	 *
+	 * @param bufferCount the buffer count
+	 * @return the ring length
+	 */
+	private static int ringLength(int bufferCount) {
+		int count = Integer.highestOneBit(bufferCount - 1) << 1;
+
+		return (count <= 0) ? 1 : count;
+	}
+
+	/**
+	 * Gets the size of each packet buffer.
+	 *
+	 * @return the buffer size in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Number of packets dropped by the publisher, due to the overflow policy or
+	 * because they did not fit into a packet buffer.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getDroppedCount() {
+		return (long) DROPPED_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Number of packets emitted to the subscriber.
+	 *
+	 * @return 64-bit counter
+	 */
+	public long getEmittedCount() {
+		return (long) EMITTED_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the overflow policy.
+	 *
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Checks if copy-on-emit is enabled.
+	 *
+	 * @return true, if copy-on-emit is enabled
+	 */
+	public boolean isCopyOnEmit() {
+		return copyOnEmit;
+	}
+
+	/**
+	 * New capture thread executor, the default executor of a subscription. A
+	 * single daemon thread runs every drain of the subscription.
+	 *
+	 * @return the executor service
+	 */
+	private ExecutorService newCaptureThread() {
+		return Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "%s-publisher".formatted(pcap.getName()));
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+
+	/**
+	 * Increment the dropped count.
+	 */
+	private void incDropped() {
+		DROPPED_COUNT.setOpaque(this, droppedCount + 1);
+	}
+
+	/**
+	 * Sets the maximum number of packets dispatched at a time.
+	 *
+	 * @param batchSize the batch size
+	 * @return this publisher
+	 */
+	public PacketPublisher setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batch size must be positive");
+
+		this.batchSize = batchSize;
+
+		return this;
+	}
+
+	/**
+	 * Sets the number of packet buffers in the ring. The value is rounded up to the
+	 * next power of 2.
+	 *
+	 * @param count the buffer count
+	 * @return this publisher
+	 */
+	public PacketPublisher setBufferCount(int count) {
+		if (count <= 0)
+			throw new IllegalArgumentException("buffer count must be positive");
+
+		this.bufferCount = count;
+
+		return this;
+	}
+
+	/**
+	 * Sets the size of each packet buffer. Packets larger than the buffer size are
+	 * dropped.
+	 *
+	 * @param size the size
+	 * @param unit the memory unit
+	 * @return this publisher
+	 */
+	public PacketPublisher setBufferSize(int size, MemoryUnit unit) {
+		this.bufferSize = unit.toBytesAsInt(size);
+
+		return this;
+	}
+
+	/**
+	 * Sets the executor which runs the capture loop. By default, every
+	 * subscription starts its own daemon capture thread, which runs all of the
+	 * subscription's capture loop runs and is stopped when the subscription
+	 * terminates.
+	 *
+	 * @param executor the executor
+	 * @return this publisher
+	 */
+	public PacketPublisher setExecutor(Executor executor) {
+		this.executor = Objects.requireNonNull(executor, "executor");
+
+		return this;
+	}
+
+	/**
+	 * Sets the overflow policy. The default is {@link OverflowPolicy#DROP_NEWEST}
+	 * for live captures and {@link OverflowPolicy#BLOCK} for all others.
+	 *
+	 * @param policy the policy
+	 * @return this publisher
+	 */
+	public PacketPublisher setOverflowPolicy(OverflowPolicy policy) {
+		this.overflowPolicy = Objects.requireNonNull(policy, "policy");
+
+		return this;
+	}
+
+	/**
+	 * Subscribe.
+	 *
+	 * @param subscriber the subscriber
+	 * @see java.util.concurrent.Flow.Publisher#subscribe(java.util.concurrent.Flow.Subscriber)
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super Packet> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber");
+
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {}
+
+				@Override
+				public void cancel() {}
+			});
+			subscriber.onError(new IllegalStateException("publisher supports only a single subscriber"));
+
+			return;
+		}
+
+		var subscription = new PacketSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * A subscription which drives the pcap dispatch loop on the executor's thread.
+	 * All subscriber signals are serialized on that thread.
+	 */
+	private class PacketSubscription implements Flow.Subscription {
+
+		/** The subscriber. */
+		private final Flow.Subscriber<? super Packet> subscriber;
+
+		/** Outstanding demand. */
+		private final AtomicLong demand = new AtomicLong();
+
+		/** Work in progress counter, serializes the drain loop. */
+		private final AtomicInteger wip = new AtomicInteger();
+
+		/** The ring of packet slots. */
+		private final PacketSlot[] ring;
+
+		/** The ring mask. */
+		private final int mask;
+
+		/** The overflow policy, fixed for the duration of the subscription. */
+		private final OverflowPolicy policy;
+
+		/** The copy on emit, fixed for the duration of the subscription. */
+		private final boolean copy;
+
+		/** The executor of the drain loop. */
+		private final Executor executor;
+
+		/** The capture thread owned by the subscription, null if an executor was set. */
+		private final ExecutorService captureThread;
+
+		/** Next ring position to emit. */
+		private long head;
+
+		/** Next ring position to fill. */
+		private long tail;
+
+		/** The cancelled. */
+		private volatile boolean cancelled;
+
+		/** Set while the capture loop is inside a pcap dispatch call. */
+		private volatile boolean dispatching;
+
+		/** Error signaled from outside the drain loop, by a bad request. */
+		private volatile Throwable pendingError;
+
+		/** Set when the source has no more packets. */
+		private boolean sourceDone;
+
+		/**
+		 * Instantiates a new packet subscription.
+		 *
+		 * @param subscriber the subscriber
+		 */
+		PacketSubscription(Flow.Subscriber<? super Packet> subscriber) {
+			this.subscriber = subscriber;
+			this.policy = overflowPolicy;
+			this.copy = copyOnEmit;
+			this.captureThread = (PacketPublisher.this.executor == null) ? newCaptureThread() : null;
+			this.executor = (captureThread != null) ? captureThread : PacketPublisher.this.executor;
+
+			int count = ringLength(bufferCount);
+
+			long slotSize = (long) bufferSize + PacketSlot.DESC_BUFFER_SIZE;
+			var storage = Arena.ofAuto().allocate(slotSize * count);
+
+			this.ring = new PacketSlot[count];
+			this.mask = count - 1;
+			for (int i = 0; i < count; i++)
+				ring[i] = new PacketSlot(storage.asSlice(slotSize * i, slotSize), config.descriptorType);
+		}
+
+		/**
+		 * Request.
+		 *
+		 * @param n the n
+		 * @see java.util.concurrent.Flow.Subscription#request(long)
+		 */
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				pendingError = new IllegalArgumentException("non-positive subscription request [%d]"
+						.formatted(n));
+			else
+				demand.getAndAccumulate(n, (d, r) -> (d + r < 0) ? Long.MAX_VALUE : d + r);
+
+			schedule();
+		}
+
+		/**
+		 * Cancel.
+		 *
+		 * @see java.util.concurrent.Flow.Subscription#cancel()
+		 */
+		@Override
+		public void cancel() {
+			cancelled = true;
+
+			if (dispatching)
+				pcap.breakloop();
+
+			schedule(); // Terminates the capture loop, if idle
+		}
+
+		/**
+		 * Schedule the drain loop, if not already running.
+		 */
+		private void schedule() {
+			if (wip.getAndIncrement() == 0)
+				executor.execute(this::drain);
+		}
+
+		/**
+		 * Drain loop, runs until there is no more demand and no more missed signals.
+		 */
+		private void drain() {
+			int missed = 1;
+
+			do {
+				if (!run()) {
+					terminate();
+					return; // Terminated, leave wip set so we never run again
+				}
+
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/**
+		 * Release the subscription's capture thread, if it owns one. The thread
+		 * exits once the current drain returns.
+		 */
+		private void terminate() {
+			if (captureThread != null)
+				captureThread.shutdown();
+		}
+
+		/**
+		 * Dispatch packets while there is demand or while the source can not be
+		 * paused.
+		 *
+		 * @return false if the subscription has terminated
+		 */
+		private boolean run() {
+			for (;;) {
+				if (cancelled)
+					return false;
+
+				Throwable error = pendingError;
+				if (error != null) {
+					cancelled = true;
+					subscriber.onError(error);
+					return false;
+				}
+
+				emitBuffered();
+
+				if (sourceDone) {
+					if (head != tail)
+						return true; // Wait for more demand
+
+					cancelled = true;
+					subscriber.onComplete();
+					return false;
+				}
+
+				long want = demand.get();
+				if (want == 0 && policy == OverflowPolicy.BLOCK)
+					return true;
+
+				int count = (policy == OverflowPolicy.BLOCK)
+						? (int) Math.min(want, batchSize)
+						: batchSize;
+
+				int rc;
+				dispatching = true;
+				try {
+					if (cancelled)
+						return false; // Cancelled before the dispatch, nothing to break
+
+					rc = pcap.dispatch(count, this::onPacket);
+				} catch (Throwable e) {
+					cancelled = true;
+					subscriber.onError(e);
+					return false;
+				} finally {
+					dispatching = false;
+				}
+
+				if (rc == 0 && pcap.getPcapType().isNotLive())
+					sourceDone = true; // End of savefile
+
+				else if (rc == PcapCode.PCAP_ERROR_BREAK)
+					sourceDone = true;
+
+				else if (rc < 0) {
+					cancelled = true;
+					subscriber.onError(new IllegalStateException("pcap dispatch error [%d]: %s"
+							.formatted(rc, pcap.geterr())));
+					return false;
+				}
+			}
+		}
+
+		/**
+		 * Emit buffered packets while there is demand.
+		 */
+		private void emitBuffered() {
+			while (head != tail && !cancelled && demand.get() > 0) {
+				emit(ring[(int) (head++ & mask)].packet());
+			}
+		}
+
+		/**
+		 * Emit a single packet and consume one unit of demand.
+		 *
+		 * @param packet the packet
+		 */
+		private void emit(Packet packet) {
+			demand.getAndUpdate(d -> (d == Long.MAX_VALUE) ? d : d - 1);
+			EMITTED_COUNT.setOpaque(PacketPublisher.this, emittedCount + 1);
+
+			subscriber.onNext(packet);
+		}
+
+		/**
+		 * Packet handler, called on the dispatch thread for every dispatched packet.
+		 *
+		 * @param packet the packet
+		 */
+		private void onPacket(Packet packet) {
+			if (cancelled)
+				return;
+
+			if (!copy && head == tail && demand.get() > 0) {
+				emit(packet);
+				return;
+			}
+
+			if (tail - head == ring.length) {
+				if (policy == OverflowPolicy.DROP_OLDEST) {
+					head++;
+					incDropped();
+				} else {
+					incDropped(); // DROP_NEWEST or an overrun due to injected packets
+					return;
+				}
+			}
+
+			if (!ring[(int) (tail & mask)].copyFrom(packet, config.packetDescriptorType, config.timestampUnit,
+					config.formatter)) {
+				incDropped(); // Does not fit into our buffer
+				return;
+			}
+
+			tail++;
+
+			emitBuffered();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PreRxProcessor;
+import com.slytechs.jnet.jnetpcap.internal.PacketSamplerPreProcessor;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.SystemProperties;
+
+/**
+ * Packet sampling pre-processor configuration. Packets which are not selected
+ * by the sampler are dropped right after the native upcall, before any packet
+ * dissection takes place. Three sampling modes are supported:
+ * 
+ * <dl>
+ * <dt>{@link Mode#COUNT}</dt>
+ * <dd>deterministic, every Nth packet is selected</dd>
+ * <dt>{@link Mode#PROBABILITY}</dt>
+ * <dd>random, each packet is selected with a probability p, 1/N by
+ * default</dd>
+ * <dt>{@link Mode#FLOW}</dt>
+ * <dd>flow consistent, a symmetric hash of the IP addresses and protocol is
+ * computed from the raw packet bytes, and either all or none of the packets
+ * between two hosts, for a protocol, in both directions, are selected. L4
+ * ports are not hashed, since only the first fragment of an IP datagram
+ * carries them, so all of the fragments of a datagram get the same decision.
+ * Roughly 1 out of N flows are selected. Non-IP packets, and packets of data
+ * link types the raw scanner does not support, are hashed over their first 64
+ * bytes instead.</dd>
+ * </dl>
+ * 
+ * <p>
+ * The effective sampling rate of a handle, which is the product of the rates
+ * of all of its installed samplers, or 1/p for probability samplers, is
+ * available from
+ * {@link NetPcap#getSamplingRate()}, and can be used to scale downstream
+ * packet and byte counters.
+ * </p>
+ * 
+ * <pre>
+ * pcap.install(new PacketSampler()
+ * 		.setMode(PacketSampler.Mode.FLOW)
+ * 		.setRate(100));
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketSampler extends PcapProConfigurator<PacketSampler> implements PreRxProcessor {
+
+	/**
+	 * Packet sampling modes.
+	 */
+	public enum Mode {
+
+		/** Deterministic 1-in-N packet sampling. */
+		COUNT,
+
+		/** Random packet sampling with a probability of 1/N. */
+		PROBABILITY,
+
+		/** Flow consistent sampling of 1-in-N flows. */
+		FLOW,
+	}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.sampler";
+
+	/** The Constant PROPERTY_PACKET_SAMPLER_ENABLE. */
+	public static final String PROPERTY_PACKET_SAMPLER_ENABLE = PREFIX + ".enable";
+
+	/** The Constant PROPERTY_PACKET_SAMPLER_MODE. */
+	public static final String PROPERTY_PACKET_SAMPLER_MODE = PREFIX + ".mode";
+
+	/** The Constant PROPERTY_PACKET_SAMPLER_RATE. */
+	public static final String PROPERTY_PACKET_SAMPLER_RATE = PREFIX + ".rate";
+
+	/** The Constant PROPERTY_PACKET_SAMPLER_SEED. */
+	public static final String PROPERTY_PACKET_SAMPLER_SEED = PREFIX + ".seed";
+
+	/** The mode. */
+	private Mode mode = Mode.valueOf(System.getProperty(PROPERTY_PACKET_SAMPLER_MODE, Mode.COUNT.name()));
+
+	/** The rate. */
+	private int rate = SystemProperties.intValue(PROPERTY_PACKET_SAMPLER_RATE, 10, CountUnit.COUNT);
+
+	/** The selection probability, in probability mode. */
+	private double probability = 1.0 / rate;
+
+	/** The seed. */
+	private long seed = SystemProperties.longValue(PROPERTY_PACKET_SAMPLER_SEED, 0);
+
+	/** Opaque access to the counters. */
+	private static final VarHandle SAMPLED_IN_COUNT, SAMPLED_OUT_COUNT;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			SAMPLED_IN_COUNT = lookup.findVarHandle(PacketSampler.class, "sampledInCount", long.class);
+			SAMPLED_OUT_COUNT = lookup.findVarHandle(PacketSampler.class, "sampledOutCount", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The sampled in count, written by the capture thread only. */
+	private long sampledInCount;
+
+	/** The sampled out count, written by the capture thread only. */
+	private long sampledOutCount;
+
+	/**
+	 * Instantiates a new packet sampler.
+	 */
+	public PacketSampler() {
+		super(PREFIX, PacketSamplerPreProcessor::new);
+	}
+
+	/**
+	 * Gets the mode.
+	 *
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Gets the probability a packet is selected, in {@link Mode#PROBABILITY} mode.
+	 *
+	 * @return the probability
+	 */
+	public double getProbability() {
+		return probability;
+	}
+
+	/**
+	 * Gets the sampling rate N, where 1 out of N packets or flows are selected.
+	 *
+	 * @return the rate
+	 */
+	public int getRate() {
+		return rate;
+	}
+
+	/**
+	 * Gets the number of packets selected by the sampler.
+	 *
+	 * @return the sampled in count
+	 */
+	public long getSampledInCount() {
+		return (long) SAMPLED_IN_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the number of packets dropped by the sampler.
+	 *
+	 * @return the sampled out count
+	 */
+	public long getSampledOutCount() {
+		return (long) SAMPLED_OUT_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the seed used by random and flow sampling modes.
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Inc sampled in.
+	 *
+	 * @param delta the delta
+	 */
+	public void incSampledIn(int delta) {
+		SAMPLED_IN_COUNT.setOpaque(this, sampledInCount + delta);
+	}
+
+	/**
+	 * Inc sampled out.
+	 *
+	 * @param delta the delta
+	 */
+	public void incSampledOut(int delta) {
+		SAMPLED_OUT_COUNT.setOpaque(this, sampledOutCount + delta);
+	}
+
+	/**
+	 * Sets the mode.
+	 *
+	 * @param mode the mode
+	 * @return the packet sampler
+	 */
+	public PacketSampler setMode(Mode mode) {
+		this.mode = Objects.requireNonNull(mode, "mode");
+
+		return this;
+	}
+
+	/**
+	 * Sets the probability a packet is selected, in {@link Mode#PROBABILITY}
+	 * mode. The probability is used as is, it is not rounded to a 1/N rate.
+	 *
+	 * @param p the probability, between 0 (exclusive) and 1 (inclusive)
+	 * @return the packet sampler
+	 */
+	public PacketSampler setProbability(double p) {
+		if (!(p > 0 && p <= 1))
+			throw new IllegalArgumentException("probability out of range (0, 1] [%s]".formatted(p));
+
+		this.mode = Mode.PROBABILITY;
+		this.rate = (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.round(1 / p)));
+		this.probability = p;
+
+		return this;
+	}
+
+	/**
+	 * Sets the sampling rate N, where 1 out of N packets or flows are selected.
+	 * Also sets the probability to 1/N.
+	 *
+	 * @param rate the rate, 1 selects every packet
+	 * @return the packet sampler
+	 */
+	public PacketSampler setRate(int rate) {
+		if (rate < 1)
+			throw new IllegalArgumentException("rate must be 1 or greater [%d]".formatted(rate));
+
+		this.rate = rate;
+		this.probability = 1.0 / rate;
+
+		return this;
+	}
+
+	/**
+	 * Sets the seed used by random and flow sampling modes. Samplers on different
+	 * capture points using the same seed and rate, select the same flows.
+	 *
+	 * @param seed the seed
+	 * @return the packet sampler
+	 */
+	public PacketSampler setSeed(long seed) {
+		this.seed = seed;
+
+		return this;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import com.slytechs.jnet.jnetpcap.PcapProConfigurator.PreRxProcessor;
+import com.slytechs.jnet.jnetpcap.internal.PacketTruncatorPreProcessor;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.jnetruntime.util.SystemProperties;
+
+/**
+ * A packet truncating pre-processor. The truncator reduces the effective
+ * capture length (caplen) of each packet, either to a fixed snaplen or to the
+ * end of the packet's protocol headers, as located by a cheap scan of the raw
+ * packet. All downstream stages, such as packet dissection, IP fragment
+ * reassembly and packet copies, only touch the truncated portion of the packet.
+ * <p>
+ * The original pcap header is never modified. The truncated caplen is written
+ * to a private copy of the pcap header, which is passed downstream in its
+ * place. The wire length (wirelen) is unchanged.
+ * </p>
+ * 
+ * <pre>
+ * pcap.install(new PacketTruncator()
+ * 		.setTruncateToHeaders(true)
+ * 		.setLength(128));
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketTruncator extends PcapProConfigurator<PacketTruncator> implements PreRxProcessor {
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "packet.truncator";
+
+	/** The Constant PROPERTY_PACKET_TRUNCATOR_ENABLE. */
+	public static final String PROPERTY_PACKET_TRUNCATOR_ENABLE = PREFIX + ".enable";
+
+	/** The Constant PROPERTY_PACKET_TRUNCATOR_LENGTH. */
+	public static final String PROPERTY_PACKET_TRUNCATOR_LENGTH = PREFIX + ".length";
+
+	/** The Constant PROPERTY_PACKET_TRUNCATOR_HEADERS. */
+	public static final String PROPERTY_PACKET_TRUNCATOR_HEADERS = PREFIX + ".headers";
+
+	/** The length. */
+	private int length = SystemProperties.intValue(PROPERTY_PACKET_TRUNCATOR_LENGTH, 128, CountUnit.COUNT);
+
+	/** The truncate to headers. */
+	private boolean truncateToHeaders = SystemProperties.boolValue(PROPERTY_PACKET_TRUNCATOR_HEADERS, false);
+
+	/** The truncated count. */
+	private long truncatedCount;
+
+	/** The truncated bytes. */
+	private long truncatedBytes;
+
+	/**
+	 * Instantiates a new packet truncator.
+	 */
+	public PacketTruncator() {
+		super(PREFIX, PacketTruncatorPreProcessor::new);
+	}
+
+	/**
+	 * Gets the maximum caplen of truncated packets.
+	 *
+	 * @return the length in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the total number of packet bytes removed by truncation.
+	 *
+	 * @return the truncated bytes
+	 */
+	public long getTruncatedBytes() {
+		return truncatedBytes;
+	}
+
+	/**
+	 * Gets the number of packets which were truncated.
+	 *
+	 * @return the truncated count
+	 */
+	public long getTruncatedCount() {
+		return truncatedCount;
+	}
+
+	/**
+	 * Inc truncated.
+	 *
+	 * @param bytes the number of bytes removed
+	 */
+	public void incTruncated(int bytes) {
+		truncatedCount++;
+		truncatedBytes += bytes;
+	}
+
+	/**
+	 * Checks if packets are truncated to the end of their protocol headers.
+	 *
+	 * @return true, if truncating to headers
+	 */
+	public boolean isTruncateToHeaders() {
+		return truncateToHeaders;
+	}
+
+	/**
+	 * Sets the maximum caplen of truncated packets. When truncating to headers,
+	 * this length is also the upper limit and the length used for packets whose
+	 * headers could not be located.
+	 *
+	 * @param length the length in bytes
+	 * @return the packet truncator
+	 */
+	public PacketTruncator setLength(int length) {
+		if (length < 1)
+			throw new IllegalArgumentException("length must be 1 or greater [%d]".formatted(length));
+
+		this.length = length;
+
+		return this;
+	}
+
+	/**
+	 * Truncate packets to the end of their L4 header, or the end of the IP headers
+	 * for non-first IP fragments and unknown L4 protocols.
+	 *
+	 * @param truncateToHeaders if true, truncate to headers
+	 * @return the packet truncator
+	 */
+	public PacketTruncator setTruncateToHeaders(boolean truncateToHeaders) {
+		this.truncateToHeaders = truncateToHeaders;
+
+		return this;
+	}
+}
@@ -80,6 +80,38 @@ public interface PcapProHandler extends PcapHandler {
 		void handleIpf(IpfFragment frag, ByteBuffer carrier, ByteBuffer ipPayload);
 	}
 
+	/**
+	 * A handler which receives reassembled IP datagrams, in scatter-gather form.
+	 */
+	@FunctionalInterface
+	public interface IpfDatagramHandler {
+
+		/**
+		 * Handle a reassembled datagram. The datagram and its segments are only valid
+		 * for the duration of the call.
+		 *
+		 * @param datagram the datagram
+		 */
+		void handleDatagram(IpfDatagram datagram);
+	}
+
+	/**
+	 * A handler which receives IP fragment tracking results, in tracking-only
+	 * mode.
+	 */
+	@FunctionalInterface
+	public interface IpfTrackingHandler {
+
+		/**
+		 * Handle the tracking result of a datagram. The descriptor buffer is laid
+		 * out according to {@code IpfTrackingLayout} and is only valid for the
+		 * duration of the call.
+		 *
+		 * @param descriptor the tracking descriptor
+		 */
+		void handleTracking(ByteBuffer descriptor);
+	}
+
 	/**
 	 * A dispatcher which dispatches high level packets with protocol header
 	 * information.
@@ -0,0 +1,201 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.slytechs.jnet.jnetpcap.internal.JmxMetricsExporter;
+import com.slytechs.jnet.jnetpcap.internal.LatencyRecorder;
+import com.slytechs.jnet.jnetruntime.util.CountUnit;
+import com.slytechs.jnet.protocol.Registration;
+
+/**
+ * Per stage processing latencies of a pcap-pro handle. Latency tracking is
+ * opt-in, enabled using {@link NetPcap#enableLatencyTracking(boolean)} before
+ * the handle is activated. Packets are sampled, so that only 1 out of every
+ * {@link #getSampleRate()} packets is timed through the processing chain.
+ * Only packets received with dispatch or loop are timed, packets read with
+ * next or nextEx bypass the pre-processor chain and are not.
+ * 
+ * <pre>
+ * pcap.enableLatencyTracking(true);
+ * pcap.activate();
+ * 
+ * pcap.loop(100_000, handler);
+ * 
+ * pcap.getProcessingLatency()
+ * 		.map(l -> l.snapshot(ProcessingStage.DISSECTION))
+ * 		.ifPresent(System.out::println);
+ * </pre>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class ProcessingLatency implements ProcessingLatencyMXBean {
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "processing.latency";
+
+	/** System property which defines the default latency sample rate (default 1024). */
+	public static final String PROPERTY_PROCESSING_LATENCY_SAMPLE_RATE = PREFIX + ".sampleRate";
+
+	/** The Constant DEFAULT_SAMPLE_RATE. */
+	static final int DEFAULT_SAMPLE_RATE = intValue(PROPERTY_PROCESSING_LATENCY_SAMPLE_RATE, 1024,
+			CountUnit.COUNT);
+
+	/** The recorder. */
+	private final LatencyRecorder recorder;
+
+	/** The pcap handle name. */
+	private final String name;
+
+	/**
+	 * Instantiates a new processing latency.
+	 *
+	 * @param name     the pcap handle name
+	 * @param recorder the recorder
+	 */
+	ProcessingLatency(String name, LatencyRecorder recorder) {
+		this.name = name;
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Gets the dissection latency.
+	 *
+	 * @return the dissection latency
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#getDissectionLatency()
+	 */
+	@Override
+	public HistogramSnapshot getDissectionLatency() {
+		return snapshot(ProcessingStage.DISSECTION);
+	}
+
+	/**
+	 * Gets the ipf reassembly latency.
+	 *
+	 * @return the ipf reassembly latency
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#getIpfReassemblyLatency()
+	 */
+	@Override
+	public HistogramSnapshot getIpfReassemblyLatency() {
+		return snapshot(ProcessingStage.IPF_REASSEMBLY);
+	}
+
+	/**
+	 * Gets the pre processors latency.
+	 *
+	 * @return the pre processors latency
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#getPreProcessorsLatency()
+	 */
+	@Override
+	public HistogramSnapshot getPreProcessorsLatency() {
+		return snapshot(ProcessingStage.PRE_PROCESSORS);
+	}
+
+	/**
+	 * Gets the sample rate.
+	 *
+	 * @return the sample rate
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#getSampleRate()
+	 */
+	@Override
+	public int getSampleRate() {
+		return recorder.sampleRate();
+	}
+
+	/**
+	 * Gets the user handler latency.
+	 *
+	 * @return the user handler latency
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#getUserHandlerLatency()
+	 */
+	@Override
+	public HistogramSnapshot getUserHandlerLatency() {
+		return snapshot(ProcessingStage.USER_HANDLER);
+	}
+
+	/**
+	 * Register this bean with the platform MBean server, under the name
+	 * {@code com.slytechs.jnet.jnetpcap:type=ProcessingLatency,name=<pcap name>}.
+	 *
+	 * @return the registration which unregisters the bean
+	 * @throws IllegalStateException if the bean could not be registered
+	 */
+	public Registration registerMXBean() throws IllegalStateException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			ObjectName objectName = new ObjectName(JmxMetricsExporter.JMX_DOMAIN
+					+ ":type=ProcessingLatency,name=" + ObjectName.quote(name));
+			server.registerMBean(this, objectName);
+
+			return () -> {
+				try {
+					server.unregisterMBean(objectName);
+				} catch (JMException e) {}
+			};
+
+		} catch (JMException e) {
+			throw new IllegalStateException("unable to register processing latency MXBean for '%s'"
+					.formatted(name), e);
+		}
+	}
+
+	/**
+	 * Reset all of the histograms. The reset is performed by the capture thread
+	 * on the next sampled packet.
+	 *
+	 * @see com.slytechs.jnet.jnetpcap.ProcessingLatencyMXBean#reset()
+	 */
+	@Override
+	public void reset() {
+		recorder.requestReset();
+	}
+
+	/**
+	 * Take a snapshot of a stage's latency histogram, in nanoseconds.
+	 *
+	 * @param stage the stage
+	 * @return the histogram snapshot
+	 */
+	public HistogramSnapshot snapshot(ProcessingStage stage) {
+		return new HistogramSnapshot(recorder.histogram(stage));
+	}
+
+	/**
+	 * To string.
+	 *
+	 * @return the string
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("ProcessingLatency [" + name + ", 1/" + getSampleRate() + "]");
+		for (ProcessingStage stage : ProcessingStage.values())
+			b.append("\n  ").append(stage).append(": ").append(snapshot(stage));
+
+		return b.toString();
+	}
+}
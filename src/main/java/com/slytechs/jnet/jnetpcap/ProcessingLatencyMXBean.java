@@ -0,0 +1,68 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * JMX management interface for per stage packet processing latencies. All
+ * latencies are in nanoseconds.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public interface ProcessingLatencyMXBean {
+
+	/**
+	 * Dissection latency.
+	 *
+	 * @return the histogram snapshot
+	 */
+	HistogramSnapshot getDissectionLatency();
+
+	/**
+	 * IP fragment reassembly latency.
+	 *
+	 * @return the histogram snapshot
+	 */
+	HistogramSnapshot getIpfReassemblyLatency();
+
+	/**
+	 * Pre-processor chain latency.
+	 *
+	 * @return the histogram snapshot
+	 */
+	HistogramSnapshot getPreProcessorsLatency();
+
+	/**
+	 * Sample rate, 1 out of every N packets is timed.
+	 *
+	 * @return the sample rate
+	 */
+	int getSampleRate();
+
+	/**
+	 * User packet handler latency.
+	 *
+	 * @return the histogram snapshot
+	 */
+	HistogramSnapshot getUserHandlerLatency();
+
+	/**
+	 * Reset all of the latency histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,46 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap;
+
+/**
+ * Stages of the pcap-pro packet processing chain, for which processing latency
+ * can be recorded.
+ * 
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ * @see ProcessingLatency
+ */
+public enum ProcessingStage {
+
+	/**
+	 * All of the installed pre-processors, from the time libpcap delivers a packet
+	 * until the packet reaches the packet dissector.
+	 */
+	PRE_PROCESSORS,
+
+	/** Packet dissection and descriptor binding. */
+	DISSECTION,
+
+	/** IP fragment tracking and reassembly. */
+	IPF_REASSEMBLY,
+
+	/** The user packet handler. */
+	USER_HANDLER,
+
+	;
+}
@@ -99,9 +99,19 @@ public class AbstractPcapDispatcher implements PcapDispatcher {
 	 */
 	@Override
 	public void close() {
+		release();
 		getPcapDispatcher().close();
 	}
 
+	/**
+	 * Release the resources owned by this dispatcher only, without closing the
+	 * upstream dispatchers it delegates to. Called by {@link #close()}, and when
+	 * a processor chain is retired while the shared root dispatcher stays open.
+	 * Implementations must allow being called more than once.
+	 */
+	public void release() {
+	}
+
 	/**
 	 * Dispatch native.
 	 *
@@ -0,0 +1,115 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Fast, non-cryptographic multiply-xorshift hashing of raw packet bytes. The
+ * hash reads 8 bytes at a time and is intended for hash tables, flow sampling
+ * and duplicate detection, where CRC quality is not required.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class FastHash {
+
+	/** 64-bit golden ratio multiplier. */
+	private static final long K0 = 0x9E3779B97F4A7C15L;
+
+	/** Second multiplier. */
+	private static final long K1 = 0xC2B2AE3D27D4EB4FL;
+
+	/** Unaligned long layout, native byte order, byte order does not matter. */
+	private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+
+	/** Unaligned int layout. */
+	private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+
+	/**
+	 * Hash a range of bytes.
+	 *
+	 * @param seg    the segment
+	 * @param offset the offset
+	 * @param length the length
+	 * @param seed   the seed
+	 * @return the 64-bit hash
+	 */
+	public static long hash(MemorySegment seg, long offset, int length, long seed) {
+		long h = seed ^ (length * K0);
+		long end = offset + length;
+
+		for (; offset + 8 <= end; offset += 8)
+			h = (h ^ mix(seg.get(LONG, offset))) * K0;
+
+		if (offset + 4 <= end) {
+			h = (h ^ mix(seg.get(INT, offset) & 0xFFFF_FFFFL)) * K0;
+			offset += 4;
+		}
+
+		for (; offset < end; offset++)
+			h = (h ^ (seg.get(ValueLayout.JAVA_BYTE, offset) & 0xFFL)) * K1;
+
+		return mix(h);
+	}
+
+	/**
+	 * Final avalanche mix of a 64-bit value (splitmix64 finalizer).
+	 *
+	 * @param x the value
+	 * @return the mixed value
+	 */
+	public static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+
+		return x ^ (x >>> 31);
+	}
+
+	/**
+	 * A single multiply-xorshift step, folding a 64-bit value into a running hash.
+	 * The running hash should be finalized with {@link #mix(long)}.
+	 *
+	 * @param h the running hash
+	 * @param v the value
+	 * @return the new running hash
+	 */
+	public static long step(long h, long v) {
+		h = (h ^ v) * K0;
+
+		return h ^ (h >>> 32);
+	}
+
+	/**
+	 * Combine two hash values, order dependent.
+	 *
+	 * @param h1 the h 1
+	 * @param h2 the h 2
+	 * @return the combined hash
+	 */
+	public static long combine(long h1, long h2) {
+		return mix(h1 * K1 + h2);
+	}
+
+	/**
+	 * Instantiates a new fast hash.
+	 */
+	private FastHash() {
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Template for fused pre-processor chains. The class bytes are defined as a new
+ * hidden class for every fused chain, with the chain's method handle as its
+ * class data. The handle is held in a static final field, which the JIT treats
+ * as a constant, so that all of the stages are inlined into a single compiled
+ * callback. This class is never instantiated directly.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class FusedChainTemplate implements FusedPreProcessor.Chain {
+
+	/** The fused chain, from the hidden class data. */
+	private static final MethodHandle CHAIN = classData();
+
+	/**
+	 * Load the chain from the hidden class data.
+	 *
+	 * @return the chain, or null if not a hidden class
+	 */
+	private static MethodHandle classData() {
+		try {
+			return MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, MethodHandle.class);
+		} catch (IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.internal.FusedPreProcessor.Chain#apply(java.lang.foreign.MemorySegment,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public MemorySegment apply(MemorySegment header, MemorySegment packet) {
+		try {
+			return (MemorySegment) CHAIN.invokeExact(header, packet);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
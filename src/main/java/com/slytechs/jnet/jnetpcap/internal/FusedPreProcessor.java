@@ -0,0 +1,280 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import static java.lang.invoke.MethodType.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+
+/**
+ * Pre-processor which fuses consecutive {@link PreProcessorStage}s into a
+ * single callback. The stages are combined into one method handle, which is
+ * installed as a constant in its own hidden class when the first packet is
+ * dispatched. The JIT is then able to inline across all of the stages, instead
+ * of calling through a chain of nested callbacks, one per pre-processor.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class FusedPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher {
+
+	/**
+	 * A compiled chain of stages.
+	 */
+	public interface Chain {
+
+		/**
+		 * Apply all of the stages to a packet, in order.
+		 *
+		 * @param header the pcap header
+		 * @param packet the packet data
+		 * @return the pcap header to pass downstream, or null if the packet is
+		 *         dropped
+		 */
+		MemorySegment apply(MemorySegment header, MemorySegment packet);
+	}
+
+	/** The logger. */
+	private static final Logger LOGGER = System.getLogger(FusedPreProcessor.class.getName());
+
+	/** Set once the fallback to a non-inlined chain has been logged. */
+	private static final AtomicBoolean FALLBACK_LOGGED = new AtomicBoolean();
+
+	/** The chain type, (header, packet) to header. */
+	private static final MethodType CHAIN_TYPE = methodType(MemorySegment.class, MemorySegment.class,
+			MemorySegment.class);
+
+	/** The PreProcessorStage.process handle. */
+	private static final MethodHandle PROCESS;
+
+	/** The null header test. */
+	private static final MethodHandle IS_NULL;
+
+	/** Returns a null header, for packets dropped by an earlier stage. */
+	private static final MethodHandle DROPPED;
+
+	static {
+		try {
+			Lookup lookup = MethodHandles.lookup();
+
+			PROCESS = lookup.findVirtual(PreProcessorStage.class, "process", CHAIN_TYPE);
+			IS_NULL = lookup.findStatic(Objects.class, "isNull", methodType(boolean.class, Object.class))
+					.asType(methodType(boolean.class, MemorySegment.class));
+			DROPPED = MethodHandles.empty(CHAIN_TYPE);
+
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Fuse stages into a single method handle of the chain type.
+	 *
+	 * @param stages the stages
+	 * @return the fused method handle
+	 */
+	static MethodHandle fuse(List<PreProcessorStage> stages) {
+		/* Start with (header, packet) -> header */
+		MethodHandle chain = MethodHandles.dropArguments(MethodHandles.identity(MemorySegment.class), 1,
+				MemorySegment.class);
+
+		for (PreProcessorStage stage : stages) {
+			MethodHandle next = MethodHandles.guardWithTest(IS_NULL, DROPPED, PROCESS.bindTo(stage));
+
+			/* next(chain(header, packet), packet) */
+			chain = MethodHandles.permuteArguments(
+					MethodHandles.collectArguments(next, 0, chain), CHAIN_TYPE, 0, 1, 1);
+		}
+
+		return chain;
+	}
+
+	/**
+	 * Compile a fused method handle into a chain. A hidden class is defined from
+	 * the {@link FusedChainTemplate} bytes, with the handle as its class data. If
+	 * the hidden class can not be defined, the handle is invoked directly, which
+	 * is still correct but is not inlined as well by the JIT. The fallback is
+	 * logged once.
+	 *
+	 * @param fused the fused method handle
+	 * @return the compiled chain
+	 */
+	static Chain compile(MethodHandle fused) {
+		try (InputStream in = FusedChainTemplate.class.getResourceAsStream("FusedChainTemplate.class")) {
+			if (in == null) {
+				logFallback("fused chain template class not found", null);
+
+			} else {
+				Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(in.readAllBytes(), fused, true);
+
+				return (Chain) lookup.findConstructor(lookup.lookupClass(), methodType(void.class)).invoke();
+			}
+		} catch (IOException | ReflectiveOperationException | LinkageError e) {
+			logFallback("unable to define the fused chain hidden class", e);
+
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+
+		return (header, packet) -> {
+			try {
+				return (MemorySegment) fused.invokeExact(header, packet);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	/**
+	 * Log, once, that fused chains are invoked through their method handle,
+	 * without the hidden class which lets the JIT inline across the stages.
+	 *
+	 * @param reason the reason the hidden class is not used
+	 * @param cause  the cause, or null
+	 */
+	private static void logFallback(String reason, Throwable cause) {
+		if (!FALLBACK_LOGGED.compareAndSet(false, true))
+			return;
+
+		String msg = reason + ", pre-processor stages are fused without inlining";
+		if (cause == null)
+			LOGGER.log(Level.WARNING, msg);
+		else
+			LOGGER.log(Level.WARNING, msg, cause);
+	}
+
+	/** The stages, in order. */
+	private final List<PreProcessorStage> stages = new ArrayList<>();
+
+	/** The chain, compiled on first dispatch. */
+	private Chain chain;
+
+	/**
+	 * Instantiates a new fused pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher, upstream of all the stages
+	 */
+	public FusedPreProcessor(PcapDispatcher pcapDispatcher) {
+		super(pcapDispatcher);
+	}
+
+	/**
+	 * Append a stage to the end of the chain. Stages can only be added before the
+	 * first packet is dispatched.
+	 *
+	 * @param stage the stage
+	 * @return this fused pre processor
+	 * @throws IllegalStateException if the chain is already compiled
+	 */
+	public FusedPreProcessor add(PreProcessorStage stage) throws IllegalStateException {
+		if (chain != null)
+			throw new IllegalStateException("fused chain already compiled");
+
+		stages.add(Objects.requireNonNull(stage, "stage"));
+
+		return this;
+	}
+
+	/**
+	 * Release all of the fused stages, which are owned by this pre-processor.
+	 *
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#release()
+	 */
+	@Override
+	public void release() {
+		for (PreProcessorStage stage : stages)
+			stage.release();
+	}
+
+	/**
+	 * Gets the compiled chain, compiling it if needed.
+	 *
+	 * @return the chain
+	 */
+	private Chain chain() {
+		if (chain == null)
+			chain = compile(fuse(stages));
+
+		return chain;
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		final Chain chain = chain();
+
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			MemorySegment hdr = chain.apply(header, packet);
+			if (hdr != null)
+				handler.nativeCallback(u, hdr, packet);
+
+		}, user);
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		final Chain chain = chain();
+
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			MemorySegment hdr = chain.apply(header, packet);
+			if (hdr != null)
+				handler.nativeCallback(u, hdr, packet);
+
+		}, user);
+	}
+}
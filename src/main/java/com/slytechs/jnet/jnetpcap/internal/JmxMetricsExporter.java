@@ -0,0 +1,76 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.slytechs.jnet.jnetpcap.MetricsExporter;
+import com.slytechs.jnet.jnetpcap.NetPcapMXBean;
+import com.slytechs.jnet.protocol.Registration;
+
+/**
+ * Exports pcap handle metrics as an MXBean registered with the platform MBean
+ * server.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class JmxMetricsExporter implements MetricsExporter {
+
+	/** The JMX domain used for all pcap-pro beans. */
+	public static final String JMX_DOMAIN = "com.slytechs.jnet.jnetpcap";
+
+	/**
+	 * Instantiates a new jmx metrics exporter.
+	 */
+	public JmxMetricsExporter() {
+	}
+
+	/**
+	 * Export.
+	 *
+	 * @param metrics the metrics
+	 * @return the registration
+	 * @throws IllegalStateException if the bean could not be registered
+	 * @see com.slytechs.jnet.jnetpcap.MetricsExporter#export(com.slytechs.jnet.jnetpcap.NetPcapMXBean)
+	 */
+	@Override
+	public Registration export(NetPcapMXBean metrics) throws IllegalStateException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN
+					+ ":type=NetPcap,name=" + ObjectName.quote(metrics.getName()));
+			server.registerMBean(metrics, objectName);
+
+			return () -> {
+				try {
+					server.unregisterMBean(objectName);
+				} catch (JMException e) {}
+			};
+
+		} catch (JMException e) {
+			throw new IllegalStateException("unable to register MXBean for pcap handle '%s'"
+					.formatted(metrics.getName()), e);
+		}
+	}
+}
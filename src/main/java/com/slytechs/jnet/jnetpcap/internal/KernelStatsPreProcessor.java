@@ -0,0 +1,92 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+
+/**
+ * A pass-through pre-processor installed closest to libpcap on live handles,
+ * which samples the kernel statistics after a packet has been processed, once
+ * the sample interval has elapsed. A long running {@code loop} never returns
+ * to the handle between dispatch batches, so without it the kernel statistics
+ * would only be sampled when the loop starts.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class KernelStatsPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher {
+
+	/** The sampler. */
+	private final KernelStatsSampler sampler;
+
+	/**
+	 * Instantiates a new kernel stats pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher
+	 * @param sampler        the sampler
+	 */
+	public KernelStatsPreProcessor(PcapDispatcher pcapDispatcher, KernelStatsSampler sampler) {
+		super(pcapDispatcher);
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			handler.nativeCallback(u, header, packet);
+			sampler.sampleIfDue();
+
+		}, user);
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			handler.nativeCallback(u, header, packet);
+			sampler.sampleIfDue();
+
+		}, user);
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import static com.slytechs.jnet.jnetruntime.util.SystemProperties.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.PcapException;
+import org.jnetpcap.PcapStat;
+
+import com.slytechs.jnet.jnetpcap.NetPcap;
+
+/**
+ * Samples the libpcap kernel statistics of a live pcap handle on the capture
+ * thread. libpcap handles are not thread safe, so {@code pcap_stats} must not
+ * be called concurrently with {@code pcap_dispatch} or {@code pcap_loop}. The
+ * capture thread calls {@link #sampleIfDue()} between dispatch batches and,
+ * through the {@link KernelStatsPreProcessor}, after every packet of a long
+ * running loop, and at most once per sample interval publishes an immutable
+ * snapshot. Metric readers on other threads only ever read the last published
+ * snapshot.
+ * 
+ * <p>
+ * The 32-bit kernel counters are extended to monotonic 64-bit counters, by
+ * accumulating their deltas modulo 2^32.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class KernelStatsSampler {
+
+	/**
+	 * An immutable snapshot of the kernel counters.
+	 *
+	 * @param receivedCount         packets received by the kernel filter
+	 * @param droppedCount          packets dropped by the kernel, no room in buffer
+	 * @param interfaceDroppedCount packets dropped by the interface or driver
+	 * @param sampleNano            the {@link System#nanoTime()} of the sample
+	 */
+	public record Snapshot(long receivedCount, long droppedCount, long interfaceDroppedCount, long sampleNano) {}
+
+	/** The Constant PREFIX. */
+	private static final String PREFIX = "kernel.stats";
+
+	/** System property which defines the kernel stats sample interval in millis (default 1000). */
+	public static final String PROPERTY_KERNEL_STATS_INTERVAL = PREFIX + ".interval";
+
+	/** The Constant DEFAULT_INTERVAL_NANO. */
+	private static final long DEFAULT_INTERVAL_NANO = TimeUnit.MILLISECONDS.toNanos(
+			longValue(PROPERTY_KERNEL_STATS_INTERVAL, 1000));
+
+	/** The Constant UINT32_MASK. */
+	private static final long UINT32_MASK = 0xFFFF_FFFFL;
+
+	/** The pcap. */
+	private final NetPcap pcap;
+
+	/** The sample interval nano. */
+	private final long intervalNano;
+
+	/** The last published snapshot, null until the first successful sample. */
+	private volatile Snapshot snapshot;
+
+	/** The next sample nano. */
+	private long nextSampleNano;
+
+	/** True once libpcap reported that stats are not supported by the handle, any other failure is retried. */
+	private boolean unavailable;
+
+	/** The last raw kernel counters. */
+	private long lastRecv, lastDrop, lastIfdrop;
+
+	/**
+	 * Instantiates a new kernel stats sampler with the default sample interval.
+	 *
+	 * @param pcap the live pcap handle
+	 */
+	public KernelStatsSampler(NetPcap pcap) {
+		this(pcap, DEFAULT_INTERVAL_NANO);
+	}
+
+	/**
+	 * Instantiates a new kernel stats sampler.
+	 *
+	 * @param pcap         the live pcap handle
+	 * @param intervalNano the sample interval in nanos
+	 */
+	public KernelStatsSampler(NetPcap pcap, long intervalNano) {
+		this.pcap = pcap;
+		this.intervalNano = intervalNano;
+		this.nextSampleNano = System.nanoTime();
+	}
+
+	/**
+	 * Extend a 32-bit kernel counter, by adding its delta since the last sample.
+	 *
+	 * @param total the extended total
+	 * @param last  the last raw value
+	 * @param raw   the current raw value
+	 * @return the new extended total
+	 */
+	private static long extend(long total, long last, long raw) {
+		return total + ((raw - last) & UINT32_MASK);
+	}
+
+	/**
+	 * Checks if a {@code stats} failure means that the handle does not support
+	 * kernel statistics at all, in which case they are no longer sampled.
+	 *
+	 * @param e the pcap exception
+	 * @return true, if kernel statistics are not supported by the handle
+	 */
+	private static boolean isNotSupported(PcapException e) {
+		String msg = e.getMessage();
+		if (msg == null)
+			return false;
+
+		msg = msg.toLowerCase();
+
+		return msg.contains("not supported") || msg.contains("aren't available") || msg.contains("not available");
+	}
+
+	/**
+	 * Gets the kernel drop count of the last snapshot. Called on the capture
+	 * thread by the load shedding controller, which checks the load at its own
+	 * interval, so the snapshot is refreshed first if due.
+	 *
+	 * @return the extended kernel drop count or -1 if not available
+	 */
+	public long droppedCount() {
+		sampleIfDue();
+
+		Snapshot s = snapshot;
+
+		return (s == null) ? -1 : s.droppedCount();
+	}
+
+	/**
+	 * Sample the kernel statistics if the sample interval has elapsed. Must only
+	 * be called on the capture thread.
+	 */
+	public void sampleIfDue() {
+		if (unavailable)
+			return;
+
+		long now = System.nanoTime();
+		if (now - nextSampleNano < 0)
+			return;
+
+		nextSampleNano = now + intervalNano;
+
+		PcapStat stat;
+		try {
+			stat = pcap.stats();
+		} catch (PcapException e) {
+			unavailable = isNotSupported(e); // Otherwise retry at the next interval
+			return;
+		} catch (RuntimeException e) {
+			return; // Transient, retry at the next interval
+		}
+
+		long recv = stat.recv() & UINT32_MASK;
+		long drop = stat.drop() & UINT32_MASK;
+		long ifdrop = stat.ifdrop() & UINT32_MASK;
+
+		Snapshot prev = snapshot;
+		snapshot = (prev == null)
+				? new Snapshot(recv, drop, ifdrop, now)
+				: new Snapshot(
+						extend(prev.receivedCount(), lastRecv, recv),
+						extend(prev.droppedCount(), lastDrop, drop),
+						extend(prev.interfaceDroppedCount(), lastIfdrop, ifdrop),
+						now);
+
+		lastRecv = recv;
+		lastDrop = drop;
+		lastIfdrop = ifdrop;
+	}
+
+	/**
+	 * Gets the last published snapshot. Safe to call from any thread.
+	 *
+	 * @return the snapshot or null if kernel statistics are not available
+	 */
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+}
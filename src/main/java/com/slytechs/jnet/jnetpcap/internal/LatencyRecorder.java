@@ -0,0 +1,171 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import com.slytechs.jnet.jnetpcap.ProcessingStage;
+
+/**
+ * Records sampled, per stage processing latencies on the capture thread. Every
+ * N-th packet, as determined by the sample rate, is timed through every stage of
+ * the processing chain. All other packets only pay for a single branch per
+ * stage. When latency tracking is disabled, no recorder is created at all.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class LatencyRecorder {
+
+	/** The Constant STAGES. */
+	private static final ProcessingStage[] STAGES = ProcessingStage.values();
+
+	/** The per stage histograms. */
+	private final LogHistogram[] histograms = new LogHistogram[STAGES.length];
+
+	/** The sample rate. */
+	private final int sampleRate;
+
+	/** Packets left until the next sample. */
+	private int countdown = 1;
+
+	/** If the current packet is being sampled. */
+	private boolean sampled;
+
+	/** Pre-processor chain entry time of the current sampled packet. */
+	private long preProcessorMark;
+
+	/** Reset request from a non-capture thread. */
+	private volatile boolean resetRequested;
+
+	/**
+	 * Instantiates a new latency recorder.
+	 *
+	 * @param sampleRate sample 1 out of every {@code sampleRate} packets
+	 */
+	public LatencyRecorder(int sampleRate) {
+		if (sampleRate <= 0)
+			throw new IllegalArgumentException("sample rate must be positive");
+
+		this.sampleRate = sampleRate;
+
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new LogHistogram();
+	}
+
+	/**
+	 * Called at the start of the processing chain, for every packet delivered by
+	 * libpcap, to decide if the packet is going to be sampled.
+	 */
+	public void beginPacket() {
+		if (--countdown != 0) {
+			sampled = false;
+			preProcessorMark = 0;
+			return;
+		}
+
+		countdown = sampleRate;
+		sampled = true;
+
+		if (resetRequested) {
+			resetRequested = false;
+
+			for (LogHistogram h : histograms)
+				h.reset();
+		}
+
+		preProcessorMark = System.nanoTime();
+	}
+
+	/**
+	 * Called at the end of the processing chain, for every packet delivered by
+	 * libpcap, to clear the per packet state. Packets dropped by a pre-processor
+	 * never reach {@link #markPreProcessorsDone()} and must not leave a stale mark
+	 * behind.
+	 */
+	public void endPacket() {
+		sampled = false;
+		preProcessorMark = 0;
+	}
+
+	/**
+	 * Gets the histogram for a stage.
+	 *
+	 * @param stage the stage
+	 * @return the histogram
+	 */
+	public LogHistogram histogram(ProcessingStage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * Checks if the current packet is being sampled.
+	 *
+	 * @return true, if sampled
+	 */
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	/**
+	 * Record the end of the pre-processor stage for the current packet. Only the
+	 * first call after {@link #beginPacket()} is recorded, since pre-processors
+	 * may deliver the same packet more than once.
+	 */
+	public void markPreProcessorsDone() {
+		if (preProcessorMark != 0) {
+			histograms[ProcessingStage.PRE_PROCESSORS.ordinal()].record(System.nanoTime() - preProcessorMark);
+			preProcessorMark = 0;
+		}
+	}
+
+	/**
+	 * Record a stage latency, if the start time was sampled.
+	 *
+	 * @param stage the stage
+	 * @param start the start time returned by {@link #start()}
+	 */
+	public void record(ProcessingStage stage, long start) {
+		if (start != 0)
+			histograms[stage.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Requests all histograms to be reset. The reset is performed by the capture
+	 * thread at the next sampled packet.
+	 */
+	public void requestReset() {
+		this.resetRequested = true;
+	}
+
+	/**
+	 * Gets the sample rate.
+	 *
+	 * @return the sample rate
+	 */
+	public int sampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Start timing a stage for the current packet.
+	 *
+	 * @return the start time or 0 if the current packet is not sampled
+	 */
+	public long start() {
+		return sampled ? System.nanoTime() : 0;
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+import org.jnetpcap.internal.PcapHeaderABI;
+
+import com.slytechs.jnet.jnetpcap.LoadShedding;
+import com.slytechs.jnet.jnetpcap.LoadShedding.Level;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
+import com.slytechs.jnet.protocol.descriptor.PacketDissector;
+
+/**
+ * Load shedding controller, installed as the last pre-processor, right in front
+ * of the packet dissector. The controller runs entirely on the capture thread.
+ * It checks the load at most once per check interval, by sampling the kernel
+ * drop counter and the age of the current packet, and changes the load
+ * shedding level one step at a time. Downstream stages query the current level
+ * with a single field read.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class LoadSheddingPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher {
+
+	/** Check the clock every this many packets, must be power of 2 minus 1. */
+	private static final int CLOCK_CHECK_MASK = 0x3F;
+
+	/** The Constant LEVELS. */
+	private static final Level[] LEVELS = Level.values();
+
+	/** The config. */
+	private final LoadShedding config;
+
+	/** The kernel drop counter. */
+	private final LongSupplier kernelDrops;
+
+	/** The degraded dissector. */
+	private final PacketDissector degradedDissector;
+
+	/** The degraded descriptor type, matching the degraded dissector. */
+	private final PacketDescriptorType degradedDescriptorType;
+
+	/** The abi. */
+	private final PcapHeaderABI abi;
+
+	/** The check interval nano. */
+	private final long checkIntervalNano;
+
+	/** The backlog threshold nano. */
+	private final long backlogThresholdNano;
+
+	/** The timestamp unit of the pcap headers. */
+	private final TimestampUnit timestampUnit;
+
+	/** The current level. */
+	private Level level = Level.NORMAL;
+
+	/** The packet counter. */
+	private int packetCounter;
+
+	/** The next check nano. */
+	private long nextCheckNano;
+
+	/** The last kernel drops, -1 until the first check. */
+	private long lastDrops = -1;
+
+	/** The quiet intervals. */
+	private int quietIntervals;
+
+	/** The sample countdown. */
+	private int sampleCountdown = 1;
+
+	/**
+	 * Instantiates a new load shedding pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher
+	 * @param config         the config
+	 * @param kernelDrops    the monotonic kernel drop counter, sampled on the
+	 *                       capture thread, returns -1 if not available
+	 * @param timestampUnit  the timestamp unit of the pcap headers
+	 */
+	public LoadSheddingPreProcessor(PcapDispatcher pcapDispatcher, LoadShedding config, LongSupplier kernelDrops,
+			TimestampUnit timestampUnit) {
+		super(pcapDispatcher);
+		this.config = config;
+		this.kernelDrops = kernelDrops;
+		this.timestampUnit = timestampUnit;
+		this.abi = pcapDispatcher.pcapHeaderABI();
+		this.degradedDescriptorType = config.getDegradedDescriptorType();
+		this.degradedDissector = PacketDissector.dissector(degradedDescriptorType);
+		this.checkIntervalNano = config.getCheckInterval(TimeUnit.NANOSECONDS);
+		this.backlogThresholdNano = config.getBacklogThreshold(TimeUnit.NANOSECONDS);
+		this.nextCheckNano = System.nanoTime() + checkIntervalNano;
+	}
+
+	/**
+	 * Check the load, if check interval has elapsed, and adjust the level.
+	 *
+	 * @param header the pcap header of the current packet, or null
+	 */
+	private void checkLoad(MemorySegment header) {
+		long now = System.nanoTime();
+		if (now - nextCheckNano < 0)
+			return;
+
+		nextCheckNano = now + checkIntervalNano;
+
+		boolean overloaded = false;
+
+		long drops = kernelDrops.getAsLong();
+		if (drops >= 0) {
+			long delta = (lastDrops < 0) ? 0 : drops - lastDrops; // First check only sets the baseline
+			lastDrops = drops;
+
+			overloaded = (delta >= config.getDropThreshold());
+		}
+
+		if (backlogThresholdNano > 0 && header != null) {
+			long timestamp = timestampUnit.ofSecond(abi.tvSec(header), abi.tvUsec(header));
+			long backlogNano = System.currentTimeMillis() * 1_000_000
+					- TimestampUnit.EPOCH_NANO.convert(timestamp, timestampUnit);
+
+			overloaded |= (backlogNano > backlogThresholdNano);
+		}
+
+		if (overloaded) {
+			quietIntervals = 0;
+
+			if (level.ordinal() < config.getMaxLevel().ordinal())
+				setLevel(LEVELS[level.ordinal() + 1]);
+
+		} else if (level != Level.NORMAL && ++quietIntervals >= config.getRestoreIntervals()) {
+			quietIntervals = 0;
+
+			setLevel(LEVELS[level.ordinal() - 1]);
+		}
+	}
+
+	/**
+	 * Gets the degraded descriptor type, of the packets produced by the degraded
+	 * dissector.
+	 *
+	 * @return the degraded descriptor type
+	 */
+	public PacketDescriptorType degradedDescriptorType() {
+		return degradedDescriptorType;
+	}
+
+	/**
+	 * Gets the dissector used for degraded descriptors.
+	 *
+	 * @return the packet dissector
+	 */
+	public PacketDissector degradedDissector() {
+		return degradedDissector;
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		checkLoad(null); // Low packet rates may not reach the per packet check
+
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (admit(header))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+
+	/**
+	 * Decide if a packet is admitted for processing.
+	 *
+	 * @param header the pcap header
+	 * @return true, if admitted, false if shed
+	 */
+	private boolean admit(MemorySegment header) {
+		if ((++packetCounter & CLOCK_CHECK_MASK) == 0)
+			checkLoad(header);
+
+		if (level != Level.SAMPLE)
+			return true;
+
+		if (--sampleCountdown != 0) {
+			config.incShed(1);
+			return false;
+		}
+
+		sampleCountdown = config.getSampleRate();
+
+		return true;
+	}
+
+	/**
+	 * Checks if the descriptor type is currently degraded.
+	 *
+	 * @return true, if degraded
+	 */
+	public boolean isDescriptorDegraded() {
+		return level.isDescriptorDegraded();
+	}
+
+	/**
+	 * Checks if IPF is currently bypassed.
+	 *
+	 * @return true, if bypassed
+	 */
+	public boolean isIpfBypassed() {
+		return level.isIpfBypassed();
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		checkLoad(null);
+
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (admit(header))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+
+	/**
+	 * Sets the level and records the transition.
+	 *
+	 * @param newLevel the new level
+	 */
+	private void setLevel(Level newLevel) {
+		this.level = newLevel;
+		this.sampleCountdown = 1;
+
+		config.onTransition(newLevel);
+	}
+}
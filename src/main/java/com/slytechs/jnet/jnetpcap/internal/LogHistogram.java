@@ -0,0 +1,230 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A fixed size, log-linear histogram of non-negative long values, similar in
+ * layout to an HDR histogram. Values are recorded into buckets whose width
+ * doubles every {@value #SUB_BUCKET_COUNT} buckets, which gives a relative
+ * error of no more than 1/{@value #SUB_BUCKET_COUNT} over the entire 63-bit
+ * value range, using a constant amount of memory.
+ * 
+ * <p>
+ * Recording is not thread safe and is intended to be done by a single capture
+ * thread. Every counter is written with opaque access, so reads from other
+ * threads are lock free, never torn and eventually see every update. Counters
+ * read from other threads may be slightly inconsistent with each other, which
+ * is acceptable for monitoring purposes.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class LogHistogram {
+
+	/** Number of bits of linear precision within each power of 2 range. */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** Number of linear buckets within each power of 2 range. */
+	public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/** Total number of buckets, covers all positive long values. */
+	public static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	/**
+	 * Computes a bucket index for a value.
+	 *
+	 * @param value the value, negative values are treated as 0
+	 * @return the bucket index
+	 */
+	public static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (value < 0) ? 0 : (int) value;
+
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (msb - SUB_BUCKET_BITS));
+
+		return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + (mantissa - SUB_BUCKET_COUNT);
+	}
+
+	/**
+	 * Lowest value which is recorded into a bucket.
+	 *
+	 * @param index the bucket index
+	 * @return the lowest value
+	 */
+	public static long lowestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int group = index / SUB_BUCKET_COUNT;
+		long mantissa = (index % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+
+		return mantissa << (group - 1);
+	}
+
+	/**
+	 * Highest value which is recorded into a bucket.
+	 *
+	 * @param index the bucket index
+	 * @return the highest value
+	 */
+	public static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int group = index / SUB_BUCKET_COUNT;
+
+		return lowestEquivalentValue(index) + (1L << (group - 1)) - 1;
+	}
+
+	/** Opaque access to the bucket counts. */
+	private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	/** Opaque access to the scalar counters. */
+	private static final VarHandle TOTAL_COUNT, SUM, MIN, MAX;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			TOTAL_COUNT = lookup.findVarHandle(LogHistogram.class, "totalCount", long.class);
+			SUM = lookup.findVarHandle(LogHistogram.class, "sum", long.class);
+			MIN = lookup.findVarHandle(LogHistogram.class, "min", long.class);
+			MAX = lookup.findVarHandle(LogHistogram.class, "max", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** The bucket counts. */
+	private final long[] counts = new long[BUCKET_COUNT];
+
+	/** The total count. */
+	private long totalCount;
+
+	/** The sum of all recorded values. */
+	private long sum;
+
+	/** The min value. */
+	private long min = Long.MAX_VALUE;
+
+	/** The max value. */
+	private long max;
+
+	/**
+	 * Record a single value.
+	 *
+	 * @param value the value
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		int index = bucketIndex(value);
+		COUNTS.setOpaque(counts, index, counts[index] + 1);
+		TOTAL_COUNT.setOpaque(this, totalCount + 1);
+		SUM.setOpaque(this, sum + value);
+
+		if (value < min)
+			MIN.setOpaque(this, value);
+		if (value > max)
+			MAX.setOpaque(this, value);
+	}
+
+	/**
+	 * Reset all of the counters.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			COUNTS.setOpaque(counts, i, 0L);
+
+		TOTAL_COUNT.setOpaque(this, 0L);
+		SUM.setOpaque(this, 0L);
+		MIN.setOpaque(this, Long.MAX_VALUE);
+		MAX.setOpaque(this, 0L);
+	}
+
+	/**
+	 * Copies the bucket counts.
+	 *
+	 * @return a copy of the bucket counts
+	 */
+	public long[] copyCounts() {
+		long[] copy = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			copy[i] = (long) COUNTS.getOpaque(counts, i);
+
+		return copy;
+	}
+
+	/**
+	 * Adds all of the values recorded in another histogram to this histogram. The
+	 * other histogram may be concurrently recorded into by its capture thread,
+	 * this histogram must be owned by the calling thread.
+	 *
+	 * @param other the other histogram
+	 */
+	public void add(LogHistogram other) {
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			COUNTS.setOpaque(counts, i, counts[i] + (long) COUNTS.getOpaque(other.counts, i));
+
+		TOTAL_COUNT.setOpaque(this, totalCount + (long) TOTAL_COUNT.getOpaque(other));
+		SUM.setOpaque(this, sum + (long) SUM.getOpaque(other));
+		MIN.setOpaque(this, Math.min(min, (long) MIN.getOpaque(other)));
+		MAX.setOpaque(this, Math.max(max, (long) MAX.getOpaque(other)));
+	}
+
+	/**
+	 * Gets the total count.
+	 *
+	 * @return the total count
+	 */
+	public long totalCount() {
+		return (long) TOTAL_COUNT.getOpaque(this);
+	}
+
+	/**
+	 * Gets the sum of all recorded values.
+	 *
+	 * @return the sum
+	 */
+	public long sum() {
+		return (long) SUM.getOpaque(this);
+	}
+
+	/**
+	 * Gets the min recorded value.
+	 *
+	 * @return the min, or 0 if empty
+	 */
+	public long min() {
+		return (totalCount() == 0) ? 0 : (long) MIN.getOpaque(this);
+	}
+
+	/**
+	 * Gets the max recorded value.
+	 *
+	 * @return the max
+	 */
+	public long max() {
+		return (long) MAX.getOpaque(this);
+	}
+}
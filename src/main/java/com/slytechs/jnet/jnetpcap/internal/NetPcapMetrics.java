@@ -0,0 +1,239 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import com.slytechs.jnet.jnetpcap.IpfStatistics;
+import com.slytechs.jnet.jnetpcap.NetPcap;
+import com.slytechs.jnet.jnetpcap.NetPcap.PcapProContext;
+import com.slytechs.jnet.jnetpcap.NetPcapMXBean;
+import com.slytechs.jnet.jnetpcap.internal.KernelStatsSampler.Snapshot;
+
+/**
+ * A read-only view of a pcap-pro handle's counters, exposed as an MXBean.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class NetPcapMetrics implements NetPcapMXBean {
+
+	/** The pcap. */
+	private final NetPcap pcap;
+
+	/** The context. */
+	private final PcapProContext context;
+
+	/**
+	 * Instantiates a new net pcap metrics.
+	 *
+	 * @param pcap    the pcap
+	 * @param context the context
+	 */
+	public NetPcapMetrics(NetPcap pcap, PcapProContext context) {
+		this.pcap = pcap;
+		this.context = context;
+	}
+
+	/**
+	 * Get the IPF statistics of the active processor chain, published by the
+	 * handle when the chain is installed. The handle's processor stacks are never
+	 * read from the metrics reader's thread.
+	 *
+	 * @return the ipf statistics or null if IPF is not installed
+	 */
+	private IpfStatistics ipfStatistics() {
+		return context.getIpfStatistics();
+	}
+
+	/**
+	 * Get the last kernel statistics snapshot, sampled by the capture thread.
+	 * libpcap is never called from the metrics reader's thread.
+	 *
+	 * @return the snapshot or null if not available
+	 */
+	private Snapshot kernelStats() {
+		KernelStatsSampler sampler = context.getKernelStats();
+
+		return (sampler == null) ? null : sampler.snapshot();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getDroppedCaplenCount()
+	 */
+	@Override
+	public long getDroppedCaplenCount() {
+		return pcap.getDroppedCaplenCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getDroppedPacketCount()
+	 */
+	@Override
+	public long getDroppedPacketCount() {
+		return pcap.getDroppedPacketCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getDroppedWirelenCount()
+	 */
+	@Override
+	public long getDroppedWirelenCount() {
+		return pcap.getDroppedWirelenCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getInterfaceDroppedCount()
+	 */
+	@Override
+	public Long getInterfaceDroppedCount() {
+		Snapshot stat = kernelStats();
+
+		return (stat == null) ? null : stat.interfaceDroppedCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfDatagramCompletedCount()
+	 */
+	@Override
+	public Long getIpfDatagramCompletedCount() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getDatagramCompletedCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfFragmentCount()
+	 */
+	@Override
+	public Long getIpfFragmentCount() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getFragmentCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfProcessingFailureCount()
+	 */
+	@Override
+	public Long getIpfProcessingFailureCount() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getIpfProcessingFailureCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfTableInsertionFailureCount()
+	 */
+	@Override
+	public Long getIpfTableInsertionFailureCount() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getTableInsertionFailureCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfTableOccupancy()
+	 */
+	@Override
+	public Long getIpfTableOccupancy() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getTableOccupancy();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfTableOccupancyMax()
+	 */
+	@Override
+	public Long getIpfTableOccupancyMax() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getTableOccupancyMax();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfTableSize()
+	 */
+	@Override
+	public Integer getIpfTableSize() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getTableSize();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getIpfTimeoutCount()
+	 */
+	@Override
+	public Long getIpfTimeoutCount() {
+		IpfStatistics ipf = ipfStatistics();
+
+		return (ipf == null) ? null : ipf.getTimeoutCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getKernelDroppedCount()
+	 */
+	@Override
+	public Long getKernelDroppedCount() {
+		Snapshot stat = kernelStats();
+
+		return (stat == null) ? null : stat.droppedCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getKernelReceivedCount()
+	 */
+	@Override
+	public Long getKernelReceivedCount() {
+		Snapshot stat = kernelStats();
+
+		return (stat == null) ? null : stat.receivedCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getName()
+	 */
+	@Override
+	public String getName() {
+		return pcap.getName();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getReceivedCaplenCount()
+	 */
+	@Override
+	public long getReceivedCaplenCount() {
+		return pcap.getReceivedCaplenCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getReceivedPacketCount()
+	 */
+	@Override
+	public long getReceivedPacketCount() {
+		return pcap.getReceivedPacketCount();
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.NetPcapMXBean#getReceivedWirelenCount()
+	 */
+	@Override
+	public long getReceivedWirelenCount() {
+		return pcap.getReceivedWirelenCount();
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+import org.jnetpcap.internal.PcapHeaderABI;
+
+import com.slytechs.jnet.jnetpcap.NetPcap.PcapProContext;
+import com.slytechs.jnet.jnetpcap.PacketDeduplicator;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+
+/**
+ * Packet deduplicating pre-processor. Recently seen packet hashes are stored in
+ * an off-heap, 4-way set associative table of {hash, timestamp} entries.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class PacketDeduplicatorPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher, PreProcessorStage {
+
+	/** Number of entries per bucket. */
+	private static final int WAYS = 4;
+
+	/** Entry size in bytes, a hash and a timestamp. */
+	private static final int ENTRY_SIZE = 16;
+
+	/** The Constant BUCKET_SIZE. */
+	private static final int BUCKET_SIZE = WAYS * ENTRY_SIZE;
+
+	/** The Constant LONG. */
+	private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG;
+
+	/** The config. */
+	private final PacketDeduplicator config;
+
+	/** The abi. */
+	private final PcapHeaderABI abi;
+
+	/** The ts unit. */
+	private final TimestampUnit tsUnit;
+
+	/** The window nano. */
+	private final long windowNano;
+
+	/** The invariant length. */
+	private final int invariantLength;
+
+	/** The include L2. */
+	private final boolean includeL2;
+
+	/** The arena. */
+	private final Arena arena = Arena.ofShared();
+
+	/** Set once the arena is closed. */
+	private boolean released;
+
+	/** The table. */
+	private final MemorySegment table;
+
+	/** The bucket mask. */
+	private final int bucketMask;
+
+	/** The scanner. */
+	private final RawPacketScanner scanner;
+
+	/**
+	 * Instantiates a new packet deduplicator pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher
+	 * @param config         the config
+	 * @param context        the context
+	 */
+	public PacketDeduplicatorPreProcessor(PcapDispatcher pcapDispatcher, Object config, PcapProContext context) {
+		super(pcapDispatcher);
+
+		if (!(config instanceof PacketDeduplicator cfg))
+			throw new IllegalStateException("Not a PacketDeduplicator processor");
+
+		this.config = cfg;
+		this.abi = super.pcapHeaderABI();
+		this.scanner = new RawPacketScanner(context.getDatalink());
+		this.tsUnit = (cfg.getTimestampUnit() != null)
+				? cfg.getTimestampUnit()
+				: context.getTimestampUnit();
+		this.windowNano = cfg.getWindow(TimeUnit.NANOSECONDS);
+		this.invariantLength = cfg.getInvariantLength();
+		this.includeL2 = cfg.isIncludeL2();
+
+		int buckets = Math.max(1, (cfg.getTableSize() + WAYS - 1) / WAYS);
+		buckets = (buckets == 1) ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+		this.bucketMask = buckets - 1;
+		this.table = arena.allocate((long) buckets * BUCKET_SIZE, 64);
+	}
+
+	/**
+	 * Release the dedup table.
+	 *
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#release()
+	 */
+	@Override
+	public void release() {
+		if (released)
+			return;
+
+		released = true;
+		arena.close();
+	}
+
+	/**
+	 * Hash the invariant region of a packet.
+	 *
+	 * @param pkt     the packet
+	 * @param caplen  the caplen
+	 * @param wirelen the wirelen
+	 * @return the hash
+	 */
+	private long hashInvariant(MemorySegment pkt, int caplen, int wirelen) {
+		scanner.scan(pkt, caplen);
+
+		int l3 = scanner.l3Offset();
+		int base = scanner.isIp() ? l3 : 0;
+		int start = includeL2 ? 0 : base;
+		int end = (invariantLength == 0) ? caplen : Math.min(caplen, base + invariantLength);
+
+		long h = wirelen;
+
+		if (scanner.ipVersion() == 4) {
+			/* Skip TTL (8) and header checksum (10-11), keep protocol (9) */
+			h = FastHash.hash(pkt, start, l3 + 8 - start, h);
+			h = FastHash.combine(h, RawPacketScanner.u8(pkt, l3 + 9));
+			start = l3 + 12;
+
+		} else if (scanner.ipVersion() == 6) {
+			/* Skip hop limit (7) */
+			h = FastHash.hash(pkt, start, l3 + 7 - start, h);
+			start = l3 + 8;
+		}
+
+		if (end > start)
+			h = FastHash.hash(pkt, start, end - start, h);
+
+		return h;
+	}
+
+	/**
+	 * Check if a packet is a duplicate of a recently seen packet, and remember it
+	 * if it is not.
+	 *
+	 * @param header the pcap header
+	 * @param packet the packet data
+	 * @return true, if duplicate
+	 */
+	private boolean isDuplicate(MemorySegment header, MemorySegment packet) {
+		int caplen = abi.captureLength(header);
+		int wirelen = abi.wireLength(header);
+		long now = TimestampUnit.EPOCH_NANO.convert(tsUnit.ofSecond(abi.tvSec(header), abi.tvUsec(header)), tsUnit);
+
+		long hash = hashInvariant(packet.reinterpret(caplen), caplen, wirelen);
+		if (hash == 0)
+			hash = 1; // 0 marks an empty entry
+
+		long bucket = (long) ((int) hash & bucketMask) * BUCKET_SIZE;
+		long victim = bucket;
+		long victimTs = Long.MAX_VALUE;
+
+		for (int i = 0; i < WAYS; i++) {
+			long entry = bucket + i * ENTRY_SIZE;
+			long h = table.get(LONG, entry);
+			long ts = table.get(LONG, entry + 8);
+
+			if (h == hash && (now - ts) <= windowNano && (now - ts) >= -windowNano) {
+				config.incDuplicate(wirelen);
+
+				return true;
+			}
+
+			if (h == 0 || (now - ts) > windowNano) {
+				victim = entry;
+				victimTs = Long.MIN_VALUE;
+
+			} else if (ts < victimTs) {
+				victim = entry;
+				victimTs = ts;
+			}
+		}
+
+		table.set(LONG, victim, hash);
+		table.set(LONG, victim + 8, now);
+
+		config.incUnique();
+
+		return false;
+	}
+
+	/**
+	 * Process.
+	 *
+	 * @param header the header
+	 * @param packet the packet
+	 * @return the memory segment
+	 * @see com.slytechs.jnet.jnetpcap.internal.PreProcessorStage#process(java.lang.foreign.MemorySegment,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public MemorySegment process(MemorySegment header, MemorySegment packet) {
+		return isDuplicate(header, packet) ? null : header;
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (!isDuplicate(header, packet))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (!isDuplicate(header, packet))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+}
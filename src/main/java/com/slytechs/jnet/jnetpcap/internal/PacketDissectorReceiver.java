@@ -33,11 +33,14 @@ import org.jnetpcap.util.PcapPacketRef;
 
 import com.slytechs.jnet.jnetpcap.CaptureStatistics;
 import com.slytechs.jnet.jnetpcap.PcapProHandler;
+import com.slytechs.jnet.jnetpcap.ProcessingStage;
 import com.slytechs.jnet.jnetpcap.PcapProHandler.OfPacket;
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
 import com.slytechs.jnet.protocol.Packet;
 import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
 import com.slytechs.jnet.protocol.descriptor.PacketDescriptor;
 import com.slytechs.jnet.protocol.descriptor.PacketDissector;
+import com.slytechs.jnet.protocol.meta.PacketFormat;
 
 /**
  * A packet dissector and dispatcher.
@@ -71,6 +74,21 @@ public class PacketDissectorReceiver
 	/** The one time session. */
 	private Arena oneTimeSession;
 
+	/** The singleton packet for degraded descriptors, when load shedding. */
+	private Packet degradedPacket;
+
+	/** The descriptor type of the degraded packet. */
+	private PacketDescriptorType degradedDescriptorType;
+
+	/** The descriptor type of the reusable packet. */
+	private PacketDescriptorType boundDescriptorType;
+
+	/** The formatter bound to the reusable packets. */
+	private PacketFormat boundFormatter;
+
+	/** The timestamp unit bound to the reusable packets. */
+	private TimestampUnit boundTimestampUnit;
+
 	/**
 	 * Instantiates a new packet dispatcher.
 	 *
@@ -92,7 +110,7 @@ public class PacketDissectorReceiver
 	 */
 	@Override
 	public void activate() {
-		this.reusablePacket = new Packet(config.descriptorType.newDescriptor());
+		bindInvariants();
 	}
 
 	/**
@@ -105,7 +123,39 @@ public class PacketDissectorReceiver
 	}
 
 	/**
-	 * Creates the packet.
+	 * Bind the fields which are invariant between packets, the packet formatter
+	 * and the descriptor timestamp unit, to the reusable packets. Invariant fields
+	 * are only bound at activation and whenever the configuration changes, not
+	 * for every packet.
+	 */
+	private void bindInvariants() {
+		if (config.descriptorType != boundDescriptorType) {
+			this.reusablePacket = new Packet(config.descriptorType.newDescriptor());
+			this.boundDescriptorType = config.descriptorType;
+		}
+
+		this.boundFormatter = config.formatter;
+		this.boundTimestampUnit = config.timestampUnit;
+
+		bindInvariants(reusablePacket);
+		if (degradedPacket != null)
+			bindInvariants(degradedPacket);
+	}
+
+	/**
+	 * Bind the invariant fields to a packet.
+	 *
+	 * @param packet the packet
+	 */
+	private void bindInvariants(Packet packet) {
+		packet.setFormatter(boundFormatter);
+		packet.descriptor().timestampUnit(boundTimestampUnit);
+	}
+
+	/**
+	 * Dissect a packet into the reusable descriptor buffer and bind it to one of
+	 * the reusable packets. Only the per packet fields are updated, the invariant
+	 * fields were bound ahead of time.
 	 *
 	 * @param bpkt      the bpkt
 	 * @param mpacket   the packet
@@ -116,21 +166,92 @@ public class PacketDissectorReceiver
 	 */
 	protected Packet createSingletonPacket(ByteBuffer bpkt, MemorySegment mpacket, int caplen, int wirelen,
 			long timestamp) {
+		return dissectPacket(bpkt, mpacket, caplen, wirelen, timestamp, true);
+	}
+
+	/**
+	 * Dissect a packet into the reusable descriptor buffer and bind it to a newly
+	 * allocated packet. Used by the next and nextEx calls, which hand each packet
+	 * to the caller as a distinct object. These packets do not pass through the
+	 * latency marking pre-processor, so no stage latency is recorded for them.
+	 *
+	 * @param mpacket   the packet
+	 * @param caplen    the caplen
+	 * @param wirelen   the wirelen
+	 * @param timestamp the timestamp
+	 * @return the new packet
+	 */
+	private Packet createNewPacket(MemorySegment mpacket, int caplen, int wirelen, long timestamp) {
+		return dissectPacket(mpacket.asByteBuffer(), mpacket, caplen, wirelen, timestamp, false);
+	}
+
+	/**
+	 * Dissect a packet into the reusable descriptor buffer and bind it to either
+	 * one of the reusable packets, or a newly allocated packet with the invariant
+	 * fields bound.
+	 *
+	 * @param bpkt       the bpkt
+	 * @param mpacket    the packet
+	 * @param caplen     the caplen
+	 * @param wirelen    the wirelen
+	 * @param timestamp  the timestamp
+	 * @param dispatched true for packets delivered by dispatch or loop, which are
+	 *                   bound to a reusable packet and timed, false for next and
+	 *                   nextEx packets, which are bound to a new packet and not
+	 *                   timed
+	 * @return the packet
+	 */
+	private Packet dissectPacket(ByteBuffer bpkt, MemorySegment mpacket, int caplen, int wirelen,
+			long timestamp, boolean dispatched) {
+
+		/* Only dispatched packets were marked by the latency pre-processor */
+		LatencyRecorder latency = dispatched ? config.latency : null;
+		long start = 0;
+		if (latency != null) {
+			latency.markPreProcessorsDone();
+			start = latency.start();
+		}
 
-		config.dissector.dissectPacket(bpkt, timestamp, caplen, wirelen);
-		config.dissector.writeDescriptor(reusableDescBuffer.clear());
-		config.dissector.reset();
+		if (config.descriptorType != boundDescriptorType
+				|| config.formatter != boundFormatter
+				|| config.timestampUnit != boundTimestampUnit)
+			bindInvariants();
 
+		PacketDissector dissector = config.dissector;
 		Packet packet = reusablePacket;
+		PacketDescriptorType type = boundDescriptorType;
+
+		LoadSheddingPreProcessor shedding = config.loadShedding;
+		if (shedding != null && shedding.isDescriptorDegraded()) {
+			dissector = shedding.degradedDissector();
+			packet = getDegradedPacket(shedding);
+			type = degradedDescriptorType;
+		}
+
+		if (!dispatched) {
+			packet = new Packet(type.newDescriptor());
+			bindInvariants(packet);
+		}
+
+		/* Packet copies must use the type actually produced, not the configured one */
+		config.packetDescriptorType = type;
+
+		dissector.dissectPacket(bpkt, timestamp, caplen, wirelen);
+		dissector.writeDescriptor(reusableDescBuffer.clear());
+		dissector.reset();
+
 		PacketDescriptor desc = packet.descriptor();
 
 		packet.bind(bpkt.flip(), mpacket);
 		desc.bind(reusableDescBuffer.flip());
 
+		/* Port fields are stored in the descriptor memory, rewritten every packet */
+		desc.portNo(config.portNo);
+		desc.portName(config.portName);
 		desc.frameNo(config.frameNo.getUsing(timestamp, config.portNo));
-		desc.timestampUnit(config.timestampUnit);
-		packet.setFormatter(config.formatter);
-		desc.timestampUnit(config.timestampUnit);
+
+		if (start != 0)
+			latency.record(ProcessingStage.DISSECTION, start);
 
 		return packet;
 	}
@@ -145,26 +266,7 @@ public class PacketDissectorReceiver
 	 * @return the packet
 	 */
 	protected Packet createSingletonPacket(MemorySegment mpacket, int caplen, int wirelen, long timestamp) {
-		ByteBuffer bpkt = mpacket.asByteBuffer();
-
-		config.dissector.dissectPacket(bpkt, timestamp, caplen, wirelen);
-		config.dissector.writeDescriptor(reusableDescBuffer.clear());
-		config.dissector.reset();
-
-		Packet packet = new Packet();
-		PacketDescriptor desc = packet.descriptor();
-
-		packet.bind(bpkt.flip(), mpacket);
-		desc.bind(reusableDescBuffer.flip());
-
-		desc.portNo(config.portNo);
-		desc.portName(config.portName);
-		desc.frameNo(config.frameNo.getUsing(timestamp, config.portNo));
-		desc.timestampUnit(config.timestampUnit);
-		packet.setFormatter(config.formatter);
-		desc.timestampUnit(config.timestampUnit);
-
-		return packet;
+		return createSingletonPacket(mpacket.asByteBuffer(), mpacket, caplen, wirelen, timestamp);
 	}
 
 	/**
@@ -228,6 +330,25 @@ public class PacketDissectorReceiver
 		return stats.getDroppedWirelenCount();
 	}
 
+	/**
+	 * Gets the singleton packet for degraded descriptors, allocated on first use
+	 * and recreated whenever the controller's degraded descriptor type changes.
+	 *
+	 * @param shedding the load shedding controller
+	 * @return the degraded packet
+	 */
+	private Packet getDegradedPacket(LoadSheddingPreProcessor shedding) {
+		PacketDescriptorType type = shedding.degradedDescriptorType();
+
+		if (degradedPacket == null || degradedDescriptorType != type) {
+			degradedPacket = new Packet(type.newDescriptor());
+			degradedDescriptorType = type;
+			bindInvariants(degradedPacket);
+		}
+
+		return degradedPacket;
+	}
+
 	/**
 	 * Gets the onetime memory session. The memory session mimics how Pcap next and
 	 * nextEx returned packet's behave. They are only valid until the next call.
@@ -267,7 +388,7 @@ public class PacketDissectorReceiver
 
 		MemorySegment mpkt = pktData.reinterpret(caplen, getOnetimeSegmentScope(), EMPTY_CLEANUP);
 
-		Packet packet = createSingletonPacket(mpkt, caplen, wirelen, timestamp);
+		Packet packet = createNewPacket(mpkt, caplen, wirelen, timestamp);
 
 		stats.incReceived(caplen, wirelen, 1);
 
@@ -301,7 +422,7 @@ public class PacketDissectorReceiver
 
 		MemorySegment mpkt = pktData.reinterpret(caplen, getOnetimeSegmentScope(), EMPTY_CLEANUP);
 
-		Packet packet = createSingletonPacket(mpkt, caplen, wirelen, timestamp);
+		Packet packet = createNewPacket(mpkt, caplen, wirelen, timestamp);
 
 		stats.incReceived(caplen, wirelen, 1);
 
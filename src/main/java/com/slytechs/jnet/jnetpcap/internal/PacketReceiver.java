@@ -211,4 +211,13 @@ public interface PacketReceiver extends AutoCloseable {
 	 * Activate.
 	 */
 	void activate();
+
+	/**
+	 * Release the resources owned by this receiver only, after its processor
+	 * chain has been replaced on an active handle. Unlike {@link #close()}, the
+	 * release is not propagated and the shared pcap dispatcher and packet
+	 * dissector roots are left open.
+	 */
+	default void release() {
+	}
 }
@@ -50,8 +50,52 @@ public class PacketReceiverConfig {
 	
 	/** The descriptor type. */
 	public PacketDescriptorType descriptorType = PacketDescriptorType.TYPE2;
+
+	/**
+	 * The descriptor type of the most recently dissected packet, which differs
+	 * from the configured descriptor type while load shedding degrades
+	 * descriptors. Written by the capture thread for every packet, and used by
+	 * anything which copies packets on the capture thread. Runtime state, not
+	 * copied by {@link #copyFrom(PacketReceiverConfig)}.
+	 */
+	public PacketDescriptorType packetDescriptorType = PacketDescriptorType.TYPE2;
 	
 	/** The abi. */
 	public PcapHeaderABI abi;
+	
+	/** The latency recorder, null when latency tracking is disabled. */
+	public LatencyRecorder latency;
+	
+	/** The load shedding controller, null when load shedding is disabled. */
+	public LoadSheddingPreProcessor loadShedding;
+
+	/**
+	 * Copy of this config.
+	 *
+	 * @return a new config with the same field values
+	 */
+	public PacketReceiverConfig copy() {
+		return new PacketReceiverConfig().copyFrom(this);
+	}
+
+	/**
+	 * Copy all of the configured field values from another config into this one.
+	 *
+	 * @param other the config to copy from
+	 * @return this config
+	 */
+	public PacketReceiverConfig copyFrom(PacketReceiverConfig other) {
+		this.portNo = other.portNo;
+		this.portName = other.portName;
+		this.frameNo = other.frameNo;
+		this.timestampUnit = other.timestampUnit;
+		this.formatter = other.formatter;
+		this.dissector = other.dissector;
+		this.descriptorType = other.descriptorType;
+		this.abi = other.abi;
+		this.latency = other.latency;
+		this.loadShedding = other.loadShedding;
 
+		return this;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+import org.jnetpcap.internal.PcapHeaderABI;
+
+import com.slytechs.jnet.jnetpcap.NetPcap.PcapProContext;
+import com.slytechs.jnet.jnetpcap.PacketSampler;
+import com.slytechs.jnet.jnetpcap.PacketSampler.Mode;
+
+/**
+ * Packet sampling pre-processor. Drops packets not selected by the sampler,
+ * before they reach the packet dissector. Flow sampling only looks at the raw
+ * packet headers, using the {@link RawPacketScanner}.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class PacketSamplerPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher, PreProcessorStage {
+
+	/** The config. */
+	private final PacketSampler config;
+
+	/** The abi. */
+	private final PcapHeaderABI abi;
+
+	/** The mode. */
+	private final Mode mode;
+
+	/** The rate. */
+	private final int rate;
+
+	/** Flow hash threshold, flows with an unsigned hash below are selected. */
+	private final long flowThreshold;
+
+	/** Random threshold, packets with an unsigned random value below are selected. */
+	private final long probabilityThreshold;
+
+	/** True if every packet is selected. */
+	private final boolean selectAll;
+
+	/** The scanner. */
+	private final RawPacketScanner scanner;
+
+	/** The countdown for count mode. */
+	private int countdown = 1;
+
+	/** The xorshift random state for probability mode. */
+	private long random;
+
+	/**
+	 * Instantiates a new packet sampler pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher
+	 * @param config         the config
+	 * @param context        the context
+	 */
+	public PacketSamplerPreProcessor(PcapDispatcher pcapDispatcher, Object config, PcapProContext context) {
+		super(pcapDispatcher);
+
+		if (!(config instanceof PacketSampler cfg))
+			throw new IllegalStateException("Not a PacketSampler processor");
+
+		this.config = cfg;
+		this.abi = pcapDispatcher.pcapHeaderABI();
+		this.scanner = new RawPacketScanner(context.getDatalink());
+		this.mode = cfg.getMode();
+		this.rate = cfg.getRate();
+		this.flowThreshold = Long.divideUnsigned(-1L, rate);
+		this.probabilityThreshold = probabilityThreshold(cfg.getProbability());
+		this.random = FastHash.mix(cfg.getSeed() ^ System.nanoTime()) | 1;
+
+		if (mode == Mode.PROBABILITY) {
+			this.selectAll = cfg.getProbability() >= 1;
+			context.scaleSamplingRate(1 / cfg.getProbability());
+
+		} else {
+			this.selectAll = (rate == 1);
+			context.scaleSamplingRate(rate);
+		}
+	}
+
+	/**
+	 * Convert a probability to an unsigned 64-bit threshold, p * 2^64.
+	 *
+	 * @param p the probability
+	 * @return the unsigned threshold
+	 */
+	private static long probabilityThreshold(double p) {
+		if (p >= 1)
+			return -1L;
+
+		double t = Math.scalb(p, 64);
+
+		return (t < 0x1p63)
+				? (long) t
+				: (long) (t - 0x1p63) | Long.MIN_VALUE;
+	}
+
+	/**
+	 * Decide if a packet is selected by the sampler.
+	 *
+	 * @param header the pcap header
+	 * @param packet the packet data
+	 * @return true, if selected
+	 */
+	private boolean select(MemorySegment header, MemorySegment packet) {
+		boolean selected = switch (mode) {
+		case COUNT -> {
+			if (--countdown != 0)
+				yield false;
+
+			countdown = rate;
+			yield true;
+		}
+
+		case PROBABILITY -> {
+			long x = random;
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			random = x;
+
+			yield Long.compareUnsigned(x, probabilityThreshold) < 0;
+		}
+
+		case FLOW -> {
+			int caplen = abi.captureLength(header);
+			MemorySegment pkt = packet.reinterpret(caplen);
+
+			scanner.scan(pkt, caplen);
+			long hash = FastHash.combine(config.getSeed(), scanner.flowHash(pkt));
+
+			yield Long.compareUnsigned(hash, flowThreshold) <= 0;
+		}
+		};
+
+		if (selected)
+			config.incSampledIn(1);
+		else
+			config.incSampledOut(1);
+
+		return selected;
+	}
+
+	/**
+	 * Process.
+	 *
+	 * @param header the header
+	 * @param packet the packet
+	 * @return the memory segment
+	 * @see com.slytechs.jnet.jnetpcap.internal.PreProcessorStage#process(java.lang.foreign.MemorySegment,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public MemorySegment process(MemorySegment header, MemorySegment packet) {
+		if (selectAll)
+			return header;
+
+		return select(header, packet) ? header : null;
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		if (selectAll)
+			return super.dispatchNative(count, handler, user);
+
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (select(header, packet))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		if (selectAll)
+			return super.loopNative(count, handler, user);
+
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			if (select(header, packet))
+				handler.nativeCallback(u, header, packet);
+
+		}, user);
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.slytechs.jnet.jnetruntime.time.TimestampUnit;
+import com.slytechs.jnet.protocol.Packet;
+import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
+import com.slytechs.jnet.protocol.descriptor.PacketDescriptor;
+import com.slytechs.jnet.protocol.meta.PacketFormat;
+
+/**
+ * A preallocated, off-heap storage slot for a detached packet copy. The slot
+ * holds both the packet data and its dissected descriptor, so that a packet
+ * which is only valid for the duration of a native callback, can be copied and
+ * handed off using a bounded memory copy into recycled memory, instead of a
+ * heap allocation.
+ * 
+ * <p>
+ * Slots are not thread safe. Ownership of a slot, and the packet bound to it,
+ * must be transfered between threads using some form of safe publication. A
+ * copy which is read by several threads at once, must be read through a
+ * separate {@link View} on each thread.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PacketSlot {
+
+	/**
+	 * A read-only view of a slot's current copy, with its own packet and buffers,
+	 * so that several threads can read the same copy at once.
+	 */
+	public final class View {
+
+		/** The view's packet data buffer. */
+		private final ByteBuffer dataBuffer = PacketSlot.this.dataBuffer.duplicate();
+
+		/** The view's descriptor buffer. */
+		private final ByteBuffer descBuffer = PacketSlot.this.descBuffer.duplicate()
+				.order(ByteOrder.nativeOrder());
+
+		/** The view's packet. */
+		private Packet packet = new Packet(descriptorType.newDescriptor());
+
+		/** The descriptor type of the view's packet. */
+		private PacketDescriptorType boundDescriptorType = descriptorType;
+
+		/**
+		 * Instantiates a new view.
+		 */
+		private View() {
+		}
+
+		/**
+		 * Bind the view's packet to the slot's current copy.
+		 *
+		 * @return the packet
+		 */
+		public Packet bind() {
+			if (boundDescriptorType != descriptorType) {
+				this.packet = new Packet(descriptorType.newDescriptor());
+				this.boundDescriptorType = descriptorType;
+			}
+
+			PacketDescriptor desc = packet.descriptor();
+
+			packet.bind(dataBuffer.clear().limit(caplen), dataSegment.asSlice(0, caplen));
+			desc.bind(descBuffer.clear().limit(desclen));
+			desc.timestampUnit(timestampUnit);
+			packet.setFormatter(formatter);
+
+			return packet;
+		}
+	}
+
+	/**
+	 * Maximum descriptor size, same as the dissector's reusable descriptor buffer,
+	 * which holds the largest descriptor of any type. A slot can therefore hold a
+	 * copy of any descriptor type.
+	 */
+	public static final int DESC_BUFFER_SIZE = 1024;
+
+	/** The packet data storage. */
+	private final MemorySegment dataSegment;
+
+	/** The packet data storage as a buffer. */
+	private final ByteBuffer dataBuffer;
+
+	/** The descriptor storage. */
+	private final ByteBuffer descBuffer;
+
+	/** The packet bound to this slot's storage. */
+	private Packet packet;
+
+	/** The descriptor type of the current copy. */
+	private PacketDescriptorType descriptorType;
+
+	/** The caplen of the current copy. */
+	private int caplen;
+
+	/** The descriptor length of the current copy. */
+	private int desclen;
+
+	/** The timestamp unit of the current copy. */
+	private TimestampUnit timestampUnit;
+
+	/** The formatter of the current copy. */
+	private PacketFormat formatter;
+
+	/**
+	 * Instantiates a new packet slot.
+	 *
+	 * @param storage        the slot storage, must be at least
+	 *                       {@link #DESC_BUFFER_SIZE} bytes larger than the
+	 *                       largest packet to be stored
+	 * @param descriptorType the descriptor type of the packets being copied,
+	 *                       unless specified per copy
+	 */
+	public PacketSlot(MemorySegment storage, PacketDescriptorType descriptorType) {
+		if (storage.byteSize() <= DESC_BUFFER_SIZE)
+			throw new IllegalArgumentException("slot storage too small [%d bytes]"
+					.formatted(storage.byteSize()));
+
+		this.descBuffer = storage.asSlice(0, DESC_BUFFER_SIZE)
+				.asByteBuffer()
+				.order(ByteOrder.nativeOrder());
+		this.dataSegment = storage.asSlice(DESC_BUFFER_SIZE);
+		this.dataBuffer = dataSegment.asByteBuffer();
+		this.packet = new Packet(descriptorType.newDescriptor());
+		this.descriptorType = descriptorType;
+	}
+
+	/**
+	 * Maximum number of packet data bytes this slot can hold.
+	 *
+	 * @return the data capacity in bytes
+	 */
+	public int capacity() {
+		return dataBuffer.capacity();
+	}
+
+	/**
+	 * Copy a packet, its data and descriptor, into this slot and bind the slot's
+	 * packet to the copy.
+	 *
+	 * @param src           the source packet
+	 * @param timestampUnit the timestamp unit of the source handle
+	 * @param formatter     the packet formatter, may be null
+	 * @return true, if copied, or false if the packet does not fit into the slot
+	 */
+	public boolean copyFrom(Packet src, TimestampUnit timestampUnit, PacketFormat formatter) {
+		return copyFrom(src, descriptorType, timestampUnit, formatter);
+	}
+
+	/**
+	 * Copy a packet, its data and descriptor, into this slot and bind the slot's
+	 * packet to the copy. The descriptor type may differ from the previous copy,
+	 * for example when the source handle's descriptor type is changed while
+	 * capturing, in which case the slot's packet, and the packet of each view on
+	 * its next bind, is recreated for the new type.
+	 *
+	 * @param src            the source packet
+	 * @param descriptorType the descriptor type of the source packet
+	 * @param timestampUnit  the timestamp unit of the source handle
+	 * @param formatter      the packet formatter, may be null
+	 * @return true, if copied, or false if the packet does not fit into the slot
+	 */
+	public boolean copyFrom(Packet src, PacketDescriptorType descriptorType, TimestampUnit timestampUnit,
+			PacketFormat formatter) {
+		int caplen = src.captureLength();
+		if (caplen > dataBuffer.capacity())
+			return false;
+
+		ByteBuffer srcDesc = src.descriptor().buffer();
+		int desclen = Math.min(srcDesc.limit(), DESC_BUFFER_SIZE);
+
+		if (descriptorType != this.descriptorType) {
+			this.packet = new Packet(descriptorType.newDescriptor());
+			this.descriptorType = descriptorType;
+		}
+
+		dataBuffer.clear().put(0, src.buffer(), 0, caplen);
+		descBuffer.clear().put(0, srcDesc, 0, desclen);
+
+		PacketDescriptor desc = packet.descriptor();
+
+		packet.bind(dataBuffer.limit(caplen), dataSegment.asSlice(0, caplen));
+		desc.bind(descBuffer.limit(desclen));
+		desc.timestampUnit(timestampUnit);
+		packet.setFormatter(formatter);
+
+		this.caplen = caplen;
+		this.desclen = desclen;
+		this.timestampUnit = timestampUnit;
+		this.formatter = formatter;
+
+		return true;
+	}
+
+	/**
+	 * Creates a new view of this slot, for reading its copies on another thread.
+	 *
+	 * @return a new view
+	 */
+	public View newView() {
+		return new View();
+	}
+
+	/**
+	 * Gets the packet bound to this slot's storage.
+	 *
+	 * @return the packet
+	 */
+	public Packet packet() {
+		return packet;
+	}
+}
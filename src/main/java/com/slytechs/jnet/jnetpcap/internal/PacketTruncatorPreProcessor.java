@@ -0,0 +1,167 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.jnetpcap.internal.PcapDispatcher;
+import org.jnetpcap.internal.PcapHeaderABI;
+
+import com.slytechs.jnet.jnetpcap.NetPcap.PcapProContext;
+import com.slytechs.jnet.jnetpcap.PacketTruncator;
+
+/**
+ * Packet truncating pre-processor. Truncated packets are passed downstream with
+ * a copy of their pcap header, which has the reduced caplen. The copy is
+ * reused for every packet, as the header is only valid for the duration of the
+ * callback.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public class PacketTruncatorPreProcessor extends AbstractPcapDispatcher implements PcapDispatcher, PreProcessorStage {
+
+	/** The config. */
+	private final PacketTruncator config;
+
+	/** The abi. */
+	private final PcapHeaderABI abi;
+
+	/** The header length. */
+	private final int headerLength;
+
+	/** The header copy. */
+	private final MemorySegment headerCopy;
+
+	/** The length. */
+	private final int length;
+
+	/** The truncate to headers. */
+	private final boolean truncateToHeaders;
+
+	/** The scanner. */
+	private final RawPacketScanner scanner;
+
+	/**
+	 * Instantiates a new packet truncator pre processor.
+	 *
+	 * @param pcapDispatcher the pcap dispatcher
+	 * @param config         the config
+	 * @param context        the context
+	 */
+	public PacketTruncatorPreProcessor(PcapDispatcher pcapDispatcher, Object config, PcapProContext context) {
+		super(pcapDispatcher);
+
+		if (!(config instanceof PacketTruncator cfg))
+			throw new IllegalStateException("Not a PacketTruncator processor");
+
+		this.config = cfg;
+		this.abi = super.pcapHeaderABI();
+		this.scanner = new RawPacketScanner(context.getDatalink());
+		this.headerLength = abi.headerLength();
+		this.headerCopy = Arena.ofAuto().allocate(headerLength);
+		this.length = cfg.getLength();
+		this.truncateToHeaders = cfg.isTruncateToHeaders();
+	}
+
+	/**
+	 * Truncate a packet, if needed.
+	 *
+	 * @param header the original pcap header
+	 * @param packet the packet data
+	 * @return the header to pass downstream, either the original or the truncated
+	 *         copy
+	 */
+	private MemorySegment truncate(MemorySegment header, MemorySegment packet) {
+		int caplen = abi.captureLength(header);
+		int newCaplen = length;
+
+		if (truncateToHeaders) {
+			MemorySegment pkt = packet.reinterpret(caplen);
+
+			if (scanner.scan(pkt, caplen) && scanner.headersEnd() > 0)
+				newCaplen = Math.min(scanner.headersEnd(), length);
+		}
+
+		if (newCaplen >= caplen)
+			return header;
+
+		MemorySegment.copy(header.reinterpret(headerLength), 0, headerCopy, 0, headerLength);
+		abi.captureLength(headerCopy, newCaplen);
+
+		config.incTruncated(caplen - newCaplen);
+
+		return headerCopy;
+	}
+
+	/**
+	 * Process.
+	 *
+	 * @param header the header
+	 * @param packet the packet
+	 * @return the memory segment
+	 * @see com.slytechs.jnet.jnetpcap.internal.PreProcessorStage#process(java.lang.foreign.MemorySegment,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public MemorySegment process(MemorySegment header, MemorySegment packet) {
+		return truncate(header, packet);
+	}
+
+	/**
+	 * Dispatch native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#dispatchNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int dispatchNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.dispatchNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			handler.nativeCallback(u, truncate(header, packet), packet);
+
+		}, user);
+	}
+
+	/**
+	 * Loop native.
+	 *
+	 * @param count   the count
+	 * @param handler the handler
+	 * @param user    the user
+	 * @return the int
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#loopNative(int,
+	 *      org.jnetpcap.PcapHandler.NativeCallback,
+	 *      java.lang.foreign.MemorySegment)
+	 */
+	@Override
+	public int loopNative(int count, NativeCallback handler, MemorySegment user) {
+		return super.loopNative(count, (MemorySegment u, MemorySegment header, MemorySegment packet) -> {
+
+			handler.nativeCallback(u, truncate(header, packet), packet);
+
+		}, user);
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A pre-processor which works on one packet at a time, and either passes it
+ * downstream, possibly with a different pcap header, or drops it. Consecutive
+ * stages are fused by the {@link FusedPreProcessor} into a single callback,
+ * instead of each stage wrapping the downstream handler in its own callback.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public interface PreProcessorStage {
+
+	/**
+	 * Process a packet.
+	 *
+	 * @param header the pcap header
+	 * @param packet the packet data
+	 * @return the pcap header to pass downstream, or null if the packet is dropped
+	 */
+	MemorySegment process(MemorySegment header, MemorySegment packet);
+
+	/**
+	 * Release the resources owned by the stage. A fused stage is never closed
+	 * through its own dispatcher, the {@link FusedPreProcessor} owning it
+	 * releases it instead.
+	 */
+	void release();
+}
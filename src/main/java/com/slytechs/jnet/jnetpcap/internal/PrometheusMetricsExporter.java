@@ -0,0 +1,227 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import com.slytechs.jnet.jnetpcap.MetricsExporter;
+import com.slytechs.jnet.jnetpcap.NetPcapMXBean;
+import com.slytechs.jnet.protocol.Registration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves pcap handle metrics in the Prometheus text exposition format, using
+ * the JDK's built in HTTP server, bound to the loopback interface.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class PrometheusMetricsExporter implements MetricsExporter {
+
+	/**
+	 * A single exported metric.
+	 */
+	private record Metric(String name, String type, String help, Function<NetPcapMXBean, Long> getter) {}
+
+	/** The Constant CONTENT_TYPE. */
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** All of the exported metrics. */
+	private static final List<Metric> METRICS = List.of(
+			new Metric("netpcap_received_packets_total", "counter",
+					"Packets received", NetPcapMXBean::getReceivedPacketCount),
+			new Metric("netpcap_received_bytes_total", "counter",
+					"Captured bytes received", NetPcapMXBean::getReceivedCaplenCount),
+			new Metric("netpcap_received_wire_bytes_total", "counter",
+					"Wire bytes received", NetPcapMXBean::getReceivedWirelenCount),
+			new Metric("netpcap_dropped_packets_total", "counter",
+					"Packets dropped due to processing errors", NetPcapMXBean::getDroppedPacketCount),
+			new Metric("netpcap_dropped_bytes_total", "counter",
+					"Captured bytes dropped due to processing errors", NetPcapMXBean::getDroppedCaplenCount),
+			new Metric("netpcap_kernel_received_packets_total", "counter",
+					"Packets received by the kernel filter", NetPcapMXBean::getKernelReceivedCount),
+			new Metric("netpcap_kernel_dropped_packets_total", "counter",
+					"Packets dropped by the kernel, no room in buffer", NetPcapMXBean::getKernelDroppedCount),
+			new Metric("netpcap_interface_dropped_packets_total", "counter",
+					"Packets dropped by the interface or driver", NetPcapMXBean::getInterfaceDroppedCount),
+			new Metric("netpcap_ipf_table_size", "gauge",
+					"IPF table size", m -> {
+						Integer size = m.getIpfTableSize();
+						return (size == null) ? null : size.longValue();
+					}),
+			new Metric("netpcap_ipf_table_occupancy", "gauge",
+					"IPF table entries in use", NetPcapMXBean::getIpfTableOccupancy),
+			new Metric("netpcap_ipf_table_occupancy_max", "gauge",
+					"Highest number of IPF table entries in use", NetPcapMXBean::getIpfTableOccupancyMax),
+			new Metric("netpcap_ipf_fragments_total", "counter",
+					"IP fragments seen by the IPF engine", NetPcapMXBean::getIpfFragmentCount),
+			new Metric("netpcap_ipf_datagrams_completed_total", "counter",
+					"IP datagrams fully reassembled or tracked", NetPcapMXBean::getIpfDatagramCompletedCount),
+			new Metric("netpcap_ipf_table_insertion_failures_total", "counter",
+					"IP fragments not inserted into a full IPF table",
+					NetPcapMXBean::getIpfTableInsertionFailureCount),
+			new Metric("netpcap_ipf_processing_failures_total", "counter",
+					"IP fragments not processed due to reassembly errors",
+					NetPcapMXBean::getIpfProcessingFailureCount),
+			new Metric("netpcap_ipf_timeouts_total", "counter",
+					"IP datagram reassembly timeouts", NetPcapMXBean::getIpfTimeoutCount));
+
+	/**
+	 * Escape a label value.
+	 *
+	 * @param value the value
+	 * @return the escaped string
+	 */
+	private static String escape(String value) {
+		return value
+				.replace("\\", "\\\\")
+				.replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	/** The port. */
+	private final int port;
+
+	/** The exported sources. */
+	private final List<NetPcapMXBean> sources = new CopyOnWriteArrayList<>();
+
+	/** The server, only while there are exported sources. */
+	private HttpServer server;
+
+	/**
+	 * Instantiates a new prometheus metrics exporter.
+	 *
+	 * @param port the port
+	 */
+	public PrometheusMetricsExporter(int port) {
+		if (port < 0 || port > 0xFFFF)
+			throw new IllegalArgumentException("invalid port number [%d]".formatted(port));
+
+		this.port = port;
+	}
+
+	/**
+	 * Export.
+	 *
+	 * @param metrics the metrics
+	 * @return the registration
+	 * @throws UncheckedIOException if the HTTP server could not be started
+	 * @see com.slytechs.jnet.jnetpcap.MetricsExporter#export(com.slytechs.jnet.jnetpcap.NetPcapMXBean)
+	 */
+	@Override
+	public synchronized Registration export(NetPcapMXBean metrics) throws UncheckedIOException {
+		if (server == null)
+			startServer();
+
+		sources.add(metrics);
+
+		return () -> unexport(metrics);
+	}
+
+	/**
+	 * Format all of the metrics.
+	 *
+	 * @return the text exposition
+	 */
+	private String format() {
+		StringBuilder b = new StringBuilder(4096);
+
+		for (Metric metric : METRICS) {
+			b.append("# HELP ").append(metric.name()).append(' ').append(metric.help()).append('\n');
+			b.append("# TYPE ").append(metric.name()).append(' ').append(metric.type()).append('\n');
+
+			for (NetPcapMXBean source : sources) {
+				Long value = metric.getter().apply(source);
+				if (value == null)
+					continue; // Not available for this source, omit the sample
+
+				b.append(metric.name())
+						.append("{pcap=\"").append(escape(source.getName())).append("\"} ")
+						.append(value.longValue())
+						.append('\n');
+			}
+		}
+
+		return b.toString();
+	}
+
+	/**
+	 * Handle a scrape request.
+	 *
+	 * @param exchange the exchange
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = format().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+
+	/**
+	 * Start the HTTP server.
+	 *
+	 * @throws UncheckedIOException if the server could not be bound
+	 */
+	private void startServer() throws UncheckedIOException {
+		try {
+			var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+			this.server = HttpServer.create(address, 0);
+			this.server.createContext("/metrics", this::handle);
+			this.server.start();
+
+		} catch (IOException e) {
+			throw new UncheckedIOException("unable to start metrics endpoint on port %d".formatted(port), e);
+		}
+	}
+
+	/**
+	 * Unexport a source and stop the server after the last one.
+	 *
+	 * @param metrics the metrics
+	 */
+	private synchronized void unexport(NetPcapMXBean metrics) {
+		sources.remove(metrics);
+
+		if (sources.isEmpty() && server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
@@ -0,0 +1,703 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * A cheap, allocation free scanner of raw packets. The scanner locates the L3
+ * and L4 headers of IPv4 and IPv6 packets, skipping the link-layer header, VLAN
+ * and QinQ tags and IPv6 extension headers, without running a full protocol
+ * dissection. It is used by pre-processors which need to look at a few header
+ * fields of every packet, before any dissection is done.
+ * 
+ * <p>
+ * The link-layer header is selected by the data link type of the capture
+ * handle. Ethernet, raw IP, Linux cooked (SLL and SLL2) and BSD loopback
+ * (NULL and LOOP) link types are supported. Packets of any other link type are
+ * never recognized as IP, and users of the scanner are expected to fall back to
+ * a full dissection, see {@link #isSupportedDatalink(int)}.
+ * </p>
+ * 
+ * <p>
+ * A scanner instance is reused for every packet and is not thread safe.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+public final class RawPacketScanner {
+
+	/** Ethernet header length. */
+	public static final int ETHERNET_HEADER_LENGTH = 14;
+
+	/** Linux cooked capture (SLL) header length. */
+	public static final int SLL_HEADER_LENGTH = 16;
+
+	/** Linux cooked capture v2 (SLL2) header length. */
+	public static final int SLL2_HEADER_LENGTH = 20;
+
+	/** BSD loopback header length, the address family. */
+	public static final int LOOPBACK_HEADER_LENGTH = 4;
+
+	/** DLT_NULL, BSD loopback with the address family in host byte order. */
+	public static final int DLT_NULL = 0;
+
+	/** DLT_EN10MB, Ethernet. */
+	public static final int DLT_EN10MB = 1;
+
+	/** DLT_RAW, raw IPv4 or IPv6 without a link-layer header. */
+	public static final int DLT_RAW = 12;
+
+	/** DLT_LOOP, OpenBSD loopback with the address family in network byte order. */
+	public static final int DLT_LOOP = 108;
+
+	/** DLT_LINUX_SLL, Linux cooked capture. */
+	public static final int DLT_LINUX_SLL = 113;
+
+	/** DLT_IPV4, raw IPv4 without a link-layer header. */
+	public static final int DLT_IPV4 = 228;
+
+	/** DLT_IPV6, raw IPv6 without a link-layer header. */
+	public static final int DLT_IPV6 = 229;
+
+	/** DLT_LINUX_SLL2, Linux cooked capture v2. */
+	public static final int DLT_LINUX_SLL2 = 276;
+
+	/** Loopback address family AF_INET, same on all platforms. */
+	private static final int AF_INET = 2;
+
+	/** Loopback address family AF_INET6 on Linux. */
+	private static final int AF_INET6_LINUX = 10;
+
+	/** Loopback address family AF_INET6 on NetBSD, OpenBSD and BSD/OS. */
+	private static final int AF_INET6_BSD = 24;
+
+	/** Loopback address family AF_INET6 on FreeBSD and DragonFly BSD. */
+	private static final int AF_INET6_FREEBSD = 28;
+
+	/** Loopback address family AF_INET6 on Darwin. */
+	private static final int AF_INET6_DARWIN = 30;
+
+	/** The Constant ETHER_TYPE_IPv4. */
+	public static final int ETHER_TYPE_IPv4 = 0x0800;
+
+	/** The Constant ETHER_TYPE_IPv6. */
+	public static final int ETHER_TYPE_IPv6 = 0x86DD;
+
+	/** The Constant ETHER_TYPE_VLAN. */
+	private static final int ETHER_TYPE_VLAN = 0x8100;
+
+	/** The Constant ETHER_TYPE_QINQ. */
+	private static final int ETHER_TYPE_QINQ = 0x88A8;
+
+	/** The Constant ETHER_TYPE_QINQ_OLD. */
+	private static final int ETHER_TYPE_QINQ_OLD = 0x9100;
+
+	/** IP protocol TCP. */
+	public static final int IP_PROTO_TCP = 6;
+
+	/** IP protocol UDP. */
+	public static final int IP_PROTO_UDP = 17;
+
+	/** IP protocol SCTP. */
+	public static final int IP_PROTO_SCTP = 132;
+
+	/** IP protocol ICMP. */
+	public static final int IP_PROTO_ICMP = 1;
+
+	/** IP protocol ICMPv6. */
+	public static final int IP_PROTO_ICMPv6 = 58;
+
+	/** IPv6 hop-by-hop options extension header. */
+	public static final int IP6_EXT_HOP_BY_HOP = 0;
+
+	/** IPv6 routing extension header. */
+	public static final int IP6_EXT_ROUTING = 43;
+
+	/** IPv6 fragment extension header. */
+	public static final int IP6_EXT_FRAGMENT = 44;
+
+	/** IPv6 destination options extension header. */
+	public static final int IP6_EXT_DEST_OPTIONS = 60;
+
+	/** Maximum number of VLAN tags skipped. */
+	private static final int MAX_VLAN_TAGS = 4;
+
+	/** Maximum number of IPv6 extension headers skipped. */
+	private static final int MAX_IP6_EXT_HEADERS = 8;
+
+	/** Big endian short. */
+	private static final ValueLayout.OfShort SHORT_BE = ValueLayout.JAVA_SHORT_UNALIGNED
+			.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/** Big endian int. */
+	private static final ValueLayout.OfInt INT_BE = ValueLayout.JAVA_INT_UNALIGNED
+			.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Checks if the link-layer header of a data link type is understood by the
+	 * scanner.
+	 *
+	 * @param datalink the data link type, a DLT value
+	 * @return true, if supported
+	 */
+	public static boolean isSupportedDatalink(int datalink) {
+		return switch (datalink) {
+		case DLT_EN10MB, DLT_RAW, DLT_IPV4, DLT_IPV6, DLT_LINUX_SLL, DLT_LINUX_SLL2, DLT_NULL, DLT_LOOP -> true;
+		default -> false;
+		};
+	}
+
+	/**
+	 * Locate the L3 header, after the link-layer header and any VLAN tags. The
+	 * ether type is read from the link-layer header, or for link types which do
+	 * not carry one, derived from the IP version or the loopback address family.
+	 *
+	 * @param datalink the data link type
+	 * @param pkt      the packet
+	 * @param caplen   the caplen
+	 * @return the ether type in the upper 32 bits and the L3 offset in the lower
+	 *         32 bits, or -1 if the link-layer header is truncated or the data
+	 *         link type is not supported
+	 */
+	private static long locateL3(int datalink, MemorySegment pkt, int caplen) {
+		int off;
+		int type;
+
+		switch (datalink) {
+		case DLT_EN10MB:
+			if (caplen < ETHERNET_HEADER_LENGTH)
+				return -1;
+
+			type = u16(pkt, 12);
+			off = ETHERNET_HEADER_LENGTH;
+			break;
+
+		case DLT_LINUX_SLL:
+			if (caplen < SLL_HEADER_LENGTH)
+				return -1;
+
+			type = u16(pkt, 14);
+			off = SLL_HEADER_LENGTH;
+			break;
+
+		case DLT_LINUX_SLL2:
+			if (caplen < SLL2_HEADER_LENGTH)
+				return -1;
+
+			type = u16(pkt, 0);
+			off = SLL2_HEADER_LENGTH;
+			break;
+
+		case DLT_RAW, DLT_IPV4, DLT_IPV6:
+			if (caplen < 1)
+				return -1;
+
+			type = switch (u8(pkt, 0) >> 4) {
+			case 4 -> ETHER_TYPE_IPv4;
+			case 6 -> ETHER_TYPE_IPv6;
+			default -> 0;
+			};
+			off = 0;
+			break;
+
+		case DLT_NULL, DLT_LOOP:
+			if (caplen < LOOPBACK_HEADER_LENGTH)
+				return -1;
+
+			/* DLT_NULL is in the capturing host's byte order, family values are small */
+			int family = u32(pkt, 0);
+			if ((family & 0xFFFF0000) != 0)
+				family = Integer.reverseBytes(family);
+
+			type = switch (family) {
+			case AF_INET -> ETHER_TYPE_IPv4;
+			case AF_INET6_LINUX, AF_INET6_BSD, AF_INET6_FREEBSD, AF_INET6_DARWIN -> ETHER_TYPE_IPv6;
+			default -> 0;
+			};
+			off = LOOPBACK_HEADER_LENGTH;
+			break;
+
+		default:
+			return -1;
+		}
+
+		for (int i = 0; i < MAX_VLAN_TAGS
+				&& (type == ETHER_TYPE_VLAN || type == ETHER_TYPE_QINQ || type == ETHER_TYPE_QINQ_OLD); i++) {
+			if (off + 4 > caplen)
+				return -1;
+
+			type = u16(pkt, off + 2);
+			off += 4;
+		}
+
+		return ((long) type << 32) | off;
+	}
+
+	/**
+	 * Read an unsigned byte.
+	 *
+	 * @param seg    the seg
+	 * @param offset the offset
+	 * @return the unsigned value
+	 */
+	public static int u8(MemorySegment seg, long offset) {
+		return seg.get(ValueLayout.JAVA_BYTE, offset) & 0xFF;
+	}
+
+	/**
+	 * Read an unsigned, big endian short.
+	 *
+	 * @param seg    the seg
+	 * @param offset the offset
+	 * @return the unsigned value
+	 */
+	public static int u16(MemorySegment seg, long offset) {
+		return seg.get(SHORT_BE, offset) & 0xFFFF;
+	}
+
+	/**
+	 * Read a big endian int.
+	 *
+	 * @param seg    the seg
+	 * @param offset the offset
+	 * @return the value
+	 */
+	public static int u32(MemorySegment seg, long offset) {
+		return seg.get(INT_BE, offset);
+	}
+
+	/** The data link type of the scanned packets. */
+	private final int datalink;
+
+	/** The ether type of the L3 header, after any VLAN tags. */
+	private int etherType;
+
+	/** The L3 (IP) header offset, -1 if not IP. */
+	private int l3Offset;
+
+	/** The IP version, 4 or 6, 0 if not IP. */
+	private int ipVersion;
+
+	/** The L4 protocol number. */
+	private int l4Protocol;
+
+	/** The L4 header offset, -1 if not found or not the first fragment. */
+	private int l4Offset;
+
+	/** The L4 header length, if known. */
+	private int l4HeaderLength;
+
+	/** If the packet is an IP fragment. */
+	private boolean fragment;
+
+	/** Offset of the IPv6 fragment extension header, -1 if none. */
+	private int ip6FragHeaderOffset;
+
+	/** Offset of the next header field which points to the IPv6 fragment header. */
+	private int ip6FragNextHeaderFieldOffset;
+
+	/** The caplen of the last scanned packet. */
+	private int caplen;
+
+	/**
+	 * Instantiates a new raw packet scanner of Ethernet frames.
+	 */
+	public RawPacketScanner() {
+		this(DLT_EN10MB);
+	}
+
+	/**
+	 * Instantiates a new raw packet scanner.
+	 *
+	 * @param datalink the data link type of the scanned packets, a DLT value
+	 */
+	public RawPacketScanner(int datalink) {
+		this.datalink = datalink;
+	}
+
+	/**
+	 * Gets the data link type of the scanned packets.
+	 *
+	 * @return the DLT value
+	 */
+	public int datalink() {
+		return datalink;
+	}
+
+	/**
+	 * Gets the caplen of the last scanned packet.
+	 *
+	 * @return the caplen
+	 */
+	public int caplen() {
+		return caplen;
+	}
+
+	/**
+	 * End of the L4 header, or end of L3 header(s) if L4 is unknown or this is a
+	 * non-first fragment.
+	 *
+	 * @return the offset of the end of the last known header, or -1 if not IP
+	 */
+	public int headersEnd() {
+		if (l3Offset < 0)
+			return -1;
+
+		if (l4Offset >= 0)
+			return Math.min(l4Offset + l4HeaderLength, caplen);
+
+		return Math.min(l3PayloadOffset, caplen);
+	}
+
+	/** Offset of the L3 payload, after IP headers and extension headers. */
+	private int l3PayloadOffset;
+
+	/**
+	 * Quickly classify a packet as not being an IP fragment, without keeping any
+	 * state. Only the ether type, after the link-layer header and any VLAN tags,
+	 * the IPv4 flags and fragment offset, or the IPv6 extension header chain are
+	 * looked at. This is used to skip IPF dissection of the vast majority of
+	 * packets, which are not fragmented. Packets of an unsupported data link type
+	 * are never classified.
+	 *
+	 * @param datalink the data link type, a DLT value
+	 * @param pkt      the packet, must be at least caplen bytes long
+	 * @param caplen   the caplen
+	 * @return true, if the packet is certainly not an IP fragment, false if it is
+	 *         or may be a fragment
+	 */
+	public static boolean isNonFragment(int datalink, MemorySegment pkt, int caplen) {
+		long l3 = locateL3(datalink, pkt, caplen);
+		if (l3 < 0)
+			return false;
+
+		int type = (int) (l3 >>> 32);
+		int off = (int) l3;
+
+		if (type == ETHER_TYPE_IPv4) {
+			if (off + 20 > caplen)
+				return false;
+
+			/* MF flag and fragment offset must both be 0 */
+			return (u16(pkt, off + 6) & 0x3FFF) == 0;
+		}
+
+		if (type == ETHER_TYPE_IPv6) {
+			if (off + 40 > caplen)
+				return false;
+
+			int next = u8(pkt, off + 6);
+			int pos = off + 40;
+
+			for (int i = 0; i < MAX_IP6_EXT_HEADERS; i++) {
+				if (next == IP6_EXT_FRAGMENT)
+					return false;
+
+				if (next != IP6_EXT_HOP_BY_HOP && next != IP6_EXT_ROUTING && next != IP6_EXT_DEST_OPTIONS)
+					return true; // Upper layer protocol, no fragment header
+
+				if (pos + 8 > caplen)
+					return false;
+
+				next = u8(pkt, pos);
+				pos += (u8(pkt, pos + 1) + 1) << 3;
+			}
+
+			return false; // Too many extension headers, let the dissector decide
+		}
+
+		return true; // Not IP
+	}
+
+	/**
+	 * Checks if the last scanned packet is an IPv4 or IPv6 fragment.
+	 *
+	 * @return true, if fragment
+	 */
+	public boolean isFragment() {
+		return fragment;
+	}
+
+	/**
+	 * Checks if the last scanned packet is IP.
+	 *
+	 * @return true, if is IP
+	 */
+	public boolean isIp() {
+		return l3Offset >= 0;
+	}
+
+	/**
+	 * Gets the ether type.
+	 *
+	 * @return the ether type
+	 */
+	public int etherType() {
+		return etherType;
+	}
+
+	/**
+	 * Gets the IPv6 fragment header offset.
+	 *
+	 * @return the offset or -1 if none
+	 */
+	public int ip6FragHeaderOffset() {
+		return ip6FragHeaderOffset;
+	}
+
+	/**
+	 * Gets the offset of the next-header field which holds the fragment header
+	 * protocol number (44). It is either in the IPv6 header or in the previous
+	 * extension header.
+	 *
+	 * @return the offset or -1 if no fragment header
+	 */
+	public int ip6FragNextHeaderFieldOffset() {
+		return ip6FragNextHeaderFieldOffset;
+	}
+
+	/**
+	 * Gets the IP version.
+	 *
+	 * @return 4, 6 or 0 if not IP
+	 */
+	public int ipVersion() {
+		return ipVersion;
+	}
+
+	/**
+	 * Gets the L3 header offset.
+	 *
+	 * @return the offset or -1 if not IP
+	 */
+	public int l3Offset() {
+		return l3Offset;
+	}
+
+	/**
+	 * Gets the offset of the L3 payload, after all IP and IPv6 extension
+	 * headers.
+	 *
+	 * @return the offset or -1 if not IP
+	 */
+	public int l3PayloadOffset() {
+		return l3PayloadOffset;
+	}
+
+	/**
+	 * Gets the L4 header offset.
+	 *
+	 * @return the offset or -1 if L4 header is not present
+	 */
+	public int l4Offset() {
+		return l4Offset;
+	}
+
+	/**
+	 * Gets the L4 protocol.
+	 *
+	 * @return the protocol number
+	 */
+	public int l4Protocol() {
+		return l4Protocol;
+	}
+
+	/**
+	 * Scan a packet, of the scanner's data link type.
+	 *
+	 * @param pkt    the packet, must be at least caplen bytes long
+	 * @param caplen the caplen
+	 * @return true, if the packet is IPv4 or IPv6
+	 */
+	public boolean scan(MemorySegment pkt, int caplen) {
+		this.caplen = caplen;
+		this.etherType = 0;
+		this.l3Offset = -1;
+		this.l3PayloadOffset = -1;
+		this.ipVersion = 0;
+		this.l4Protocol = -1;
+		this.l4Offset = -1;
+		this.l4HeaderLength = 0;
+		this.fragment = false;
+		this.ip6FragHeaderOffset = -1;
+		this.ip6FragNextHeaderFieldOffset = -1;
+
+		long l3 = locateL3(datalink, pkt, caplen);
+		if (l3 < 0)
+			return false;
+
+		int type = (int) (l3 >>> 32);
+		int off = (int) l3;
+
+		this.etherType = type;
+
+		if (type == ETHER_TYPE_IPv4)
+			return scanIp4(pkt, off);
+
+		if (type == ETHER_TYPE_IPv6)
+			return scanIp6(pkt, off);
+
+		return false;
+	}
+
+	/**
+	 * Scan an IPv4 header.
+	 *
+	 * @param pkt the pkt
+	 * @param off the off
+	 * @return true, if valid
+	 */
+	private boolean scanIp4(MemorySegment pkt, int off) {
+		if (off + 20 > caplen)
+			return false;
+
+		int vihl = u8(pkt, off);
+		int hlen = (vihl & 0x0F) << 2;
+		if ((vihl >> 4) != 4 || hlen < 20)
+			return false;
+
+		this.l3Offset = off;
+		this.ipVersion = 4;
+		this.l4Protocol = u8(pkt, off + 9);
+		this.l3PayloadOffset = off + hlen;
+
+		int flagsAndOffset = u16(pkt, off + 6);
+		int fragOffset = flagsAndOffset & 0x1FFF;
+		boolean moreFragments = (flagsAndOffset & 0x2000) != 0;
+
+		this.fragment = moreFragments || fragOffset != 0;
+
+		if (fragOffset == 0)
+			scanL4(pkt, off + hlen);
+
+		return true;
+	}
+
+	/**
+	 * Scan an IPv6 header and its extension headers.
+	 *
+	 * @param pkt the pkt
+	 * @param off the off
+	 * @return true, if valid
+	 */
+	private boolean scanIp6(MemorySegment pkt, int off) {
+		if (off + 40 > caplen)
+			return false;
+
+		if ((u8(pkt, off) >> 4) != 6)
+			return false;
+
+		this.l3Offset = off;
+		this.ipVersion = 6;
+
+		int nextHeaderField = off + 6;
+		int next = u8(pkt, nextHeaderField);
+		int pos = off + 40;
+		boolean firstFragment = true;
+
+		for (int i = 0; i < MAX_IP6_EXT_HEADERS; i++) {
+			if (next == IP6_EXT_FRAGMENT) {
+				if (pos + 8 > caplen)
+					break;
+
+				this.fragment = true;
+				this.ip6FragHeaderOffset = pos;
+				this.ip6FragNextHeaderFieldOffset = nextHeaderField;
+
+				firstFragment = (u16(pkt, pos + 2) & 0xFFF8) == 0;
+				nextHeaderField = pos;
+				next = u8(pkt, pos);
+				pos += 8;
+
+			} else if (next == IP6_EXT_HOP_BY_HOP || next == IP6_EXT_ROUTING || next == IP6_EXT_DEST_OPTIONS) {
+				if (pos + 8 > caplen)
+					break;
+
+				nextHeaderField = pos;
+				next = u8(pkt, pos);
+				pos += (u8(pkt, pos + 1) + 1) << 3;
+
+			} else
+				break;
+		}
+
+		this.l4Protocol = next;
+		this.l3PayloadOffset = pos;
+
+		if (firstFragment)
+			scanL4(pkt, pos);
+
+		return true;
+	}
+
+	/**
+	 * Scan an L4 header.
+	 *
+	 * @param pkt the pkt
+	 * @param off the off
+	 */
+	private void scanL4(MemorySegment pkt, int off) {
+		int len = switch (l4Protocol) {
+		case IP_PROTO_UDP -> 8;
+		case IP_PROTO_SCTP -> 12;
+		case IP_PROTO_ICMP, IP_PROTO_ICMPv6 -> 8;
+		case IP_PROTO_TCP -> (off + 13 <= caplen) ? (u8(pkt, off + 12) >> 4) << 2 : 20;
+		default -> 0;
+		};
+
+		if (len == 0 || off + Math.min(len, 4) > caplen)
+			return;
+
+		this.l4Offset = off;
+		this.l4HeaderLength = len;
+	}
+
+	/**
+	 * Compute a flow hash of the last scanned packet. The hash covers the IP
+	 * addresses and protocol only, and is symmetric so that both directions of a
+	 * flow produce the same hash. L4 ports are left out, since only the first
+	 * fragment of an IP datagram carries them, so that all of the fragments of a
+	 * datagram produce the same hash. For IPv6 fragments, the protocol is the
+	 * fragment header's next header, which every fragment carries. Non-IP packets
+	 * are hashed over their first 64 bytes.
+	 *
+	 * @param pkt the packet
+	 * @return the flow hash
+	 */
+	public long flowHash(MemorySegment pkt) {
+		if (l3Offset < 0)
+			return FastHash.hash(pkt, 0, Math.min(caplen, 64), 0);
+
+		int addrOffset = (ipVersion == 4) ? l3Offset + 12 : l3Offset + 8;
+		int addrLength = (ipVersion == 4) ? 4 : 16;
+
+		long src = FastHash.hash(pkt, addrOffset, addrLength, 0);
+		long dst = FastHash.hash(pkt, addrOffset + addrLength, addrLength, 0);
+
+		int protocol = (ip6FragHeaderOffset >= 0) ? u8(pkt, ip6FragHeaderOffset) : l4Protocol;
+
+		long lo = Math.min(src, dst);
+		long hi = Math.max(src, dst);
+
+		return FastHash.combine(FastHash.combine(lo, hi), protocol);
+	}
+}
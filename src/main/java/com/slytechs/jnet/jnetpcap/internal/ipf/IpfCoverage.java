@@ -0,0 +1,126 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+/**
+ * A coverage bitmap of an IP datagram's payload, with one bit per 8 byte
+ * block. IP fragment offsets are always in multiples of 8 bytes, and all but
+ * the last fragment have a length which is a multiple of 8 bytes, so an 8 byte
+ * granularity is exact for holes. Hole and overlap bytes are maintained
+ * incrementally, as each fragment is added, using word level bit operations.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfCoverage {
+
+	/** Bytes per block, the IP fragment offset unit. */
+	private static final int BLOCK_SHIFT = 3;
+
+	/** The coverage bits, 64 blocks per word. */
+	private final long[] bits;
+
+	/** The maximum number of blocks. */
+	private final int maxBlocks;
+
+	/** Number of blocks covered by at least one fragment. */
+	private int coveredBlocks;
+
+	/** One past the highest block covered. */
+	private int endBlock;
+
+	/** Highest word modified, to limit the reset. */
+	private int highWord = -1;
+
+	/**
+	 * Instantiates a new ipf coverage.
+	 *
+	 * @param maxBytes the maximum IP payload size
+	 */
+	IpfCoverage(int maxBytes) {
+		this.maxBlocks = (maxBytes + (1 << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT;
+		this.bits = new long[(maxBlocks + 63) >>> 6];
+	}
+
+	/**
+	 * Add a fragment's payload range to the coverage.
+	 *
+	 * @param offset the payload offset, in bytes
+	 * @param length the payload length, in bytes
+	 * @return the number of bytes in this fragment, which were already covered by
+	 *         previous fragments
+	 */
+	int add(int offset, int length) {
+		if (length <= 0)
+			return 0;
+
+		int first = offset >>> BLOCK_SHIFT;
+		int last = Math.min((offset + length - 1) >>> BLOCK_SHIFT, maxBlocks - 1);
+		if (first > last)
+			return 0;
+
+		int firstWord = first >>> 6;
+		int lastWord = last >>> 6;
+		int overlapBlocks = 0;
+
+		for (int w = firstWord; w <= lastWord; w++) {
+			long mask = -1L;
+			if (w == firstWord)
+				mask &= -1L << (first & 63);
+			if (w == lastWord)
+				mask &= -1L >>> (63 - (last & 63));
+
+			long old = bits[w];
+			overlapBlocks += Long.bitCount(old & mask);
+			bits[w] = old | mask;
+		}
+
+		int blocks = last - first + 1;
+		coveredBlocks += blocks - overlapBlocks;
+
+		if (endBlock < last + 1)
+			endBlock = last + 1;
+
+		if (highWord < lastWord)
+			highWord = lastWord;
+
+		return Math.min(overlapBlocks << BLOCK_SHIFT, length);
+	}
+
+	/**
+	 * Number of payload bytes, between the start of the payload and the end of the
+	 * highest fragment seen, not yet covered by any fragment.
+	 *
+	 * @return the hole bytes
+	 */
+	int holeBytes() {
+		return (endBlock - coveredBlocks) << BLOCK_SHIFT;
+	}
+
+	/**
+	 * Reset the coverage, only clearing the words which were modified.
+	 */
+	void reset() {
+		for (int w = 0; w <= highWord; w++)
+			bits[w] = 0;
+
+		coveredBlocks = 0;
+		endBlock = 0;
+		highWord = -1;
+	}
+}
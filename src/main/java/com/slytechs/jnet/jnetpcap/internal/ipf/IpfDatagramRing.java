@@ -0,0 +1,153 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A preallocated ring of reassembled datagrams, pending dispatch. Datagrams are
+ * added and removed on the capture thread, so the ring has no synchronization.
+ * A slot returned by {@link #poll()} is valid until the next datagram is added.
+ * 
+ * <p>
+ * The ring is full at its capacity, but may have additional preallocated
+ * reserve slots, which hold datagrams past its capacity until they can be
+ * flushed, after the packet being processed has been dispatched.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfDatagramRing {
+
+	/**
+	 * A reassembled datagram slot.
+	 */
+	static final class Slot {
+
+		/** The mseg. */
+		MemorySegment mseg;
+
+		/** The caplen. */
+		int caplen;
+
+		/** The wirelen. */
+		int wirelen;
+
+		/** The timestamp. */
+		long timestamp;
+
+		/** The reassembler. */
+		IpfDgramReassembler reassembler;
+
+		/**
+		 * Release references to the datagram.
+		 */
+		void clear() {
+			this.mseg = null;
+			this.reassembler = null;
+		}
+	}
+
+	/** The slots, including the reserve. */
+	private final Slot[] slots;
+
+	/** The capacity, not including the reserve. */
+	private final int capacity;
+
+	/** The index of the oldest datagram. */
+	private int head;
+
+	/** The number of datagrams in the ring. */
+	private int size;
+
+	/**
+	 * Instantiates a new datagram ring.
+	 *
+	 * @param capacity the capacity
+	 * @param reserve  the number of reserve slots past the capacity
+	 */
+	IpfDatagramRing(int capacity, int reserve) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (reserve < 0)
+			throw new IllegalArgumentException("reserve must not be negative");
+
+		this.capacity = capacity;
+		this.slots = new Slot[capacity + reserve];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = new Slot();
+	}
+
+	/**
+	 * Checks if the ring is full, at or past its capacity.
+	 *
+	 * @return true, if full
+	 */
+	boolean isFull() {
+		return size >= capacity;
+	}
+
+	/**
+	 * Checks if the ring's reserve slots are all used as well.
+	 *
+	 * @return true, if exhausted
+	 */
+	boolean isExhausted() {
+		return size == slots.length;
+	}
+
+	/**
+	 * Adds a datagram. The ring must not be exhausted.
+	 *
+	 * @param mseg        the mseg
+	 * @param caplen      the caplen
+	 * @param wirelen     the wirelen
+	 * @param timestamp   the timestamp
+	 * @param reassembler the reassembler
+	 */
+	void add(MemorySegment mseg, int caplen, int wirelen, long timestamp, IpfDgramReassembler reassembler) {
+		if (size == slots.length)
+			throw new IllegalStateException("datagram ring is full");
+
+		Slot slot = slots[(head + size) % slots.length];
+		slot.mseg = mseg;
+		slot.caplen = caplen;
+		slot.wirelen = wirelen;
+		slot.timestamp = timestamp;
+		slot.reassembler = reassembler;
+
+		size++;
+	}
+
+	/**
+	 * Removes the oldest datagram.
+	 *
+	 * @return the oldest datagram, or null if empty
+	 */
+	Slot poll() {
+		if (size == 0)
+			return null;
+
+		Slot slot = slots[head];
+		head = (head + 1) % slots.length;
+		size--;
+
+		return slot;
+	}
+}
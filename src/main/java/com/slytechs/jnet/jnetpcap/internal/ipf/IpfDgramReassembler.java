@@ -20,6 +20,10 @@ package com.slytechs.jnet.jnetpcap.internal.ipf;
 import static com.slytechs.jnet.jnetruntime.internal.foreign.ForeignUtils.*;
 import static com.slytechs.jnet.protocol.core.constants.CoreConstants.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
@@ -28,6 +32,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import com.slytechs.jnet.jnetpcap.IpfConfiguration;
+import com.slytechs.jnet.jnetpcap.IpfDatagram;
 import com.slytechs.jnet.jnetpcap.IpfReassembler;
 import com.slytechs.jnet.jnetpcap.internal.ipf.JavaIpfDispatcher.DatagramQueue;
 import com.slytechs.jnet.jnetpcap.internal.ipf.TimeoutQueue.Expirable;
@@ -36,7 +41,6 @@ import com.slytechs.jnet.jnetruntime.time.TimestampSource;
 import com.slytechs.jnet.jnetruntime.util.Detail;
 import com.slytechs.jnet.protocol.Registration;
 import com.slytechs.jnet.protocol.core.constants.CoreConstants;
-import com.slytechs.jnet.protocol.descriptor.IpfFragment;
 import com.slytechs.jnet.protocol.descriptor.IpfReassemblyLayout;
 import com.slytechs.jnet.protocol.descriptor.IpfTrackingLayout;
 
@@ -97,6 +101,45 @@ public class IpfDgramReassembler implements Expirable {
 	/** The Constant ENCAPS_HEADER_MAX_LENGTH. */
 	private static final int ENCAPS_HEADER_MAX_LENGTH = 128;
 
+	/** IPv4 total length field offset. */
+	private static final int IPv4_FIELD_TOTAL_LENGTH = 2;
+
+	/** IPv4 fragment offset, low byte, field offset. */
+	private static final int IPv4_FIELD_FRAG_OFFSET_LOW = 7;
+
+	/** IPv4 header checksum field offset. */
+	private static final int IPv4_FIELD_CHECKSUM = 10;
+
+	/** IPv6 payload length field offset. */
+	private static final int IPv6_FIELD_PAYLOAD_LENGTH = 4;
+
+	/** IPv6 next header field offset. */
+	private static final int IPv6_FIELD_NEXT_HEADER = 6;
+
+	/** IPv6 fixed header length. */
+	private static final int IPv6_HEADER_LENGTH = 40;
+
+	/** IPv6 fragment extension header length. */
+	private static final int IPv6_FRAG_HEADER_LENGTH = 8;
+
+	/** IPv6 hop-by-hop options extension header type. */
+	private static final int IPv6_EXT_HOP_BY_HOP = 0;
+
+	/** IPv6 routing extension header type. */
+	private static final int IPv6_EXT_ROUTING = 43;
+
+	/** IPv6 fragment extension header type. */
+	private static final int IPv6_EXT_FRAGMENT = 44;
+
+	/** IPv6 destination options extension header type. */
+	private static final int IPv6_EXT_DESTINATION = 60;
+
+	/** Maximum datagram key length. */
+	private static final int MAX_KEY_LENGTH = 64;
+
+	/** Maximum number of IPv6 extension headers walked. */
+	private static final int IPv6_MAX_EXT_HEADERS = 8;
+
 	/** IPF table entry index. */
 	private final int index;
 
@@ -136,6 +179,9 @@ public class IpfDgramReassembler implements Expirable {
 
 	/** The start time milli. */
 	private long startTimeMilli = 0;
+
+	/** The open sequence assigned by the table's age queue, for eviction. */
+	long ageSequence;
 	
 	/** The reassembled milli. */
 	private long reassembledMilli;
@@ -143,9 +189,12 @@ public class IpfDgramReassembler implements Expirable {
 	/** The next segment index. */
 	private int nextSegmentIndex = 0;
 	
-	/** The segments. */
+	/** The segments, in arrival order until the datagram is finished. */
 	private final IpfSegment[] segments;
 
+	/** The payload coverage bitmap, for incremental hole and overlap sizes. */
+	private final IpfCoverage coverage;
+
 	/** The has first. */
 	private boolean hasFirst;
 	
@@ -188,6 +237,39 @@ public class IpfDgramReassembler implements Expirable {
 	/** The is timeout. */
 	private boolean isTimeout;
 
+	/** The per source budget, if source budgets are enabled. */
+	private IpfSourceBudget budget;
+
+	/** The source budget counter slot, -1 if not charged to a source. */
+	private int sourceSlot = -1;
+
+	/** The bytes charged to the source budget. */
+	private int chargedBytes;
+
+	/** The source byte budget was exceeded. */
+	private boolean isBudgetExceeded;
+
+	/** Position of the IP header in the reassembled buffer, -1 if no headers. */
+	private int ipHeaderPosition = -1;
+
+	/** Fragment payloads are pooled in arrival order, not placed at their offsets. */
+	private final boolean isScatterGather;
+
+	/** The next free offset in the fragment payload pool, in scatter-gather mode. */
+	private int poolOffset;
+
+	/** The scatter-gather view, null if not in scatter-gather mode. */
+	private final IpfScatterGather scatterGatherView;
+
+	/** A copy of the datagram key, for state export. */
+	private final byte[] keyBytes = new byte[MAX_KEY_LENGTH];
+
+	/** The key length. */
+	private int keyLength;
+
+	/** The key hashcode. */
+	private long hashcode;
+
 	/**
 	 * Instantiates a new ipf dgram reassembler.
 	 *
@@ -209,9 +291,14 @@ public class IpfDgramReassembler implements Expirable {
 		this.timeSource = config.getTimeSource();
 		this.config = config;
 		this.segments = new IpfSegment[config.getMaxFragmentCount()];
+		this.coverage = new IpfCoverage(ipPayloadView.capacity());
 
 		this.isReassemblyEnabled = config.isReassemblyEnabled();
 		this.isTimeoutOnLast = config.isTimeoutOnLast();
+		this.isScatterGather = config.isScatterGather();
+		this.scatterGatherView = isScatterGather
+				? new IpfScatterGather(config.getMaxFragmentCount())
+				: null;
 
 		IntStream
 				.range(0, config.getMaxFragmentCount())
@@ -225,9 +312,18 @@ public class IpfDgramReassembler implements Expirable {
 	 */
 	void addDatagramToQueue(DatagramQueue queue) {
 
-		int caplen = buffer.remaining();
 		long timestamp = timeSource.timestamp();
 
+		/* Scatter-gather datagrams are not contiguous, the view is built on dispatch */
+		if (isScatterGather) {
+			int caplen = (ENCAPS_HEADER_MAX_LENGTH - headersPosition()) + observedSize;
+			queue.addDatagram(MemorySegment.NULL, caplen, caplen, timestamp, this);
+
+			return;
+		}
+
+		int caplen = buffer.remaining();
+
 		/*
 		 * We create a new memory segment view of the buffer, but most importantly using
 		 * the memory session for this reassembly session. When we're done dispatching
@@ -242,6 +338,29 @@ public class IpfDgramReassembler implements Expirable {
 
 	}
 
+	/**
+	 * Charge this datagram to a source's budget. The datagram count is already
+	 * charged, the bytes are charged as fragments arrive. Everything is released
+	 * when the datagram is closed.
+	 *
+	 * @param budget the source budget table
+	 * @param slot   the source counter slot
+	 */
+	void bindSource(IpfSourceBudget budget, int slot) {
+		this.budget = budget;
+		this.sourceSlot = slot;
+		this.chargedBytes = 0;
+	}
+
+	/**
+	 * Gets the number of bytes buffered so far.
+	 *
+	 * @return the buffered bytes
+	 */
+	int bufferedBytes() {
+		return reassembledBytes;
+	}
+
 	/**
 	 * Cancel timeout.
 	 */
@@ -267,6 +386,12 @@ public class IpfDgramReassembler implements Expirable {
 
 		Arrays.stream(segments).forEach(IpfSegment::reset);
 
+		if (sourceSlot >= 0) {
+			budget.release(sourceSlot, chargedBytes);
+			sourceSlot = -1;
+			chargedBytes = 0;
+		}
+
 		/*
 		 * Revoke access to buffer's memory. If someone want to retain it, they have to
 		 * clone/copy the data before this entry is closed
@@ -274,6 +399,8 @@ public class IpfDgramReassembler implements Expirable {
 		if (session != null) {
 			session.close();
 			session = null;
+
+			config.getIpfStatistics().incTableEntryClosed(1);
 		}
 
 		if (timeoutRegistration != null)
@@ -284,6 +411,26 @@ public class IpfDgramReassembler implements Expirable {
 //		System.out.println("close [#%d]".formatted(index));
 	}
 
+	/**
+	 * Discard a table entry which was never opened, for example when its source
+	 * is over budget.
+	 */
+	void discard() {
+		if (session != null)
+			throw new IllegalStateException("can not discard, still active");
+
+		resetHashtableKey();
+		markHashtableEntryAvailable();
+	}
+
+	/**
+	 * Evict this incomplete datagram, releasing its table entry and buffer.
+	 */
+	void evict() {
+		resetHashtableKey();
+		close();
+	}
+
 	/**
 	 * Expiration.
 	 *
@@ -309,12 +456,17 @@ public class IpfDgramReassembler implements Expirable {
 		this.isComplete = true;
 		this.isTimeout = false;
 
-		buffer.position(encapsView.position());
-		buffer.limit(ENCAPS_HEADER_MAX_LENGTH + observedSize);
+		if (!isScatterGather) {
+			buffer.position(encapsView.position());
+			buffer.limit(ENCAPS_HEADER_MAX_LENGTH + observedSize);
+		}
 
 		this.reassembledMilli = timeSource.millis() - startTimeMilli;
 
-		this.overlapBytes = IpfSegment.recalcOverlaps(segments, nextSegmentIndex);
+		config.getIpfStatistics().recordDatagramCompleted(nextSegmentIndex, observedSize, reassembledMilli);
+
+		fixupIpHeader();
+		sortSegments();
 	}
 
 	/**
@@ -325,10 +477,65 @@ public class IpfDgramReassembler implements Expirable {
 		this.isComplete = false;
 		this.isTimeout = true;
 
-		buffer.position(encapsView.position());
-		buffer.limit(ENCAPS_HEADER_MAX_LENGTH + observedSize);
+		if (holeBytes > 0)
+			config.getIpfStatistics().incHole(1);
+
+		if (!isScatterGather) {
+			buffer.position(encapsView.position());
+			buffer.limit(ENCAPS_HEADER_MAX_LENGTH + observedSize);
+		}
+
+		fixupIpHeader();
+		sortSegments();
+	}
+
+	/**
+	 * Fix up the length fields of the reassembled IP header, now that the
+	 * reassembled payload size is known. For IPv4 the total length and the header
+	 * checksum are updated, for IPv6 the payload length.
+	 */
+	private void fixupIpHeader() {
+		if (ipHeaderPosition < 0)
+			return;
+
+		int ipHeaderLength = ENCAPS_HEADER_MAX_LENGTH - ipHeaderPosition;
+
+		if (isIp4) {
+			encapsView.putShort(ipHeaderPosition + IPv4_FIELD_TOTAL_LENGTH, (short) (ipHeaderLength + observedSize));
+			encapsView.putShort(ipHeaderPosition + IPv4_FIELD_CHECKSUM, (short) 0);
+			encapsView.putShort(ipHeaderPosition + IPv4_FIELD_CHECKSUM,
+					(short) ip4HeaderChecksum(ipHeaderPosition, (encapsView.get(ipHeaderPosition) & 0x0F) << 2));
+
+		} else {
+			int payloadLength = ipHeaderLength - IPv6_HEADER_LENGTH + observedSize;
+
+			encapsView.putShort(ipHeaderPosition + IPv6_FIELD_PAYLOAD_LENGTH, (short) payloadLength);
+		}
+	}
+
+	/**
+	 * Compute the IPv4 header checksum, with the checksum field set to 0.
+	 *
+	 * @param offset the IP header offset
+	 * @param length the IP header length
+	 * @return the checksum
+	 */
+	private int ip4HeaderChecksum(int offset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i += 2)
+			sum += encapsView.getShort(offset + i) & 0xFFFF;
+
+		while ((sum >>> 16) != 0)
+			sum = (sum & 0xFFFF) + (sum >>> 16);
 
-		this.overlapBytes = IpfSegment.recalcOverlaps(segments, nextSegmentIndex);
+		return ~sum & 0xFFFF;
+	}
+
+	/**
+	 * Sort the segments by offset, once per datagram, for the descriptor records.
+	 */
+	private void sortSegments() {
+		Arrays.sort(segments, 0, nextSegmentIndex);
 	}
 
 	/**
@@ -340,6 +547,24 @@ public class IpfDgramReassembler implements Expirable {
 		return isComplete;
 	}
 
+	/**
+	 * Checks if the source byte budget was exceeded by the last fragment.
+	 *
+	 * @return true, if budget exceeded
+	 */
+	public boolean isBudgetExceeded() {
+		return isBudgetExceeded;
+	}
+
+	/**
+	 * Checks if this table entry is open, reassembling a datagram.
+	 *
+	 * @return true, if open
+	 */
+	boolean isOpen() {
+		return session != null;
+	}
+
 	/**
 	 * Checks if is expired.
 	 *
@@ -375,18 +600,31 @@ public class IpfDgramReassembler implements Expirable {
 	/**
 	 * Open.
 	 *
-	 * @param key the key
+	 * @param key      the key
+	 * @param hashcode the key hashcode
 	 */
-	public void open(ByteBuffer key) {
+	public void open(ByteBuffer key, long hashcode) {
 		if (session != null)
 			throw new IllegalStateException("can not reset, still active");
 
+		this.hashcode = hashcode;
+		this.keyLength = Math.min(key.remaining(), MAX_KEY_LENGTH);
+		key.get(key.position(), keyBytes, 0, keyLength);
+
 		this.expiration = timeSource.timestamp() + config.getTimeoutMilli();
 		this.tableEntry.setKey(key);
 		this.session = Arena.ofShared();
+		this.config.getIpfStatistics().incTableEntryOpened(1);
 
 		this.buffer.clear();
 		this.observedSize = 0;
+		this.holeBytes = 0;
+		this.overlapBytes = 0;
+		this.reassembledBytes = 0;
+		this.isBudgetExceeded = false;
+		this.ipHeaderPosition = -1;
+		this.poolOffset = 0;
+		this.coverage.reset();
 
 		markHashtableEntryUnavailable();
 
@@ -394,13 +632,135 @@ public class IpfDgramReassembler implements Expirable {
 
 	}
 
+	/**
+	 * Export the state of this incomplete datagram: its key, flags, timestamps,
+	 * counters, segments, encapsulating headers and buffered payload bytes. The
+	 * key and hashcode are written first, followed by the length of the rest of
+	 * the record, so that a record can be skipped on import.
+	 *
+	 * @param out the output
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void exportState(DataOutputStream out) throws IOException {
+		out.writeLong(hashcode);
+		out.writeByte(keyLength);
+		out.write(keyBytes, 0, keyLength);
+
+		var record = new ByteArrayOutputStream();
+		var rec = new DataOutputStream(record);
+
+		rec.writeBoolean(isIp4);
+		rec.writeBoolean(hasFirst);
+		rec.writeBoolean(hasLast);
+		rec.writeLong(startTimeMilli);
+		rec.writeLong(expiration);
+
+		int headersPosition = headersPosition();
+		rec.writeInt(ipHeaderPosition);
+		rec.writeInt(headersPosition);
+		byte[] headers = new byte[ENCAPS_HEADER_MAX_LENGTH - headersPosition];
+		encapsView.get(headersPosition, headers);
+		rec.write(headers);
+
+		rec.writeInt(observedSize);
+		rec.writeInt(reassembledBytes);
+		rec.writeInt(overlapBytes);
+		rec.writeInt(poolOffset);
+
+		rec.writeInt(nextSegmentIndex);
+		for (int i = 0; i < nextSegmentIndex; i++) {
+			IpfSegment seg = segments[i];
+			rec.writeInt(seg.offset);
+			rec.writeInt(seg.length);
+			rec.writeInt(seg.overlay);
+			rec.writeInt(seg.poolOffset);
+			rec.writeLong(seg.frameNo);
+			rec.writeLong(seg.timestamp);
+		}
+
+		int extent = isScatterGather ? poolOffset : observedSize;
+		byte[] payload = new byte[extent];
+		ipPayloadView.get(0, payload);
+
+		rec.writeInt(extent);
+		rec.write(payload);
+		rec.flush();
+
+		out.writeInt(record.size());
+		record.writeTo(out);
+	}
+
+	/**
+	 * Import the state of an incomplete datagram, exported by
+	 * {@link #exportState(DataOutputStream)}. The reassembler must have just been
+	 * opened with the record's key, which has already been read.
+	 *
+	 * @param in the input, positioned at the record length
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void importState(DataInputStream in) throws IOException {
+		in.readInt(); // Record length
+
+		this.isIp4 = in.readBoolean();
+		this.hasFirst = in.readBoolean();
+		this.hasLast = in.readBoolean();
+		this.startTimeMilli = in.readLong();
+		this.expiration = in.readLong();
+
+		this.ipHeaderPosition = in.readInt();
+		int headersPosition = in.readInt();
+		if (headersPosition < 0 || headersPosition > ENCAPS_HEADER_MAX_LENGTH)
+			throw new IllegalArgumentException("invalid IPF state, headers position " + headersPosition);
+
+		byte[] headers = new byte[ENCAPS_HEADER_MAX_LENGTH - headersPosition];
+		in.readFully(headers);
+		encapsView.clear();
+		encapsView.put(headersPosition, headers);
+		encapsView.position(headersPosition);
+		buffer.position(headersPosition);
+
+		this.observedSize = in.readInt();
+		this.reassembledBytes = in.readInt();
+		this.overlapBytes = in.readInt();
+		this.poolOffset = in.readInt();
+
+		int count = in.readInt();
+		if (count > segments.length)
+			throw new IllegalArgumentException("invalid IPF state, %d fragments, max %d"
+					.formatted(count, segments.length));
+
+		for (int i = 0; i < count; i++) {
+			IpfSegment seg = segments[i];
+			seg.offset = in.readInt();
+			seg.length = in.readInt();
+			seg.overlay = in.readInt();
+			seg.poolOffset = in.readInt();
+			seg.frameNo = in.readLong();
+			seg.timestamp = in.readLong();
+
+			coverage.add(seg.offset, seg.length);
+		}
+
+		this.nextSegmentIndex = count;
+		this.holeBytes = coverage.holeBytes();
+
+		int extent = in.readInt();
+		if (extent > ipPayloadView.capacity())
+			throw new IllegalArgumentException("invalid IPF state, %d payload bytes, max %d"
+					.formatted(extent, ipPayloadView.capacity()));
+
+		byte[] payload = new byte[extent];
+		in.readFully(payload);
+		ipPayloadView.put(0, payload);
+	}
+
 	/**
 	 * Process common.
 	 *
 	 * @param packet the packet
 	 * @param desc   the desc
 	 */
-	private void processCommon(ByteBuffer packet, IpfFragment desc) {
+	private void processCommon(ByteBuffer packet, IpfFragmentInfo desc) {
 
 		/*
 		 * If fragment arrives out of order but is the first frag we see, we copy the
@@ -417,9 +777,13 @@ public class IpfDgramReassembler implements Expirable {
 		ipfSegment.frameNo = frameNo;
 		ipfSegment.timestamp = timeSource.timestamp();
 
-		Arrays.sort(segments, 0, nextSegmentIndex);
+		/* Hole and overlap sizes are maintained incrementally, no sorting */
+		ipfSegment.overlay = coverage.add(ipfSegment.offset, ipfSegment.length);
+		this.overlapBytes += ipfSegment.overlay;
+		this.holeBytes = coverage.holeBytes();
 
-		this.holeBytes = IpfSegment.calcHoleSize(segments, nextSegmentIndex);
+		if (ipfSegment.overlay > 0)
+			config.getIpfStatistics().incOverlap(1);
 
 		if (isReassemblyEnabled)
 			reassembleFragment(ipfSegment, packet, ipfSegment.offset, ipfSegment.length, desc.dataOffset());
@@ -432,7 +796,7 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param desc   the desc
 	 * @return true, if successful
 	 */
-	private boolean processFirst(ByteBuffer packet, IpfFragment desc) {
+	private boolean processFirst(ByteBuffer packet, IpfFragmentInfo desc) {
 
 		/*
 		 * First fragment always takes priority, even if it arrives out of order. It may
@@ -457,7 +821,7 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param desc    the desc
 	 * @return true, if successful
 	 */
-	public boolean processFragment(long frameNo, ByteBuffer packet, IpfFragment desc) {
+	public boolean processFragment(long frameNo, ByteBuffer packet, IpfFragmentInfo desc) {
 		this.frameNo = frameNo;
 
 		if (!desc.isFrag())
@@ -467,6 +831,19 @@ public class IpfDgramReassembler implements Expirable {
 		if (nextSegmentIndex == segments.length)
 			return false;
 
+		/* No more room in the fragment pool */
+		if (isScatterGather && isReassemblyEnabled && poolOffset + desc.dataLength() > ipPayloadView.capacity())
+			return false;
+
+		if (sourceSlot >= 0) {
+			if (!budget.tryCharge(sourceSlot, desc.dataLength())) {
+				isBudgetExceeded = true;
+				return false;
+			}
+
+			chargedBytes += desc.dataLength();
+		}
+
 		if (startTimeMilli == 0) {
 			startTimeMilli = timeSource.timestamp();
 			expiration = startTimeMilli + config.getTimeoutMilli();
@@ -496,7 +873,7 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param desc   the desc
 	 * @return true, if successful
 	 */
-	private boolean processLast(ByteBuffer packet, IpfFragment desc) {
+	private boolean processLast(ByteBuffer packet, IpfFragmentInfo desc) {
 		hasLast = true;
 
 		processCommon(packet, desc);
@@ -519,7 +896,7 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param desc   the desc
 	 * @return true, if successful
 	 */
-	private boolean processMiddle(ByteBuffer packet, IpfFragment desc) {
+	private boolean processMiddle(ByteBuffer packet, IpfFragmentInfo desc) {
 
 		processCommon(packet, desc);
 		finishIfComplete();
@@ -538,7 +915,15 @@ public class IpfDgramReassembler implements Expirable {
 	 */
 	private void reassembleFragment(IpfSegment ipfSegment, ByteBuffer packet, int fragOffset, int length,
 			int dataOffset) {
-		ipPayloadView.put(fragOffset, packet, dataOffset, length);
+
+		if (isScatterGather) {
+			ipfSegment.poolOffset = poolOffset;
+			ipPayloadView.put(poolOffset, packet, dataOffset, length);
+			poolOffset += length;
+
+		} else {
+			ipPayloadView.put(fragOffset, packet, dataOffset, length);
+		}
 
 		this.reassembledBytes += length;
 
@@ -552,7 +937,7 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param packet the packet
 	 * @param desc   the desc
 	 */
-	private void reassembleHeaders(ByteBuffer packet, IpfFragment desc) {
+	private void reassembleHeaders(ByteBuffer packet, IpfFragmentInfo desc) {
 		int ecapsLen = desc.headerAndRequiredOptionsLength() + desc.headerOffset();
 		int position = ENCAPS_HEADER_MAX_LENGTH - ecapsLen;
 		encapsView.clear();
@@ -564,7 +949,9 @@ public class IpfDgramReassembler implements Expirable {
 		if (desc.isIp4())
 			clearIp4Flags(position, desc);
 		else
-			clearIp6FragmentHeader(position, desc);
+			position = clearIp6FragmentHeader(position, packet, desc);
+
+		this.ipHeaderPosition = position + desc.headerOffset();
 
 		encapsView.position(position);
 		buffer.position(position);
@@ -576,18 +963,123 @@ public class IpfDgramReassembler implements Expirable {
 	 * @param position the position
 	 * @param desc     the desc
 	 */
-	private void clearIp4Flags(int position, IpfFragment desc) {
+	private void clearIp4Flags(int position, IpfFragmentInfo desc) {
 		/* clear all flags and set fragment offset to 0 */ 
 		encapsView.put(position + desc.headerOffset() + CoreConstants.IPv4_FIELD_FLAGS, (byte) 0);
+		encapsView.put(position + desc.headerOffset() + IPv4_FIELD_FRAG_OFFSET_LOW, (byte) 0);
 	}
 
 	/**
-	 * Clear ip 6 fragment header.
+	 * Remove the IPv6 fragment extension header from the copied headers. The
+	 * extension header chain of the original fragment is walked, from the IPv6
+	 * header, through any hop-by-hop, routing or destination options headers, to
+	 * the fragment header. The next-header field which pointed at the fragment
+	 * header is set to the fragment header's next-header value, and the headers
+	 * which precede the fragment header are moved forward, over it, so that they
+	 * remain connected to the reassembled payload.
 	 *
-	 * @param position the position
+	 * @param position the position of the copied headers in the encaps view
+	 * @param packet   the original fragment packet
 	 * @param desc     the desc
+	 * @return the new position of the copied headers
+	 */
+	private int clearIp6FragmentHeader(int position, ByteBuffer packet, IpfFragmentInfo desc) {
+		int l3 = desc.headerOffset();
+		int limit = packet.limit();
+
+		int nextHeaderField = l3 + IPv6_FIELD_NEXT_HEADER;
+		int next = packet.get(nextHeaderField) & 0xFF;
+		int pos = l3 + IPv6_HEADER_LENGTH;
+		int fragHeader = -1;
+
+		for (int i = 0; i < IPv6_MAX_EXT_HEADERS && pos + IPv6_FRAG_HEADER_LENGTH <= limit; i++) {
+			if (next == IPv6_EXT_FRAGMENT) {
+				fragHeader = pos;
+				break;
+			}
+
+			if (next != IPv6_EXT_HOP_BY_HOP
+					&& next != IPv6_EXT_ROUTING
+					&& next != IPv6_EXT_DESTINATION)
+				break;
+
+			nextHeaderField = pos;
+			next = packet.get(pos) & 0xFF;
+			pos += ((packet.get(pos + 1) & 0xFF) + 1) << 3;
+		}
+
+		if (fragHeader == -1)
+			return position; // No fragment header, nothing to remove
+
+		int ecapsLen = ENCAPS_HEADER_MAX_LENGTH - position;
+		byte fragNextHeader = packet.get(fragHeader);
+
+		/* Re-chain the next header field, in our copy, around the fragment header */
+		if (nextHeaderField < ecapsLen)
+			encapsView.put(position + nextHeaderField, fragNextHeader);
+
+		if (fragHeader + IPv6_FRAG_HEADER_LENGTH > ecapsLen)
+			return position; // Fragment header was not part of the copied headers
+
+		/* Move everything before the fragment header forward, over it */
+		MemorySegment.copy(mseg, position, mseg, position + IPv6_FRAG_HEADER_LENGTH, fragHeader);
+
+		return position + IPv6_FRAG_HEADER_LENGTH;
+	}
+
+	/**
+	 * Gets the position of the first encapsulating header byte.
+	 *
+	 * @return the headers position, or the headers end if no headers were copied
+	 */
+	private int headersPosition() {
+		return (ipHeaderPosition < 0) ? ENCAPS_HEADER_MAX_LENGTH : encapsView.position();
+	}
+
+	/**
+	 * Checks if fragment payloads are kept in scatter-gather form.
+	 *
+	 * @return true, if scatter-gather
+	 */
+	boolean isScatterGather() {
+		return isScatterGather;
+	}
+
+	/**
+	 * Build the scatter-gather view of the finished datagram. Payload segments
+	 * are sorted by offset when the datagram finishes, here they are clipped so
+	 * that they do not overlap. The view's memory is scoped to this reassembly
+	 * session, and is revoked when the reassembler is closed.
+	 *
+	 * @param timestamp the datagram timestamp
+	 * @return the scatter-gather view
 	 */
-	private void clearIp6FragmentHeader(int position, IpfFragment desc) {
+	IpfDatagram scatterGatherView(long timestamp) {
+		MemorySegment mem = mseg.reinterpret(mseg.byteSize(), session, EMPTY_CLEANUP);
+
+		int headersPosition = headersPosition();
+		scatterGatherView.bind(
+				mem.asSlice(headersPosition, ENCAPS_HEADER_MAX_LENGTH - headersPosition),
+				observedSize,
+				isComplete,
+				timestamp);
+
+		int end = 0;
+		for (int i = 0; i < nextSegmentIndex; i++) {
+			IpfSegment seg = segments[i];
+			int start = Math.max(seg.offset, end);
+			int segEnd = seg.offset + seg.length;
+
+			if (segEnd <= start)
+				continue; // Entirely overlapped
+
+			long poolStart = ENCAPS_HEADER_MAX_LENGTH + seg.poolOffset + (start - seg.offset);
+			scatterGatherView.add(mem.asSlice(poolStart, segEnd - start), start);
+
+			end = segEnd;
+		}
+
+		return scatterGatherView;
 	}
 
 	/**
@@ -597,6 +1089,15 @@ public class IpfDgramReassembler implements Expirable {
 		this.tableEntry.clearKey();
 	}
 
+	/**
+	 * Gets the time reassembly started, 0 if no fragments were received yet.
+	 *
+	 * @return the start time
+	 */
+	long startTime() {
+		return startTimeMilli;
+	}
+
 	/**
 	 * Sets the used to cancel entry on the timeout queue.
 	 *
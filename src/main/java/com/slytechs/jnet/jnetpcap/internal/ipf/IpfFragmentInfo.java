@@ -0,0 +1,320 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import static java.lang.foreign.ValueLayout.*;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+import com.slytechs.jnet.jnetpcap.internal.FastHash;
+import com.slytechs.jnet.jnetpcap.internal.RawPacketScanner;
+import com.slytechs.jnet.protocol.descriptor.IpfFragment;
+
+/**
+ * IP fragment information used by the IPF engine, the reassembly table and the
+ * datagram reassemblers. The information is extracted from the raw packet
+ * bytes in a single walk, by the same scanner which classifies packets as
+ * fragments, so that the IPF engine does not need its own protocol
+ * dissection. The accessor names match those of the IPF fragment descriptor.
+ * 
+ * <p>
+ * An instance is reused for every packet and is not thread safe.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfFragmentInfo {
+
+	/** Maximum key length, IPv6 source and destination addresses and ID. */
+	private static final int MAX_KEY_LENGTH = 36;
+
+	/** The raw packet scanner. */
+	private final RawPacketScanner scanner;
+
+	/** The key bytes. */
+	private final byte[] keyBytes = new byte[MAX_KEY_LENGTH];
+
+	/** The key buffer, a view of the key bytes. */
+	private final ByteBuffer key = ByteBuffer.wrap(keyBytes);
+
+	/** The key length. */
+	private int keyLength;
+
+	/** The key hash, computed from the key fields as primitive longs. */
+	private long keyHash;
+
+	/** The is frag. */
+	private boolean isFrag;
+
+	/** The is ip 4. */
+	private boolean isIp4;
+
+	/** The is last frag. */
+	private boolean isLastFrag;
+
+	/** The IP header offset. */
+	private int headerOffset;
+
+	/** The IP header length, including options or extension headers. */
+	private int headerLength;
+
+	/** The fragment offset, in bytes. */
+	private int fragOffset;
+
+	/** The fragment data offset within the packet. */
+	private int dataOffset;
+
+	/** The fragment data length. */
+	private int dataLength;
+
+	/**
+	 * Instantiates a new fragment information of Ethernet frames.
+	 */
+	IpfFragmentInfo() {
+		this(RawPacketScanner.DLT_EN10MB);
+	}
+
+	/**
+	 * Instantiates a new fragment information.
+	 *
+	 * @param datalink the data link type of the scanned packets, a DLT value
+	 */
+	IpfFragmentInfo(int datalink) {
+		this.scanner = new RawPacketScanner(datalink);
+	}
+
+	/**
+	 * Copy the fragment information from an IPF fragment descriptor, produced by
+	 * a full dissection of a packet the raw scanner does not support.
+	 *
+	 * @param desc the IPF fragment descriptor
+	 * @return true, if the packet is an IP fragment
+	 */
+	public boolean copyFrom(IpfFragment desc) {
+		this.isFrag = false;
+		this.keyLength = 0;
+
+		if (!desc.isFrag())
+			return false;
+
+		ByteBuffer descKey = desc.keyBuffer();
+		int length = Math.min(descKey.remaining(), MAX_KEY_LENGTH);
+		descKey.get(keyBytes, 0, length);
+
+		this.keyLength = length;
+		this.keyHash = FastHash.mix(FastHash.hash(MemorySegment.ofArray(keyBytes), 0, length, 0));
+		this.isIp4 = desc.isIp4();
+		this.isLastFrag = desc.isLastFrag();
+		this.headerOffset = desc.headerOffset();
+		this.headerLength = desc.headerAndRequiredOptionsLength();
+		this.fragOffset = desc.fragOffset();
+		this.dataOffset = desc.dataOffset();
+		this.dataLength = desc.dataLength();
+		this.isFrag = dataLength > 0;
+
+		return isFrag;
+	}
+
+	/**
+	 * Copy bytes into the key.
+	 *
+	 * @param pkt    the packet
+	 * @param offset the packet offset
+	 * @param length the number of bytes
+	 */
+	private void appendKey(MemorySegment pkt, int offset, int length) {
+		MemorySegment.copy(pkt, JAVA_BYTE, offset, keyBytes, keyLength, length);
+		keyLength += length;
+	}
+
+	/**
+	 * The fragment data length.
+	 *
+	 * @return the length
+	 */
+	public int dataLength() {
+		return dataLength;
+	}
+
+	/**
+	 * The fragment data offset within the packet.
+	 *
+	 * @return the offset
+	 */
+	public int dataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * The fragment offset within the datagram's payload, in bytes.
+	 *
+	 * @return the offset
+	 */
+	public int fragOffset() {
+		return fragOffset;
+	}
+
+	/**
+	 * The length of the IP header, including IPv4 options or the IPv6
+	 * unfragmentable extension headers and the fragment header.
+	 *
+	 * @return the length
+	 */
+	public int headerAndRequiredOptionsLength() {
+		return headerLength;
+	}
+
+	/**
+	 * The IP header offset within the packet.
+	 *
+	 * @return the offset
+	 */
+	public int headerOffset() {
+		return headerOffset;
+	}
+
+	/**
+	 * Checks if the last scanned packet is a fragment.
+	 *
+	 * @return true, if fragment
+	 */
+	public boolean isFrag() {
+		return isFrag;
+	}
+
+	/**
+	 * Checks if the fragment is IPv4.
+	 *
+	 * @return true, if IPv4
+	 */
+	public boolean isIp4() {
+		return isIp4;
+	}
+
+	/**
+	 * Checks if this is the last fragment, the more fragments flag is not set.
+	 *
+	 * @return true, if last fragment
+	 */
+	public boolean isLastFrag() {
+		return isLastFrag;
+	}
+
+	/**
+	 * The datagram key, made up of the source and destination addresses, the
+	 * identification and for IPv4 the protocol. The returned buffer is rewound on
+	 * every call.
+	 *
+	 * @return the key buffer
+	 */
+	public ByteBuffer keyBuffer() {
+		return key.clear().limit(keyLength);
+	}
+
+	/**
+	 * The 64-bit multiply-xorshift hash of the datagram key, computed during the
+	 * scan from the key fields read as primitive longs.
+	 *
+	 * @return the key hash
+	 */
+	public long keyHash() {
+		return keyHash;
+	}
+
+	/**
+	 * Scan a packet for IP fragment information.
+	 *
+	 * @param pkt    the packet, must be at least caplen bytes long
+	 * @param caplen the caplen
+	 * @return true, if the packet is an IP fragment
+	 */
+	public boolean scan(MemorySegment pkt, int caplen) {
+		this.isFrag = false;
+		this.keyLength = 0;
+
+		if (!scanner.scan(pkt, caplen) || !scanner.isFragment())
+			return false;
+
+		int l3 = scanner.l3Offset();
+
+		if (scanner.ipVersion() == 4) {
+			int ihl = (RawPacketScanner.u8(pkt, l3) & 0x0F) << 2;
+			int totalLength = RawPacketScanner.u16(pkt, l3 + 2);
+			int flags = RawPacketScanner.u16(pkt, l3 + 6);
+
+			this.isIp4 = true;
+			this.headerLength = ihl;
+			this.fragOffset = (flags & 0x1FFF) << 3;
+			this.isLastFrag = (flags & 0x2000) == 0;
+			this.dataOffset = l3 + ihl;
+			this.dataLength = Math.min(totalLength - ihl, caplen - dataOffset);
+
+			appendKey(pkt, l3 + 12, 8); // Src and dst addresses
+			appendKey(pkt, l3 + 4, 2); // Identification
+			appendKey(pkt, l3 + 9, 1); // Protocol
+
+			long idAndProtocol = (RawPacketScanner.u16(pkt, l3 + 4) << 8) | RawPacketScanner.u8(pkt, l3 + 9);
+
+			long h = FastHash.step(0, pkt.get(JAVA_LONG_UNALIGNED, l3 + 12));
+			this.keyHash = FastHash.mix(FastHash.step(h, idAndProtocol));
+
+		} else {
+			int frag = scanner.ip6FragHeaderOffset();
+			if (frag < 0)
+				return false;
+
+			int payloadLength = RawPacketScanner.u16(pkt, l3 + 4);
+			int offsetAndFlags = RawPacketScanner.u16(pkt, frag + 2);
+
+			this.isIp4 = false;
+			this.headerLength = (frag + 8) - l3;
+			this.fragOffset = offsetAndFlags & 0xFFF8;
+			this.isLastFrag = (offsetAndFlags & 0x0001) == 0;
+			this.dataOffset = frag + 8;
+			this.dataLength = Math.min(payloadLength + 40 - headerLength, caplen - dataOffset);
+
+			appendKey(pkt, l3 + 8, 32); // Src and dst addresses
+			appendKey(pkt, frag + 4, 4); // Identification
+
+			long h = FastHash.step(0, pkt.get(JAVA_LONG_UNALIGNED, l3 + 8));
+			h = FastHash.step(h, pkt.get(JAVA_LONG_UNALIGNED, l3 + 16));
+			h = FastHash.step(h, pkt.get(JAVA_LONG_UNALIGNED, l3 + 24));
+			h = FastHash.step(h, pkt.get(JAVA_LONG_UNALIGNED, l3 + 32));
+			this.keyHash = FastHash.mix(FastHash.step(h, pkt.get(JAVA_INT_UNALIGNED, frag + 4) & 0xFFFF_FFFFL));
+		}
+
+		if (dataLength <= 0)
+			return false;
+
+		this.headerOffset = l3;
+		this.isFrag = true;
+
+		return true;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "IpfFragmentInfo [ip%s, offset=%d, length=%d, last=%s]"
+				.formatted(isIp4 ? "4" : "6", fragOffset, dataLength, isLastFrag);
+	}
+}
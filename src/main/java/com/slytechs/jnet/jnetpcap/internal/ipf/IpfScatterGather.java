@@ -0,0 +1,257 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import static java.lang.foreign.ValueLayout.*;
+
+import java.lang.foreign.MemorySegment;
+
+import com.slytechs.jnet.jnetpcap.IpfDatagram;
+
+/**
+ * Scatter-gather view of a reassembled datagram. The view is owned by a
+ * reassembler and rebound each time it finishes a datagram. Payload segments
+ * are slices of the reassembler's fragment pool, added in datagram offset order
+ * and clipped so they do not overlap.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfScatterGather implements IpfDatagram {
+
+	/** The payload slices. */
+	private final MemorySegment[] slices;
+
+	/** The payload offset of each slice. */
+	private final int[] offsets;
+
+	/** The number of slices. */
+	private int count;
+
+	/** The encapsulating headers. */
+	private MemorySegment headers = MemorySegment.NULL;
+
+	/** The payload length. */
+	private int payloadLength;
+
+	/** The is complete. */
+	private boolean isComplete;
+
+	/** The timestamp. */
+	private long timestamp;
+
+	/**
+	 * Instantiates a new scatter-gather view.
+	 *
+	 * @param maxSegments the maximum number of payload segments
+	 */
+	IpfScatterGather(int maxSegments) {
+		this.slices = new MemorySegment[maxSegments];
+		this.offsets = new int[maxSegments];
+	}
+
+	/**
+	 * Adds a payload slice, slices must be added in offset order and must not
+	 * overlap.
+	 *
+	 * @param slice  the slice
+	 * @param offset the payload offset
+	 */
+	void add(MemorySegment slice, int offset) {
+		slices[count] = slice;
+		offsets[count++] = offset;
+	}
+
+	/**
+	 * Bind the view to a new datagram, with no payload slices.
+	 *
+	 * @param headers       the encapsulating headers
+	 * @param payloadLength the payload length
+	 * @param isComplete    the is complete
+	 * @param timestamp     the timestamp
+	 */
+	void bind(MemorySegment headers, int payloadLength, boolean isComplete, long timestamp) {
+		this.headers = headers;
+		this.payloadLength = payloadLength;
+		this.isComplete = isComplete;
+		this.timestamp = timestamp;
+		this.count = 0;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#copyTo(long,
+	 *      java.lang.foreign.MemorySegment, long, long)
+	 */
+	@Override
+	public void copyTo(long offset, MemorySegment dst, long dstOffset, long length) {
+		if (offset < 0 || length < 0 || offset + length > length())
+			throw new IndexOutOfBoundsException("offset %d, length %d, datagram length %d"
+					.formatted(offset, length, length()));
+
+		long hdrLen = headers.byteSize();
+		if (offset < hdrLen) {
+			long n = Math.min(hdrLen - offset, length);
+			MemorySegment.copy(headers, offset, dst, dstOffset, n);
+
+			offset += n;
+			dstOffset += n;
+			length -= n;
+		}
+
+		long p = offset - hdrLen;
+		int i = indexOf(p);
+
+		while (length > 0) {
+			long n;
+
+			if (i < count && offsets[i] <= p) {
+				long within = p - offsets[i];
+				n = Math.min(slices[i].byteSize() - within, length);
+				MemorySegment.copy(slices[i], within, dst, dstOffset, n);
+				i++;
+
+			} else {
+				long next = (i < count) ? offsets[i] : p + length;
+				n = Math.min(next - p, length);
+				dst.asSlice(dstOffset, n).fill((byte) 0); // Hole
+			}
+
+			p += n;
+			dstOffset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#getByte(long)
+	 */
+	@Override
+	public byte getByte(long offset) {
+		if (offset < 0 || offset >= length())
+			throw new IndexOutOfBoundsException("offset %d, datagram length %d"
+					.formatted(offset, length()));
+
+		long hdrLen = headers.byteSize();
+		if (offset < hdrLen)
+			return headers.get(JAVA_BYTE, offset);
+
+		long p = offset - hdrLen;
+		int i = indexOf(p);
+		if (i < count && offsets[i] <= p)
+			return slices[i].get(JAVA_BYTE, p - offsets[i]);
+
+		return 0; // Hole
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#headers()
+	 */
+	@Override
+	public MemorySegment headers() {
+		return headers;
+	}
+
+	/**
+	 * Index of the first slice which ends after a payload offset.
+	 *
+	 * @param p the payload offset
+	 * @return the slice index, or count if none
+	 */
+	private int indexOf(long p) {
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (offsets[mid] + slices[mid].byteSize() <= p)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#isComplete()
+	 */
+	@Override
+	public boolean isComplete() {
+		return isComplete;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#payloadLength()
+	 */
+	@Override
+	public int payloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#segment(int)
+	 */
+	@Override
+	public MemorySegment segment(int index) {
+		return slices[checkIndex(index)];
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#segmentCount()
+	 */
+	@Override
+	public int segmentCount() {
+		return count;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#segmentOffset(int)
+	 */
+	@Override
+	public int segmentOffset(int index) {
+		return offsets[checkIndex(index)];
+	}
+
+	/**
+	 * Check a segment index.
+	 *
+	 * @param index the index
+	 * @return the index
+	 */
+	private int checkIndex(int index) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("segment %d of %d".formatted(index, count));
+
+		return index;
+	}
+
+	/**
+	 * @see com.slytechs.jnet.jnetpcap.IpfDatagram#timestamp()
+	 */
+	@Override
+	public long timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "IpfDatagram [headers=%d, payload=%d, segments=%d, complete=%s]"
+				.formatted(headers.byteSize(), payloadLength, count, isComplete);
+	}
+}
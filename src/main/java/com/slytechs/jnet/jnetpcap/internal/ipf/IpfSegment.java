@@ -40,6 +40,9 @@ class IpfSegment implements Comparable<IpfSegment>, IntSegment {
 	/** The frame no. */
 	long frameNo;
 
+	/** The payload offset in the fragment pool, in scatter-gather mode. */
+	int poolOffset;
+
 	/**
 	 * Compare to.
 	 *
@@ -88,7 +91,7 @@ class IpfSegment implements Comparable<IpfSegment>, IntSegment {
 	 * Reset.
 	 */
 	public void reset() {
-		offset = length = overlay = 0;
+		offset = length = overlay = poolOffset = 0;
 		frameNo = -1;
 	}
 
@@ -0,0 +1,151 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+
+import com.slytechs.jnet.jnetpcap.internal.FastHash;
+
+/**
+ * Per source address IPF budgets. A compact, off-heap table of counters,
+ * indexed by a hash of the IP source address, tracks the number of concurrent
+ * datagrams and the number of buffered bytes for each source. Sources which
+ * hash to the same counter share a budget, which keeps the table fixed size and
+ * lookup free.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+class IpfSourceBudget {
+
+	/** Counter entry size, a datagram count and a byte count. */
+	private static final int ENTRY_SIZE = 8;
+
+	/** Offset of the byte count within an entry. */
+	private static final int BYTES_OFFSET = 4;
+
+	/** The Constant INT. */
+	private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT;
+
+	/** IPv4 header source address offset. */
+	private static final int IPv4_SRC_OFFSET = 12;
+
+	/** IPv6 header source address offset. */
+	private static final int IPv6_SRC_OFFSET = 8;
+
+	/** The counters. */
+	private final MemorySegment counters;
+
+	/** The mask. */
+	private final int mask;
+
+	/** The max dgrams. */
+	private final int maxDgrams;
+
+	/** The max bytes. */
+	private final int maxBytes;
+
+	/**
+	 * Instantiates a new ipf source budget.
+	 *
+	 * @param tableSize the number of counters, rounded up to a power of 2
+	 * @param maxDgrams the max concurrent datagrams per source, 0 for no limit
+	 * @param maxBytes  the max buffered bytes per source, 0 for no limit
+	 */
+	IpfSourceBudget(int tableSize, int maxDgrams, int maxBytes) {
+		int size = (tableSize <= 1) ? 1 : Integer.highestOneBit(tableSize - 1) << 1;
+
+		this.counters = Arena.ofAuto().allocate((long) size * ENTRY_SIZE, ENTRY_SIZE);
+		this.mask = size - 1;
+		this.maxDgrams = maxDgrams;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Compute the counter slot of a fragment's source address.
+	 *
+	 * @param packet   the packet, indexed from the start of the frame
+	 * @param l3Offset the IP header offset
+	 * @param ip4      true for IPv4, false for IPv6
+	 * @return the counter slot
+	 */
+	int slotOf(ByteBuffer packet, int l3Offset, boolean ip4) {
+		long h;
+		if (ip4)
+			h = FastHash.mix(packet.getInt(l3Offset + IPv4_SRC_OFFSET));
+		else
+			h = FastHash.combine(
+					packet.getLong(l3Offset + IPv6_SRC_OFFSET),
+					packet.getLong(l3Offset + IPv6_SRC_OFFSET + 8));
+
+		return (int) h & mask;
+	}
+
+	/**
+	 * Try to open a new datagram for a source.
+	 *
+	 * @param slot the source counter slot
+	 * @return true, if opened, false if the source is at its datagram limit
+	 */
+	boolean tryOpen(int slot) {
+		long off = (long) slot * ENTRY_SIZE;
+		int dgrams = counters.get(INT, off);
+
+		if (maxDgrams > 0 && dgrams >= maxDgrams)
+			return false;
+
+		counters.set(INT, off, dgrams + 1);
+
+		return true;
+	}
+
+	/**
+	 * Try to charge buffered bytes to a source.
+	 *
+	 * @param slot  the source counter slot
+	 * @param bytes the bytes
+	 * @return true, if charged, false if the source would exceed its byte limit
+	 */
+	boolean tryCharge(int slot, int bytes) {
+		long off = (long) slot * ENTRY_SIZE + BYTES_OFFSET;
+		int charged = counters.get(INT, off);
+
+		if (maxBytes > 0 && charged + bytes > maxBytes)
+			return false;
+
+		counters.set(INT, off, charged + bytes);
+
+		return true;
+	}
+
+	/**
+	 * Release a datagram and all of its charged bytes.
+	 *
+	 * @param slot  the source counter slot
+	 * @param bytes the bytes charged to the datagram
+	 */
+	void release(int slot, int bytes) {
+		long off = (long) slot * ENTRY_SIZE;
+
+		counters.set(INT, off, Math.max(0, counters.get(INT, off) - 1));
+		counters.set(INT, off + BYTES_OFFSET, Math.max(0, counters.get(INT, off + BYTES_OFFSET) - bytes));
+	}
+}
@@ -17,14 +17,22 @@
  */
 package com.slytechs.jnet.jnetpcap.internal.ipf;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 
+import com.slytechs.jnet.jnetpcap.IpfEvictionPolicy;
 import com.slytechs.jnet.jnetpcap.IpfReassembler;
+import com.slytechs.jnet.jnetpcap.IpfStatistics;
+import com.slytechs.jnet.jnetpcap.IpfStatistics.EvictionReason;
 import com.slytechs.jnet.jnetpcap.internal.ipf.JavaIpfDispatcher.DatagramQueue;
 import com.slytechs.jnet.jnetruntime.hash.CuckooHashTable;
 import com.slytechs.jnet.jnetruntime.hash.HashTable;
 import com.slytechs.jnet.jnetruntime.hash.HashTable.HashEntry;
-import com.slytechs.jnet.protocol.descriptor.IpfFragment;
 
 /**
  * IP Fragment tracking table.
@@ -36,6 +44,18 @@ import com.slytechs.jnet.protocol.descriptor.IpfFragment;
  */
 public class IpfTable {
 
+	/** Maximum number of evictions attempted, to insert a single new datagram. */
+	private static final int MAX_EVICTIONS_PER_INSERT = 4;
+
+	/** Number of oldest incomplete datagrams considered by the LARGEST policy. */
+	private static final int LARGEST_SCAN_WINDOW = 16;
+
+	/** IPF state blob magic number, "IPFS". */
+	private static final int STATE_MAGIC = 0x49504653;
+
+	/** IPF state blob format version. */
+	private static final int STATE_VERSION = 1;
+
 	/**
 	 * Allocate ipf buffer slice.
 	 *
@@ -73,6 +93,33 @@ public class IpfTable {
 	/** The datagram queue. */
 	private final DatagramQueue datagramQueue;
 
+	/** The eviction policy. */
+	private final IpfEvictionPolicy evictionPolicy;
+
+	/** The per source budgets, or null if disabled. */
+	private final IpfSourceBudget sourceBudget;
+
+	/** The ipf statistics. */
+	private final IpfStatistics ipfStats;
+
+	/**
+	 * Opened datagrams, oldest first. Entries whose datagram has since completed
+	 * or was closed are skipped lazily, by comparing open sequences.
+	 */
+	private final IpfDgramReassembler[] ageQueue;
+
+	/** The open sequence of each age queue entry. */
+	private final long[] ageQueueSequence;
+
+	/** The age queue mask. */
+	private final int ageQueueMask;
+
+	/** The age queue head and tail positions. */
+	private long ageHead, ageTail;
+
+	/** The last assigned open sequence. */
+	private long openSequence;
+
 	/**
 	 * Instantiates a new ipf table.
 	 *
@@ -102,27 +149,159 @@ public class IpfTable {
 
 		this.table.fill(this::allocateIpfBufferSlice);
 		this.timeoutQueue = new TimeoutQueue<>(config.getTimeoutQueueSize(), config.getTimeSource());
+
+		this.ipfStats = config.getIpfStatistics();
+		this.evictionPolicy = (config.getEvictionPolicy() == IpfEvictionPolicy.LARGEST
+				&& !config.isReassemblyEnabled())
+						? IpfEvictionPolicy.OLDEST // No bytes are buffered to rank by
+						: config.getEvictionPolicy();
+		this.sourceBudget = (config.getSourceMaxDgrams() > 0 || config.getSourceMaxBytes() > 0)
+				? new IpfSourceBudget(config.getSourceTableSize(), config.getSourceMaxDgrams(),
+						config.getSourceMaxBytes())
+				: null;
+
+		int ageQueueSize = Integer.highestOneBit(Math.max(1, tableSize) * 2 - 1) << 1;
+		this.ageQueue = new IpfDgramReassembler[ageQueueSize];
+		this.ageQueueSequence = new long[ageQueueSize];
+		this.ageQueueMask = ageQueueSize - 1;
+	}
+
+	/**
+	 * Append a newly opened datagram to the age queue. When the queue is full, it
+	 * is compacted first. At most {@code tableSize} entries are live, so a
+	 * compaction always frees at least half of the queue.
+	 *
+	 * @param r the opened reassembler
+	 */
+	private void addToAgeQueue(IpfDgramReassembler r) {
+		if (ageTail - ageHead == ageQueue.length)
+			compactAgeQueue();
+
+		int i = (int) (ageTail++ & ageQueueMask);
+		r.ageSequence = ++openSequence;
+		ageQueue[i] = r;
+		ageQueueSequence[i] = r.ageSequence;
+	}
+
+	/**
+	 * Remove all stale entries from the age queue, preserving the order of the
+	 * live entries.
+	 */
+	private void compactAgeQueue() {
+		long w = ageHead;
+		for (long p = ageHead; p < ageTail; p++) {
+			int i = (int) (p & ageQueueMask);
+			if (!isAgeQueueEntryLive(i))
+				continue;
+
+			int j = (int) (w++ & ageQueueMask);
+			ageQueue[j] = ageQueue[i];
+			ageQueueSequence[j] = ageQueueSequence[i];
+		}
+
+		for (long p = w; p < ageTail; p++)
+			ageQueue[(int) (p & ageQueueMask)] = null;
+
+		ageTail = w;
+	}
+
+	/**
+	 * Checks if an age queue entry still refers to the same, incomplete datagram.
+	 *
+	 * @param i the queue index
+	 * @return true, if live
+	 */
+	private boolean isAgeQueueEntryLive(int i) {
+		IpfDgramReassembler r = ageQueue[i];
+
+		return r.ageSequence == ageQueueSequence[i] && isExportable(r);
+	}
+
+	/**
+	 * Evict one incomplete datagram, selected by the eviction policy, to make room
+	 * in a full table. Victims are taken from the head of the age queue, the
+	 * oldest datagram for the OLDEST policy, or the one with the most buffered
+	 * bytes among the oldest few for the LARGEST policy, without scanning the
+	 * table.
+	 *
+	 * @return true, if a datagram was evicted
+	 */
+	private boolean evictOne() {
+		if (evictionPolicy == IpfEvictionPolicy.REJECT)
+			return false;
+
+		while (ageHead < ageTail && !isAgeQueueEntryLive((int) (ageHead & ageQueueMask)))
+			ageQueue[(int) (ageHead++ & ageQueueMask)] = null;
+
+		if (ageHead == ageTail)
+			return false;
+
+		IpfDgramReassembler victim = ageQueue[(int) (ageHead & ageQueueMask)];
+
+		if (evictionPolicy == IpfEvictionPolicy.LARGEST) {
+			int live = 0;
+			for (long p = ageHead + 1; p < ageTail && live < LARGEST_SCAN_WINDOW; p++) {
+				int i = (int) (p & ageQueueMask);
+				if (!isAgeQueueEntryLive(i))
+					continue;
+
+				live++;
+				if (ageQueue[i].bufferedBytes() > victim.bufferedBytes())
+					victim = ageQueue[i];
+			}
+		}
+
+		victim.evict();
+		ipfStats.incEviction((evictionPolicy == IpfEvictionPolicy.OLDEST)
+				? EvictionReason.TABLE_FULL_OLDEST
+				: EvictionReason.TABLE_FULL_LARGEST);
+
+		return true;
 	}
 
 	/**
-	 * Lookup.
+	 * Lookup an existing, or open a new table entry for a fragment. When the table
+	 * is full, incomplete datagrams are evicted according to the eviction policy.
+	 * New datagrams are subject to the per source budgets, if enabled.
 	 *
 	 * @param desc     the desc
 	 * @param hashcode the hashcode
-	 * @return the ipf reassembler
+	 * @param packet   the fragment packet, used to locate its source address
+	 * @return the ipf reassembler or null if the fragment was rejected
 	 */
-	public IpfDgramReassembler lookup(IpfFragment desc, long hashcode) {
+	public IpfDgramReassembler lookup(IpfFragmentInfo desc, long hashcode, ByteBuffer packet) {
 		var key = desc.keyBuffer();
 		assert key.remaining() > 0 : "key has no data";
 
 		int index = table.add(key, null, hashcode);
-		if (index == -1)
+		for (int i = 0; index == -1 && i < MAX_EVICTIONS_PER_INSERT && evictOne(); i++) {
+			ipfStats.incTableInsertionRetry(1);
+			index = table.add(key, null, hashcode);
+		}
+
+		if (index == -1) {
+			ipfStats.incTableInsertionFailure(1);
 			return null; // Out of table space
+		}
 
 		var entry = table.get(index);
 		var reassembler = entry.data();
 		if (reassembler.isExpired()) {
-			reassembler.open(key);
+			int slot = -1;
+			if (sourceBudget != null) {
+				slot = sourceBudget.slotOf(packet, desc.headerOffset(), desc.isIp4());
+
+				if (!sourceBudget.tryOpen(slot)) {
+					ipfStats.incEviction(EvictionReason.SOURCE_DGRAM_LIMIT);
+					reassembler.discard();
+					return null;
+				}
+			}
+
+			reassembler.open(key, hashcode);
+			addToAgeQueue(reassembler);
+			if (slot != -1)
+				reassembler.bindSource(sourceBudget, slot);
 
 			final var registration = timeoutQueue.add(reassembler, this::onIpfTimeout);
 			reassembler.setTimeoutRegistration(registration);
@@ -131,12 +310,132 @@ public class IpfTable {
 		return reassembler;
 	}
 
+	/**
+	 * Export the state of all incomplete datagrams, into a compact binary blob.
+	 * The blob can be imported into another IPF engine, with the same key hash,
+	 * reassembly mode and limits, for example one processing the next chunk of
+	 * an offline capture, so that datagrams whose fragments straddle chunk
+	 * boundaries are still reassembled. The capture must not be active while
+	 * the state is exported.
+	 *
+	 * @return the state blob
+	 */
+	public byte[] exportState() {
+		try {
+			var bytes = new ByteArrayOutputStream();
+			var out = new DataOutputStream(bytes);
+
+			int count = 0;
+			for (int i = 0; i < tableSize; i++)
+				if (isExportable(table.get(i).data()))
+					count++;
+
+			out.writeInt(STATE_MAGIC);
+			out.writeByte(STATE_VERSION);
+			out.writeByte(config.getKeyHash().ordinal());
+			out.writeBoolean(config.isScatterGather());
+			out.writeInt(count);
+
+			for (int i = 0; i < tableSize; i++) {
+				IpfDgramReassembler r = table.get(i).data();
+				if (isExportable(r))
+					r.exportState(out);
+			}
+
+			out.flush();
+
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Not possible with in-memory streams
+		}
+	}
+
+	/**
+	 * Import the state of incomplete datagrams, exported by
+	 * {@link #exportState()} from another IPF engine. Datagrams which do not fit
+	 * in this table are counted as table insertion failures and skipped.
+	 * Imported datagrams are not charged to per source budgets.
+	 *
+	 * @param state the state blob
+	 * @return the number of datagrams imported
+	 * @throws IllegalArgumentException if the blob is invalid or was exported by an
+	 *                                  incompatible IPF engine
+	 */
+	public int importState(byte[] state) throws IllegalArgumentException {
+		try {
+			var in = new DataInputStream(new ByteArrayInputStream(state));
+
+			if (in.readInt() != STATE_MAGIC || in.readByte() != STATE_VERSION)
+				throw new IllegalArgumentException("not an IPF state blob");
+
+			if (in.readByte() != config.getKeyHash().ordinal()
+					|| in.readBoolean() != config.isScatterGather())
+				throw new IllegalArgumentException("IPF state exported with a different key hash or reassembly mode");
+
+			int count = in.readInt();
+			int imported = 0;
+
+			for (int i = 0; i < count; i++) {
+				long hashcode = in.readLong();
+				byte[] keyBytes = new byte[in.readUnsignedByte()];
+				in.readFully(keyBytes);
+
+				ByteBuffer key = ByteBuffer.wrap(keyBytes);
+				int index = table.add(key, null, hashcode);
+				if (index == -1) {
+					ipfStats.incTableInsertionFailure(1);
+					in.skipNBytes(in.readInt());
+					continue;
+				}
+
+				IpfDgramReassembler reassembler = table.get(index).data();
+				reassembler.open(key.rewind(), hashcode);
+				reassembler.importState(in);
+				addToAgeQueue(reassembler);
+
+				final var registration = timeoutQueue.add(reassembler, this::onIpfTimeout);
+				reassembler.setTimeoutRegistration(registration);
+
+				imported++;
+			}
+
+			return imported;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("truncated IPF state blob", e);
+		}
+	}
+
+	/**
+	 * Retire the table, after its IPF engine has been replaced. All incomplete
+	 * datagrams are discarded and their buffers released.
+	 */
+	public void retire() {
+		for (int i = 0; i < tableSize; i++) {
+			IpfDgramReassembler r = table.get(i).data();
+			if (r.isOpen())
+				r.evict();
+		}
+	}
+
+	/**
+	 * Checks if a reassembler has an incomplete datagram, whose state is
+	 * exported.
+	 *
+	 * @param r the reassembler
+	 * @return true, if exportable
+	 */
+	private static boolean isExportable(IpfDgramReassembler r) {
+		return r.isOpen() && !r.isReassembled();
+	}
+
 	/**
 	 * On ipf timeout.
 	 *
 	 * @param timedoutReassembler the timedout reassembler
 	 */
 	private void onIpfTimeout(IpfDgramReassembler timedoutReassembler) {
+		config.getIpfStatistics().incTimeout(1);
+
 		timedoutReassembler.onTimeoutExpired(datagramQueue);
 	}
 }
@@ -0,0 +1,465 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import static java.lang.foreign.ValueLayout.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.slytechs.jnet.jnetpcap.IpfReassembler;
+import com.slytechs.jnet.jnetpcap.IpfStatistics;
+import com.slytechs.jnet.jnetpcap.PcapProHandler.IpfTrackingHandler;
+import com.slytechs.jnet.jnetruntime.time.TimestampSource;
+import com.slytechs.jnet.protocol.descriptor.IpfTrackingLayout;
+
+/**
+ * IP fragment tracking-only table. Unlike the reassembly table, no datagram
+ * buffers are allocated and no per-datagram objects exist. Each datagram is a
+ * fixed size record in a single off-heap, open addressing (linear probing)
+ * table, holding its key, timestamps, counters and fragment segments. This
+ * allows millions of concurrent datagrams to be tracked in a few hundred MB.
+ * 
+ * <p>
+ * Record layout, with {@code n} the maximum fragment count:
+ * </p>
+ * 
+ * <pre>
+ * 0   long   key hash, 0 empty
+ * 8   long   start time
+ * 16  long   expiration
+ * 24  int    flags (first, last, IPv4)
+ * 28  int    observed size
+ * 32  int    tracked bytes
+ * 36  int    overlap bytes
+ * 40  byte   segment count
+ * 41  byte   key length
+ * 42  byte[36] key
+ * 80  n * {long frame no, int offset, int length}
+ * </pre>
+ * 
+ * <p>
+ * Expired datagrams are timed out lazily, when their record is probed.
+ * Deleted records do not leave tombstones behind. Records further along the
+ * probe sequence are shifted back into the freed record (backward shift
+ * deletion), so every probe sequence stays free of gaps and probing stops at
+ * the first empty record.
+ * </p>
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfTrackingTable {
+
+	/** Record field offsets. */
+	private static final long HASH = 0, START = 8, EXPIRATION = 16, FLAGS = 24, OBSERVED = 28, BYTES = 32,
+			OVERLAP = 36, SEGMENT_COUNT = 40, KEY_LENGTH = 41, KEY = 42, SEGMENTS = 80;
+
+	/** Segment field offsets and size. */
+	private static final long SEG_FRAME_NO = 0, SEG_OFFSET = 8, SEG_LENGTH = 12, SEGMENT_SIZE = 16;
+
+	/** Maximum key length. */
+	private static final int MAX_KEY_LENGTH = 36;
+
+	/** Hash marker of an empty record. */
+	private static final long EMPTY = 0;
+
+	/** Flag, first fragment seen. */
+	private static final int FLAG_FIRST = 1;
+
+	/** Flag, last fragment seen. */
+	private static final int FLAG_LAST = 2;
+
+	/** Flag, IPv4 datagram. */
+	private static final int FLAG_IP4 = 4;
+
+	/** Maximum number of records probed for a key. */
+	private static final int MAX_PROBES = 32;
+
+	/** The table. */
+	private final MemorySegment table;
+
+	/** The table index mask. */
+	private final int mask;
+
+	/** The record size. */
+	private final long recordSize;
+
+	/** The max segments per datagram. */
+	private final int maxSegments;
+
+	/** The timeout milli. */
+	private final long timeoutMilli;
+
+	/** The is timeout on last. */
+	private final boolean isTimeoutOnLast;
+
+	/** The time source. */
+	private final TimestampSource timeSource;
+
+	/** The ipf stats. */
+	private final IpfStatistics ipfStats;
+
+	/** The tracking descriptor buffer. */
+	private final ByteBuffer descBuffer;
+
+	/** Scratch segment starts, for hole calculation. */
+	private final int[] starts;
+
+	/** Scratch segment ends, for hole calculation. */
+	private final int[] ends;
+
+	/** The tracking handler, may be null. */
+	private final IpfTrackingHandler handler;
+
+	/**
+	 * Instantiates a new ipf tracking table.
+	 *
+	 * @param config the config
+	 */
+	IpfTrackingTable(IpfReassembler config) {
+		int capacity = Integer.highestOneBit(Math.max(config.getTableSize(), 2) - 1) << 1;
+
+		this.maxSegments = config.getMaxFragmentCount();
+		this.recordSize = SEGMENTS + SEGMENT_SIZE * maxSegments;
+		this.mask = capacity - 1;
+		this.table = Arena.ofAuto().allocate(recordSize * capacity, 8);
+
+		this.timeoutMilli = config.getTimeoutMilli();
+		this.isTimeoutOnLast = config.isTimeoutOnLast();
+		this.timeSource = config.getTimeSource();
+		this.ipfStats = config.getIpfStatistics();
+		this.handler = config.getTrackingHandler();
+
+		this.descBuffer = ByteBuffer.allocateDirect(16 + 16 * maxSegments);
+		this.starts = new int[maxSegments];
+		this.ends = new int[maxSegments];
+	}
+
+	/**
+	 * Add a fragment segment to a record, updating its counters.
+	 *
+	 * @param rec     the record offset
+	 * @param info    the fragment info
+	 * @param frameNo the frame no
+	 * @return true, if added, false if the record has no more segment space
+	 */
+	private boolean addSegment(long rec, IpfFragmentInfo info, long frameNo) {
+		int count = table.get(JAVA_BYTE, rec + SEGMENT_COUNT) & 0xFF;
+		if (count == maxSegments)
+			return false;
+
+		int offset = info.fragOffset();
+		int end = offset + info.dataLength();
+
+		int overlap = 0;
+		for (int i = 0; i < count; i++) {
+			long seg = rec + SEGMENTS + i * SEGMENT_SIZE;
+			int s = table.get(JAVA_INT, seg + SEG_OFFSET);
+			int e = s + table.get(JAVA_INT, seg + SEG_LENGTH);
+
+			overlap += Math.max(0, Math.min(e, end) - Math.max(s, offset));
+		}
+
+		long seg = rec + SEGMENTS + count * SEGMENT_SIZE;
+		table.set(JAVA_LONG, seg + SEG_FRAME_NO, frameNo);
+		table.set(JAVA_INT, seg + SEG_OFFSET, offset);
+		table.set(JAVA_INT, seg + SEG_LENGTH, info.dataLength());
+		table.set(JAVA_BYTE, rec + SEGMENT_COUNT, (byte) (count + 1));
+
+		table.set(JAVA_INT, rec + OVERLAP, table.get(JAVA_INT, rec + OVERLAP) + overlap);
+		if (overlap > 0)
+			ipfStats.incOverlap(1);
+		table.set(JAVA_INT, rec + BYTES, table.get(JAVA_INT, rec + BYTES) + info.dataLength());
+		if (end > table.get(JAVA_INT, rec + OBSERVED))
+			table.set(JAVA_INT, rec + OBSERVED, end);
+
+		int flags = table.get(JAVA_INT, rec + FLAGS);
+		if (offset == 0)
+			flags |= FLAG_FIRST;
+		if (info.isLastFrag())
+			flags |= FLAG_LAST;
+		table.set(JAVA_INT, rec + FLAGS, flags);
+
+		return true;
+	}
+
+	/**
+	 * Finish tracking a datagram, deliver its tracking descriptor and delete the
+	 * record.
+	 *
+	 * @param rec       the record offset
+	 * @param holes     the hole bytes
+	 * @param isTimeout the is timeout
+	 * @param now       the current time
+	 */
+	private void finish(long rec, int holes, boolean isTimeout, long now) {
+		if (!isTimeout)
+			ipfStats.recordDatagramCompleted(
+					table.get(JAVA_BYTE, rec + SEGMENT_COUNT) & 0xFF,
+					table.get(JAVA_INT, rec + OBSERVED),
+					now - table.get(JAVA_LONG, rec + START));
+		else if (holes > 0)
+			ipfStats.incHole(1);
+
+		if (handler != null) {
+			writeTrackingDescriptor(rec, holes, isTimeout, now, descBuffer.clear());
+			descBuffer.flip();
+
+			handler.handleTracking(descBuffer);
+		}
+
+		delete(rec);
+		ipfStats.incTableEntryClosed(1);
+	}
+
+	/**
+	 * Delete a record, using backward shift deletion. Each following record in
+	 * the cluster, which may legally occupy the freed record, because the freed
+	 * record lies between its home index and its current index, is moved back
+	 * into it, until an empty record is reached.
+	 *
+	 * @param rec the record offset
+	 */
+	private void delete(long rec) {
+		int hole = (int) (rec / recordSize);
+
+		for (int i = (hole + 1) & mask; i != hole; i = (i + 1) & mask) {
+			long r = i * recordSize;
+			long h = table.get(JAVA_LONG, r + HASH);
+			if (h == EMPTY)
+				break;
+
+			int home = homeIndex(h);
+			boolean movable = (i > hole)
+					? (home <= hole || home > i)
+					: (home <= hole && home > i);
+
+			if (movable) {
+				MemorySegment.copy(table, r, table, hole * recordSize, recordSize);
+				hole = i;
+			}
+		}
+
+		table.set(JAVA_LONG, hole * recordSize + HASH, EMPTY);
+	}
+
+	/**
+	 * Home index of a key hash, the first record probed.
+	 *
+	 * @param hash the key hash
+	 * @return the home index
+	 */
+	private int homeIndex(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Calculate the hole bytes of a record, the bytes up to the observed size not
+	 * covered by any segment.
+	 *
+	 * @param rec the record offset
+	 * @return the hole bytes
+	 */
+	private int holeBytes(long rec) {
+		int count = table.get(JAVA_BYTE, rec + SEGMENT_COUNT) & 0xFF;
+
+		for (int i = 0; i < count; i++) {
+			long seg = rec + SEGMENTS + i * SEGMENT_SIZE;
+			int s = table.get(JAVA_INT, seg + SEG_OFFSET);
+
+			starts[i] = s;
+			ends[i] = s + table.get(JAVA_INT, seg + SEG_LENGTH);
+		}
+
+		Arrays.sort(starts, 0, count);
+		Arrays.sort(ends, 0, count);
+
+		/*
+		 * With both start and end points sorted, covered length is the sum of the
+		 * intervals where the number of open segments is above zero.
+		 */
+		int covered = 0, open = 0, from = 0;
+		for (int i = 0, j = 0; i < count || j < count;) {
+			if (i < count && starts[i] < ends[j]) {
+				if (open++ == 0)
+					from = starts[i];
+				i++;
+			} else {
+				if (--open == 0)
+					covered += ends[j] - from;
+				j++;
+			}
+		}
+
+		return table.get(JAVA_INT, rec + OBSERVED) - covered;
+	}
+
+	/**
+	 * Compare a record's key with the fragment's key.
+	 *
+	 * @param rec  the record offset
+	 * @param info the fragment info
+	 * @return true, if equal
+	 */
+	private boolean keyEquals(long rec, IpfFragmentInfo info) {
+		ByteBuffer key = info.keyBuffer();
+		int len = key.remaining();
+
+		if ((table.get(JAVA_BYTE, rec + KEY_LENGTH) & 0xFF) != len)
+			return false;
+
+		for (int i = 0; i < len; i++)
+			if (table.get(JAVA_BYTE, rec + KEY + i) != key.get(i))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Open a new record.
+	 *
+	 * @param rec  the record offset
+	 * @param hash the key hash
+	 * @param info the fragment info
+	 * @param now  the current time
+	 */
+	private void open(long rec, long hash, IpfFragmentInfo info, long now) {
+		table.asSlice(rec, recordSize).fill((byte) 0);
+
+		ByteBuffer key = info.keyBuffer();
+		int len = Math.min(key.remaining(), MAX_KEY_LENGTH);
+		for (int i = 0; i < len; i++)
+			table.set(JAVA_BYTE, rec + KEY + i, key.get(i));
+
+		table.set(JAVA_BYTE, rec + KEY_LENGTH, (byte) len);
+		table.set(JAVA_LONG, rec + START, now);
+		table.set(JAVA_LONG, rec + EXPIRATION, now + timeoutMilli);
+		table.set(JAVA_INT, rec + FLAGS, info.isIp4() ? FLAG_IP4 : 0);
+		table.set(JAVA_LONG, rec + HASH, hash);
+
+		ipfStats.incTableEntryOpened(1);
+	}
+
+	/**
+	 * Track a fragment.
+	 *
+	 * @param info     the fragment info
+	 * @param hashcode the key hashcode
+	 * @param frameNo  the frame no
+	 * @return true, if tracked
+	 */
+	boolean track(IpfFragmentInfo info, long hashcode, long frameNo) {
+		long now = timeSource.timestamp();
+		long hash = (hashcode == EMPTY) ? 1 : hashcode;
+		int start = homeIndex(hash);
+
+		long rec = -1, free = -1;
+		for (int i = 0; i < MAX_PROBES;) {
+			long r = ((start + i) & mask) * recordSize;
+			long h = table.get(JAVA_LONG, r + HASH);
+
+			if (h == EMPTY) {
+				free = r;
+				break;
+			}
+
+			if (table.get(JAVA_LONG, r + EXPIRATION) < now) {
+				ipfStats.incTimeout(1);
+				finish(r, holeBytes(r), true, now);
+				continue; // A following record may have been shifted into r
+			}
+
+			if (h == hash && keyEquals(r, info)) {
+				rec = r;
+				break;
+			}
+
+			i++;
+		}
+
+		if (rec == -1) {
+			if (free == -1) {
+				ipfStats.incTableInsertionFailure(1);
+				return false;
+			}
+
+			rec = free;
+			open(rec, hash, info, now);
+		}
+
+		if (!addSegment(rec, info, frameNo)) {
+			ipfStats.incIpfProcessingFailure(1);
+			return false;
+		}
+
+		int flags = table.get(JAVA_INT, rec + FLAGS);
+		if ((flags & FLAG_LAST) == 0)
+			return true;
+
+		int holes = ((flags & FLAG_FIRST) != 0) ? holeBytes(rec) : -1;
+		if (holes == 0)
+			finish(rec, 0, false, now);
+
+		else if (isTimeoutOnLast)
+			finish(rec, (holes < 0) ? holeBytes(rec) : holes, true, now);
+
+		return true;
+	}
+
+	/**
+	 * Write the tracking descriptor of a record.
+	 *
+	 * @param rec       the record offset
+	 * @param holes     the hole bytes
+	 * @param isTimeout the is timeout
+	 * @param now       the current time
+	 * @param desc      the descriptor buffer
+	 * @return the descriptor length
+	 */
+	private int writeTrackingDescriptor(long rec, int holes, boolean isTimeout, long now, ByteBuffer desc) {
+		int count = table.get(JAVA_BYTE, rec + SEGMENT_COUNT) & 0xFF;
+		int overlap = table.get(JAVA_INT, rec + OVERLAP);
+
+		IpfTrackingLayout.IP_IS_REASSEMBLED.setBoolean(true, desc);
+		IpfTrackingLayout.IP_IS_COMPLETE.setBoolean(!isTimeout, desc);
+		IpfTrackingLayout.IP_IS_TIMEOUT.setBoolean(isTimeout, desc);
+		IpfTrackingLayout.IP_IS_HOLE.setBoolean(holes > 0, desc);
+		IpfTrackingLayout.IP_IS_OVERLAP.setBoolean(overlap > 0, desc);
+
+		IpfTrackingLayout.REASSEMBLED_BYTES.setShort((short) table.get(JAVA_INT, rec + BYTES), desc);
+		IpfTrackingLayout.HOLE_BYTES.setShort((short) holes, desc);
+		IpfTrackingLayout.OVERLAP_BYTES.setShort((short) overlap, desc);
+		IpfTrackingLayout.REASSEMBLED_MILLI.setLong(now - table.get(JAVA_LONG, rec + START), desc);
+
+		IpfTrackingLayout.TABLE_SIZE.setByte((byte) count, desc);
+		for (int i = 0; i < maxSegments; i++) {
+			long seg = rec + SEGMENTS + i * SEGMENT_SIZE;
+			IpfTrackingLayout.FRAG_PKT_INDEX.setLong(table.get(JAVA_LONG, seg + SEG_FRAME_NO), desc, i);
+			IpfTrackingLayout.FRAG_OFFSET.setShort((short) table.get(JAVA_INT, seg + SEG_OFFSET), desc, i);
+			IpfTrackingLayout.FRAG_LENGTH.setShort((short) table.get(JAVA_INT, seg + SEG_LENGTH), desc, i);
+		}
+
+		final int len = 16 + (count * 16);
+		desc.position(desc.position() + len);
+
+		return len;
+	}
+}
@@ -22,20 +22,27 @@ import static com.slytechs.jnet.jnetruntime.internal.foreign.ForeignUtils.*;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.function.Supplier;
 
 import org.jnetpcap.internal.PcapDispatcher;
 import org.jnetpcap.internal.PcapHeaderABI;
 
+import com.slytechs.jnet.jnetpcap.IpfDatagram;
+import com.slytechs.jnet.jnetpcap.IpfKeyHash;
+import com.slytechs.jnet.jnetpcap.IpfOverflowPolicy;
 import com.slytechs.jnet.jnetpcap.IpfReassembler;
 import com.slytechs.jnet.jnetpcap.IpfStatistics;
+import com.slytechs.jnet.jnetpcap.IpfStatistics.EvictionReason;
 import com.slytechs.jnet.jnetpcap.NetPcap.PcapProContext;
+import com.slytechs.jnet.jnetpcap.PcapProHandler.IpfDatagramHandler;
 import com.slytechs.jnet.jnetpcap.PcapProHandler.OfPacket;
+import com.slytechs.jnet.jnetpcap.ProcessingStage;
 import com.slytechs.jnet.jnetpcap.internal.AbstractPacketReceiver;
 import com.slytechs.jnet.jnetpcap.internal.CaptureStatisticsImpl;
+import com.slytechs.jnet.jnetpcap.internal.LatencyRecorder;
+import com.slytechs.jnet.jnetpcap.internal.LoadSheddingPreProcessor;
 import com.slytechs.jnet.jnetpcap.internal.PacketReceiver;
+import com.slytechs.jnet.jnetpcap.internal.RawPacketScanner;
 import com.slytechs.jnet.jnetruntime.hash.Checksums;
 import com.slytechs.jnet.protocol.Packet;
 import com.slytechs.jnet.protocol.core.constants.CoreConstants;
@@ -69,46 +76,6 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 		void addDatagram(MemorySegment mseg, int caplen, int wirelen, long expiration, IpfDgramReassembler reassembler);
 	}
 
-	/**
-	 * The Class ReassembledDatagram.
-	 */
-	private static class ReassembledDatagram {
-
-		/** The mseg. */
-		private MemorySegment mseg;
-		
-		/** The caplen. */
-		private int caplen;
-		
-		/** The wirelen. */
-		private int wirelen;
-		
-		/** The timestamp. */
-		private long timestamp;
-		
-		/** The reassembler. */
-		private IpfDgramReassembler reassembler;
-
-		/**
-		 * Instantiates a new reassembled datagram.
-		 *
-		 * @param mseg        the mseg
-		 * @param caplen      the caplen
-		 * @param wirelen     the wirelen
-		 * @param timestamp   the timestamp
-		 * @param reassembler the reassembler
-		 */
-		ReassembledDatagram(MemorySegment mseg, int caplen, int wirelen, long timestamp,
-				IpfDgramReassembler reassembler) {
-			this.caplen = caplen;
-			this.wirelen = wirelen;
-			this.timestamp = timestamp;
-			this.mseg = mseg;
-			this.reassembler = reassembler;
-		}
-
-	}
-
 	/** The ipf dissector. */
 	private final IpfFragDissector ipfDissector = new IpfFragDissector();
 
@@ -124,21 +91,45 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	
 	/** The frag desc if present. */
 	private IpfFragment fragDescIfPresent = null;
+
+	/** The fragment information, from the raw packet scan, used by the IPF engine. */
+	private final IpfFragmentInfo fragInfo;
+
+	/** The data link type of the handle, a DLT value. */
+	private final int datalink;
+
+	/**
+	 * The raw scan supports the handle's link type, otherwise every packet is
+	 * classified by a full IPF dissection.
+	 */
+	private final boolean rawScan;
+
+	/** The reassembly descriptor is to be attached directly to the packet descriptor. */
+	private boolean reassemblyDescPending;
 	
 	/** The reassembly desc. */
 	private final IpfReassembly reassemblyDesc = new IpfReassembly(reassemblyDescBuffer);
 
-	/** The ipf table. */
+	/** The ipf table, null in tracking-only mode. */
 	private final IpfTable ipfTable;
 
+	/** The tracking-only table, null unless in tracking-only mode. */
+	private final IpfTrackingTable trackingTable;
+
 	/** The ipf config. */
 	private final IpfReassembler.EffectiveConfig ipfConfig;
 
-	/** The insert queue. */
-	private final BlockingQueue<ReassembledDatagram> dgramQueue;
+	/** The reassembled datagrams, pending dispatch. */
+	private final IpfDatagramRing dgramRing;
+
+	/** The datagram ring overflow policy. */
+	private final IpfOverflowPolicy overflowPolicy;
 
 	/** The ipf stats. */
-	private final IpfStatistics ipfStats = new IpfStatistics();
+	private final IpfStatistics ipfStats;
+
+	/** The IPF table key hash function. */
+	private final IpfKeyHash keyHash;
 
 	/** The abi. */
 	private final PcapHeaderABI abi;
@@ -146,6 +137,18 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	/** The packet stats. */
 	private final CaptureStatisticsImpl packetStats;
 
+	/** The latency recorder, null when latency tracking is disabled. */
+	private final LatencyRecorder latency;
+
+	/** The load shedding controller, null when load shedding is disabled. */
+	private final LoadSheddingPreProcessor loadShedding;
+
+	/** The scatter-gather datagram handler, null if not in scatter-gather mode. */
+	private final IpfDatagramHandler datagramHandler;
+
+	/** Scatter-gather datagrams are linearized here, when sent as packets. */
+	private MemorySegment linearBuffer = MemorySegment.NULL;
+
 	/**
 	 * Instantiates a new java ipf dispatcher.
 	 *
@@ -165,10 +168,67 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 			throw new IllegalStateException("IPF is disabled");
 
 		this.ipfConfig = config.computeEffectiveConfig();
-		this.ipfTable = new IpfTable(config, this::sendMemorySegment);
-		this.dgramQueue = new ArrayBlockingQueue<>(config.getTimeoutQueueSize());
+		this.ipfStats = config.getIpfStatistics();
+		this.keyHash = config.getKeyHash();
+		this.ipfStats.setTableSize(config.getTableSize());
+		this.ipfTable = ipfConfig.trackingOnly ? null : new IpfTable(config, this::sendMemorySegment);
+		this.trackingTable = ipfConfig.trackingOnly ? new IpfTrackingTable(config) : null;
+		this.dgramRing = new IpfDatagramRing(config.getTimeoutQueueSize(),
+				(config.getOverflowPolicy() == IpfOverflowPolicy.FLUSH) ? config.getTimeoutQueueSize() : 0);
+		this.overflowPolicy = config.getOverflowPolicy();
 		this.abi = pcap.pcapHeaderABI();
 		this.packetStats = (CaptureStatisticsImpl) getCaptureStatistics();
+		this.latency = context.getLatencyRecorder();
+		this.loadShedding = context.getLoadShedding();
+		this.datagramHandler = config.isScatterGather() ? config.getDatagramHandler() : null;
+		this.datalink = context.getDatalink();
+		this.rawScan = RawPacketScanner.isSupportedDatalink(datalink);
+		this.fragInfo = new IpfFragmentInfo(datalink);
+
+		if (ipfTable != null) {
+			if (config.getInitialState() != null) {
+				ipfTable.importState(config.getInitialState());
+				config.setInitialState(null); // Imported once, not again by a reconfigured engine
+			}
+
+			config.bindStateExporter(this::exportState);
+		}
+	}
+
+	/**
+	 * Gets the IPF statistics updated by this dispatcher.
+	 *
+	 * @return the ipf statistics
+	 */
+	public IpfStatistics getIpfStatistics() {
+		return ipfStats;
+	}
+
+	/**
+	 * Export the state of all incomplete datagrams.
+	 *
+	 * @return the state blob
+	 * @throws UnsupportedOperationException in tracking-only mode
+	 */
+	public byte[] exportState() throws UnsupportedOperationException {
+		if (ipfTable == null)
+			throw new UnsupportedOperationException("IPF state export not supported in tracking-only mode");
+
+		return ipfTable.exportState();
+	}
+
+	/**
+	 * Import the state of incomplete datagrams, exported by another IPF engine.
+	 *
+	 * @param state the state blob
+	 * @return the number of datagrams imported
+	 * @throws UnsupportedOperationException in tracking-only mode
+	 */
+	public int importState(byte[] state) throws UnsupportedOperationException {
+		if (ipfTable == null)
+			throw new UnsupportedOperationException("IPF state import not supported in tracking-only mode");
+
+		return ipfTable.importState(state);
 	}
 
 	/**
@@ -180,6 +240,20 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	public void activate() {
 	}
 
+	/**
+	 * Release, discarding all incomplete datagrams still held by the table and
+	 * releasing their buffers.
+	 *
+	 * @see com.slytechs.jnet.jnetpcap.internal.AbstractPcapDispatcher#release()
+	 */
+	@Override
+	public void release() {
+		if (ipfTable != null)
+			ipfTable.retire();
+
+		super.release();
+	}
+
 	/**
 	 * Dispatch ipf.
 	 *
@@ -190,18 +264,37 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	 * @return the int
 	 */
 	protected <U> int dispatchIpf(int count, OfPacket<U> sink, U user) {
-		return super.dispatchNative(count, (ignore, pcapHdr, pktData) -> {
 
-			try (var arena = Arena.ofShared()) {
+		/*
+		 * One confined arena scopes the packets of the entire call. The callback runs
+		 * on the calling thread, and closing a confined arena is cheap, unlike opening
+		 * and closing a shared arena for every packet, fragment or not.
+		 */
+		try (var arena = Arena.ofConfined()) {
+			return super.dispatchNative(count, (ignore, pcapHdr, pktData) -> {
+
+				if (latency != null)
+					latency.markPreProcessorsDone();
 
-				if (!sinkIpfNative0(pcapHdr, pktData, sink, user, arena)) {
+				if (isIpfBypassed() || !sinkIpfNative0(pcapHdr, pktData, sink, user, arena)) {
 					Packet packet = super.processPacket(pcapHdr, pktData, arena);
 					sink.handlePacket(user, packet);
 				}
 
-			}
+				/* Any datagrams, reassembled in passthrough mode or not */
+				drainDatagrams(sink, user);
 
-		}, MemorySegment.NULL); // We don't pass user object to native dispatcher
+			}, MemorySegment.NULL); // We don't pass user object to native dispatcher
+		}
+	}
+
+	/**
+	 * Checks if IPF is bypassed due to load shedding.
+	 *
+	 * @return true, if bypassed
+	 */
+	private boolean isIpfBypassed() {
+		return loadShedding != null && loadShedding.isIpfBypassed();
 	}
 
 	/**
@@ -214,18 +307,28 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	 * @return the int
 	 */
 	protected <U> int loopIpf(int count, OfPacket<U> sink, U user) {
-		return super.loopNative(count, (ignore, pcapHdr, pktData) -> {
 
-			try (var arena = Arena.ofShared()) {
-				
-				if (!sinkIpfNative0(pcapHdr, pktData, sink, user, arena)) {
+		/*
+		 * One confined arena scopes the packets of the entire call. The callback runs
+		 * on the calling thread, and closing a confined arena is cheap, unlike opening
+		 * and closing a shared arena for every packet, fragment or not.
+		 */
+		try (var arena = Arena.ofConfined()) {
+			return super.loopNative(count, (ignore, pcapHdr, pktData) -> {
+
+				if (latency != null)
+					latency.markPreProcessorsDone();
+
+				if (isIpfBypassed() || !sinkIpfNative0(pcapHdr, pktData, sink, user, arena)) {
 					Packet packet = super.processPacket(pcapHdr, pktData, arena);
 					sink.handlePacket(user, packet);
 				}
-				
-			}
 
-		}, MemorySegment.NULL); // We don't pass user object to native dispatcher
+				/* Any datagrams, reassembled in passthrough mode or not */
+				drainDatagrams(sink, user);
+
+			}, MemorySegment.NULL); // We don't pass user object to native dispatcher
+		}
 	}
 
 	/**
@@ -249,10 +352,21 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 			long timestamp = ipfConfig.getTimestampUnit().ofSecond(tvSec, tvUsec);
 
 			MemorySegment mpkt = pktData.reinterpret(caplen, session, EMPTY_CLEANUP);
+
+			/* Fast reject of non-fragments, without IPF dissection */
+			if (!scanFragment(mpkt, caplen, wirelen, timestamp))
+				return false;
+
 			ByteBuffer buf = mpkt.asByteBuffer();
 
-			boolean isSuccess = (reassembleFromBuffer(-1, buf, caplen, wirelen, timestamp) != null);
-			return isSuccess;
+			IpfDgramReassembler toClose = reassembleFromBuffer(-1, buf, caplen, wirelen, timestamp);
+			if (toClose == null)
+				return false;
+
+			/* Reassembled, but not queued for dispatch */
+			toClose.close();
+
+			return true;
 
 		} catch (Throwable e) {
 			packetStats.incDropped(caplen, wirelen, 1);
@@ -275,11 +389,16 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 		long ts = packet.timestamp();
 		long frameNo = packet.descriptor().frameNo();
 
+		/* Fast reject of non-fragments, without IPF dissection */
+		if (!scanFragment(MemorySegment.ofBuffer(buf), caplen, wirelen, ts))
+			return null;
+
 		return reassembleFromBuffer(frameNo, buf, caplen, wirelen, ts);
 	}
 
 	/**
-	 * Process ipf buffer.
+	 * Process ipf buffer. The packet must have already been scanned for its
+	 * fragment information.
 	 *
 	 * @param frameNo   the frame no
 	 * @param packetBuf the packet buf
@@ -292,45 +411,67 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	protected IpfDgramReassembler reassembleFromBuffer(long frameNo, ByteBuffer packetBuf, int caplen, int wirelen,
 			long ts) throws IpfReassemblyException {
 
-		/*
-		 * We're single threaded and we reuse the descriptor, so prepare it for another
-		 * fragment
-		 */
+		if (latency == null)
+			return reassembleFromBuffer0(frameNo, packetBuf, caplen, wirelen, ts);
 
-		ipfDissector.reset();
-		fragDescIfPresent = null;
+		long start = latency.start();
+		try {
+			return reassembleFromBuffer0(frameNo, packetBuf, caplen, wirelen, ts);
+		} finally {
+			latency.record(ProcessingStage.IPF_REASSEMBLY, start);
+		}
+	}
+
+	/**
+	 * Reassemble from buffer, without latency tracking.
+	 *
+	 * @param frameNo   the frame no
+	 * @param packetBuf the packet buf
+	 * @param caplen    the caplen
+	 * @param wirelen   the wirelen
+	 * @param ts        the ts
+	 * @return the ipf fragment
+	 * @throws IpfReassemblyException the ipf reassembly exception
+	 */
+	private IpfDgramReassembler reassembleFromBuffer0(long frameNo, ByteBuffer packetBuf, int caplen, int wirelen,
+			long ts) throws IpfReassemblyException {
 
 		/*
-		 * Create an IPF descriptor with specific IPF fragment information, this may be
-		 * provided by native libraries as well, that is why everything is passed using
-		 * a native memory descriptors.
+		 * The IPF engine works from the fragment information, extracted by the raw
+		 * scan. The IPF fragment descriptor is only needed, and dissected, if it is to
+		 * be attached to a passed through fragment.
 		 */
 
-		if (ipfDissector.dissectPacket(packetBuf, ts, caplen, wirelen) == 0)
-			return null; // Not an IPF packet
-
-		fragDescIfPresent = fragDesc;
-
-		/* Do the Java descriptor bindings so we have a java descriptor */
-
-		ipfDissector.writeDescriptor(fragDescBuffer.clear());
-		fragDescBuffer.flip();
-		fragDescIfPresent.bind(fragDescBuffer);
+		if (ipfConfig.attachFragment && fragDescIfPresent == null)
+			dissectFragmentDescriptor(packetBuf, caplen, wirelen, ts);
 
 		/* Calculate a hashcode on key TUPLE values */
-		ByteBuffer key = fragDescIfPresent.keyBuffer();
-		long ipfHashcode = Checksums.crc32(key);
+		long ipfHashcode = (keyHash == IpfKeyHash.CRC32)
+				? Checksums.crc32(fragInfo.keyBuffer())
+				: fragInfo.keyHash();
 
-		/* Find existing or create a new IPF table entry (in hash table) */
-		var reassembler = ipfTable.lookup(fragDescIfPresent, ipfHashcode);
-		if (reassembler == null) {
-			ipfStats.incTableInsertionFailure(1);
+		ipfStats.incFragment(1);
 
+		/* Tracking only, no reassembler */
+		if (trackingTable != null) {
+			trackingTable.track(fragInfo, ipfHashcode, frameNo);
 			return null;
 		}
 
+		/* Find existing or create a new IPF table entry (in hash table) */
+		var reassembler = ipfTable.lookup(fragInfo, ipfHashcode, packetBuf);
+		if (reassembler == null)
+			return null; // Rejected, counted by the table
+
 		/* Do actual reassembly */
-		if (!reassembler.processFragment(frameNo, packetBuf, fragDescIfPresent)) {
+		if (!reassembler.processFragment(frameNo, packetBuf, fragInfo)) {
+			if (reassembler.isBudgetExceeded()) {
+				ipfStats.incEviction(EvictionReason.SOURCE_BYTE_LIMIT);
+				reassembler.evict();
+
+				return null;
+			}
+
 			ipfStats.incIpfProcessingFailure(1);
 
 			reassembler.close();
@@ -370,6 +511,12 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 			/* Add partially reassembled buffer/packet to the dispatcher send queue */
 			reassembler.addDatagramToQueue(this::sendMemorySegment);
 			toClose = null; // Closed after packet processed from queue
+
+		} else if (datagramHandler != null) {
+
+			/* Scatter-gather datagram, for the datagram handler only */
+			reassembler.addDatagramToQueue(this::sendMemorySegment);
+			toClose = null; // Closed after datagram processed from queue
 		}
 
 		/*
@@ -380,21 +527,16 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 		 * processed, so all we have to do is add the descriptor.
 		 */
 
-		if (ipfConfig.passComplete) {
+		if (ipfConfig.passComplete || ipfConfig.passIncomplete) {
 
 			reassembler.writeReassemblyDescriptor(reassemblyDescBuffer.clear());
 			reassemblyDescBuffer.flip();
 			reassemblyDesc.bind(reassemblyDescBuffer);
 
-			fragDescIfPresent.addDescriptor(reassemblyDesc);
-
-		} else if (ipfConfig.passIncomplete) {
-
-			reassembler.writeReassemblyDescriptor(reassemblyDescBuffer.clear());
-			reassemblyDescBuffer.flip();
-			reassemblyDesc.bind(reassemblyDescBuffer);
-
-			fragDescIfPresent.addDescriptor(reassemblyDesc);
+			if (fragDescIfPresent != null)
+				fragDescIfPresent.addDescriptor(reassemblyDesc);
+			else
+				reassemblyDescPending = true;
 		}
 
 		/*
@@ -405,6 +547,89 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 		return toClose;
 	}
 
+	/**
+	 * Scan a packet for IP fragment information, in a single walk of the raw
+	 * packet bytes. Non-fragments are rejected without any IPF dissection. Packets
+	 * of a link type the raw scanner does not support are classified by a full
+	 * IPF dissection instead.
+	 *
+	 * @param mpkt    the packet
+	 * @param caplen  the caplen
+	 * @param wirelen the wirelen
+	 * @param ts      the ts
+	 * @return true, if the packet is an IP fragment
+	 */
+	private boolean scanFragment(MemorySegment mpkt, int caplen, int wirelen, long ts) {
+		fragDescIfPresent = null;
+		reassemblyDescPending = false;
+
+		if (!rawScan)
+			return dissectFragment(mpkt, caplen, wirelen, ts);
+
+		if (RawPacketScanner.isNonFragment(datalink, mpkt, caplen))
+			return false;
+
+		return fragInfo.scan(mpkt, caplen);
+	}
+
+	/**
+	 * Classify a packet by a full IPF dissection and copy its fragment
+	 * information from the IPF fragment descriptor. The descriptor is kept for
+	 * attachment to a passed through fragment, if so configured.
+	 *
+	 * @param mpkt    the packet
+	 * @param caplen  the caplen
+	 * @param wirelen the wirelen
+	 * @param ts      the ts
+	 * @return true, if the packet is an IP fragment
+	 */
+	private boolean dissectFragment(MemorySegment mpkt, int caplen, int wirelen, long ts) {
+		ipfDissector.reset();
+
+		if (ipfDissector.dissectPacket(mpkt.asByteBuffer(), ts, caplen, wirelen) == 0)
+			return false; // Not an IPF packet
+
+		ipfDissector.writeDescriptor(fragDescBuffer.clear());
+		fragDescBuffer.flip();
+		fragDesc.bind(fragDescBuffer);
+
+		if (!fragInfo.copyFrom(fragDesc))
+			return false;
+
+		if (ipfConfig.attachFragment)
+			fragDescIfPresent = fragDesc;
+
+		return true;
+	}
+
+	/**
+	 * Dissect the IPF fragment descriptor, which is attached to passed through
+	 * fragments.
+	 *
+	 * @param packetBuf the packet buf
+	 * @param caplen    the caplen
+	 * @param wirelen   the wirelen
+	 * @param ts        the ts
+	 */
+	private void dissectFragmentDescriptor(ByteBuffer packetBuf, int caplen, int wirelen, long ts) {
+
+		/*
+		 * We're single threaded and we reuse the descriptor, so prepare it for another
+		 * fragment
+		 */
+		ipfDissector.reset();
+
+		if (ipfDissector.dissectPacket(packetBuf, ts, caplen, wirelen) == 0)
+			return; // Not recognized by the IPF dissector
+
+		/* Do the Java descriptor bindings so we have a java descriptor */
+		ipfDissector.writeDescriptor(fragDescBuffer.clear());
+		fragDescBuffer.flip();
+		fragDesc.bind(fragDescBuffer);
+
+		fragDescIfPresent = fragDesc;
+	}
+
 	/**
 	 * Dispatch packet.
 	 *
@@ -466,8 +691,59 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	 */
 	private void sendMemorySegment(MemorySegment mseg, int caplen, int wirelen, long expiration,
 			IpfDgramReassembler reassembler) {
-		ReassembledDatagram req = new ReassembledDatagram(mseg, caplen, wirelen, expiration, reassembler);
-		dgramQueue.offer(req);
+
+		if (dgramRing.isFull()) {
+			ipfStats.incDatagramOverflow(1);
+
+			switch (overflowPolicy) {
+			case DROP_NEWEST:
+				reassembler.close();
+				return;
+
+			case FLUSH:
+				/*
+				 * The packet being processed is still bound to the reusable packet and
+				 * reassembly descriptor, which dispatching a datagram would overwrite. The
+				 * datagram is held in the ring's reserve and flushed by drainDatagrams,
+				 * right after the current packet has been sunk.
+				 */
+				if (!dgramRing.isExhausted())
+					break;
+
+				ipfStats.incDatagramFlushDrop(1);
+
+				/* Reserve exhausted as well, fall through and drop */
+
+			case DROP_OLDEST:
+				IpfDatagramRing.Slot oldest = dgramRing.poll();
+				oldest.reassembler.close();
+				oldest.clear();
+				break;
+			}
+		}
+
+		dgramRing.add(mseg, caplen, wirelen, expiration, reassembler);
+	}
+
+	/**
+	 * Drain the reassembled datagrams pending dispatch to the sink.
+	 *
+	 * @param <U>  the generic type
+	 * @param sink the sink
+	 * @param user the user
+	 */
+	private <U> void drainDatagrams(OfPacket<U> sink, U user) {
+
+		/*
+		 * Datagrams in the ring get turned into packets and dispatched after the last
+		 * packet was sent to the sink. Datagrams end up in the ring because we have a
+		 * fully reassembled datagram, or because of timeout queue expiration.
+		 */
+		IpfDatagramRing.Slot dgram;
+		while ((dgram = dgramRing.poll()) != null) {
+			sinkIpDatagram(dgram, sink, user);
+			dgram.clear();
+		}
 	}
 
 	/**
@@ -478,8 +754,14 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 	 * @param sink  the sink
 	 * @param user  the user
 	 */
-	private <U> void sinkIpDatagram(ReassembledDatagram dgram, OfPacket<U> sink, U user) {
+	private <U> void sinkIpDatagram(IpfDatagramRing.Slot dgram, OfPacket<U> sink, U user) {
 		IpfDgramReassembler reassembler = dgram.reassembler;
+
+		if (reassembler.isScatterGather()) {
+			sinkScatterGather(dgram, reassembler, sink, user);
+			return;
+		}
+
 		ByteBuffer buf = dgram.mseg.asByteBuffer();
 
 		Packet packet = super.processPacket(buf, dgram.mseg, dgram.caplen, dgram.wirelen, dgram.timestamp);
@@ -497,6 +779,55 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 		reassembler.close();
 	}
 
+	/**
+	 * Sink a scatter-gather datagram. The datagram handler receives the
+	 * scatter-gather view, and the datagram is only linearized, into a reusable
+	 * buffer, if it is also to be sent as a packet.
+	 *
+	 * @param <U>   the generic type
+	 * @param dgram the dgram
+	 * @param sink  the sink
+	 * @param user  the user
+	 */
+	private <U> void sinkScatterGather(IpfDatagramRing.Slot dgram, IpfDgramReassembler reassembler,
+			OfPacket<U> sink, U user) {
+		IpfDatagram view = reassembler.scatterGatherView(dgram.timestamp);
+
+		try {
+			if (datagramHandler != null)
+				datagramHandler.handleDatagram(view);
+
+			boolean sendPacket = view.isComplete()
+					? ipfConfig.dgramsComplete
+					: ipfConfig.dgramsIncomplete;
+
+			if (!sendPacket)
+				return;
+
+			int caplen = (int) view.length();
+			if (linearBuffer.byteSize() < caplen)
+				linearBuffer = Arena.ofAuto().allocate(Math.max(caplen, 2 * linearBuffer.byteSize()));
+
+			MemorySegment mseg = linearBuffer.asSlice(0, caplen);
+			view.copyTo(0, mseg, 0, caplen);
+
+			Packet packet = super.processPacket(mseg.asByteBuffer(), mseg, caplen, dgram.wirelen, dgram.timestamp);
+
+			reassembler.writeReassemblyDescriptor(reassemblyDescBuffer.clear());
+			reassemblyDescBuffer.flip();
+			reassemblyDesc.bind(reassemblyDescBuffer);
+
+			packet.descriptor().addDescriptor(reassemblyDesc);
+
+			sink.handlePacket(user, packet);
+			packet.unbind();
+
+		} finally {
+			/* Close and reset the reassembler for the next IPF data-gram reassembly */
+			reassembler.close();
+		}
+	}
+
 	/**
 	 * Sink ipf native 0.
 	 *
@@ -526,7 +857,10 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 			try {
 				IpfDgramReassembler toClose = processIpfPacket(packet);
 
-				packet.descriptor().addDescriptor(fragDescIfPresent);
+				if (fragDescIfPresent != null)
+					packet.descriptor().addDescriptor(fragDescIfPresent);
+				else if (reassemblyDescPending)
+					packet.descriptor().addDescriptor(reassemblyDesc);
 
 				/*
 				 * OK, we have an IPF fragment so sink as IPF frag (ie. attache IPF tracking or
@@ -578,17 +912,6 @@ public final class JavaIpfDispatcher extends AbstractPacketReceiver implements I
 
 		sink.handlePacket(user, packet);
 		packet.unbind();
-
-		/*
-		 * We check the IP data-gram queue, if any. These data-gram get turned into
-		 * packets and dispatched after the last packet was sent to the sink. Packets on
-		 * this queue can end up because, we have fully reassembled data-gram, or
-		 * because of timeout queue expiration, and manual insertion (future).
-		 */
-		ReassembledDatagram dgram = null;
-		while ((dgram = dgramQueue.poll()) != null) {
-			sinkIpDatagram(dgram, sink, user);
-		}
 	}
 
 }
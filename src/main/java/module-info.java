@@ -29,4 +29,6 @@ module com.slytechs.jnet.jnetpcap {
 	requires transitive org.jnetpcap;
 	requires transitive com.slytechs.jnet.protocol;
 	requires com.slytechs.jnet.jnetruntime;
+	requires java.management;
+	requires jdk.httpserver;
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jnetpcap.PcapHandler.NativeCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per packet cost of 0 to 5 installed pre-processor stages. Compares the
+ * stages fused by {@link FusedPreProcessor} into a hidden class chain, the
+ * same fused method handle invoked directly, as when the hidden class can not
+ * be defined, and the previous nested callbacks, one per pre-processor.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FusedPreProcessorBenchmark {
+
+	/**
+	 * A pass through stage, which counts the packets it sees.
+	 */
+	private static final class CountingStage implements PreProcessorStage {
+
+		/** The packet count. */
+		long count;
+
+		@Override
+		public MemorySegment process(MemorySegment header, MemorySegment packet) {
+			count++;
+
+			return header;
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	/** The number of installed stages. */
+	@Param({ "0", "1", "2", "3", "4", "5" })
+	public int stageCount;
+
+	/** Arena holding the header and packet. */
+	private Arena arena;
+
+	/** The pcap header. */
+	private MemorySegment header;
+
+	/** The packet data. */
+	private MemorySegment packet;
+
+	/** The fused chain, compiled into a hidden class. */
+	private FusedPreProcessor.Chain chain;
+
+	/** The fused method handle. */
+	private MethodHandle fused;
+
+	/** The nested callbacks, outermost first. */
+	private NativeCallback nested;
+
+	/** The blackhole the nested callbacks deliver to. */
+	private Blackhole blackhole;
+
+	/**
+	 * Build the stages and each way of chaining them.
+	 *
+	 * @param bh the blackhole
+	 */
+	@Setup(Level.Trial)
+	public void setup(Blackhole bh) {
+		blackhole = bh;
+		arena = Arena.ofShared();
+		header = arena.allocate(24);
+		packet = arena.allocate(128);
+
+		List<PreProcessorStage> stages = new ArrayList<>();
+		for (int i = 0; i < stageCount; i++)
+			stages.add(new CountingStage());
+
+		fused = FusedPreProcessor.fuse(stages);
+		chain = FusedPreProcessor.compile(fused);
+
+		NativeCallback downstream = (u, h, p) -> blackhole.consume(h);
+		for (int i = stages.size() - 1; i >= 0; i--) {
+			PreProcessorStage stage = stages.get(i);
+			NativeCallback next = downstream;
+
+			downstream = (u, h, p) -> {
+				MemorySegment hdr = stage.process(h, p);
+				if (hdr != null)
+					next.nativeCallback(u, hdr, p);
+			};
+		}
+
+		nested = downstream;
+	}
+
+	/**
+	 * Release the header and packet.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		arena.close();
+	}
+
+	/**
+	 * Stages fused into a hidden class chain.
+	 *
+	 * @return the header passed downstream
+	 */
+	@Benchmark
+	public MemorySegment fusedChain() {
+		return chain.apply(header, packet);
+	}
+
+	/**
+	 * Fused method handle, invoked directly.
+	 *
+	 * @return the header passed downstream
+	 * @throws Throwable never, the stages do not throw
+	 */
+	@Benchmark
+	public MemorySegment fusedHandle() throws Throwable {
+		return (MemorySegment) fused.invokeExact(header, packet);
+	}
+
+	/**
+	 * Nested callbacks, one per stage.
+	 */
+	@Benchmark
+	public void nestedCallbacks() {
+		nested.nativeCallback(MemorySegment.NULL, header, packet);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.slytechs.jnet.protocol.Packet;
+import com.slytechs.jnet.protocol.core.constants.PacketDescriptorType;
+import com.slytechs.jnet.protocol.descriptor.PacketDescriptor;
+import com.slytechs.jnet.protocol.descriptor.PacketDissector;
+
+/**
+ * Per packet cost of {@link PacketDissectorReceiver}, for each dissecting
+ * descriptor type. Compares the dispatch path, which binds the invariant
+ * packet fields once and reuses its packets, with the previous path which
+ * allocated a new packet and bound the formatter and timestamp unit for every
+ * packet.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketDissectorReceiverBenchmark {
+
+	/** An Ethernet, IPv4 and TCP SYN frame. */
+	private static final String FRAME_HEX = ""
+			+ "00163e1a2b3c00163e4d5e6f08004500"
+			+ "003c1c4640004006b1e6c0a80001c0a8"
+			+ "0002d43100508a3e2b1c00000000a002"
+			+ "faf0b5c70000020405b40402080a0001"
+			+ "e2400000000001030307";
+
+	/** The descriptor type produced by the dissector. */
+	@Param({ "TYPE1", "TYPE2" })
+	public PacketDescriptorType descriptorType;
+
+	/** Arena holding the frame. */
+	private Arena frameArena;
+
+	/** The frame, as libpcap hands it out. */
+	private MemorySegment frame;
+
+	/** The frame length. */
+	private int caplen;
+
+	/** The receiver under test. */
+	private PacketDissectorReceiver receiver;
+
+	/** The receiver configuration. */
+	private PacketReceiverConfig config;
+
+	/** The descriptor buffer of the per packet allocation path. */
+	private ByteBuffer descBuffer;
+
+	/**
+	 * Allocate the frame and activate the receiver.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		byte[] bytes = HexFormat.of().parseHex(FRAME_HEX);
+
+		frameArena = Arena.ofShared();
+		frame = frameArena.allocate(bytes.length);
+		frame.copyFrom(MemorySegment.ofArray(bytes));
+		caplen = bytes.length;
+
+		config = new PacketReceiverConfig();
+		config.descriptorType = descriptorType;
+		config.dissector = PacketDissector.dissector(descriptorType);
+
+		receiver = new PacketDissectorReceiver(config);
+		receiver.activate();
+
+		descBuffer = ByteBuffer.allocateDirect(1024).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Release the frame.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		frameArena.close();
+	}
+
+	/**
+	 * Dispatch path, invariant fields bound once, reusable packet.
+	 *
+	 * @return the packet
+	 */
+	@Benchmark
+	public Packet reusablePacket() {
+		return receiver.processPacket(frame.asByteBuffer(), frame, caplen, caplen, 0);
+	}
+
+	/**
+	 * Previous dispatch path, a new packet per packet with all fields bound per
+	 * packet.
+	 *
+	 * @return the packet
+	 */
+	@Benchmark
+	public Packet newPacketPerPacket() {
+		ByteBuffer bpkt = frame.asByteBuffer();
+		PacketDissector dissector = config.dissector;
+		Packet packet = new Packet(descriptorType.newDescriptor());
+
+		dissector.dissectPacket(bpkt, 0, caplen, caplen);
+		dissector.writeDescriptor(descBuffer.clear());
+		dissector.reset();
+
+		PacketDescriptor desc = packet.descriptor();
+
+		packet.bind(bpkt.flip(), frame);
+		desc.bind(descBuffer.flip());
+
+		desc.portNo(config.portNo);
+		desc.portName(config.portName);
+		desc.frameNo(config.frameNo.getUsing(0, config.portNo));
+		desc.timestampUnit(config.timestampUnit);
+		packet.setFormatter(config.formatter);
+
+		return packet;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import static com.slytechs.jnet.jnetpcap.internal.RawPacketScanner.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.slytechs.jnet.jnetpcap.IpfReassembler;
+import com.slytechs.jnet.jnetpcap.internal.ipf.JavaIpfDispatcher.DatagramQueue;
+
+/**
+ * Tests the removal of the IPv6 fragment extension header from reassembled
+ * datagrams, by {@code IpfDgramReassembler.clearIp6FragmentHeader}. The next
+ * header field which pointed at the fragment header must be re-chained to the
+ * fragment header's next header, the headers which preceded it must remain
+ * intact and the payload length must cover the extension headers and the
+ * reassembled payload.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+class IpfDgramReassemblerTest {
+
+	/** UDP datagram length, header included. */
+	private static final int UDP_LENGTH = 64;
+
+	/** Length of the UDP datagram data in the first fragment. */
+	private static final int FIRST_LENGTH = 32;
+
+	/** IPv6 header offset in the Ethernet frames. */
+	private static final int L3 = IpfTestFrames.ETHERNET_HEADER_LENGTH;
+
+	/** IPv6 header length. */
+	private static final int IPv6_HEADER_LENGTH = 40;
+
+	@Test
+	void noExtensionHeaders() {
+		assertReassembledIp6(true);
+	}
+
+	@Test
+	void hopByHopHeader() {
+		assertReassembledIp6(true, IP6_EXT_HOP_BY_HOP);
+	}
+
+	@Test
+	void hopByHopAndRoutingHeaders() {
+		assertReassembledIp6(true, IP6_EXT_HOP_BY_HOP, IP6_EXT_ROUTING);
+	}
+
+	@Test
+	void noExtensionHeadersLastFragmentFirst() {
+		assertReassembledIp6(false);
+	}
+
+	@Test
+	void hopByHopHeaderLastFragmentFirst() {
+		assertReassembledIp6(false, IP6_EXT_HOP_BY_HOP);
+	}
+
+	@Test
+	void hopByHopAndRoutingHeadersLastFragmentFirst() {
+		assertReassembledIp6(false, IP6_EXT_HOP_BY_HOP, IP6_EXT_ROUTING);
+	}
+
+	/**
+	 * Reassemble a two fragment UDP datagram and check the reassembled IPv6 and
+	 * extension headers.
+	 *
+	 * @param inOrder    if the first fragment arrives first
+	 * @param extHeaders the extension headers preceding the fragment header
+	 */
+	private static void assertReassembledIp6(boolean inOrder, int... extHeaders) {
+		byte[] udp = IpfTestFrames.udpDatagram(UDP_LENGTH, 1234);
+		byte[] dgram;
+
+		try (var arena = Arena.ofConfined()) {
+			var first = IpfTestFrames.ip6Fragment(arena, extHeaders, 7, 0, true, udp, FIRST_LENGTH);
+			var last = IpfTestFrames.ip6Fragment(arena, extHeaders, 7, FIRST_LENGTH, false, udp,
+					UDP_LENGTH - FIRST_LENGTH);
+
+			dgram = reassemble(inOrder ? List.of(first, last) : List.of(last, first));
+		}
+
+		int extLength = extHeaders.length * IpfTestFrames.IPv6_EXT_HEADER_LENGTH;
+		var seg = MemorySegment.ofArray(dgram);
+
+		assertEquals(L3 + IPv6_HEADER_LENGTH + extLength + UDP_LENGTH, dgram.length, "datagram length");
+		assertEquals(0x86DD, u16(seg, 12), "ethertype");
+		assertEquals(extLength + UDP_LENGTH, u16(seg, L3 + 4), "payload length");
+
+		/* Walk the next header chain, the fragment header must have been skipped */
+		int nextHeaderField = L3 + 6;
+		for (int i = 0; i < extHeaders.length; i++) {
+			assertEquals(extHeaders[i], u8(seg, nextHeaderField), "next header " + i);
+			nextHeaderField = L3 + IPv6_HEADER_LENGTH + (i * IpfTestFrames.IPv6_EXT_HEADER_LENGTH);
+			assertEquals(0, u8(seg, nextHeaderField + 1), "extension header length " + i);
+		}
+
+		assertEquals(IP_PROTO_UDP, u8(seg, nextHeaderField), "upper layer next header");
+
+		byte[] payload = Arrays.copyOfRange(dgram, L3 + IPv6_HEADER_LENGTH + extLength, dgram.length);
+		assertArrayEquals(udp, payload, "reassembled payload");
+	}
+
+	/**
+	 * Feed the fragments of one datagram, in the given order, to a new IPF table
+	 * and capture the reassembled datagram.
+	 *
+	 * @param fragments the fragment frames
+	 * @return the reassembled datagram bytes
+	 */
+	private static byte[] reassemble(List<MemorySegment> fragments) {
+		var config = new IpfReassembler()
+				.setTableSize(4)
+				.setBufferSize(4 * 4096)
+				.setTableMaxFragmentCount(8);
+
+		byte[][] captured = new byte[1][];
+		DatagramQueue queue = (mseg, caplen, wirelen, expiration, reassembler) -> {
+			captured[0] = mseg.asSlice(0, caplen).toArray(ValueLayout.JAVA_BYTE);
+		};
+
+		var table = new IpfTable(config, queue);
+
+		var fragInfo = new IpfFragmentInfo();
+		long frameNo = 0;
+
+		for (MemorySegment frame : fragments) {
+			assertTrue(fragInfo.scan(frame, (int) frame.byteSize()), "scanned as a fragment");
+
+			var packet = frame.asByteBuffer();
+			var reassembler = table.lookup(fragInfo, fragInfo.keyHash(), packet);
+			assertNotNull(reassembler, "table entry");
+			assertTrue(reassembler.processFragment(frameNo++, packet, fragInfo), "fragment processed");
+
+			if (reassembler.isReassembled()) {
+				assertTrue(reassembler.isComplete(), "datagram complete");
+				reassembler.addDatagramToQueue(queue);
+				reassembler.close();
+			}
+		}
+
+		assertNotNull(captured[0], "datagram reassembled");
+
+		return captured[0];
+	}
+}
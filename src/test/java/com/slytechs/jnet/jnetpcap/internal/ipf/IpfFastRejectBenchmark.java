@@ -0,0 +1,159 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.slytechs.jnet.jnetpcap.internal.RawPacketScanner;
+
+/**
+ * Per packet cost of the IPF receive path on unfragmented traffic. Compares
+ * the packet path without IPF, the previous path which opened and closed a
+ * shared arena for every packet before scanning it, and the current path which
+ * scopes a whole dispatch call with one confined arena and rejects
+ * non-fragments with {@link RawPacketScanner#isNonFragment}. The IPF enabled
+ * path should approach the no IPF baseline.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpfFastRejectBenchmark {
+
+	/** Packets per simulated dispatch call. */
+	private static final int BATCH = 64;
+
+	/** Ethernet + IP + UDP frame length. */
+	private static final int FRAME_LENGTH = 128;
+
+	/** The IP version of the synthetic, unfragmented frames. */
+	@Param({ "4", "6" })
+	public int ipVersion;
+
+	/** Arena holding the synthetic frames. */
+	private Arena frameArena;
+
+	/** Native memory address of each frame, as libpcap hands them out. */
+	private long[] addresses;
+
+	/** The full fragment scanner. */
+	private final IpfFragmentInfo fragInfo = new IpfFragmentInfo();
+
+	/**
+	 * Allocate the synthetic frames.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		frameArena = Arena.ofShared();
+		addresses = new long[BATCH];
+
+		for (int i = 0; i < BATCH; i++) {
+			MemorySegment frame = frameArena.allocate(FRAME_LENGTH);
+			IpfTestFrames.writeUnfragmented(frame, ipVersion, i);
+
+			addresses[i] = frame.address();
+		}
+	}
+
+	/**
+	 * Release the synthetic frames.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		frameArena.close();
+	}
+
+	/**
+	 * Packet path without IPF, the packet is only bound to the dispatch scope.
+	 *
+	 * @param bh the blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void noIpf(Blackhole bh) {
+		try (var arena = Arena.ofConfined()) {
+			for (int i = 0; i < BATCH; i++) {
+				MemorySegment pkt = MemorySegment.ofAddress(addresses[i])
+						.reinterpret(FRAME_LENGTH, arena, null);
+
+				bh.consume(pkt);
+			}
+		}
+	}
+
+	/**
+	 * Previous IPF path, a shared arena is opened and closed for every packet.
+	 *
+	 * @param bh the blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void sharedArenaPerPacket(Blackhole bh) {
+		for (int i = 0; i < BATCH; i++) {
+			try (var arena = Arena.ofShared()) {
+				MemorySegment pkt = MemorySegment.ofAddress(addresses[i])
+						.reinterpret(FRAME_LENGTH, arena, null);
+
+				bh.consume(fragInfo.scan(pkt, FRAME_LENGTH));
+			}
+		}
+	}
+
+	/**
+	 * Current IPF path, one confined arena per dispatch call and a stateless fast
+	 * reject of non-fragments.
+	 *
+	 * @param bh the blackhole
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void confinedArenaFastReject(Blackhole bh) {
+		try (var arena = Arena.ofConfined()) {
+			for (int i = 0; i < BATCH; i++) {
+				MemorySegment pkt = MemorySegment.ofAddress(addresses[i])
+						.reinterpret(FRAME_LENGTH, arena, null);
+
+				bh.consume(RawPacketScanner.isNonFragment(RawPacketScanner.DLT_EN10MB, pkt, FRAME_LENGTH)
+						|| fragInfo.scan(pkt, FRAME_LENGTH));
+			}
+		}
+	}
+}
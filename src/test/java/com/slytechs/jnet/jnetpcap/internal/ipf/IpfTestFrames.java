@@ -0,0 +1,188 @@
+/*
+ * Sly Technologies Free License
+ * 
+ * Copyright 2023 Sly Technologies Inc.
+ *
+ * Licensed under the Sly Technologies Free License (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.slytechs.com/free-license-text
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.slytechs.jnet.jnetpcap.internal.ipf;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import com.slytechs.jnet.jnetpcap.internal.RawPacketScanner;
+
+/**
+ * Builders of synthetic Ethernet frames and IP fragments, used by the IPF
+ * tests and benchmarks.
+ *
+ * @author Sly Technologies Inc
+ * @author repos@slytechs.com
+ */
+final class IpfTestFrames {
+
+	/** Ethernet header length. */
+	static final int ETHERNET_HEADER_LENGTH = 14;
+
+	/** Length of the synthetic IPv6 extension headers, and the fragment header. */
+	static final int IPv6_EXT_HEADER_LENGTH = 8;
+
+	/** Big endian int. */
+	private static final ValueLayout.OfInt INT_BE = ValueLayout.JAVA_INT_UNALIGNED
+			.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/** Big endian short. */
+	private static final ValueLayout.OfShort SHORT_BE = ValueLayout.JAVA_SHORT_UNALIGNED
+			.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Write an unfragmented Ethernet, IP and UDP frame, filling the remainder of
+	 * the segment with UDP payload.
+	 *
+	 * @param frame     the frame, at least 62 bytes long
+	 * @param ipVersion the IP version, 4 or 6
+	 * @param id        the IPv4 identification, also used as the source port
+	 */
+	static void writeUnfragmented(MemorySegment frame, int ipVersion, int id) {
+		int len = (int) frame.byteSize();
+		int l3 = ETHERNET_HEADER_LENGTH;
+
+		frame.fill((byte) 0);
+		frame.set(SHORT_BE, 12, (short) (ipVersion == 4 ? 0x0800 : 0x86DD));
+
+		int l4;
+		if (ipVersion == 4) {
+			frame.set(ValueLayout.JAVA_BYTE, l3, (byte) 0x45);
+			frame.set(SHORT_BE, l3 + 2, (short) (len - l3));
+			frame.set(SHORT_BE, l3 + 4, (short) id);
+			frame.set(SHORT_BE, l3 + 6, (short) 0x4000); // DF, offset 0
+			frame.set(ValueLayout.JAVA_BYTE, l3 + 8, (byte) 64);
+			frame.set(ValueLayout.JAVA_BYTE, l3 + 9, (byte) 17);
+			l4 = l3 + 20;
+
+		} else {
+			frame.set(ValueLayout.JAVA_BYTE, l3, (byte) 0x60);
+			frame.set(SHORT_BE, l3 + 4, (short) (len - l3 - 40));
+			frame.set(ValueLayout.JAVA_BYTE, l3 + 6, (byte) 17);
+			frame.set(ValueLayout.JAVA_BYTE, l3 + 7, (byte) 64);
+			l4 = l3 + 40;
+		}
+
+		frame.set(SHORT_BE, l4, (short) id);
+		frame.set(SHORT_BE, l4 + 2, (short) 53);
+		frame.set(SHORT_BE, l4 + 4, (short) (len - l4));
+	}
+
+	/**
+	 * Build a UDP datagram, an IP payload of which fragments are cut. The payload
+	 * bytes are a counting pattern, so that misplaced fragment data is detected.
+	 *
+	 * @param length  the UDP length, header included
+	 * @param srcPort the source port
+	 * @return the UDP datagram bytes
+	 */
+	static byte[] udpDatagram(int length, int srcPort) {
+		byte[] udp = new byte[length];
+		MemorySegment seg = MemorySegment.ofArray(udp);
+
+		seg.set(SHORT_BE, 0, (short) srcPort);
+		seg.set(SHORT_BE, 2, (short) 53);
+		seg.set(SHORT_BE, 4, (short) length);
+
+		for (int i = 8; i < length; i++)
+			udp[i] = (byte) i;
+
+		return udp;
+	}
+
+	/**
+	 * Allocate an Ethernet and IPv4 fragment frame, carrying a slice of a UDP
+	 * datagram.
+	 *
+	 * @param arena      the arena to allocate the frame from
+	 * @param id         the IPv4 identification
+	 * @param fragOffset the fragment offset in bytes, a multiple of 8
+	 * @param more       if more fragments follow
+	 * @param udp        the whole UDP datagram
+	 * @param dataLength the number of datagram bytes in this fragment
+	 * @return the frame
+	 */
+	static MemorySegment ip4Fragment(Arena arena, int id, int fragOffset, boolean more, byte[] udp,
+			int dataLength) {
+		int l3 = ETHERNET_HEADER_LENGTH;
+		int data = l3 + 20;
+		MemorySegment frame = arena.allocate(data + dataLength);
+
+		frame.set(SHORT_BE, 12, (short) 0x0800);
+		frame.set(ValueLayout.JAVA_BYTE, l3, (byte) 0x45);
+		frame.set(SHORT_BE, l3 + 2, (short) (20 + dataLength));
+		frame.set(SHORT_BE, l3 + 4, (short) id);
+		frame.set(SHORT_BE, l3 + 6, (short) ((more ? 0x2000 : 0) | (fragOffset >> 3)));
+		frame.set(ValueLayout.JAVA_BYTE, l3 + 8, (byte) 64);
+		frame.set(ValueLayout.JAVA_BYTE, l3 + 9, (byte) RawPacketScanner.IP_PROTO_UDP);
+
+		MemorySegment.copy(MemorySegment.ofArray(udp), fragOffset, frame, data, dataLength);
+
+		return frame;
+	}
+
+	/**
+	 * Allocate an Ethernet and IPv6 fragment frame, carrying a slice of a UDP
+	 * datagram. The given extension headers, each 8 bytes long, precede the
+	 * fragment header and are chained through their next header fields.
+	 *
+	 * @param arena      the arena to allocate the frame from
+	 * @param extHeaders the extension header types preceding the fragment header
+	 * @param id         the fragment identification
+	 * @param fragOffset the fragment offset in bytes, a multiple of 8
+	 * @param more       if more fragments follow
+	 * @param udp        the whole UDP datagram
+	 * @param dataLength the number of datagram bytes in this fragment
+	 * @return the frame
+	 */
+	static MemorySegment ip6Fragment(Arena arena, int[] extHeaders, int id, int fragOffset, boolean more,
+			byte[] udp, int dataLength) {
+		int l3 = ETHERNET_HEADER_LENGTH;
+		int frag = l3 + 40 + (extHeaders.length * IPv6_EXT_HEADER_LENGTH);
+		int data = frag + IPv6_EXT_HEADER_LENGTH;
+		MemorySegment frame = arena.allocate(data + dataLength);
+
+		frame.set(SHORT_BE, 12, (short) 0x86DD);
+		frame.set(ValueLayout.JAVA_BYTE, l3, (byte) 0x60);
+		frame.set(SHORT_BE, l3 + 4, (short) (data - l3 - 40 + dataLength));
+		frame.set(ValueLayout.JAVA_BYTE, l3 + 7, (byte) 64);
+
+		/* Chain the next header fields, IPv6 header through to the fragment header */
+		int nextHeaderField = l3 + 6;
+		for (int i = 0; i < extHeaders.length; i++) {
+			int ext = l3 + 40 + (i * IPv6_EXT_HEADER_LENGTH);
+
+			frame.set(ValueLayout.JAVA_BYTE, nextHeaderField, (byte) extHeaders[i]);
+			nextHeaderField = ext; // Header extension length of 0, 8 bytes long
+		}
+
+		frame.set(ValueLayout.JAVA_BYTE, nextHeaderField, (byte) RawPacketScanner.IP6_EXT_FRAGMENT);
+		frame.set(ValueLayout.JAVA_BYTE, frag, (byte) RawPacketScanner.IP_PROTO_UDP);
+		frame.set(SHORT_BE, frag + 2, (short) (fragOffset | (more ? 1 : 0)));
+		frame.set(INT_BE, frag + 4, id);
+
+		MemorySegment.copy(MemorySegment.ofArray(udp), fragOffset, frame, data, dataLength);
+
+		return frame;
+	}
+
+	private IpfTestFrames() {
+	}
+}